@@ -0,0 +1,490 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.dsg.FlatBuffer.StructVector;
+import gov.usgs.cida.netcdf.dsg.FlatBuffer.Table;
+import gov.usgs.cida.netcdf.dsg.FlatBuffer.TableVector;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes observations to an Arrow IPC file (format version V5) as record
+ * batches of primitive columns: station_index and time as non null int32,
+ * then one nullable column per statistic variable, fill values becoming
+ * nulls. The station table (station_id, lat, lon as JSON), time units and
+ * featureType are schema metadata, each variable's attributes and netCDF type
+ * are field metadata.
+ *
+ * Rows are buffered and written a record batch at a time, sync() writes the
+ * buffered rows. The file is readable by Arrow once closed, close() writes
+ * the footer.
+ */
+public class ArrowFileSink implements ObservationBatchSink {
+
+    public static final int DEFAULT_BATCH_ROWS = 1 << 16;
+
+    private static final byte[] MAGIC = { 'A', 'R', 'R', 'O', 'W', '1' };
+    private static final int CONTINUATION = 0xffffffff;
+    private static final short METADATA_V5 = 4;
+
+    // flatbuffer union tags from Message.fbs and Schema.fbs
+    private static final byte HEADER_SCHEMA = 1;
+    private static final byte HEADER_RECORD_BATCH = 3;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_FLOATING_POINT = 3;
+    private static final short PRECISION_SINGLE = 1;
+    private static final short PRECISION_DOUBLE = 2;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final Variable[] variables;
+    private final String timeUnit;
+    private final Station[] stations;
+    private final ObservationBatch pending;
+    private int[] timeAxis;
+    private final List<long[]> blocks = new ArrayList<long[]>();
+    private long rowCount = 0;
+    private boolean isClosed = false;
+
+    public ArrowFileSink(File file, RecordType rt, Station... stations) throws IOException {
+        this(file, rt.getTimeUnit(), rt.getDataVars().toArray(new Variable[0]), DEFAULT_BATCH_ROWS, stations);
+    }
+
+    /**
+     * @param variables statistic variables, in Observation.values order
+     * @param batchRows rows per record batch
+     */
+    public ArrowFileSink(File file, String timeUnit, Variable[] variables, int batchRows,
+            Station... stations) throws IOException {
+        for (Variable variable : variables) {
+            if (!Number.class.isAssignableFrom(variable.getValueClass())) {
+                throw new UnsupportedOperationException("Should implement the other types");
+            }
+        }
+        this.file = file;
+        this.variables = variables;
+        this.timeUnit = timeUnit;
+        this.stations = stations;
+        this.pending = new ObservationBatch(variables, batchRows);
+        this.raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        this.channel = raf.getChannel();
+
+        // magic padded to 8 bytes
+        write(ByteBuffer.wrap(Arrays.copyOf(MAGIC, 8)));
+        writeMessage(HEADER_SCHEMA, schema(), 0);
+    }
+
+    /**
+     * Observations carry time indices into this axis rather than offsets, as
+     * for StationTimeSeriesMultiDimensional. The offsets are written.
+     */
+    public void setTimeAxis(int[] timeOffsets) {
+        this.timeAxis = timeOffsets;
+    }
+
+    private boolean isOnTimeAxis(int time) {
+        return timeAxis == null || (time >= 0 && time < timeAxis.length);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return rows written or buffered so far
+     */
+    public long getRowCount() {
+        return rowCount + pending.size;
+    }
+
+    @Override
+    public boolean putObservation(Observation observation) {
+        if (isClosed || observation.values.length != variables.length || !isOnTimeAxis(observation.time_offset)) {
+            return false;
+        }
+        for (int v = 0; v < variables.length; v++) {
+            Object value = observation.values[v];
+            if (value != null && value.getClass() != variables[v].getValueClass()) {
+                return false;
+            }
+        }
+        int row = pending.size;
+        pending.station_index[row] = observation.station_index;
+        pending.time_offset[row] = observation.time_offset;
+        for (int v = 0; v < variables.length; v++) {
+            Object value = observation.values[v];
+            pending.setValue(v, row, (Number) ((value == null) ? variables[v].getFillValue() : value));
+        }
+        pending.size++;
+        if (pending.isFull()) {
+            writePending();
+        }
+        return true;
+    }
+
+    @Override
+    public int putBatch(ObservationBatch batch) {
+        if (isClosed) {
+            return 0;
+        }
+        if (batch.variables.length != variables.length) {
+            throw new IllegalArgumentException("Batch has " + batch.variables.length
+                    + " variables, expected " + variables.length);
+        }
+        for (int v = 0; v < variables.length; v++) {
+            if (batch.variables[v].xtype != variables[v].xtype) {
+                throw new IllegalArgumentException("Batch variable " + variables[v].name
+                        + " is not " + variables[v].xtype);
+            }
+        }
+        for (int i = 0; i < batch.size; i++) {
+            if (!isOnTimeAxis(batch.time_offset[i])) {
+                throw new IllegalArgumentException("Time index " + batch.time_offset[i] + " is not on the time axis");
+            }
+        }
+        int from = 0;
+        while (from < batch.size) {
+            int count = Math.min(batch.size - from, pending.capacity - pending.size);
+            pending.append(batch, from, count);
+            from += count;
+            if (pending.isFull()) {
+                writePending();
+            }
+        }
+        return batch.size;
+    }
+
+    /**
+     * Write the buffered rows as a record batch and force them to disk
+     */
+    @Override
+    public void sync() {
+        if (isClosed) {
+            return;
+        }
+        writePending();
+        try {
+            channel.force(false);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to sync " + file, ioe);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        try {
+            writePending();
+            ByteBuffer end = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(CONTINUATION).putInt(0);
+            end.flip();
+            write(end);
+
+            ByteBuffer blockBytes = ByteBuffer.allocate(24 * blocks.size()).order(ByteOrder.LITTLE_ENDIAN);
+            for (long[] block : blocks) {
+                blockBytes.putLong(block[0]).putInt((int) block[1]).putInt(0).putLong(block[2]);
+            }
+            byte[] footer = FlatBuffer.finish(new Table()
+                    .addShort(0, METADATA_V5)
+                    .addOffset(1, schema())
+                    .addOffset(2, new StructVector(new byte[0], 0, 8))
+                    .addOffset(3, new StructVector(blockBytes.array(), blocks.size(), 8)));
+            ByteBuffer tail = ByteBuffer.allocate(footer.length + 4 + MAGIC.length).order(ByteOrder.LITTLE_ENDIAN);
+            tail.put(footer).putInt(footer.length).put(MAGIC);
+            tail.flip();
+            write(tail);
+            channel.force(true);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to close " + file, ioe);
+        } finally {
+            isClosed = true;
+            try {
+                raf.close();
+            } catch (IOException ioe) {
+                // already failing or closed
+            }
+        }
+    }
+
+    private void writePending() {
+        if (pending.size == 0) {
+            return;
+        }
+        int rows = pending.size;
+        int columns = variables.length + 2;
+        long[][] buffers = new long[columns * 2][];
+        long[] nullCounts = new long[columns];
+        List<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+
+        long offset = 0;
+        for (int c = 0; c < columns; c++) {
+            ByteBuffer validity = (c < 2) ? null : validity(c - 2, rows, nullCounts, c);
+            ByteBuffer values = values(c, rows);
+            buffers[2 * c] = new long[] { offset, (validity == null) ? 0 : validity.limit() };
+            offset += pad(validity, parts);
+            buffers[2 * c + 1] = new long[] { offset, values.limit() };
+            offset += pad(values, parts);
+        }
+
+        ByteBuffer nodes = ByteBuffer.allocate(16 * columns).order(ByteOrder.LITTLE_ENDIAN);
+        for (int c = 0; c < columns; c++) {
+            nodes.putLong(rows).putLong(nullCounts[c]);
+        }
+        ByteBuffer bufferBytes = ByteBuffer.allocate(16 * buffers.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] buffer : buffers) {
+            bufferBytes.putLong(buffer[0]).putLong(buffer[1]);
+        }
+        Table recordBatch = new Table()
+                .addLong(0, rows)
+                .addOffset(1, new StructVector(nodes.array(), columns, 8))
+                .addOffset(2, new StructVector(bufferBytes.array(), buffers.length, 8));
+        try {
+            long start = channel.position();
+            int metadataLength = writeMessage(HEADER_RECORD_BATCH, recordBatch, offset);
+            for (ByteBuffer part : parts) {
+                write(part);
+            }
+            blocks.add(new long[] { start, metadataLength, offset });
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write record batch to " + file, ioe);
+        }
+        rowCount += rows;
+        pending.clear();
+    }
+
+    /**
+     * @return validity bitmap of variable v, or null if it has no fill values
+     */
+    private ByteBuffer validity(int v, int rows, long[] nullCounts, int c) {
+        Object fill = variables[v].getFillValue();
+        if (fill == null) {
+            return null;
+        }
+        Object column = pending.columns[v];
+        double fillValue = ((Number) fill).doubleValue();
+        long fillBits = ((Number) fill).longValue();
+        byte[] bits = null;
+        for (int i = 0; i < rows; i++) {
+            if (isFill(column, i, fillValue, fillBits)) {
+                if (bits == null) {
+                    bits = new byte[(rows + 7) / 8];
+                    for (int set = 0; set < rows; set++) {
+                        bits[set >> 3] |= 1 << (set & 7);
+                    }
+                }
+                bits[i >> 3] &= ~(1 << (i & 7));
+                nullCounts[c]++;
+            }
+        }
+        return (bits == null) ? null : ByteBuffer.wrap(bits);
+    }
+
+    private static boolean isFill(Object column, int i, double fillValue, long fillBits) {
+        if (column instanceof float[]) {
+            return ((float[]) column)[i] == (float) fillValue;
+        }
+        else if (column instanceof double[]) {
+            return ((double[]) column)[i] == fillValue;
+        }
+        else if (column instanceof byte[]) {
+            return ((byte[]) column)[i] == fillBits;
+        }
+        else if (column instanceof short[]) {
+            return ((short[]) column)[i] == fillBits;
+        }
+        else if (column instanceof int[]) {
+            return ((int[]) column)[i] == fillBits;
+        }
+        return ((long[]) column)[i] == fillBits;
+    }
+
+    /**
+     * @return little endian values of column c, 0 and 1 are station_index and time
+     */
+    private ByteBuffer values(int c, int rows) {
+        if (c < 2) {
+            ByteBuffer buffer = ByteBuffer.allocate(4 * rows).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < rows; i++) {
+                int value = (c == 0) ? pending.station_index[i] : pending.time_offset[i];
+                buffer.putInt((c == 1 && timeAxis != null) ? timeAxis[value] : value);
+            }
+            buffer.flip();
+            return buffer;
+        }
+        Object column = pending.columns[c - 2];
+        ByteBuffer buffer;
+        if (column instanceof byte[]) {
+            buffer = ByteBuffer.wrap((byte[]) column, 0, rows).slice();
+        }
+        else if (column instanceof short[]) {
+            buffer = ByteBuffer.allocate(2 * rows).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asShortBuffer().put((short[]) column, 0, rows);
+        }
+        else if (column instanceof int[]) {
+            buffer = ByteBuffer.allocate(4 * rows).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asIntBuffer().put((int[]) column, 0, rows);
+        }
+        else if (column instanceof long[]) {
+            buffer = ByteBuffer.allocate(8 * rows).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asLongBuffer().put((long[]) column, 0, rows);
+        }
+        else if (column instanceof float[]) {
+            buffer = ByteBuffer.allocate(4 * rows).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asFloatBuffer().put((float[]) column, 0, rows);
+        }
+        else {
+            buffer = ByteBuffer.allocate(8 * rows).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asDoubleBuffer().put((double[]) column, 0, rows);
+        }
+        return buffer;
+    }
+
+    /**
+     * Queue the buffer and its padding to 8 bytes
+     * @return bytes queued
+     */
+    private static long pad(ByteBuffer buffer, List<ByteBuffer> parts) {
+        int length = (buffer == null) ? 0 : buffer.limit();
+        if (buffer != null) {
+            parts.add(buffer);
+        }
+        int padding = (8 - length % 8) % 8;
+        if (padding > 0) {
+            parts.add(ByteBuffer.allocate(padding));
+        }
+        return length + padding;
+    }
+
+    /**
+     * Encapsulated message: continuation, metadata length, Message flatbuffer
+     * padded to 8 bytes. The body is written by the caller.
+     * @return bytes written, including the 8 byte prefix
+     */
+    private int writeMessage(byte headerType, Table header, long bodyLength) throws IOException {
+        byte[] message = FlatBuffer.finish(new Table()
+                .addShort(0, METADATA_V5)
+                .addByte(1, headerType)
+                .addOffset(2, header)
+                .addLong(3, bodyLength));
+        ByteBuffer buffer = ByteBuffer.allocate(8 + message.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CONTINUATION).putInt(message.length).put(message);
+        buffer.flip();
+        write(buffer);
+        return buffer.limit();
+    }
+
+    private Table schema() {
+        TableVector fields = new TableVector();
+        fields.add(field("station_index", false, TYPE_INT, intType(32), null));
+        TableVector timeMetadata = new TableVector();
+        timeMetadata.add(keyValue("units", timeUnit));
+        fields.add(field("time", false, TYPE_INT, intType(32), timeMetadata));
+        for (Variable variable : variables) {
+            TableVector metadata = new TableVector();
+            metadata.add(keyValue("netcdf_type", variable.xtype.name()));
+            for (Map.Entry<String, Object> attribute : variable.attributes.entrySet()) {
+                metadata.add(keyValue(attribute.getKey(), String.valueOf(attribute.getValue())));
+            }
+            byte typeTag = TYPE_INT;
+            Table type;
+            switch (variable.xtype) {
+                case NC_BYTE:
+                    type = intType(8);
+                    break;
+                case NC_SHORT:
+                    type = intType(16);
+                    break;
+                case NC_INT:
+                    type = intType(32);
+                    break;
+                case NC_LONG:
+                    type = intType(64);
+                    break;
+                case NC_FLOAT:
+                    typeTag = TYPE_FLOATING_POINT;
+                    type = new Table().addShort(0, PRECISION_SINGLE);
+                    break;
+                case NC_DOUBLE:
+                    typeTag = TYPE_FLOATING_POINT;
+                    type = new Table().addShort(0, PRECISION_DOUBLE);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Should implement the other types");
+            }
+            fields.add(field(variable.name, true, typeTag, type, metadata));
+        }
+
+        TableVector metadata = new TableVector();
+        metadata.add(keyValue("featureType", "timeSeries"));
+        metadata.add(keyValue("time_units", timeUnit));
+        metadata.add(keyValue("stations", stationsJson()));
+        return new Table()
+                .addShort(0, 0) // little endian
+                .addOffset(1, fields)
+                .addOffset(2, metadata);
+    }
+
+    private static Table field(String name, boolean nullable, byte typeTag, Table type, TableVector metadata) {
+        Table field = new Table()
+                .addOffset(0, name)
+                .addBoolean(1, nullable)
+                .addByte(2, typeTag)
+                .addOffset(3, type)
+                .addOffset(5, new TableVector());
+        if (metadata != null) {
+            field.addOffset(6, metadata);
+        }
+        return field;
+    }
+
+    private static Table intType(int bitWidth) {
+        return new Table().addInt(0, bitWidth).addBoolean(1, true);
+    }
+
+    private static Table keyValue(String key, String value) {
+        return new Table().addOffset(0, key).addOffset(1, value);
+    }
+
+    private String stationsJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (int s = 0; s < stations.length; s++) {
+            if (s > 0) {
+                json.append(',');
+            }
+            json.append("{\"station_id\":\"");
+            String id = stations[s].station_id;
+            for (int i = 0; i < id.length(); i++) {
+                char ch = id.charAt(i);
+                if (ch == '"' || ch == '\\') {
+                    json.append('\\').append(ch);
+                }
+                else if (ch < 0x20) {
+                    json.append(String.format("\\u%04x", (int) ch));
+                }
+                else {
+                    json.append(ch);
+                }
+            }
+            json.append("\",\"lat\":").append(stations[s].latitude)
+                    .append(",\"lon\":").append(stations[s].longitude).append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
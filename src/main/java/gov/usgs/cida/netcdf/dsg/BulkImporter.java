@@ -0,0 +1,869 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk load of observations from large delimited text or fixed width binary
+ * files. The input is memory mapped and cut into splits at record
+ * boundaries, the splits are parsed in parallel straight into
+ * ObservationBatch columns and put into the sink in file order, a batch at a
+ * time when the sink is an ObservationBatchSink.
+ *
+ * Delimited records are station_id, time, then one field per variable. An
+ * empty value field is the variable's fill value. Time is an integer
+ * time_offset, or an ISO 8601 UTC timestamp (yyyy-MM-dd[Thh:mm[:ss[.SSS]]][Z])
+ * when a TimeEncoder is set.
+ *
+ * Fixed width records are the station id in ASCII padded with spaces or
+ * NULs, a 32 bit time_offset, then one value per variable of its xtype's
+ * size, in the byte order given. Categorical variables are text in delimited
+ * records, coded as they are parsed, and codes in fixed width records.
+ *
+ * Records whose station id isn't in the station table, or for a
+ * StationTimeSeriesMultiDimensional whose time_offset isn't on its time axis,
+ * are skipped and counted. Station indices are positions in the Station[].
+ */
+public class BulkImporter {
+
+    public enum Format {
+        DELIMITED,
+        FIXED_WIDTH
+    }
+
+    public static final int DEFAULT_SPLIT_BYTES = 32 << 20;
+    public static final int DEFAULT_BATCH_SIZE = 1 << 16;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int BOUNDARY_SCAN_BYTES = 1 << 13;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Format format;
+    private final StationLookup stations;
+    private final Variable[] variables;
+    private final byte delimiter;
+    private final int stationIdLength;
+    private final ByteOrder byteOrder;
+    private final int recordLength;
+    private int headerLines = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int splitBytes = DEFAULT_SPLIT_BYTES;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private TimeEncoder timeEncoder;
+
+    private BulkImporter(Format format, Station[] stations, Variable[] variables,
+            byte delimiter, int stationIdLength, ByteOrder byteOrder) {
+        this.format = format;
+        this.stations = new StationLookup(stations);
+        this.variables = variables;
+        this.delimiter = delimiter;
+        this.stationIdLength = stationIdLength;
+        this.byteOrder = byteOrder;
+        int length = stationIdLength + 4;
+        for (Variable variable : variables) {
+            length += variable.xtype.getSizeBytes();
+        }
+        this.recordLength = length;
+    }
+
+    /**
+     * @param variables statistic variables in field order, as given to the writer
+     */
+    public static BulkImporter delimited(Station[] stations, Variable[] variables, char delimiter) {
+        if (delimiter > 0x7f) {
+            throw new IllegalArgumentException("Delimiter must be ASCII");
+        }
+        return new BulkImporter(Format.DELIMITED, stations, variables, (byte) delimiter, 0, null);
+    }
+
+    /**
+     * @param stationIdLength bytes of station id at the start of each record
+     * @param byteOrder byte order of the time and values
+     */
+    public static BulkImporter fixedWidth(Station[] stations, Variable[] variables,
+            int stationIdLength, ByteOrder byteOrder) {
+        return new BulkImporter(Format.FIXED_WIDTH, stations, variables, (byte) 0, stationIdLength, byteOrder);
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Lines to skip at the start of a delimited file
+     */
+    public void setHeaderLines(int headerLines) {
+        this.headerLines = headerLines;
+    }
+
+    /**
+     * Parser threads, defaults to the number of processors
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Approximate bytes per split, each split is mapped and parsed as a unit
+     */
+    public void setSplitBytes(int splitBytes) {
+        if (splitBytes < 1) {
+            throw new IllegalArgumentException("Split size must be positive");
+        }
+        this.splitBytes = splitBytes;
+    }
+
+    /**
+     * Rows per batch put into the sink
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Parse delimited time fields as ISO 8601 timestamps encoded with this
+     * encoder, instead of integer offsets
+     */
+    public void setTimeEncoder(TimeEncoder timeEncoder) {
+        this.timeEncoder = timeEncoder;
+    }
+
+    /**
+     * Parse the input and put every record into the sink, the sink is not
+     * synced or closed.
+     */
+    public Result importFile(File input, ObservationSink sink) throws IOException {
+        long start = System.nanoTime();
+        StationTimeSeriesMultiDimensional timeAxis = (sink instanceof StationTimeSeriesMultiDimensional)
+                ? (StationTimeSeriesMultiDimensional) sink : null;
+        Result result = new Result();
+        RandomAccessFile raf = new RandomAccessFile(input, "r");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            FileChannel channel = raf.getChannel();
+            List<long[]> splits = split(channel);
+            ArrayDeque<Future<ParsedSplit>> pending = new ArrayDeque<Future<ParsedSplit>>();
+            int next = 0;
+            while (next < splits.size() || !pending.isEmpty()) {
+                // bound the parsed splits held in memory
+                while (next < splits.size() && pending.size() < threads * 2) {
+                    long[] split = splits.get(next++);
+                    pending.add(executor.submit(new SplitParser(channel, split[0], split[1], timeAxis)));
+                }
+                ParsedSplit parsed = await(pending.poll());
+                result.bytes += parsed.bytes;
+                result.skipped += parsed.skipped;
+                for (ObservationBatch batch : parsed.batches) {
+                    int put = put(sink, batch);
+                    result.records += put;
+                    result.skipped += batch.size - put;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            raf.close();
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static int put(ObservationSink sink, ObservationBatch batch) {
+        if (sink instanceof ObservationBatchSink) {
+            return ((ObservationBatchSink) sink).putBatch(batch);
+        }
+        int put = 0;
+        for (int i = 0; i < batch.size; i++) {
+            if (sink.putObservation(batch.getObservation(i))) {
+                put++;
+            }
+        }
+        return put;
+    }
+
+    private static ParsedSplit await(Future<ParsedSplit> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for parser");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * @return {start, length} of each split, in file order
+     */
+    List<long[]> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<long[]> splits = new ArrayList<long[]>();
+        if (format == Format.FIXED_WIDTH) {
+            if (size % recordLength != 0) {
+                throw new IOException("Input is not a whole number of " + recordLength + " byte records");
+            }
+            long step = Math.max(1, splitBytes / recordLength) * (long) recordLength;
+            for (long start = 0; start < size; start += step) {
+                splits.add(new long[] { start, Math.min(step, size - start) });
+            }
+            return splits;
+        }
+        long start = 0;
+        for (int line = 0; line < headerLines && start < size; line++) {
+            start = nextLine(channel, start, size);
+        }
+        while (start < size) {
+            long end = (size - start <= splitBytes) ? size : nextLine(channel, start + splitBytes - 1, size);
+            splits.add(new long[] { start, end - start });
+            start = end;
+        }
+        return splits;
+    }
+
+    /**
+     * @return position after the first newline at or after position
+     */
+    private static long nextLine(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_SCAN_BYTES);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private class SplitParser implements Callable<ParsedSplit> {
+
+        private final FileChannel channel;
+        private final long start;
+        private final long length;
+        private final StationTimeSeriesMultiDimensional timeAxis;
+        private final ParsedSplit parsed = new ParsedSplit();
+        private ObservationBatch batch;
+
+        SplitParser(FileChannel channel, long start, long length, StationTimeSeriesMultiDimensional timeAxis) {
+            this.channel = channel;
+            this.start = start;
+            this.length = length;
+            this.timeAxis = timeAxis;
+        }
+
+        @Override
+        public ParsedSplit call() throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            parsed.bytes = length;
+            if (format == Format.FIXED_WIDTH) {
+                buffer.order(byteOrder);
+                parseFixedWidth(buffer);
+            }
+            else {
+                parseDelimited(buffer);
+            }
+            if (batch != null && batch.size > 0) {
+                parsed.batches.add(batch);
+            }
+            return parsed;
+        }
+
+        private void parseFixedWidth(ByteBuffer buffer) {
+            int limit = buffer.limit();
+            for (int position = 0; position < limit; position += recordLength) {
+                int idEnd = position + stationIdLength;
+                while (idEnd > position && (buffer.get(idEnd - 1) == ' ' || buffer.get(idEnd - 1) == 0)) {
+                    idEnd--;
+                }
+                int station = stations.find(buffer, position, idEnd);
+                int time = buffer.getInt(position + stationIdLength);
+                int row = addRow(station, time);
+                if (row < 0) {
+                    continue;
+                }
+                buffer.position(position + stationIdLength + 4);
+                for (int v = 0; v < variables.length; v++) {
+                    batch.readValue(v, row, buffer);
+                }
+            }
+        }
+
+        private void parseDelimited(ByteBuffer buffer) {
+            int limit = buffer.limit();
+            int position = 0;
+            int[] fieldEnds = new int[variables.length + 2];
+            while (position < limit) {
+                int lineEnd = position;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                int end = lineEnd;
+                if (end > position && buffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end > position) {
+                    parseLine(buffer, position, end, fieldEnds);
+                }
+                position = lineEnd + 1;
+            }
+        }
+
+        private void parseLine(ByteBuffer buffer, int lineStart, int lineEnd, int[] fieldEnds) {
+            int field = 0;
+            for (int i = lineStart; i < lineEnd && field < fieldEnds.length; i++) {
+                if (buffer.get(i) == delimiter) {
+                    fieldEnds[field++] = i;
+                }
+            }
+            if (field < fieldEnds.length) {
+                fieldEnds[field++] = lineEnd;
+            }
+            if (field != fieldEnds.length) {
+                throw new IllegalArgumentException("Expected " + fieldEnds.length + " fields at byte "
+                        + (start + lineStart) + ", found " + field);
+            }
+            int station = stations.find(buffer, trimStart(buffer, lineStart, fieldEnds[0]),
+                    trimEnd(buffer, lineStart, fieldEnds[0]));
+            int timeStart = trimStart(buffer, fieldEnds[0] + 1, fieldEnds[1]);
+            int timeEnd = trimEnd(buffer, fieldEnds[0] + 1, fieldEnds[1]);
+            int time;
+            try {
+                time = (timeEncoder == null)
+                        ? (int) parseLong(buffer, timeStart, timeEnd, Integer.MIN_VALUE, Integer.MAX_VALUE)
+                        : timeEncoder.encode(parseIsoMillis(buffer, timeStart, timeEnd));
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Bad time at byte " + (start + timeStart) + ": " + iae.getMessage());
+            }
+            int row = addRow(station, time);
+            if (row < 0) {
+                return;
+            }
+            for (int v = 0; v < variables.length; v++) {
+                int fieldStart = trimStart(buffer, fieldEnds[v + 1] + 1, fieldEnds[v + 2]);
+                int fieldEnd = trimEnd(buffer, fieldEnds[v + 1] + 1, fieldEnds[v + 2]);
+                try {
+                    parseValue(buffer, fieldStart, fieldEnd, v, row);
+                } catch (IllegalArgumentException iae) {
+                    throw new IllegalArgumentException("Bad " + variables[v].name + " at byte "
+                            + (start + fieldStart) + ": " + iae.getMessage());
+                }
+            }
+        }
+
+        private void parseValue(ByteBuffer buffer, int fieldStart, int fieldEnd, int v, int row) {
+            Object column = batch.columns[v];
+            XType xtype = variables[v].xtype;
+            if (fieldStart == fieldEnd) {
+                Object fill = variables[v].getFillValue();
+                if (fill == null) {
+                    throw new IllegalArgumentException("empty value and no fill value");
+                }
+                batch.setValue(v, row, (Number) fill);
+                return;
+            }
+            CategoryDictionary categories = variables[v].getCategories();
+            if (categories != null) {
+                byte[] text = new byte[fieldEnd - fieldStart];
+                for (int i = 0; i < text.length; i++) {
+                    text[i] = buffer.get(fieldStart + i);
+                }
+                batch.setValue(v, row, categories.encode(new String(text, ASCII)));
+                return;
+            }
+            switch (xtype) {
+                case NC_BYTE:
+                    ((byte[]) column)[row] = (byte) parseLong(buffer, fieldStart, fieldEnd, Byte.MIN_VALUE, Byte.MAX_VALUE);
+                    break;
+                case NC_SHORT:
+                    ((short[]) column)[row] = (short) parseLong(buffer, fieldStart, fieldEnd, Short.MIN_VALUE, Short.MAX_VALUE);
+                    break;
+                case NC_INT:
+                    ((int[]) column)[row] = (int) parseLong(buffer, fieldStart, fieldEnd, Integer.MIN_VALUE, Integer.MAX_VALUE);
+                    break;
+                case NC_LONG:
+                    ((long[]) column)[row] = parseLong(buffer, fieldStart, fieldEnd, Long.MIN_VALUE, Long.MAX_VALUE);
+                    break;
+                case NC_FLOAT:
+                    ((float[]) column)[row] = (float) parseDouble(buffer, fieldStart, fieldEnd);
+                    break;
+                case NC_DOUBLE:
+                    ((double[]) column)[row] = parseDouble(buffer, fieldStart, fieldEnd);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Should implement the other types");
+            }
+        }
+
+        /**
+         * @return row of the current batch to fill, or -1 if the record is skipped
+         */
+        private int addRow(int station, int time) {
+            if (station < 0) {
+                parsed.skipped++;
+                return -1;
+            }
+            if (timeAxis != null) {
+                time = timeAxis.getTimeIndex(time);
+                if (time < 0) {
+                    parsed.skipped++;
+                    return -1;
+                }
+            }
+            if (batch == null || batch.isFull()) {
+                if (batch != null) {
+                    parsed.batches.add(batch);
+                }
+                batch = new ObservationBatch(variables, batchSize);
+            }
+            int row = batch.size++;
+            batch.station_index[row] = station;
+            batch.time_offset[row] = time;
+            return row;
+        }
+    }
+
+    private static int trimStart(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(ByteBuffer buffer, int start, int end) {
+        while (end > start && buffer.get(end - 1) == ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    static long parseLong(ByteBuffer buffer, int start, int end, long min, long max) {
+        if (start == end) {
+            throw new IllegalArgumentException("empty number");
+        }
+        int i = start;
+        boolean negative = false;
+        byte first = buffer.get(i);
+        if (first == '-' || first == '+') {
+            negative = (first == '-');
+            i++;
+        }
+        if (i == end) {
+            throw new IllegalArgumentException("not a number");
+        }
+        // accumulate negatively so Long.MIN_VALUE parses
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("not an integer");
+            }
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw new IllegalArgumentException("out of range");
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw new IllegalArgumentException("out of range");
+            }
+            value = -value;
+        }
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(value + " is out of range");
+        }
+        return value;
+    }
+
+    /**
+     * Exact for up to 15 significant digits and a decimal exponent within
+     * +/-22, anything else goes through Double.parseDouble
+     */
+    static double parseDouble(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = (buffer.get(i) == '-');
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        boolean seenDigit = false;
+        int exponent = 0;
+        boolean fast = i < end;
+        boolean seenPoint = false;
+        for (; i < end && fast; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                seenDigit = true;
+                if (mantissa != 0 || b != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (seenPoint) {
+                    exponent--;
+                }
+                fast = digits <= 15;
+            }
+            else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            }
+            else if ((b == 'e' || b == 'E') && seenDigit) {
+                try {
+                    exponent += (int) parseLong(buffer, i + 1, end, -999, 999);
+                } catch (IllegalArgumentException iae) {
+                    fast = false;
+                }
+                i = end;
+                break;
+            }
+            else {
+                fast = false;
+            }
+        }
+        if (fast && seenDigit && exponent >= -22 && exponent <= 22) {
+            double value = (exponent < 0)
+                    ? mantissa / POWERS_OF_TEN[-exponent]
+                    : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        byte[] text = new byte[end - start];
+        for (int j = 0; j < text.length; j++) {
+            text[j] = buffer.get(start + j);
+        }
+        try {
+            return Double.parseDouble(new String(text, ASCII));
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("not a number");
+        }
+    }
+
+    /**
+     * yyyy-MM-dd[(T| )hh:mm[:ss[.SSS]]][Z], always UTC
+     * @return milliseconds since 1970-01-01 00:00:00Z
+     */
+    static long parseIsoMillis(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == 'Z') {
+            end--;
+        }
+        int length = end - start;
+        if (length < 10 || buffer.get(start + 4) != '-' || buffer.get(start + 7) != '-') {
+            throw new IllegalArgumentException("expected yyyy-MM-dd");
+        }
+        long year = parseLong(buffer, start, start + 4, 0, 9999);
+        int month = (int) parseLong(buffer, start + 5, start + 7, 1, 12);
+        int day = (int) parseLong(buffer, start + 8, start + 10, 1, 31);
+        long millis = daysFromCivil(year, month, day) * 86400000L;
+        if (length == 10) {
+            return millis;
+        }
+        byte separator = buffer.get(start + 10);
+        if (length < 16 || (separator != 'T' && separator != ' ') || buffer.get(start + 13) != ':') {
+            throw new IllegalArgumentException("expected hh:mm after the date");
+        }
+        millis += parseLong(buffer, start + 11, start + 13, 0, 23) * 3600000L;
+        millis += parseLong(buffer, start + 14, start + 16, 0, 59) * 60000L;
+        if (length == 16) {
+            return millis;
+        }
+        if (length < 19 || buffer.get(start + 16) != ':') {
+            throw new IllegalArgumentException("expected :ss after hh:mm");
+        }
+        millis += parseLong(buffer, start + 17, start + 19, 0, 60) * 1000L;
+        if (length > 19) {
+            if (buffer.get(start + 19) != '.' || length == 20) {
+                throw new IllegalArgumentException("expected .SSS after the seconds");
+            }
+            int fractionEnd = Math.min(end, start + 23);
+            long fraction = parseLong(buffer, start + 20, fractionEnd, 0, 999);
+            for (int scale = fractionEnd - (start + 20); scale < 3; scale++) {
+                fraction *= 10;
+            }
+            millis += fraction;
+        }
+        return millis;
+    }
+
+    /**
+     * Days since 1970-01-01 of a proleptic Gregorian date
+     */
+    private static long daysFromCivil(long year, int month, int day) {
+        year -= (month <= 2) ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Station id to index without building a String per record, open
+     * addressing over the ASCII bytes of each id
+     */
+    static class StationLookup {
+
+        private final byte[][] ids;
+        private final int[] slots;
+        private final int mask;
+
+        StationLookup(Station[] stations) {
+            int capacity = Integer.highestOneBit(Math.max(2, stations.length * 2 - 1)) << 1;
+            this.ids = new byte[stations.length][];
+            this.slots = new int[capacity];
+            this.mask = capacity - 1;
+            ByteBuffer id = null;
+            for (int s = 0; s < stations.length; s++) {
+                ids[s] = stations[s].station_id.getBytes(ASCII);
+                id = ByteBuffer.wrap(ids[s]);
+                int slot = hash(id, 0, ids[s].length) & mask;
+                while (slots[slot] != 0) {
+                    if (matches(slots[slot] - 1, id, 0, ids[s].length)) {
+                        break; // repeated id, first one wins
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (slots[slot] == 0) {
+                    slots[slot] = s + 1;
+                }
+            }
+        }
+
+        /**
+         * @return station index, or -1 if the id isn't in the table
+         */
+        int find(ByteBuffer buffer, int start, int end) {
+            int slot = hash(buffer, start, end) & mask;
+            while (slots[slot] != 0) {
+                if (matches(slots[slot] - 1, buffer, start, end)) {
+                    return slots[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean matches(int station, ByteBuffer buffer, int start, int end) {
+            byte[] id = ids[station];
+            if (id.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < id.length; i++) {
+                if (id[i] != buffer.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(ByteBuffer buffer, int start, int end) {
+            int hash = 0x811c9dc5;
+            for (int i = start; i < end; i++) {
+                hash = (hash ^ buffer.get(i)) * 0x01000193;
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    private static class ParsedSplit {
+        private final List<ObservationBatch> batches = new ArrayList<ObservationBatch>();
+        private long bytes;
+        private long skipped;
+    }
+
+    /**
+     * Counts and throughput of one import
+     */
+    public static class Result {
+
+        private long records;
+        private long skipped;
+        private long bytes;
+        private long nanos;
+
+        /**
+         * @return records accepted by the sink
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return records with an unknown station or time, or refused by the sink
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getRecordsPerSecond() {
+            return (nanos == 0) ? 0 : records * 1e9 / nanos;
+        }
+
+        public double getMegabytesPerSecond() {
+            return (nanos == 0) ? 0 : bytes * 1e9 / nanos / (1 << 20);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d records (%d skipped), %.1f MB in %.3f s: %.0f records/s, %.1f MB/s",
+                    records, skipped, bytes / (double) (1 << 20), nanos / 1e9,
+                    getRecordsPerSecond(), getMegabytesPerSecond());
+        }
+    }
+
+    /**
+     * Import into a new ragged (StationTimeSeriesNetCDFFile) file:
+     *
+     * BulkImporter [-d delimiter] [-H headerLines] [-w stationIdLength] [-le]
+     *      [-t threads] [-u timeUnit] [-iso] stations.csv input output.nc name:type ...
+     *
+     * stations.csv holds station_id,lat,lon lines. Types are byte, short, int,
+     * float or double. -w reads fixed width binary records (big endian unless
+     * -le), otherwise the input is delimited (default ','). -iso parses times
+     * as ISO 8601 timestamps in the time unit (default "days since
+     * 1970-01-01").
+     */
+    public static void main(String[] args) throws IOException {
+        char delimiter = ',';
+        int headerLines = 0;
+        int idLength = -1;
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String timeUnit = "days since 1970-01-01";
+        boolean iso = false;
+        int a = 0;
+        for (; a < args.length && args[a].startsWith("-"); a++) {
+            String option = args[a];
+            if (option.equals("-d")) {
+                String value = args[++a];
+                delimiter = value.equals("\\t") ? '\t' : value.charAt(0);
+            }
+            else if (option.equals("-H")) {
+                headerLines = Integer.parseInt(args[++a]);
+            }
+            else if (option.equals("-w")) {
+                idLength = Integer.parseInt(args[++a]);
+            }
+            else if (option.equals("-le")) {
+                order = ByteOrder.LITTLE_ENDIAN;
+            }
+            else if (option.equals("-t")) {
+                threads = Integer.parseInt(args[++a]);
+            }
+            else if (option.equals("-u")) {
+                timeUnit = args[++a];
+            }
+            else if (option.equals("-iso")) {
+                iso = true;
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (args.length - a < 4) {
+            System.err.println("usage: BulkImporter [-d delimiter] [-H headerLines] [-w stationIdLength] [-le]"
+                    + " [-t threads] [-u timeUnit] [-iso] stations.csv input output.nc name:type ...");
+            System.exit(1);
+        }
+        Station[] stations = readStations(new File(args[a++]));
+        File input = new File(args[a++]);
+        File output = new File(args[a++]);
+        RecordType recordType = new RecordType(timeUnit);
+        Variable[] variables = new Variable[args.length - a];
+        for (int v = 0; a < args.length; v++, a++) {
+            String[] nameType = args[a].split(":");
+            variables[v] = new Variable(nameType[0], XType.valueOf("NC_" + nameType[1].toUpperCase()),
+                    new HashMap<String, Object>());
+            recordType.addType(variables[v]);
+        }
+
+        BulkImporter importer = (idLength < 0)
+                ? delimited(stations, variables, delimiter)
+                : fixedWidth(stations, variables, idLength, order);
+        importer.setHeaderLines(headerLines);
+        importer.setThreads(threads);
+        if (iso) {
+            importer.setTimeEncoder(recordType.getTimeEncoder());
+        }
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(output, recordType, true, stations);
+        Result result;
+        try {
+            result = importer.importFile(input, writer);
+        } finally {
+            writer.close();
+        }
+        System.out.println(result);
+    }
+
+    private static Station[] readStations(File file) throws IOException {
+        List<Station> stations = new ArrayList<Station>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ASCII));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length < 3) {
+                    continue;
+                }
+                try {
+                    stations.add(new Station(Float.parseFloat(fields[1].trim()), Float.parseFloat(fields[2].trim()),
+                            fields[0].trim(), stations.size()));
+                } catch (NumberFormatException nfe) {
+                    // header line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return stations.toArray(new Station[stations.size()]);
+    }
+}
@@ -0,0 +1,239 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codes for the values of a categorical (low cardinality string) variable,
+ * assigned 0, 1, 2... in order of first use while writing. See
+ * Variable.createCategorical.
+ *
+ * On close the writers save the dictionary as a char variable
+ * &lt;name&gt;_categories indexed by code, with CF flag_values and
+ * flag_meanings attributes. Record variables of the multidimensional layout
+ * get the flag attributes too, flag_values in the code type.
+ */
+public class CategoryDictionary {
+
+    public static final int DEFAULT_MAX_LENGTH = 32;
+
+    public static final String VARIABLE_SUFFIX = "_categories";
+    public static final String DIM_SUFFIX = "_category";
+    public static final String LENGTH_DIM_SUFFIX = "_category_len";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final XType codeType;
+    private final int maxLength;
+    private final int maxCodes;
+    private final Map<String, Integer> codes = new HashMap<String, Integer>();
+    private final List<String> values = new ArrayList<String>();
+
+    /**
+     * @param codeType NC_BYTE, NC_SHORT or NC_INT
+     * @param maxLength longest value accepted, in ASCII characters
+     */
+    public CategoryDictionary(XType codeType, int maxLength) {
+        switch (codeType) {
+            case NC_BYTE:
+                maxCodes = Byte.MAX_VALUE + 1;
+                break;
+            case NC_SHORT:
+                maxCodes = Short.MAX_VALUE + 1;
+                break;
+            case NC_INT:
+                maxCodes = Integer.MAX_VALUE;
+                break;
+            default:
+                throw new IllegalArgumentException("Categories are coded as NC_BYTE, NC_SHORT or NC_INT, not " + codeType);
+        }
+        this.codeType = codeType;
+        this.maxLength = maxLength;
+    }
+
+    public XType getCodeType() {
+        return codeType;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * @return code of the value, a new one the first time it's seen
+     * @throws IllegalArgumentException if the value is too long
+     * @throws IllegalStateException if the code type has no codes left
+     */
+    public synchronized int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        if (value.length() > maxLength) {
+            throw new IllegalArgumentException("Category \"" + value + "\" is longer than " + maxLength);
+        }
+        if (values.size() >= maxCodes) {
+            throw new IllegalStateException("No " + codeType + " codes left for \"" + value + "\"");
+        }
+        code = values.size();
+        codes.put(value, code);
+        values.add(value);
+        return code;
+    }
+
+    /**
+     * @return the value with this code, null for fill or unknown codes
+     */
+    public synchronized String decode(int code) {
+        return (code >= 0 && code < values.size()) ? values.get(code) : null;
+    }
+
+    public synchronized int size() {
+        return values.size();
+    }
+
+    /**
+     * @return values in code order
+     */
+    public synchronized String[] getValues() {
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * @return values in code order separated by blanks, blanks within a
+     * value replaced with underscores as CF requires
+     */
+    public synchronized String getFlagMeanings() {
+        StringBuilder meanings = new StringBuilder();
+        for (String value : values) {
+            if (meanings.length() > 0) {
+                meanings.append(' ');
+            }
+            meanings.append(value.trim().replaceAll("\\s+", "_"));
+        }
+        return meanings.toString();
+    }
+
+    /**
+     * Define the dictionary variable, or find it in a reopened file, and set
+     * the flag attributes. The file must be in define mode.
+     * @param dataVarId variable holding the codes, -1 if they're in a compound
+     * @return id of the dictionary variable
+     */
+    synchronized int defineVariable(int ncId, String name, int dataVarId) {
+        IntByReference iRef = new IntByReference();
+        int dictVarId;
+        if (nc_inq_varid(ncId, name + VARIABLE_SUFFIX, iRef) == NC_NOERR) {
+            dictVarId = iRef.getValue();
+        }
+        else {
+            status(nc_def_dim(ncId, name + DIM_SUFFIX, new NativeLong(NC_UNLIMITED), iRef));
+            int categoryDimId = iRef.getValue();
+            status(nc_def_dim(ncId, name + LENGTH_DIM_SUFFIX, new NativeLong(maxLength), iRef));
+            int lengthDimId = iRef.getValue();
+            status(nc_def_var(ncId, name + VARIABLE_SUFFIX, NC_CHAR, new int[] { categoryDimId, lengthDimId }, iRef));
+            dictVarId = iRef.getValue();
+            status(nc_put_att_text(ncId, dictVarId, "long_name", "categories of " + name + ", indexed by code"));
+        }
+        putFlagAttributes(ncId, dictVarId);
+        if (dataVarId >= 0) {
+            putFlagAttributes(ncId, dataVarId);
+        }
+        return dictVarId;
+    }
+
+    /**
+     * Write the values, the file must be in data mode
+     */
+    synchronized void writeVariable(int ncId, int dictVarId) {
+        NativeLong zero = new NativeLong(0);
+        for (int code = 0; code < values.size(); code++) {
+            status(nc_put_vara_text(ncId, dictVarId, values.get(code), new NativeLong(code), zero));
+        }
+    }
+
+    /**
+     * Replace the contents with the dictionary of a file written earlier
+     * @return false if the file has no dictionary for the variable
+     */
+    synchronized boolean readVariable(int ncId, String name) {
+        IntByReference iRef = new IntByReference();
+        if (nc_inq_varid(ncId, name + VARIABLE_SUFFIX, iRef) != NC_NOERR) {
+            return false;
+        }
+        int dictVarId = iRef.getValue();
+        int count = inqDimLength(ncId, name + DIM_SUFFIX);
+        int length = inqDimLength(ncId, name + LENGTH_DIM_SUFFIX);
+        codes.clear();
+        values.clear();
+        if (count == 0) {
+            return true;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(count * length);
+        status(nc_get_vara(ncId, dictVarId,
+                new NativeLong[] { new NativeLong(0), new NativeLong(0) },
+                new NativeLong[] { new NativeLong(count), new NativeLong(length) },
+                buffer));
+        byte[] bytes = new byte[length];
+        for (int code = 0; code < count; code++) {
+            buffer.get(bytes);
+            int end = 0;
+            while (end < length && bytes[end] != 0) {
+                end++;
+            }
+            String value = new String(bytes, 0, end, ASCII);
+            codes.put(value, code);
+            values.add(value);
+        }
+        return true;
+    }
+
+    private void putFlagAttributes(int ncId, int varId) {
+        if (values.isEmpty()) {
+            return;
+        }
+        status(nc_put_att_text(ncId, varId, "flag_meanings", getFlagMeanings()));
+        int count = values.size();
+        NativeLong len = new NativeLong(count);
+        switch (codeType) {
+            case NC_BYTE:
+                byte[] byteCodes = new byte[count];
+                for (int code = 0; code < count; code++) {
+                    byteCodes[code] = (byte) code;
+                }
+                status(nc_put_att_schar(ncId, varId, "flag_values", NC_BYTE, len, byteCodes));
+                break;
+            case NC_SHORT:
+                short[] shortCodes = new short[count];
+                for (int code = 0; code < count; code++) {
+                    shortCodes[code] = (short) code;
+                }
+                status(nc_put_att_short(ncId, varId, "flag_values", NC_SHORT, len, shortCodes));
+                break;
+            default:
+                int[] intCodes = new int[count];
+                for (int code = 0; code < count; code++) {
+                    intCodes[code] = code;
+                }
+                status(nc_put_att_int(ncId, varId, "flag_values", NC_INT, len, intCodes));
+                break;
+        }
+    }
+
+    private static int inqDimLength(int ncId, String dimName) {
+        IntByReference iRef = new IntByReference();
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_inq_dimid(ncId, dimName, iRef));
+        status(nc_inq_dimlen(ncId, iRef.getValue(), lRef));
+        return lRef.getValue().intValue();
+    }
+}
@@ -0,0 +1,79 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Progress of a journaled ingest that is safely in the NetCDF file: every
+ * observation before committedSequence in the WriteAheadLog, and for ragged
+ * files the number of records they took. Replaced atomically, written to a
+ * temporary file that is forced to disk and renamed over the old one.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x434b5054; // "CKPT"
+    private static final int VERSION = 1;
+
+    public final long committedSequence;
+    /** records in a ragged file, -1 for multidimensional files */
+    public final int recordCount;
+    public final long timeMillis;
+
+    public Checkpoint(long committedSequence, int recordCount) {
+        this(committedSequence, recordCount, System.currentTimeMillis());
+    }
+
+    private Checkpoint(long committedSequence, int recordCount, long timeMillis) {
+        this.committedSequence = committedSequence;
+        this.recordCount = recordCount;
+        this.timeMillis = timeMillis;
+    }
+
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(committedSequence);
+            out.writeInt(recordCount);
+            out.writeLong(timeMillis);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // renameTo won't replace an existing file on every platform
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to replace checkpoint " + file);
+            }
+        }
+    }
+
+    /**
+     * @return the checkpoint, or null if there is none
+     */
+    public static Checkpoint read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            long committedSequence = in.readLong();
+            int recordCount = in.readInt();
+            long timeMillis = in.readLong();
+            return new Checkpoint(committedSequence, recordCount, timeMillis);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package gov.usgs.cida.netcdf.dsg;
+
+/**
+ * What a writer does with an observation whose (station, time) was already
+ * written, see setDuplicatePolicy on the writers.
+ */
+public enum DuplicatePolicy {
+    /** keep the value already written, putObservation returns false */
+    FIRST_WINS,
+    /** overwrite the value already written in place */
+    LAST_WINS,
+    /** throw an IllegalArgumentException */
+    REJECT;
+
+    IllegalArgumentException duplicate(Observation observation) {
+        return new IllegalArgumentException("Duplicate observation for station "
+                + observation.station_index + " at time " + observation.time_offset);
+    }
+}
@@ -0,0 +1,140 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * A fully defined file without observations, made once per schema and
+ * station set (and time axis, for the multidimensional layout). New files
+ * are byte copies of the template reopened for writing, which skips the
+ * define phase (dimensions, compound types, compound attributes, station
+ * variables) of the writer constructors.
+ *
+ * Files made from one template share its RecordType or Variables, so
+ * categorical dictionaries must not be written to two of them at once.
+ */
+public class FileTemplate {
+
+    private final File template;
+    private final RecordType recordType;
+    private final Variable[] variables;
+
+    private FileTemplate(File template, RecordType recordType, Variable[] variables) {
+        this.template = template;
+        this.recordType = recordType;
+        this.variables = variables;
+    }
+
+    /**
+     * Write a ragged template
+     * @param storage chunking and compression of the record variable, null
+     * for the library defaults
+     */
+    public static FileTemplate ragged(File template, RecordType rt, Map<String, String> globalAttrs,
+            StorageOptions storage, Station... stations) {
+        new StationTimeSeriesNetCDFFile(template, rt, globalAttrs, storage, stations).close();
+        return new FileTemplate(template, rt, null);
+    }
+
+    /**
+     * Write a multidimensional template
+     * @param storage chunking and compression of the record variables, null
+     * for the library defaults
+     */
+    public static FileTemplate multiDimensional(File template, Map<String, String> globalAttrs,
+            Station[] stations, int[] timeOffsets, String timeUnit, Variable[] variables,
+            StorageOptions storage) {
+        new StationTimeSeriesMultiDimensional(template, globalAttrs, stations, timeOffsets,
+                timeUnit, variables, storage).close();
+        return new FileTemplate(template, null, variables);
+    }
+
+    /**
+     * Use a ragged template written earlier
+     */
+    public static FileTemplate ragged(File template, RecordType rt) {
+        return new FileTemplate(template, rt, null);
+    }
+
+    /**
+     * Use a multidimensional template written earlier
+     */
+    public static FileTemplate multiDimensional(File template, Variable[] variables) {
+        return new FileTemplate(template, null, variables);
+    }
+
+    public File getFile() {
+        return template;
+    }
+
+    public boolean isRagged() {
+        return recordType != null;
+    }
+
+    /**
+     * @param target new file, overwritten if it exists
+     * @param globalAttrs attributes for this file only, may be null
+     */
+    public StationTimeSeriesNetCDFFile createRagged(File target, Map<String, String> globalAttrs)
+            throws IOException {
+        if (!isRagged()) {
+            throw new IllegalStateException(template.getName() + " is not a ragged template");
+        }
+        copy(template, target);
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(target, recordType);
+        putGlobalAttributes(writer.ncId, globalAttrs);
+        return writer;
+    }
+
+    /**
+     * @param target new file, overwritten if it exists
+     * @param globalAttrs attributes for this file only, may be null
+     */
+    public StationTimeSeriesMultiDimensional createMultiDimensional(File target, Map<String, String> globalAttrs)
+            throws IOException {
+        if (isRagged()) {
+            throw new IllegalStateException(template.getName() + " is not a multidimensional template");
+        }
+        copy(template, target);
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(target, variables);
+        putGlobalAttributes(writer.ncId, globalAttrs);
+        return writer;
+    }
+
+    private static void putGlobalAttributes(int ncId, Map<String, String> globalAttrs) {
+        if (globalAttrs == null || globalAttrs.isEmpty()) {
+            return;
+        }
+        status(nc_redef(ncId));
+        for (Map.Entry<String, String> entry : globalAttrs.entrySet()) {
+            status(nc_put_att_text(ncId, NC_GLOBAL, entry.getKey(), entry.getValue()));
+        }
+        status(nc_enddef(ncId));
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel destination = out.getChannel();
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, destination);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Just enough of a FlatBuffers encoder for the Arrow IPC metadata written by
+ * ArrowFileSink. Objects are laid out front to back, a table's vtable just
+ * before it and its children after it, so every offset points forward.
+ * Scalars are aligned relative to the start of the buffer, which the caller
+ * must place on an 8 byte boundary.
+ */
+final class FlatBuffer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] data = new byte[256];
+    private int position = 0;
+
+    private FlatBuffer() {
+    }
+
+    /**
+     * @return the encoded buffer, padded to a multiple of 8 bytes
+     */
+    static byte[] finish(Table root) {
+        FlatBuffer buffer = new FlatBuffer();
+        buffer.reserve(4);
+        buffer.putInt(0, buffer.write(root));
+        buffer.align(8, 0);
+        return Arrays.copyOf(buffer.data, buffer.position);
+    }
+
+    /**
+     * Table under construction, fields are set by vtable slot
+     */
+    static final class Table {
+
+        private final List<Field> fields = new ArrayList<Field>();
+
+        Table addByte(int slot, int value) {
+            return add(slot, 1, value, null);
+        }
+
+        Table addBoolean(int slot, boolean value) {
+            return add(slot, 1, value ? 1 : 0, null);
+        }
+
+        Table addShort(int slot, int value) {
+            return add(slot, 2, value, null);
+        }
+
+        Table addInt(int slot, int value) {
+            return add(slot, 4, value, null);
+        }
+
+        Table addLong(int slot, long value) {
+            return add(slot, 8, value, null);
+        }
+
+        /**
+         * @param child Table, String, TableVector or StructVector
+         */
+        Table addOffset(int slot, Object child) {
+            return add(slot, 4, 0, child);
+        }
+
+        private Table add(int slot, int size, long value, Object child) {
+            Field field = new Field();
+            field.slot = slot;
+            field.size = size;
+            field.value = value;
+            field.child = child;
+            fields.add(field);
+            return this;
+        }
+    }
+
+    /**
+     * Vector of tables or strings
+     */
+    static final class TableVector {
+
+        private final List<Object> elements = new ArrayList<Object>();
+
+        TableVector add(Object element) {
+            elements.add(element);
+            return this;
+        }
+    }
+
+    /**
+     * Vector of structs, already encoded little endian
+     */
+    static final class StructVector {
+
+        private final byte[] bytes;
+        private final int count;
+        private final int alignment;
+
+        StructVector(byte[] bytes, int count, int alignment) {
+            this.bytes = bytes;
+            this.count = count;
+            this.alignment = alignment;
+        }
+    }
+
+    private static final class Field {
+        private int slot;
+        private int size;
+        private long value;
+        private Object child;
+        private int offset;
+    }
+
+    /**
+     * @return position of the object
+     */
+    private int write(Object node) {
+        if (node instanceof Table) {
+            return writeTable((Table) node);
+        }
+        else if (node instanceof String) {
+            byte[] bytes = ((String) node).getBytes(UTF8);
+            align(4, 0);
+            int start = position;
+            reserve(4 + bytes.length + 1);
+            putInt(start, bytes.length);
+            System.arraycopy(bytes, 0, data, start + 4, bytes.length);
+            return start;
+        }
+        else if (node instanceof TableVector) {
+            List<Object> elements = ((TableVector) node).elements;
+            align(4, 0);
+            int start = position;
+            reserve(4 + 4 * elements.size());
+            putInt(start, elements.size());
+            for (int i = 0; i < elements.size(); i++) {
+                int slot = start + 4 + 4 * i;
+                putInt(slot, write(elements.get(i)) - slot);
+            }
+            return start;
+        }
+        else if (node instanceof StructVector) {
+            StructVector vector = (StructVector) node;
+            // the elements follow the 4 byte length and need their own alignment
+            int alignment = Math.max(4, vector.alignment);
+            align(alignment, alignment - 4);
+            int start = position;
+            reserve(4 + vector.bytes.length);
+            putInt(start, vector.count);
+            System.arraycopy(vector.bytes, 0, data, start + 4, vector.bytes.length);
+            return start;
+        }
+        throw new IllegalArgumentException("Can't encode " + node);
+    }
+
+    private int writeTable(Table table) {
+        List<Field> fields = new ArrayList<Field>(table.fields);
+        int slots = 0;
+        for (Field field : fields) {
+            slots = Math.max(slots, field.slot + 1);
+        }
+        // widest first keeps the padding down
+        for (int i = 1; i < fields.size(); i++) {
+            for (int j = i; j > 0 && fields.get(j).size > fields.get(j - 1).size; j--) {
+                fields.set(j, fields.set(j - 1, fields.get(j)));
+            }
+        }
+
+        align(2, 0);
+        int vtable = position;
+        int vtableSize = 4 + 2 * slots;
+        int start = vtable + vtableSize;
+        start += (4 - start % 4) % 4;
+        int cursor = start + 4;
+        for (Field field : fields) {
+            cursor += (field.size - cursor % field.size) % field.size;
+            field.offset = cursor - start;
+            cursor += field.size;
+        }
+        reserve(cursor - position);
+
+        putShort(vtable, vtableSize);
+        putShort(vtable + 2, cursor - start);
+        for (Field field : fields) {
+            putShort(vtable + 4 + 2 * field.slot, field.offset);
+        }
+        putInt(start, start - vtable);
+        for (Field field : fields) {
+            int at = start + field.offset;
+            switch (field.size) {
+                case 1:
+                    data[at] = (byte) field.value;
+                    break;
+                case 2:
+                    putShort(at, (int) field.value);
+                    break;
+                case 4:
+                    putInt(at, (int) field.value);
+                    break;
+                default:
+                    putLong(at, field.value);
+                    break;
+            }
+        }
+        for (Field field : fields) {
+            if (field.child != null) {
+                int at = start + field.offset;
+                putInt(at, write(field.child) - at);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Pad with zeros until position % alignment == remainder
+     */
+    private void align(int alignment, int remainder) {
+        int padding = ((remainder - position % alignment) + alignment) % alignment;
+        reserve(padding);
+    }
+
+    /**
+     * Claim length zeroed bytes at the current position
+     */
+    private void reserve(int length) {
+        if (position + length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, position + length));
+        }
+        position += length;
+    }
+
+    private void putShort(int at, int value) {
+        data[at] = (byte) value;
+        data[at + 1] = (byte) (value >> 8);
+    }
+
+    private void putInt(int at, int value) {
+        for (int i = 0; i < 4; i++) {
+            data[at + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private void putLong(int at, long value) {
+        for (int i = 0; i < 8; i++) {
+            data[at + i] = (byte) (value >> (8 * i));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Counts the syncs of a writer and the time spent in them, automatic (see
+ * FlushPolicy) and explicit, for tuning durability lag against throughput.
+ * Also tracks the writer's progress towards its next automatic flush.
+ */
+public class FlushMetrics {
+
+    private static Timer timer;
+
+    private final FlushPolicy policy;
+    private final TimerTask timerTask;
+    private volatile boolean timeDue = false;
+
+    private int recordsSinceFlush = 0;
+    private long bytesSinceFlush = 0;
+
+    private long flushCount = 0;
+    private long automaticFlushCount = 0;
+    private long totalFlushNanos = 0;
+    private long maxFlushNanos = 0;
+    private long lastFlushMillis;
+
+    /**
+     * @param policy null to only measure explicit syncs
+     */
+    FlushMetrics(FlushPolicy policy) {
+        this.policy = policy;
+        this.lastFlushMillis = System.currentTimeMillis();
+        if (policy != null && policy.everyMillis > 0) {
+            timerTask = new TimerTask() {
+                @Override
+                public void run() {
+                    timeDue = true;
+                }
+            };
+            timer().schedule(timerTask, policy.everyMillis, policy.everyMillis);
+        }
+        else {
+            timerTask = null;
+        }
+    }
+
+    private static synchronized Timer timer() {
+        if (timer == null) {
+            timer = new Timer("netcdf-flush-timer", true);
+        }
+        return timer;
+    }
+
+    /**
+     * Count a record put by the writer
+     * @return true if the policy says the writer should sync now
+     */
+    boolean recordWritten(int bytes) {
+        return recordsWritten(1, bytes);
+    }
+
+    /**
+     * Count a batch of records put by the writer in one call
+     * @return true if the policy says the writer should sync now
+     */
+    boolean recordsWritten(int records, long bytes) {
+        recordsSinceFlush += records;
+        bytesSinceFlush += bytes;
+        if (policy == null) {
+            return false;
+        }
+        return timeDue
+                || (policy.everyRecords > 0 && recordsSinceFlush >= policy.everyRecords)
+                || (policy.everyBytes > 0 && bytesSinceFlush >= policy.everyBytes);
+    }
+
+    void flushed(long nanos, boolean automatic) {
+        flushCount++;
+        if (automatic) {
+            automaticFlushCount++;
+        }
+        totalFlushNanos += nanos;
+        maxFlushNanos = Math.max(maxFlushNanos, nanos);
+        lastFlushMillis = System.currentTimeMillis();
+        recordsSinceFlush = 0;
+        bytesSinceFlush = 0;
+        timeDue = false;
+    }
+
+    void cancel() {
+        if (timerTask != null) {
+            timerTask.cancel();
+        }
+    }
+
+    public FlushPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public long getAutomaticFlushCount() {
+        return automaticFlushCount;
+    }
+
+    public long getTotalFlushNanos() {
+        return totalFlushNanos;
+    }
+
+    public long getMaxFlushNanos() {
+        return maxFlushNanos;
+    }
+
+    public double getMeanFlushMillis() {
+        return (flushCount == 0) ? 0.0 : totalFlushNanos / 1e6 / flushCount;
+    }
+
+    /**
+     * @return records put since the last sync, lost if the process dies now
+     */
+    public int getRecordsSinceFlush() {
+        return recordsSinceFlush;
+    }
+
+    public long getBytesSinceFlush() {
+        return bytesSinceFlush;
+    }
+
+    public long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d flushes (%d automatic), %.1f ms total, %.2f ms mean, %.2f ms max",
+                flushCount, automaticFlushCount, totalFlushNanos / 1e6, getMeanFlushMillis(), maxFlushNanos / 1e6);
+    }
+}
@@ -0,0 +1,39 @@
+package gov.usgs.cida.netcdf.dsg;
+
+/**
+ * When a writer syncs on its own: after every N records, every M bytes of
+ * observation data, or every T milliseconds, whichever comes first. Zero
+ * disables a trigger.
+ *
+ * The time trigger is a shared background timer that only raises a flag,
+ * the sync itself runs on the writer's thread during the next
+ * putObservation so native calls stay on one thread. An idle writer is not
+ * synced until its next observation or an explicit sync().
+ */
+public class FlushPolicy {
+
+    public final int everyRecords;
+    public final long everyBytes;
+    public final long everyMillis;
+
+    public FlushPolicy(int everyRecords, long everyBytes, long everyMillis) {
+        if (everyRecords < 0 || everyBytes < 0 || everyMillis < 0) {
+            throw new IllegalArgumentException("Flush intervals can't be negative");
+        }
+        this.everyRecords = everyRecords;
+        this.everyBytes = everyBytes;
+        this.everyMillis = everyMillis;
+    }
+
+    public static FlushPolicy everyRecords(int records) {
+        return new FlushPolicy(records, 0, 0);
+    }
+
+    public static FlushPolicy everyBytes(long bytes) {
+        return new FlushPolicy(0, bytes, 0);
+    }
+
+    public static FlushPolicy everyMillis(long millis) {
+        return new FlushPolicy(0, 0, millis);
+    }
+}
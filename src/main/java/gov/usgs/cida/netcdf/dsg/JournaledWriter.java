@@ -0,0 +1,157 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Logs observations to a WriteAheadLog before they reach a writer and
+ * checkpoints periodically, so a crashed multi-hour ingest can resume
+ * instead of starting over.
+ *
+ * Observations are logged and forced to disk a batch at a time, then put
+ * into the writer. Every checkpointInterval batches the writer is synced,
+ * a Checkpoint records how far the file got and the log is emptied, so at
+ * most that many batches are replayed after a crash. See resume.
+ *
+ * putObservation returns true once an observation is queued, the writer's
+ * own result is not reported.
+ */
+public class JournaledWriter implements ObservationSink {
+
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+
+    private final ObservationSink writer;
+    private final WriteAheadLog log;
+    private final File checkpointFile;
+    private final int batchSize;
+    private final int checkpointInterval;
+    private final List<Observation> batch;
+    private int batchesSinceCheckpoint = 0;
+    private long replayedCount = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Start journaling a new ingest, writes an initial checkpoint
+     * @param writer StationTimeSeriesNetCDFFile or StationTimeSeriesMultiDimensional
+     * @param checkpointInterval batches between checkpoints
+     */
+    public JournaledWriter(ObservationSink writer, WriteAheadLog log, File checkpointFile,
+            int batchSize, int checkpointInterval) {
+        this.writer = writer;
+        this.log = log;
+        this.checkpointFile = checkpointFile;
+        this.batchSize = batchSize;
+        this.checkpointInterval = checkpointInterval;
+        this.batch = new ArrayList<Observation>(batchSize);
+        if (!checkpointFile.exists()) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Resume after a crash: roll the reopened writer back to the last
+     * checkpoint, replay the log tail into it and checkpoint again.
+     * @param writer the file reopened with StationTimeSeriesNetCDFFile(File, RecordType)
+     * or StationTimeSeriesMultiDimensional(File, Variable[])
+     */
+    public static JournaledWriter resume(ObservationSink writer, WriteAheadLog log, File checkpointFile,
+            int batchSize, int checkpointInterval) throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+        if (checkpoint == null) {
+            throw new IllegalStateException("No checkpoint to resume from: " + checkpointFile);
+        }
+        if (checkpoint.recordCount >= 0 && writer instanceof StationTimeSeriesNetCDFFile) {
+            // records past the checkpoint are rewritten by the replay
+            ((StationTimeSeriesNetCDFFile) writer).resumeAt(checkpoint.recordCount);
+        }
+        long replayed = log.replay(checkpoint.committedSequence, writer);
+        JournaledWriter journaled = new JournaledWriter(writer, log, checkpointFile, batchSize, checkpointInterval);
+        journaled.replayedCount = replayed;
+        journaled.checkpoint();
+        return journaled;
+    }
+
+    /**
+     * @return observations replayed by resume
+     */
+    public long getReplayedCount() {
+        return replayedCount;
+    }
+
+    @Override
+    public boolean putObservation(Observation observation) {
+        if (isClosed) {
+            return false;
+        }
+        batch.add(observation);
+        if (batch.size() >= batchSize) {
+            commitBatch();
+            if (batchesSinceCheckpoint >= checkpointInterval) {
+                checkpoint();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checkpoint now
+     */
+    @Override
+    public void sync() {
+        checkpoint();
+    }
+
+    /**
+     * Checkpoint, close the writer and remove the log and checkpoint
+     */
+    @Override
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        checkpoint();
+        writer.close();
+        isClosed = true;
+        try {
+            log.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to close write ahead log", ioe);
+        }
+        log.getFile().delete();
+        checkpointFile.delete();
+    }
+
+    private void commitBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            log.append(batch);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write to write ahead log " + log.getFile(), ioe);
+        }
+        for (Observation observation : batch) {
+            writer.putObservation(observation);
+        }
+        batch.clear();
+        batchesSinceCheckpoint++;
+    }
+
+    private void checkpoint() {
+        commitBatch();
+        writer.sync();
+        long committed = log.getNextSequence();
+        int recordCount = (writer instanceof StationTimeSeriesNetCDFFile)
+                ? ((StationTimeSeriesNetCDFFile) writer).getRecordCount() : -1;
+        try {
+            new Checkpoint(committed, recordCount).write(checkpointFile);
+            log.reset(committed);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to checkpoint to " + checkpointFile, ioe);
+        }
+        batchesSinceCheckpoint = 0;
+    }
+}
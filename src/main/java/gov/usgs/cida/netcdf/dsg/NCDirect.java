@@ -0,0 +1,77 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.Native;
+import java.nio.Buffer;
+
+/**
+ * Direct mapped (Native.register) bindings for the netCDF calls on the write
+ * hot path. Unlike the interface mapping in gov.usgs.cida.netcdf.jna.NC
+ * there is no proxy dispatch or NativeLong conversion: start, count and index
+ * vectors are long[] (size_t) and values are primitive arrays or buffers.
+ *
+ * Only registered where size_t is 64 bits, check isAvailable() and fall back
+ * to NC otherwise. The library name can be overridden with the
+ * gov.usgs.cida.netcdf.library system property, set
+ * gov.usgs.cida.netcdf.direct=false to disable these bindings.
+ */
+public final class NCDirect {
+
+    public static final String LIBRARY_PROPERTY = "gov.usgs.cida.netcdf.library";
+    public static final String ENABLED_PROPERTY = "gov.usgs.cida.netcdf.direct";
+    public static final String DEFAULT_LIBRARY = "netcdf";
+
+    private static final boolean AVAILABLE;
+
+    static {
+        boolean registered = false;
+        if (Native.POINTER_SIZE == 8 && !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY))) {
+            try {
+                Native.register(System.getProperty(LIBRARY_PROPERTY, DEFAULT_LIBRARY));
+                registered = true;
+            } catch (UnsatisfiedLinkError ule) {
+                registered = false;
+            }
+        }
+        AVAILABLE = registered;
+    }
+
+    private NCDirect() {
+    }
+
+    /**
+     * @return true if the bindings were registered and may be called
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    public static native int nc_put_vara(int ncid, int varid, long[] startp, long[] countp, Buffer op);
+
+    /**
+     * Typed hyperslab writes straight from Java arrays, op may be longer
+     * than the count
+     */
+    public static native int nc_put_vara_short(int ncid, int varid, long[] startp, long[] countp, short[] op);
+
+    public static native int nc_put_vara_int(int ncid, int varid, long[] startp, long[] countp, int[] op);
+
+    public static native int nc_put_vara_float(int ncid, int varid, long[] startp, long[] countp, float[] op);
+
+    public static native int nc_put_vara_double(int ncid, int varid, long[] startp, long[] countp, double[] op);
+
+    /**
+     * Attribute of len values of type xtype, op a direct buffer in native order
+     */
+    public static native int nc_put_att(int ncid, int varid, String name, int xtype, long len, Buffer op);
+
+    /**
+     * Writes op[0], callers keep a one element array around to avoid boxing
+     */
+    public static native int nc_put_var1_short(int ncid, int varid, long[] indexp, short[] op);
+
+    public static native int nc_put_var1_int(int ncid, int varid, long[] indexp, int[] op);
+
+    public static native int nc_put_var1_float(int ncid, int varid, long[] indexp, float[] op);
+
+    public static native int nc_put_var1_double(int ncid, int varid, long[] indexp, double[] op);
+}
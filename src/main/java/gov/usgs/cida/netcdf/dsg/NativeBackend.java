@@ -0,0 +1,41 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.nio.Buffer;
+
+/**
+ * The netCDF calls on the write hot path, behind an interface so the binding
+ * can be chosen at runtime, see NativeBackends. Define mode calls are made
+ * once per file and stay on gov.usgs.cida.netcdf.jna.NC.
+ *
+ * Start, count and index vectors are size_t values. Implementations must be
+ * safe to share between writers on different threads.
+ */
+public interface NativeBackend {
+
+    String getName();
+
+    /**
+     * @param op values in native byte order, a direct buffer
+     */
+    int nc_put_vara(int ncid, int varid, long[] startp, long[] countp, Buffer op);
+
+    /**
+     * @param op values of a variable of the same type, at least the product
+     * of countp long
+     */
+    int nc_put_vara_short(int ncid, int varid, long[] startp, long[] countp, short[] op);
+
+    int nc_put_vara_int(int ncid, int varid, long[] startp, long[] countp, int[] op);
+
+    int nc_put_vara_float(int ncid, int varid, long[] startp, long[] countp, float[] op);
+
+    int nc_put_vara_double(int ncid, int varid, long[] startp, long[] countp, double[] op);
+
+    int nc_put_var1_short(int ncid, int varid, long[] indexp, short op);
+
+    int nc_put_var1_int(int ncid, int varid, long[] indexp, int op);
+
+    int nc_put_var1_float(int ncid, int varid, long[] indexp, float op);
+
+    int nc_put_var1_double(int ncid, int varid, long[] indexp, double op);
+}
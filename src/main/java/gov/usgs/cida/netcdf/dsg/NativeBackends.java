@@ -0,0 +1,250 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import gov.usgs.cida.netcdf.jna.NC;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Picks the NativeBackend used by the writers. Set the
+ * gov.usgs.cida.netcdf.backend system property to ffm, direct or jna to
+ * choose one, otherwise the first available of those is used.
+ *
+ * The ffm backend uses the Foreign Function &amp; Memory API and is only
+ * built with -Pjdk22 (src/main/java22), it's loaded reflectively
+ * so this library still runs on older JVMs.
+ */
+public final class NativeBackends {
+
+    public static final String BACKEND_PROPERTY = "gov.usgs.cida.netcdf.backend";
+
+    public static final String FFM = "ffm";
+    public static final String DIRECT = "direct";
+    public static final String JNA = "jna";
+
+    private static final String FFM_CLASS = "gov.usgs.cida.netcdf.dsg.ffm.FFMBackend";
+
+    private static NativeBackend selected;
+
+    private NativeBackends() {
+    }
+
+    /**
+     * @return the backend for this process, chosen on first use
+     */
+    public static synchronized NativeBackend get() {
+        if (selected == null) {
+            String name = System.getProperty(BACKEND_PROPERTY);
+            if (name != null) {
+                selected = byName(name);
+                if (selected == null) {
+                    throw new IllegalStateException("NetCDF backend " + name + " is not available");
+                }
+            }
+            else {
+                selected = byName(FFM);
+                if (selected == null) {
+                    selected = byName(DIRECT);
+                }
+                if (selected == null) {
+                    selected = byName(JNA);
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return the named backend, or null if it isn't available here
+     */
+    public static NativeBackend byName(String name) {
+        if (FFM.equalsIgnoreCase(name)) {
+            return loadFFM();
+        }
+        else if (DIRECT.equalsIgnoreCase(name)) {
+            return NCDirect.isAvailable() ? new DirectBackend() : null;
+        }
+        else if (JNA.equalsIgnoreCase(name)) {
+            return new JnaBackend();
+        }
+        throw new IllegalArgumentException("Unknown NetCDF backend " + name);
+    }
+
+    private static NativeBackend loadFFM() {
+        try {
+            return (NativeBackend) Class.forName(FFM_CLASS).newInstance();
+        } catch (LinkageError le) {
+            // built for a newer JVM than this one
+            return null;
+        } catch (Exception e) {
+            // not built, library not found or native access not enabled
+            return null;
+        }
+    }
+
+    private static NativeLong[] toNativeLong(long[] values) {
+        NativeLong[] nativeLongs = new NativeLong[values.length];
+        for (int i = 0; i < values.length; i++) {
+            nativeLongs[i] = new NativeLong(values[i]);
+        }
+        return nativeLongs;
+    }
+
+    /**
+     * Interface mapped gov.usgs.cida.netcdf.jna.NC, works everywhere
+     */
+    static class JnaBackend implements NativeBackend {
+
+        @Override
+        public String getName() {
+            return JNA;
+        }
+
+        @Override
+        public int nc_put_vara(int ncid, int varid, long[] startp, long[] countp, Buffer op) {
+            return NC.nc_put_vara(ncid, varid, toNativeLong(startp), toNativeLong(countp), op);
+        }
+
+        @Override
+        public int nc_put_vara_short(int ncid, int varid, long[] startp, long[] countp, short[] op) {
+            ByteBuffer buffer = direct(countp, 2);
+            buffer.asShortBuffer().put(op, 0, buffer.capacity() / 2);
+            return nc_put_vara(ncid, varid, startp, countp, buffer);
+        }
+
+        @Override
+        public int nc_put_vara_int(int ncid, int varid, long[] startp, long[] countp, int[] op) {
+            ByteBuffer buffer = direct(countp, 4);
+            buffer.asIntBuffer().put(op, 0, buffer.capacity() / 4);
+            return nc_put_vara(ncid, varid, startp, countp, buffer);
+        }
+
+        @Override
+        public int nc_put_vara_float(int ncid, int varid, long[] startp, long[] countp, float[] op) {
+            ByteBuffer buffer = direct(countp, 4);
+            buffer.asFloatBuffer().put(op, 0, buffer.capacity() / 4);
+            return nc_put_vara(ncid, varid, startp, countp, buffer);
+        }
+
+        @Override
+        public int nc_put_vara_double(int ncid, int varid, long[] startp, long[] countp, double[] op) {
+            ByteBuffer buffer = direct(countp, 8);
+            buffer.asDoubleBuffer().put(op, 0, buffer.capacity() / 8);
+            return nc_put_vara(ncid, varid, startp, countp, buffer);
+        }
+
+        /**
+         * NC only takes buffers, so typed writes are copied into one
+         */
+        private static ByteBuffer direct(long[] countp, int valueSize) {
+            long values = 1;
+            for (long count : countp) {
+                values *= count;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) values * valueSize);
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        }
+
+        @Override
+        public int nc_put_var1_short(int ncid, int varid, long[] indexp, short op) {
+            return NC.nc_put_var1_short(ncid, varid, op, toNativeLong(indexp));
+        }
+
+        @Override
+        public int nc_put_var1_int(int ncid, int varid, long[] indexp, int op) {
+            return NC.nc_put_var1_int(ncid, varid, op, toNativeLong(indexp));
+        }
+
+        @Override
+        public int nc_put_var1_float(int ncid, int varid, long[] indexp, float op) {
+            return NC.nc_put_var1_float(ncid, varid, op, toNativeLong(indexp));
+        }
+
+        @Override
+        public int nc_put_var1_double(int ncid, int varid, long[] indexp, double op) {
+            return NC.nc_put_var1_double(ncid, varid, op, toNativeLong(indexp));
+        }
+    }
+
+    /**
+     * Direct mapped NCDirect, needs a 64 bit size_t. Single values are passed
+     * in one element arrays kept per thread, as FFMBackend keeps its scratch
+     * memory, so the backend can still be shared between writers.
+     */
+    static class DirectBackend implements NativeBackend {
+
+        private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+            @Override
+            protected Scratch initialValue() {
+                return new Scratch();
+            }
+        };
+
+        @Override
+        public String getName() {
+            return DIRECT;
+        }
+
+        @Override
+        public int nc_put_vara(int ncid, int varid, long[] startp, long[] countp, Buffer op) {
+            return NCDirect.nc_put_vara(ncid, varid, startp, countp, op);
+        }
+
+        @Override
+        public int nc_put_vara_short(int ncid, int varid, long[] startp, long[] countp, short[] op) {
+            return NCDirect.nc_put_vara_short(ncid, varid, startp, countp, op);
+        }
+
+        @Override
+        public int nc_put_vara_int(int ncid, int varid, long[] startp, long[] countp, int[] op) {
+            return NCDirect.nc_put_vara_int(ncid, varid, startp, countp, op);
+        }
+
+        @Override
+        public int nc_put_vara_float(int ncid, int varid, long[] startp, long[] countp, float[] op) {
+            return NCDirect.nc_put_vara_float(ncid, varid, startp, countp, op);
+        }
+
+        @Override
+        public int nc_put_vara_double(int ncid, int varid, long[] startp, long[] countp, double[] op) {
+            return NCDirect.nc_put_vara_double(ncid, varid, startp, countp, op);
+        }
+
+        @Override
+        public int nc_put_var1_short(int ncid, int varid, long[] indexp, short op) {
+            short[] value = scratch.get().shortValue;
+            value[0] = op;
+            return NCDirect.nc_put_var1_short(ncid, varid, indexp, value);
+        }
+
+        @Override
+        public int nc_put_var1_int(int ncid, int varid, long[] indexp, int op) {
+            int[] value = scratch.get().intValue;
+            value[0] = op;
+            return NCDirect.nc_put_var1_int(ncid, varid, indexp, value);
+        }
+
+        @Override
+        public int nc_put_var1_float(int ncid, int varid, long[] indexp, float op) {
+            float[] value = scratch.get().floatValue;
+            value[0] = op;
+            return NCDirect.nc_put_var1_float(ncid, varid, indexp, value);
+        }
+
+        @Override
+        public int nc_put_var1_double(int ncid, int varid, long[] indexp, double op) {
+            double[] value = scratch.get().doubleValue;
+            value[0] = op;
+            return NCDirect.nc_put_var1_double(ncid, varid, indexp, value);
+        }
+
+        private static final class Scratch {
+            final short[] shortValue = new short[1];
+            final int[] intValue = new int[1];
+            final float[] floatValue = new float[1];
+            final double[] doubleValue = new double[1];
+        }
+    }
+}
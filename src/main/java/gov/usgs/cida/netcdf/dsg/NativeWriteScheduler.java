@@ -0,0 +1,320 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every native netCDF call of the process on one dedicated thread, so
+ * callers never need a global lock around the library.
+ *
+ * Work is queued per sink: batches for one file run in the order they were
+ * submitted, and files take turns one batch at a time so a busy file can't
+ * starve the others. Request threads only block when they wait on a
+ * returned Future.
+ */
+public class NativeWriteScheduler {
+
+    private static final Object GLOBAL = new Object();
+
+    private final Map<Object, FileQueue> queues = new IdentityHashMap<Object, FileQueue>();
+    private final LinkedBlockingQueue<FileQueue> ready = new LinkedBlockingQueue<FileQueue>();
+    private final FileQueue stop = new FileQueue(null);
+    private final Thread nativeThread;
+    private volatile boolean isShutdown = false;
+
+    public NativeWriteScheduler() {
+        nativeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runNativeLoop();
+            }
+        }, "netcdf-native");
+        nativeThread.setDaemon(true);
+        nativeThread.start();
+    }
+
+    /**
+     * @return true when called from the thread that runs native calls
+     */
+    public boolean isNativeThread() {
+        return Thread.currentThread() == nativeThread;
+    }
+
+    /**
+     * Queue a batch of observations for a sink
+     * @return number of observations the sink accepted
+     */
+    public Future<Integer> submit(final ObservationSink sink, final List<Observation> batch) {
+        return submit(sink, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int accepted = 0;
+                for (Observation observation : batch) {
+                    if (sink.putObservation(observation)) {
+                        accepted++;
+                    }
+                }
+                return accepted;
+            }
+        });
+    }
+
+    /**
+     * Queue a whole batch for a sink that writes batches natively. The batch
+     * is handed over: the caller must not change or reuse it until the
+     * returned Future is done.
+     * @return number of rows the sink accepted
+     */
+    public Future<Integer> submit(final ObservationBatchSink sink, final ObservationBatch batch) {
+        return submit(sink, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return sink.putBatch(batch);
+            }
+        });
+    }
+
+    public Future<Void> sync(final ObservationSink sink) {
+        return submit(sink, new Callable<Void>() {
+            @Override
+            public Void call() {
+                sink.sync();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Close the sink after everything already queued for it has run
+     */
+    public Future<Void> close(final ObservationSink sink) {
+        return close(sink, new Callable<Void>() {
+            @Override
+            public Void call() {
+                sink.close();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run a last task in a key's queue, then drop the queue whether or not
+     * the task succeeds. Use this for keys that aren't closed through
+     * close(ObservationSink), otherwise their queues stay in the scheduler.
+     */
+    public <T> Future<T> close(final Object key, final Callable<T> task) {
+        return submit(key, new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return task.call();
+                } finally {
+                    synchronized (queues) {
+                        queues.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop a key's queue after everything already queued for it has run
+     */
+    public Future<Void> release(Object key) {
+        return close(key, new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run arbitrary native work in a sink's queue, e.g. creating the sink
+     */
+    public <T> Future<T> submit(Object sink, Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        FileQueue queue;
+        synchronized (queues) {
+            if (isShutdown) {
+                throw new RejectedExecutionException("Scheduler has been shut down");
+            }
+            queue = queues.get(sink);
+            if (queue == null) {
+                queue = new FileQueue(sink);
+                queues.put(sink, queue);
+            }
+        }
+        synchronized (queue) {
+            queue.tasks.add(future);
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                ready.add(queue);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Run native work that isn't tied to one file, e.g. opening files
+     */
+    public <T> Future<T> execute(Callable<T> task) {
+        return submit(GLOBAL, task);
+    }
+
+    /**
+     * Buffer observations from one caller and submit them in batches.
+     * The returned sink is not thread safe, give each request thread its own.
+     */
+    public ObservationSink batching(ObservationSink sink, int batchSize) {
+        return new BatchingSink(sink, batchSize);
+    }
+
+    /**
+     * Finish everything queued, then stop the native thread
+     */
+    public void shutdown() {
+        synchronized (queues) {
+            isShutdown = true;
+        }
+        ready.add(stop);
+    }
+
+    /**
+     * @return number of keys that still have a queue
+     */
+    int getQueueCount() {
+        synchronized (queues) {
+            return queues.size();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        nativeThread.join(unit.toMillis(timeout));
+        return !nativeThread.isAlive();
+    }
+
+    private void runNativeLoop() {
+        while (true) {
+            FileQueue queue;
+            try {
+                queue = ready.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (queue == stop) {
+                if (ready.isEmpty()) {
+                    return;
+                }
+                ready.add(stop);
+                continue;
+            }
+            FutureTask<?> task;
+            synchronized (queue) {
+                task = queue.tasks.poll();
+            }
+            if (task != null) {
+                task.run();
+            }
+            synchronized (queue) {
+                if (queue.tasks.isEmpty()) {
+                    queue.scheduled = false;
+                }
+                else {
+                    // back of the line so other files get a turn
+                    ready.add(queue);
+                }
+            }
+        }
+    }
+
+    private static class FileQueue {
+        final Object sink;
+        final ArrayDeque<FutureTask<?>> tasks = new ArrayDeque<FutureTask<?>>();
+        boolean scheduled = false;
+
+        FileQueue(Object sink) {
+            this.sink = sink;
+        }
+    }
+
+    private class BatchingSink implements ObservationSink {
+        private final ObservationSink sink;
+        private final int batchSize;
+        private List<Observation> batch;
+        private final List<Future<Integer>> pending = new ArrayList<Future<Integer>>();
+
+        BatchingSink(ObservationSink sink, int batchSize) {
+            this.sink = sink;
+            this.batchSize = batchSize;
+            this.batch = new ArrayList<Observation>(batchSize);
+        }
+
+        /**
+         * @return true once queued, failures of earlier batches are thrown
+         * from later calls
+         */
+        @Override
+        public boolean putObservation(Observation observation) {
+            batch.add(observation);
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+            return true;
+        }
+
+        @Override
+        public void sync() {
+            flush();
+            await(NativeWriteScheduler.this.sync(sink));
+            checkPending(true);
+        }
+
+        @Override
+        public void close() {
+            flush();
+            await(NativeWriteScheduler.this.close(sink));
+            checkPending(true);
+        }
+
+        private void flush() {
+            if (!batch.isEmpty()) {
+                pending.add(submit(sink, batch));
+                batch = new ArrayList<Observation>(batchSize);
+            }
+            checkPending(false);
+        }
+
+        private void checkPending(boolean all) {
+            while (!pending.isEmpty() && (all || pending.get(0).isDone())) {
+                await(pending.remove(0));
+            }
+        }
+
+        private <T> T await(Future<T> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for native writes", ie);
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
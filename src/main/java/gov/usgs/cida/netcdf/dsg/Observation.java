@@ -11,7 +11,9 @@ public class Observation {
     
     /*
      * Take time as an offset from some time
-     * TODO take a DateTime from Joda and convert it to index here or in record
+     * Use RecordType.getTimeEncoder() to convert a timestamp to an offset
+     * StationTimeSeriesMultiDimensional takes the index along its time axis
+     * instead, see its getTimeIndex(int)
      */
     public Observation(int time, int index, Object... values) {
         this.time_offset = time;
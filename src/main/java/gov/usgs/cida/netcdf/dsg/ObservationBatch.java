@@ -0,0 +1,264 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Fixed capacity block of observations held as primitive columns, one array
+ * per statistic variable (byte[], short[], int[], long[], float[] or double[]
+ * depending on the variable's xtype).
+ *
+ * Batches are reused by the reader, copy anything that needs to outlive the
+ * next call to next().
+ */
+public class ObservationBatch {
+
+    public final Variable[] variables;
+    public final int capacity;
+    public final int[] station_index;
+    /**
+     * Same meaning as Observation.time_offset for the layout: the time
+     * coordinate of a ragged record, the index along the time axis of a
+     * multidimensional file. Reader batches and writer batches agree, so a
+     * batch read from a file can be put into a writer of the same layout.
+     */
+    public final int[] time_offset;
+    public final Object[] columns;
+    public int size;
+
+    public ObservationBatch(List<Variable> variables, int capacity) {
+        this(variables.toArray(new Variable[variables.size()]), capacity);
+    }
+
+    public ObservationBatch(Variable[] variables, int capacity) {
+        this.variables = variables;
+        this.capacity = capacity;
+        this.station_index = new int[capacity];
+        this.time_offset = new int[capacity];
+        this.columns = new Object[variables.length];
+        for (int v = 0; v < variables.length; v++) {
+            columns[v] = allocateColumn(variables[v].xtype, capacity);
+        }
+        this.size = 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Read one value for variable v from the buffer into row i
+     */
+    public void readValue(int v, int i, ByteBuffer buffer) {
+        Object column = columns[v];
+        switch (variables[v].xtype) {
+            case NC_BYTE:
+                ((byte[]) column)[i] = buffer.get();
+                break;
+            case NC_SHORT:
+                ((short[]) column)[i] = buffer.getShort();
+                break;
+            case NC_INT:
+                ((int[]) column)[i] = buffer.getInt();
+                break;
+            case NC_LONG:
+                if (XType.NC_LONG.getSizeBytes() == 8) {
+                    ((long[]) column)[i] = buffer.getLong();
+                }
+                else {
+                    ((long[]) column)[i] = buffer.getInt();
+                }
+                break;
+            case NC_FLOAT:
+                ((float[]) column)[i] = buffer.getFloat();
+                break;
+            case NC_DOUBLE:
+                ((double[]) column)[i] = buffer.getDouble();
+                break;
+            default:
+                throw new UnsupportedOperationException("Should implement the other types");
+        }
+    }
+
+    /**
+     * Write the value of variable v in row i at an absolute buffer position
+     */
+    public void writeValue(int v, int i, ByteBuffer buffer, int position) {
+        Object column = columns[v];
+        switch (variables[v].xtype) {
+            case NC_BYTE:
+                buffer.put(position, ((byte[]) column)[i]);
+                break;
+            case NC_SHORT:
+                buffer.putShort(position, ((short[]) column)[i]);
+                break;
+            case NC_INT:
+                buffer.putInt(position, ((int[]) column)[i]);
+                break;
+            case NC_LONG:
+                if (XType.NC_LONG.getSizeBytes() == 8) {
+                    buffer.putLong(position, ((long[]) column)[i]);
+                }
+                else {
+                    buffer.putInt(position, (int) ((long[]) column)[i]);
+                }
+                break;
+            case NC_FLOAT:
+                buffer.putFloat(position, ((float[]) column)[i]);
+                break;
+            case NC_DOUBLE:
+                buffer.putDouble(position, ((double[]) column)[i]);
+                break;
+            default:
+                throw new UnsupportedOperationException("Should implement the other types");
+        }
+    }
+
+    /**
+     * Set row i of variable v, narrowing the number to the variable's type
+     */
+    public void setValue(int v, int i, Number value) {
+        Object column = columns[v];
+        switch (variables[v].xtype) {
+            case NC_BYTE:
+                ((byte[]) column)[i] = value.byteValue();
+                break;
+            case NC_SHORT:
+                ((short[]) column)[i] = value.shortValue();
+                break;
+            case NC_INT:
+                ((int[]) column)[i] = value.intValue();
+                break;
+            case NC_LONG:
+                ((long[]) column)[i] = value.longValue();
+                break;
+            case NC_FLOAT:
+                ((float[]) column)[i] = value.floatValue();
+                break;
+            case NC_DOUBLE:
+                ((double[]) column)[i] = value.doubleValue();
+                break;
+            default:
+                throw new UnsupportedOperationException("Should implement the other types");
+        }
+    }
+
+    /**
+     * Append count rows of other, starting at row from, which must have the
+     * same variables
+     */
+    public void append(ObservationBatch other, int from, int count) {
+        if (size + count > capacity) {
+            throw new IllegalArgumentException("Batch has room for " + (capacity - size) + " rows, not " + count);
+        }
+        System.arraycopy(other.station_index, from, station_index, size, count);
+        System.arraycopy(other.time_offset, from, time_offset, size, count);
+        for (int v = 0; v < columns.length; v++) {
+            System.arraycopy(other.columns[v], from, columns[v], size, count);
+        }
+        size += count;
+    }
+
+    /**
+     * @return value of variable v in row i, boxed to the variable's value
+     * class. Codes of categorical variables are decoded, fill codes to null.
+     */
+    public Object getValue(int v, int i) {
+        CategoryDictionary categories = variables[v].getCategories();
+        if (categories != null) {
+            return categories.decode(((Number) getCode(v, i)).intValue());
+        }
+        return getCode(v, i);
+    }
+
+    /**
+     * @return value of variable v in row i as stored, without decoding
+     */
+    private Object getCode(int v, int i) {
+        Object column = columns[v];
+        switch (variables[v].xtype) {
+            case NC_BYTE:
+                return ((byte[]) column)[i];
+            case NC_SHORT:
+                return ((short[]) column)[i];
+            case NC_INT:
+                return ((int[]) column)[i];
+            case NC_LONG:
+                return ((long[]) column)[i];
+            case NC_FLOAT:
+                return ((float[]) column)[i];
+            case NC_DOUBLE:
+                return ((double[]) column)[i];
+            default:
+                throw new UnsupportedOperationException("Should implement the other types");
+        }
+    }
+
+    /**
+     * @return value of variable v in row i as a double, codes of categorical
+     * variables as they are stored
+     */
+    public double getDouble(int v, int i) {
+        Object column = columns[v];
+        switch (variables[v].xtype) {
+            case NC_BYTE:
+                return ((byte[]) column)[i];
+            case NC_SHORT:
+                return ((short[]) column)[i];
+            case NC_INT:
+                return ((int[]) column)[i];
+            case NC_LONG:
+                return ((long[]) column)[i];
+            case NC_FLOAT:
+                return ((float[]) column)[i];
+            case NC_DOUBLE:
+                return ((double[]) column)[i];
+            default:
+                throw new UnsupportedOperationException("Should implement the other types");
+        }
+    }
+
+    /**
+     * @return true if every variable in row i holds its fill value
+     */
+    public boolean isFill(int i) {
+        for (int v = 0; v < columns.length; v++) {
+            if (!getCode(v, i).equals(variables[v].getFillValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Observation getObservation(int i) {
+        Object[] values = new Object[columns.length];
+        for (int v = 0; v < columns.length; v++) {
+            values[v] = getValue(v, i);
+        }
+        return new Observation(time_offset[i], station_index[i], values);
+    }
+
+    private static Object allocateColumn(XType xtype, int capacity) {
+        switch (xtype) {
+            case NC_BYTE:
+                return new byte[capacity];
+            case NC_SHORT:
+                return new short[capacity];
+            case NC_INT:
+                return new int[capacity];
+            case NC_LONG:
+                return new long[capacity];
+            case NC_FLOAT:
+                return new float[capacity];
+            case NC_DOUBLE:
+                return new double[capacity];
+            default:
+                throw new UnsupportedOperationException("Should implement the other types");
+        }
+    }
+}
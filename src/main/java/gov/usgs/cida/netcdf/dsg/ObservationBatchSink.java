@@ -0,0 +1,15 @@
+package gov.usgs.cida.netcdf.dsg;
+
+/**
+ * An ObservationSink that also takes whole ObservationBatches, written with
+ * as few native calls as the file layout allows.
+ */
+public interface ObservationBatchSink extends ObservationSink {
+
+    /**
+     * Put rows 0 until batch.size, in order. The batch may be reused by the
+     * caller once this returns.
+     * @return number of rows accepted
+     */
+    int putBatch(ObservationBatch batch);
+}
@@ -0,0 +1,23 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.Closeable;
+
+/**
+ * Destination for a stream of observations, the common surface of
+ * StationTimeSeriesNetCDFFile and StationTimeSeriesMultiDimensional.
+ */
+public interface ObservationSink extends Closeable {
+
+    /**
+     * @return false if the observation was not accepted
+     */
+    boolean putObservation(Observation observation);
+
+    /**
+     * Make everything put so far durable
+     */
+    void sync();
+
+    @Override
+    void close();
+}
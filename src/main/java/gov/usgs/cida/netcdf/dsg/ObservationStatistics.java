@@ -0,0 +1,416 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.IntByReference;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Running min, max, valid count, missing count and Welford mean/variance of
+ * each statistic variable, over the whole file and optionally per station,
+ * kept in primitive arrays as observations are written.
+ *
+ * A value is missing when it is null, NaN, or equal to the variable's
+ * _FillValue or missing_value. Values of quantized variables are counted
+ * as they are written, with their trailing mantissa bits rounded off.
+ */
+public class ObservationStatistics {
+
+    /** CF attribute, min and max in the variable's type */
+    public static final String ACTUAL_RANGE = "actual_range";
+    public static final String VALID_COUNT = "valid_count";
+    public static final String MISSING_COUNT = "missing_count";
+    public static final String MEAN = "mean";
+    public static final String STANDARD_DEVIATION = "standard_deviation";
+
+    private final Variable[] variables;
+    private final Object[] fillValues;
+    private final Object[] missingValues;
+    // the same as doubles for batch rows, NaN if there is none
+    private final double[] fillNumbers;
+    private final double[] missingNumbers;
+    private int stationCount;
+
+    // indexed [group * variables.length + v], group 0 is the whole file and
+    // group s + 1 is station s
+    private double[] min;
+    private double[] max;
+    private double[] mean;
+    private double[] m2;
+    private long[] count;
+    private long[] missing;
+
+    /**
+     * @param variables statistic variables in Observation.values order
+     * @param stationCount number of stations to keep statistics for, 0 for
+     * whole file statistics only
+     */
+    public ObservationStatistics(Variable[] variables, int stationCount) {
+        this.variables = variables;
+        this.stationCount = stationCount;
+        this.fillValues = new Object[variables.length];
+        this.missingValues = new Object[variables.length];
+        this.fillNumbers = new double[variables.length];
+        this.missingNumbers = new double[variables.length];
+        for (int v = 0; v < variables.length; v++) {
+            fillValues[v] = variables[v].getFillValue();
+            missingValues[v] = variables[v].attributes.get("missing_value");
+            fillNumbers[v] = sameType(fillValues[v], variables[v]) ?
+                    ((Number) fillValues[v]).doubleValue() : Double.NaN;
+            missingNumbers[v] = sameType(missingValues[v], variables[v]) ?
+                    ((Number) missingValues[v]).doubleValue() : Double.NaN;
+        }
+        int size = (stationCount + 1) * variables.length;
+        min = new double[size];
+        max = new double[size];
+        mean = new double[size];
+        m2 = new double[size];
+        count = new long[size];
+        missing = new long[size];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    }
+
+    public boolean isPerStation() {
+        return stationCount > 0;
+    }
+
+    /**
+     * Keep statistics for only the first stationCount stations, for writers
+     * that sized them to a station capacity and registered fewer
+     */
+    void truncate(int stationCount) {
+        if (stationCount >= this.stationCount) {
+            return;
+        }
+        int size = (stationCount + 1) * variables.length;
+        min = Arrays.copyOf(min, size);
+        max = Arrays.copyOf(max, size);
+        mean = Arrays.copyOf(mean, size);
+        m2 = Arrays.copyOf(m2, size);
+        count = Arrays.copyOf(count, size);
+        missing = Arrays.copyOf(missing, size);
+        this.stationCount = stationCount;
+    }
+
+    public void add(Observation observation) {
+        int station = observation.station_index;
+        boolean perStation = station >= 0 && station < stationCount;
+        int vCount = Math.min(variables.length, observation.values.length);
+        for (int v = 0; v < vCount; v++) {
+            Object value = observation.values[v];
+            if (isMissing(v, value)) {
+                missing[v]++;
+                if (perStation) {
+                    missing[(station + 1) * variables.length + v]++;
+                }
+            }
+            else if (value instanceof Number) {
+                // categorical values only count towards missing
+                double x = written(v, ((Number) value).doubleValue());
+                accumulate(v, x);
+                if (perStation) {
+                    accumulate((station + 1) * variables.length + v, x);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add row i of the batch, without boxing its values
+     */
+    public void add(ObservationBatch batch, int i) {
+        add(batch, i, batch.station_index[i]);
+    }
+
+    /**
+     * Add row i of the batch as an observation of station
+     */
+    void add(ObservationBatch batch, int i, int station) {
+        boolean perStation = station >= 0 && station < stationCount;
+        int vCount = Math.min(variables.length, batch.variables.length);
+        for (int v = 0; v < vCount; v++) {
+            double x = batch.getDouble(v, i);
+            boolean categorical = variables[v].getCategories() != null;
+            if (x == fillNumbers[v] || (!categorical && (Double.isNaN(x) || x == missingNumbers[v]))) {
+                missing[v]++;
+                if (perStation) {
+                    missing[(station + 1) * variables.length + v]++;
+                }
+            }
+            else if (!categorical) {
+                // categorical codes only count towards missing
+                x = written(v, x);
+                accumulate(v, x);
+                if (perStation) {
+                    accumulate((station + 1) * variables.length + v, x);
+                }
+            }
+        }
+    }
+
+    public double getMin(int v) {
+        return min[v];
+    }
+
+    public double getMax(int v) {
+        return max[v];
+    }
+
+    public long getValidCount(int v) {
+        return count[v];
+    }
+
+    public long getMissingCount(int v) {
+        return missing[v];
+    }
+
+    public double getMean(int v) {
+        return (count[v] > 0) ? mean[v] : Double.NaN;
+    }
+
+    /**
+     * @return sample variance, NaN with fewer than two valid values
+     */
+    public double getVariance(int v) {
+        return (count[v] > 1) ? m2[v] / (count[v] - 1) : Double.NaN;
+    }
+
+    public double getMin(int v, int station) {
+        return min[stationSlot(v, station)];
+    }
+
+    public double getMax(int v, int station) {
+        return max[stationSlot(v, station)];
+    }
+
+    public long getValidCount(int v, int station) {
+        return count[stationSlot(v, station)];
+    }
+
+    public double getMean(int v, int station) {
+        int i = stationSlot(v, station);
+        return (count[i] > 0) ? mean[i] : Double.NaN;
+    }
+
+    /**
+     * Put the whole file statistics of variable v as attributes of a
+     * NetCDF variable, the file must be in define mode
+     */
+    public void writeAttributes(int ncId, int ncVarId, int v) {
+        if (count[v] > 0) {
+            putRange(ncId, ncVarId, ACTUAL_RANGE, v);
+            status(nc_put_att_double(ncId, ncVarId, MEAN, getMean(v)));
+        }
+        if (count[v] > 1) {
+            status(nc_put_att_double(ncId, ncVarId, STANDARD_DEVIATION, Math.sqrt(getVariance(v))));
+        }
+        putCount(ncId, ncVarId, VALID_COUNT, count[v]);
+        putCount(ncId, ncVarId, MISSING_COUNT, missing[v]);
+    }
+
+    /**
+     * Put the whole file statistics as compound attributes of the ragged
+     * record variable, one field per statistic variable, and the range of
+     * each variable as a &lt;variable&gt;_actual_range attribute of the
+     * record variable. The file must be in define mode.
+     */
+    public void writeCompoundAttributes(int ncId, int ncVarId, String structName) {
+        String[] varNames = new String[variables.length];
+        double[] means = new double[variables.length];
+        double[] deviations = new double[variables.length];
+        double[] valid = new double[variables.length];
+        double[] missed = new double[variables.length];
+        for (int v = 0; v < variables.length; v++) {
+            varNames[v] = variables[v].name;
+            if (count[v] > 0) {
+                putRange(ncId, ncVarId, variables[v].name + "_" + ACTUAL_RANGE, v);
+            }
+            means[v] = getMean(v);
+            deviations[v] = Math.sqrt(getVariance(v));
+            valid[v] = count[v];
+            missed[v] = missing[v];
+        }
+        putCompound(ncId, ncVarId, structName, MEAN, varNames, means);
+        putCompound(ncId, ncVarId, structName, STANDARD_DEVIATION, varNames, deviations);
+        putCompound(ncId, ncVarId, structName, VALID_COUNT, varNames, valid);
+        putCompound(ncId, ncVarId, structName, MISSING_COUNT, varNames, missed);
+    }
+
+    /**
+     * Define "&lt;variable&gt;_station_min", _max, _mean and _count station
+     * variables for the per station statistics. The file must be in define
+     * mode, call writeStationVariables after leaving it.
+     * @return variable ids to pass to writeStationVariables
+     */
+    public int[] defineStationVariables(int ncId, int ncDimId_station) {
+        int[] ncVarIds = new int[variables.length * 4];
+        if (!isPerStation()) {
+            return ncVarIds;
+        }
+        IntByReference iRef = new IntByReference();
+        int[] dimids = new int[] { ncDimId_station };
+        String[] suffixes = { "_station_min", "_station_max", "_station_mean", "_station_count" };
+        for (int v = 0; v < variables.length; v++) {
+            for (int k = 0; k < suffixes.length; k++) {
+                int xtype = (k == 3) ? NC_INT : NC_DOUBLE;
+                status(nc_def_var(ncId, variables[v].name + suffixes[k], xtype, dimids, iRef));
+                ncVarIds[v * 4 + k] = iRef.getValue();
+            }
+        }
+        return ncVarIds;
+    }
+
+    public void writeStationVariables(int ncId, int[] ncVarIds) {
+        if (!isPerStation() || stationCount == 0) {
+            return;
+        }
+        NativeLong[] startp = new NativeLong[] { new NativeLong(0) };
+        NativeLong[] countp = new NativeLong[] { new NativeLong(stationCount) };
+        ByteBuffer doubles = ByteBuffer.allocateDirect(stationCount * 8);
+        doubles.order(ByteOrder.nativeOrder());
+        ByteBuffer ints = ByteBuffer.allocateDirect(stationCount * 4);
+        ints.order(ByteOrder.nativeOrder());
+        for (int v = 0; v < variables.length; v++) {
+            for (int k = 0; k < 3; k++) {
+                doubles.clear();
+                for (int s = 0; s < stationCount; s++) {
+                    int i = stationSlot(v, s);
+                    double value;
+                    if (count[i] == 0) {
+                        value = Double.NaN;
+                    }
+                    else {
+                        value = (k == 0) ? min[i] : ((k == 1) ? max[i] : mean[i]);
+                    }
+                    doubles.putDouble(value);
+                }
+                doubles.rewind();
+                status(nc_put_vara(ncId, ncVarIds[v * 4 + k], startp, countp, doubles));
+            }
+            ints.clear();
+            for (int s = 0; s < stationCount; s++) {
+                ints.putInt((int) Math.min(Integer.MAX_VALUE, count[stationSlot(v, s)]));
+            }
+            ints.rewind();
+            status(nc_put_vara(ncId, ncVarIds[v * 4 + 3], startp, countp, ints));
+        }
+    }
+
+    private int stationSlot(int v, int station) {
+        if (station < 0 || station >= stationCount) {
+            throw new IndexOutOfBoundsException("No statistics kept for station " + station);
+        }
+        return (station + 1) * variables.length + v;
+    }
+
+    /**
+     * @return true if value is boxed as the values of var are, so it
+     * can only equal them when its double value does
+     */
+    private static boolean sameType(Object value, Variable var) {
+        if (!(value instanceof Number)) {
+            return false;
+        }
+        switch (var.xtype) {
+            case NC_BYTE:
+                return value instanceof Byte;
+            case NC_SHORT:
+                return value instanceof Short;
+            case NC_INT:
+                return value instanceof Integer;
+            case NC_LONG:
+                return value instanceof Long;
+            case NC_FLOAT:
+                return value instanceof Float;
+            case NC_DOUBLE:
+                return value instanceof Double;
+            default:
+                return false;
+        }
+    }
+
+    private boolean isMissing(int v, Object value) {
+        if (value == null) {
+            return true;
+        }
+        if (value instanceof Float && ((Float) value).isNaN()) {
+            return true;
+        }
+        if (value instanceof Double && ((Double) value).isNaN()) {
+            return true;
+        }
+        return value.equals(fillValues[v]) || value.equals(missingValues[v]);
+    }
+
+    /**
+     * @return x as the writers store it for variable v
+     */
+    private double written(int v, double x) {
+        Variable var = variables[v];
+        if (!var.isQuantized()) {
+            return x;
+        }
+        return (var.xtype == XType.NC_FLOAT) ? var.quantize((float) x) : var.quantize(x);
+    }
+
+    private void accumulate(int i, double x) {
+        if (x < min[i]) {
+            min[i] = x;
+        }
+        if (x > max[i]) {
+            max[i] = x;
+        }
+        long n = ++count[i];
+        double delta = x - mean[i];
+        mean[i] += delta / n;
+        m2[i] += delta * (x - mean[i]);
+    }
+
+    /**
+     * Put min and max of variable v as a two value attribute of its type
+     */
+    private void putRange(int ncId, int ncVarId, String name, int v) {
+        NativeLong two = new NativeLong(2);
+        switch (variables[v].xtype) {
+            case NC_BYTE:
+                status(nc_put_att_schar(ncId, ncVarId, name, NC_BYTE, two,
+                        new byte[] { (byte) min[v], (byte) max[v] }));
+                break;
+            case NC_SHORT:
+                status(nc_put_att_short(ncId, ncVarId, name, NC_SHORT, two,
+                        new short[] { (short) min[v], (short) max[v] }));
+                break;
+            case NC_INT:
+                status(nc_put_att_int(ncId, ncVarId, name, NC_INT, two,
+                        new int[] { (int) min[v], (int) max[v] }));
+                break;
+            case NC_FLOAT:
+                status(nc_put_att_float(ncId, ncVarId, name, NC_FLOAT, two,
+                        new float[] { (float) min[v], (float) max[v] }));
+                break;
+            default:
+                status(nc_put_att_double(ncId, ncVarId, name, NC_DOUBLE, two,
+                        new double[] { min[v], max[v] }));
+                break;
+        }
+    }
+
+    private static void putCount(int ncId, int ncVarId, String name, long value) {
+        if (value <= Integer.MAX_VALUE) {
+            status(nc_put_att_int(ncId, ncVarId, name, (int) value));
+        }
+        else {
+            status(nc_put_att_double(ncId, ncVarId, name, (double) value));
+        }
+    }
+
+    private static void putCompound(int ncId, int ncVarId, String structName, String attr,
+            String[] varNames, double[] values) {
+        generateCompoundAttributes(ncId, ncVarId, structName + "_" + attr + "_type",
+                attr, varNames, values);
+    }
+}
@@ -0,0 +1,452 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites an indexed ragged file from StationTimeSeriesNetCDFFile as an
+ * orthogonal [station, time] file from StationTimeSeriesMultiDimensional.
+ *
+ * The grid is converted in station x time tiles that fit in the memory
+ * budget, each written with a single hyperslab write per variable. The
+ * ragged records are read once. If the whole grid fits in the budget they
+ * are scattered straight into the tile; otherwise each record is appended,
+ * with its cell, to its tile's run in a spill file next to the target, and
+ * the tiles are then filled one at a time from their runs. The spill
+ * buffers use up to the memory budget again, the spill file is as large as
+ * the records converted.
+ *
+ * Cells without a record keep the variable's fill value. If a station has
+ * more than one record at a time the last one in the ragged file is kept.
+ */
+public class RaggedToMultiDimensionalConverter {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024L * 1024L;
+
+    private final RecordType recordType;
+    private final Variable[] dataVariables;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int blockSize = StationTimeSeriesReader.DEFAULT_BLOCK_SIZE;
+
+    /**
+     * @param rt RecordType the ragged file was written with
+     */
+    public RaggedToMultiDimensionalConverter(RecordType rt) {
+        this.recordType = rt;
+        List<Variable> vars = rt.getDataVars();
+        if (vars.isEmpty()) {
+            throw new IllegalArgumentException("RecordType has no data variables to convert");
+        }
+        this.dataVariables = vars.toArray(new Variable[vars.size()]);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget bytes of tile buffers to use, and of spill buffers
+     * if the grid doesn't fit, not counting the reader's block buffer
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @param blockSize records read from the ragged file per native call
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Convert using the distinct time offsets found in the ragged file as the
+     * time axis. This costs one extra pass over the records.
+     * @return number of passes made over the ragged records, 2
+     */
+    public int convert(File ragged, File multiDimensional, Map<String, String> globalAttrs) {
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(ragged, recordType);
+        try {
+            reader.setBlockSize(blockSize);
+            int[] timeOffsets = scanTimeOffsets(reader.batches());
+            return convert(reader, multiDimensional, globalAttrs, timeOffsets) + 1;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records with a time_offset that isn't in timeOffsets are dropped.
+     * @return number of passes made over the ragged records, 1 or 0 for an
+     * empty grid
+     */
+    public int convert(File ragged, File multiDimensional, Map<String, String> globalAttrs,
+            int[] timeOffsets) {
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(ragged, recordType);
+        try {
+            reader.setBlockSize(blockSize);
+            return convert(reader, multiDimensional, globalAttrs, timeOffsets);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int convert(StationTimeSeriesReader reader, File multiDimensional,
+            Map<String, String> globalAttrs, int[] timeOffsets) {
+        Station[] stations = reader.readStations();
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                multiDimensional, globalAttrs, stations, timeOffsets,
+                recordType.getTimeUnit(), dataVariables);
+        try {
+            int stationCount = stations.length;
+            int timeCount = timeOffsets.length;
+            if (stationCount == 0 || timeCount == 0) {
+                return 0;
+            }
+
+            int cellBytes = 0;
+            for (Variable var : dataVariables) {
+                cellBytes += var.xtype.getSizeBytes();
+            }
+            // each tile buffer has to stay addressable by an int
+            long budgetCells = Math.max(1, Math.min(memoryBudget / cellBytes, Integer.MAX_VALUE / 8));
+            int stationTile;
+            int timeTile;
+            if (budgetCells >= timeCount) {
+                timeTile = timeCount;
+                stationTile = (int) Math.min(stationCount, budgetCells / timeCount);
+            }
+            else {
+                timeTile = (int) budgetCells;
+                stationTile = 1;
+            }
+            int stationTiles = (stationCount + stationTile - 1) / stationTile;
+            int timeTiles = (timeCount + timeTile - 1) / timeTile;
+
+            ByteBuffer[] tiles = new ByteBuffer[dataVariables.length];
+            for (int v = 0; v < dataVariables.length; v++) {
+                tiles[v] = ByteBuffer.allocateDirect(stationTile * timeTile * dataVariables[v].xtype.getSizeBytes());
+                tiles[v].order(ByteOrder.nativeOrder());
+            }
+
+            if (stationTiles == 1 && timeTiles == 1) {
+                fillTiles(tiles, stationCount * timeCount);
+                Iterator<ObservationBatch> batches = reader.batches();
+                while (batches.hasNext()) {
+                    ObservationBatch batch = batches.next();
+                    for (int row = 0; row < batch.size; row++) {
+                        int t = writer.getTimeIndex(batch.time_offset[row]);
+                        if (t >= 0) {
+                            int cell = batch.station_index[row] * timeCount + t;
+                            for (int v = 0; v < dataVariables.length; v++) {
+                                batch.writeValue(v, row, tiles[v], cell * dataVariables[v].xtype.getSizeBytes());
+                            }
+                        }
+                    }
+                }
+                putTiles(writer, tiles, 0, stationCount, 0, timeCount);
+                return 1;
+            }
+
+            int tileCount = stationTiles * timeTiles;
+            int recordBytes = 4 + cellBytes;
+            long stagingBytes = Math.min(1 << 20, memoryBudget / tileCount) / recordBytes * recordBytes;
+            Spill spill = new Spill(multiDimensional, tileCount, recordBytes, (int) Math.max(recordBytes, stagingBytes));
+            try {
+                Iterator<ObservationBatch> batches = reader.batches();
+                while (batches.hasNext()) {
+                    ObservationBatch batch = batches.next();
+                    for (int row = 0; row < batch.size; row++) {
+                        int t = writer.getTimeIndex(batch.time_offset[row]);
+                        if (t < 0) {
+                            continue;
+                        }
+                        int s = batch.station_index[row];
+                        int t0 = t - t % timeTile;
+                        int tc = Math.min(timeTile, timeCount - t0);
+                        int tile = (s / stationTile) * timeTiles + t / timeTile;
+                        int cell = (s % stationTile) * tc + (t - t0);
+                        ByteBuffer staging = spill.append(tile);
+                        staging.putInt(cell);
+                        for (int v = 0; v < dataVariables.length; v++) {
+                            batch.writeValue(v, row, staging, staging.position());
+                            staging.position(staging.position() + dataVariables[v].xtype.getSizeBytes());
+                        }
+                    }
+                }
+                spill.flush();
+
+                for (int tile = 0; tile < tileCount; tile++) {
+                    int s0 = (tile / timeTiles) * stationTile;
+                    int sc = Math.min(stationTile, stationCount - s0);
+                    int t0 = (tile % timeTiles) * timeTile;
+                    int tc = Math.min(timeTile, timeCount - t0);
+                    fillTiles(tiles, sc * tc);
+                    // runs are in ragged file order, so the last duplicate wins
+                    ByteBuffer run;
+                    while ((run = spill.nextRun(tile)) != null) {
+                        while (run.hasRemaining()) {
+                            int cell = run.getInt();
+                            for (int v = 0; v < dataVariables.length; v++) {
+                                int size = dataVariables[v].xtype.getSizeBytes();
+                                int position = cell * size;
+                                for (int b = 0; b < size; b++) {
+                                    tiles[v].put(position + b, run.get());
+                                }
+                            }
+                        }
+                    }
+                    putTiles(writer, tiles, s0, sc, t0, tc);
+                }
+            } finally {
+                spill.close();
+            }
+            return 1;
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void fillTiles(ByteBuffer[] tiles, int cells) {
+        for (int v = 0; v < dataVariables.length; v++) {
+            fill(tiles[v], dataVariables[v], cells);
+        }
+    }
+
+    private void putTiles(StationTimeSeriesMultiDimensional writer, ByteBuffer[] tiles,
+            int s0, int sc, int t0, int tc) {
+        for (int v = 0; v < dataVariables.length; v++) {
+            tiles[v].limit(sc * tc * dataVariables[v].xtype.getSizeBytes());
+            writer.putBlock(v, s0, sc, t0, tc, tiles[v]);
+        }
+    }
+
+    /**
+     * Records of each tile, staged in memory and appended to a temporary
+     * file in runs, read back tile by tile in the order they were appended
+     */
+    private static class Spill {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final int recordBytes;
+        private final int stagingBytes;
+        private final ByteBuffer[] staging;
+        // runs in the file as a linked list per tile
+        private final int[] firstRun;
+        private final int[] lastRun;
+        private long[] runOffsets = new long[64];
+        private int[] runLengths = new int[64];
+        private int[] nextRuns = new int[64];
+        private int runCount = 0;
+        private long fileLength = 0;
+        private ByteBuffer readBuffer;
+
+        Spill(File target, int tileCount, int recordBytes, int stagingBytes) {
+            this.recordBytes = recordBytes;
+            this.stagingBytes = stagingBytes;
+            this.staging = new ByteBuffer[tileCount];
+            this.firstRun = new int[tileCount];
+            this.lastRun = new int[tileCount];
+            Arrays.fill(firstRun, -1);
+            Arrays.fill(lastRun, -1);
+            try {
+                file = File.createTempFile(target.getName(), ".spill", target.getAbsoluteFile().getParentFile());
+                raf = new RandomAccessFile(file, "rw");
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to create spill file for " + target, ioe);
+            }
+            channel = raf.getChannel();
+        }
+
+        /**
+         * @return staging buffer of the tile with room for one record
+         */
+        ByteBuffer append(int tile) {
+            ByteBuffer buffer = staging[tile];
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(stagingBytes);
+                buffer.order(ByteOrder.nativeOrder());
+                staging[tile] = buffer;
+            }
+            else if (buffer.remaining() < recordBytes) {
+                writeRun(tile);
+            }
+            return buffer;
+        }
+
+        /**
+         * Write out what is left in the staging buffers and release them
+         */
+        void flush() {
+            for (int tile = 0; tile < staging.length; tile++) {
+                if (staging[tile] != null) {
+                    writeRun(tile);
+                    staging[tile] = null;
+                }
+            }
+        }
+
+        /**
+         * @return the tile's next run ready to read, null once there are no more
+         */
+        ByteBuffer nextRun(int tile) {
+            int run = firstRun[tile];
+            if (run < 0) {
+                return null;
+            }
+            firstRun[tile] = nextRuns[run];
+            if (readBuffer == null) {
+                readBuffer = ByteBuffer.allocate(stagingBytes);
+                readBuffer.order(ByteOrder.nativeOrder());
+            }
+            readBuffer.clear();
+            readBuffer.limit(runLengths[run]);
+            try {
+                long position = runOffsets[run];
+                while (readBuffer.hasRemaining()) {
+                    int read = channel.read(readBuffer, position);
+                    if (read < 0) {
+                        throw new IOException("Spill file ended early");
+                    }
+                    position += read;
+                }
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to read spill file " + file, ioe);
+            }
+            readBuffer.flip();
+            return readBuffer;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ioe) {
+                // only temporary data
+            }
+            file.delete();
+        }
+
+        private void writeRun(int tile) {
+            ByteBuffer buffer = staging[tile];
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                return;
+            }
+            if (runCount == runOffsets.length) {
+                runOffsets = Arrays.copyOf(runOffsets, runCount * 2);
+                runLengths = Arrays.copyOf(runLengths, runCount * 2);
+                nextRuns = Arrays.copyOf(nextRuns, runCount * 2);
+            }
+            runOffsets[runCount] = fileLength;
+            runLengths[runCount] = buffer.remaining();
+            nextRuns[runCount] = -1;
+            try {
+                while (buffer.hasRemaining()) {
+                    fileLength += channel.write(buffer, fileLength);
+                }
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to write spill file " + file, ioe);
+            }
+            if (lastRun[tile] < 0) {
+                firstRun[tile] = runCount;
+            }
+            else {
+                nextRuns[lastRun[tile]] = runCount;
+            }
+            lastRun[tile] = runCount;
+            runCount++;
+            buffer.clear();
+        }
+    }
+
+    /**
+     * @return sorted distinct time offsets in the batches
+     * @throws IllegalArgumentException if two offsets are more than
+     * Integer.MAX_VALUE apart
+     */
+    static int[] scanTimeOffsets(Iterator<ObservationBatch> batches) {
+        // offsets relative to the first one seen, split by sign so a BitSet can hold them
+        BitSet after = new BitSet();
+        BitSet before = new BitSet();
+        boolean empty = true;
+        int origin = 0;
+        while (batches.hasNext()) {
+            ObservationBatch batch = batches.next();
+            for (int row = 0; row < batch.size; row++) {
+                if (empty) {
+                    origin = batch.time_offset[row];
+                    empty = false;
+                }
+                long delta = (long) batch.time_offset[row] - origin;
+                if (delta > Integer.MAX_VALUE || -delta > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Time offsets " + origin + " and "
+                            + batch.time_offset[row] + " are too far apart to build a time axis from,"
+                            + " pass the time axis to convert instead");
+                }
+                if (delta >= 0) {
+                    after.set((int) delta);
+                }
+                else {
+                    before.set((int) (-delta));
+                }
+            }
+        }
+        int[] timeOffsets = new int[after.cardinality() + before.cardinality()];
+        int t = 0;
+        for (int i = before.length() - 1; i > 0; i--) {
+            if (before.get(i)) {
+                timeOffsets[t++] = origin - i;
+            }
+        }
+        for (int i = after.nextSetBit(0); i >= 0; i = after.nextSetBit(i + 1)) {
+            timeOffsets[t++] = origin + i;
+        }
+        return timeOffsets;
+    }
+
+    private static void fill(ByteBuffer tile, Variable var, int cells) {
+        tile.clear();
+        Object fillValue = var.getFillValue();
+        for (int i = 0; i < cells; i++) {
+            switch (var.xtype) {
+                case NC_BYTE:
+                    tile.put(((Number) fillValue).byteValue());
+                    break;
+                case NC_SHORT:
+                    tile.putShort(((Number) fillValue).shortValue());
+                    break;
+                case NC_INT:
+                    tile.putInt(((Number) fillValue).intValue());
+                    break;
+                case NC_LONG:
+                    if (XType.NC_LONG.getSizeBytes() == 8) {
+                        tile.putLong(((Number) fillValue).longValue());
+                    }
+                    else {
+                        tile.putInt(((Number) fillValue).intValue());
+                    }
+                    break;
+                case NC_FLOAT:
+                    tile.putFloat(((Number) fillValue).floatValue());
+                    break;
+                case NC_DOUBLE:
+                    tile.putDouble(((Number) fillValue).doubleValue());
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Should implement the other types");
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Rewrites a file from StationTimeSeriesNetCDFFile or
+ * StationTimeSeriesMultiDimensional with new StorageOptions, for archives
+ * written with one record per chunk or without compression.
+ *
+ * Data is streamed in blocks that are whole target chunks and fit in the
+ * memory budget: runs of records for the ragged layout, station x time tiles
+ * for the multidimensional layout. A tile is never smaller than one target
+ * chunk, so a budget smaller than a chunk is exceeded. The layout is kept,
+ * global and variable attributes the writer doesn't set itself are copied
+ * from the source, as are the source's time units and its
+ * station_input_index variable. The ragged record's statistics compounds and
+ * &lt;variable&gt;_actual_range attributes are copied as they are, the
+ * per station statistics variables are not copied.
+ *
+ * Both files are read through once, source before and target after the
+ * rewrite, to report the size and read speed difference.
+ */
+public class Rechunker {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024L * 1024L;
+
+    private static final int MAX_NAME = 256;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final RecordType recordType;
+    private final Variable[] dataVariables;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private boolean keepTimeUnit = true;
+
+    /**
+     * @param rt RecordType describing the statistic variables of the source
+     */
+    public Rechunker(RecordType rt) {
+        this.recordType = rt;
+        List<Variable> vars = rt.getDataVars();
+        this.dataVariables = vars.toArray(new Variable[vars.size()]);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget bytes of block buffers to use
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public boolean isKeepTimeUnit() {
+        return keepTimeUnit;
+    }
+
+    /**
+     * @param keepTimeUnit false to label the target's times with the
+     * RecordType's time unit instead of the source's, the values aren't
+     * converted
+     */
+    public void setKeepTimeUnit(boolean keepTimeUnit) {
+        this.keepTimeUnit = keepTimeUnit;
+    }
+
+    /**
+     * Outcome of a rewrite, read times are for one pass over the observations
+     */
+    public static class Report {
+
+        public final boolean ragged;
+        public final long values;
+        public final long sourceBytes;
+        public final long targetBytes;
+        public final long sourceReadNanos;
+        public final long targetReadNanos;
+
+        Report(boolean ragged, long values, long sourceBytes, long targetBytes,
+                long sourceReadNanos, long targetReadNanos) {
+            this.ragged = ragged;
+            this.values = values;
+            this.sourceBytes = sourceBytes;
+            this.targetBytes = targetBytes;
+            this.sourceReadNanos = sourceReadNanos;
+            this.targetReadNanos = targetReadNanos;
+        }
+
+        /**
+         * @return target size over source size
+         */
+        public double getSizeRatio() {
+            return (sourceBytes == 0) ? 0 : (double) targetBytes / sourceBytes;
+        }
+
+        /**
+         * @return source read time over target read time
+         */
+        public double getReadSpeedup() {
+            return (targetReadNanos == 0) ? 0 : (double) sourceReadNanos / targetReadNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d %s, %d -> %d bytes (%.2fx), read %.1f -> %.1f ms (%.2fx faster)",
+                    values, ragged ? "records" : "cells", sourceBytes, targetBytes, getSizeRatio(),
+                    sourceReadNanos / 1e6, targetReadNanos / 1e6, getReadSpeedup());
+        }
+    }
+
+    /**
+     * @param source file written by this library
+     * @param target new file, overwritten if it exists
+     * @param storage chunking and compression of the target
+     */
+    public Report rechunk(File source, File target, StorageOptions storage) {
+        long sourceReadNanos = timeRead(source);
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(source, dataVariables);
+        boolean ragged;
+        long values;
+        try {
+            ragged = reader.isRagged();
+            values = ragged ? rechunkRagged(reader, target, storage) : rechunkMultiDimensional(reader, target, storage);
+        } finally {
+            reader.close();
+        }
+        long targetReadNanos = timeRead(target);
+        return new Report(ragged, values, source.length(), target.length(), sourceReadNanos, targetReadNanos);
+    }
+
+    private long rechunkRagged(StationTimeSeriesReader reader, File target, StorageOptions storage) {
+        // the batch columns and the writer's record buffer each hold a block
+        long blockBudget = Math.max(1, memoryBudget / (2L * recordType.getCompoundSize()));
+        int chunk = Math.max(1, storage.chunkRecords);
+        reader.setBlockSize((int) Math.min(Integer.MAX_VALUE / 2,
+                Math.max(chunk, blockBudget / chunk * chunk)));
+
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(
+                target, recordType, null, storage, reader.readStations());
+        long written = 0;
+        try {
+            copyAttributes(reader.ncId, writer.ncId, false);
+            Iterator<ObservationBatch> batches = reader.batches();
+            while (batches.hasNext()) {
+                written += writer.putBatch(batches.next());
+            }
+        } finally {
+            writer.close();
+        }
+        return written;
+    }
+
+    private long rechunkMultiDimensional(StationTimeSeriesReader reader, File target, StorageOptions storage) {
+        Station[] stations = reader.readStations();
+        int[] timeOffsets = reader.getTimeOffsets();
+        int stationCount = stations.length;
+        int timeCount = timeOffsets.length;
+
+        String timeUnit = keepTimeUnit ? readTimeUnit(reader.ncId) : recordType.getTimeUnit();
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                target, null, stations, timeOffsets, timeUnit, dataVariables, storage);
+        long cells = 0;
+        try {
+            copyAttributes(reader.ncId, writer.ncId, true);
+            if (stationCount == 0 || timeCount == 0) {
+                return cells;
+            }
+
+            int chunkStations = storage.getChunkStations(stationCount);
+            int chunkTimes = storage.getChunkTimes(timeCount);
+            long cellBytes = 0;
+            for (Variable var : dataVariables) {
+                cellBytes += var.xtype.getSizeBytes();
+            }
+            // whole target chunks per tile, whole rows of the time axis if they fit
+            long budgetCells = Math.max(1, Math.min(memoryBudget / cellBytes, Integer.MAX_VALUE / 8));
+            int stationTile;
+            int timeTile;
+            if (budgetCells >= (long) chunkStations * timeCount) {
+                timeTile = timeCount;
+                stationTile = (int) Math.min(stationCount, budgetCells / timeCount / chunkStations * chunkStations);
+            }
+            else {
+                stationTile = chunkStations;
+                timeTile = (int) Math.min(timeCount,
+                        Math.max(chunkTimes, budgetCells / chunkStations / chunkTimes * chunkTimes));
+            }
+
+            int[] sourceVarIds = new int[dataVariables.length];
+            ByteBuffer[] tiles = new ByteBuffer[dataVariables.length];
+            IntByReference iRef = new IntByReference();
+            for (int v = 0; v < dataVariables.length; v++) {
+                status(nc_inq_varid(reader.ncId, dataVariables[v].name, iRef));
+                sourceVarIds[v] = iRef.getValue();
+                tiles[v] = ByteBuffer.allocateDirect(stationTile * timeTile * dataVariables[v].xtype.getSizeBytes());
+                tiles[v].order(ByteOrder.nativeOrder());
+            }
+
+            for (int s0 = 0; s0 < stationCount; s0 += stationTile) {
+                int sc = Math.min(stationTile, stationCount - s0);
+                for (int t0 = 0; t0 < timeCount; t0 += timeTile) {
+                    int tc = Math.min(timeTile, timeCount - t0);
+                    for (int v = 0; v < dataVariables.length; v++) {
+                        tiles[v].clear();
+                        tiles[v].limit(sc * tc * dataVariables[v].xtype.getSizeBytes());
+                        status(nc_get_vara(reader.ncId, sourceVarIds[v],
+                                new NativeLong[] { new NativeLong(s0), new NativeLong(t0) },
+                                new NativeLong[] { new NativeLong(sc), new NativeLong(tc) },
+                                tiles[v]));
+                        writer.putBlock(v, s0, sc, t0, tc, tiles[v]);
+                    }
+                    cells += (long) sc * tc;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return cells;
+    }
+
+    /**
+     * Copy the attributes of the source the new file doesn't have yet, the
+     * writer's own (Conventions, units, record compound attributes...) win
+     * except for the ragged record's units when the time unit is kept.
+     * Compound typed attributes bring their type along. The
+     * station_input_index variable is copied too, the stations are written
+     * in the source's order.
+     */
+    private void copyAttributes(int sourceId, int targetId, boolean multiDimensional) {
+        List<String> varNames = new ArrayList<String>();
+        varNames.add("station_id");
+        varNames.add("lat");
+        varNames.add("lon");
+        if (multiDimensional) {
+            varNames.add(StationTimeSeriesMultiDimensional.TIME);
+            for (Variable var : dataVariables) {
+                varNames.add(var.name);
+            }
+        }
+
+        status(nc_redef(targetId));
+        copyAttributes(sourceId, NC_GLOBAL, targetId, NC_GLOBAL);
+        IntByReference iRef = new IntByReference();
+        for (String varName : varNames) {
+            if (nc_inq_varid(sourceId, varName, iRef) != NC_NOERR) {
+                continue;
+            }
+            int sourceVarId = iRef.getValue();
+            status(nc_inq_varid(targetId, varName, iRef));
+            copyAttributes(sourceId, sourceVarId, targetId, iRef.getValue());
+        }
+        if (!multiDimensional) {
+            status(nc_inq_varid(sourceId, StationTimeSeriesNetCDFFile.OBSERVATION_STRUCT_NAME, iRef));
+            int sourceVarId = iRef.getValue();
+            status(nc_inq_varid(targetId, StationTimeSeriesNetCDFFile.OBSERVATION_STRUCT_NAME, iRef));
+            int targetVarId = iRef.getValue();
+            if (keepTimeUnit) {
+                // the compound units of the record, with the source's time units
+                status(nc_copy_att(sourceId, sourceVarId, "units", targetId, targetVarId));
+            }
+            // statistics compounds, <variable>_actual_range and user attributes
+            copyAttributes(sourceId, sourceVarId, targetId, targetVarId);
+        }
+        status(nc_inq_dimid(sourceId, StationTimeSeriesNetCDFFile.STATION_DIM_NAME, iRef));
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_inq_dimlen(sourceId, iRef.getValue(), lRef));
+        StationOrder order = StationOrder.readVariable(sourceId, lRef.getValue().intValue());
+        int ncVarId_input = -1;
+        if (order != null) {
+            status(nc_inq_dimid(targetId, StationTimeSeriesNetCDFFile.STATION_DIM_NAME, iRef));
+            ncVarId_input = order.defineVariable(targetId, iRef.getValue());
+        }
+        status(nc_enddef(targetId));
+        if (order != null) {
+            order.writeVariable(targetId, ncVarId_input);
+        }
+    }
+
+    private static String readTimeUnit(int ncId) {
+        IntByReference iRef = new IntByReference();
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_inq_varid(ncId, StationTimeSeriesMultiDimensional.TIME, iRef));
+        status(nc_inq_attlen(ncId, iRef.getValue(), "units", lRef));
+        byte[] units = new byte[lRef.getValue().intValue()];
+        status(nc_get_att_text(ncId, iRef.getValue(), "units", units));
+        return new String(units, ASCII).trim();
+    }
+
+    private static void copyAttributes(int sourceId, int sourceVarId, int targetId, int targetVarId) {
+        IntByReference iRef = new IntByReference();
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_inq_varnatts(sourceId, sourceVarId, iRef));
+        int count = iRef.getValue();
+        byte[] nameBytes = new byte[MAX_NAME + 1];
+        for (int i = 0; i < count; i++) {
+            status(nc_inq_attname(sourceId, sourceVarId, i, nameBytes));
+            String attName = toString(nameBytes);
+            if (nc_inq_attlen(targetId, targetVarId, attName, lRef) == NC_ENOTATT) {
+                status(nc_inq_atttype(sourceId, sourceVarId, attName, iRef));
+                if (iRef.getValue() > NC_STRING) {
+                    // nc_copy_att needs an equal type in the target
+                    copyCompoundType(sourceId, iRef.getValue(), targetId);
+                }
+                status(nc_copy_att(sourceId, sourceVarId, attName, targetId, targetVarId));
+            }
+        }
+    }
+
+    /**
+     * Define a compound type of the source in the target, fields must be of
+     * atomic types like those of the statistics compounds
+     */
+    private static void copyCompoundType(int sourceId, int xtype, int targetId) {
+        IntByReference iRef = new IntByReference();
+        NativeLongByReference lRef = new NativeLongByReference();
+        byte[] nameBytes = new byte[MAX_NAME + 1];
+        status(nc_inq_compound_name(sourceId, xtype, nameBytes));
+        String typeName = toString(nameBytes);
+        if (nc_inq_typeid(targetId, typeName, iRef) == NC_NOERR) {
+            return;
+        }
+        status(nc_inq_compound_size(sourceId, xtype, lRef));
+        status(nc_def_compound(targetId, lRef.getValue(), typeName, iRef));
+        int targetType = iRef.getValue();
+        status(nc_inq_compound_nfields(sourceId, xtype, lRef));
+        int fields = lRef.getValue().intValue();
+        for (int f = 0; f < fields; f++) {
+            status(nc_inq_compound_fieldname(sourceId, xtype, f, nameBytes));
+            String fieldName = toString(nameBytes);
+            status(nc_inq_compound_fieldoffset(sourceId, xtype, f, lRef));
+            status(nc_inq_compound_fieldtype(sourceId, xtype, f, iRef));
+            status(nc_insert_compound(targetId, targetType, fieldName, lRef.getValue(), iRef.getValue()));
+        }
+    }
+
+    private static String toString(byte[] cString) {
+        int end = 0;
+        while (end < cString.length && cString[end] != 0) {
+            end++;
+        }
+        return new String(cString, 0, end, ASCII);
+    }
+
+    /**
+     * @return nanoseconds to read every observation of the file
+     */
+    private long timeRead(File file) {
+        long start = System.nanoTime();
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(file, dataVariables);
+        try {
+            Iterator<ObservationBatch> batches = reader.batches();
+            while (batches.hasNext()) {
+                batches.next();
+            }
+        } finally {
+            reader.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * usage: Rechunker [-r records] [-s stations] [-t times] [-z level]
+     * [-shuffle] [-m budgetMB] [-u timeUnit] source.nc target.nc name:type ...
+     * The source's time units are kept unless -u relabels them.
+     */
+    public static void main(String[] args) {
+        int records = 0;
+        int stations = 0;
+        int times = 0;
+        int level = 0;
+        boolean shuffle = false;
+        long budget = DEFAULT_MEMORY_BUDGET;
+        String timeUnit = null;
+        int a = 0;
+        for (; a < args.length && args[a].startsWith("-"); a++) {
+            String option = args[a];
+            if (option.equals("-r")) {
+                records = Integer.parseInt(args[++a]);
+            }
+            else if (option.equals("-s")) {
+                stations = Integer.parseInt(args[++a]);
+            }
+            else if (option.equals("-t")) {
+                times = Integer.parseInt(args[++a]);
+            }
+            else if (option.equals("-z")) {
+                level = Integer.parseInt(args[++a]);
+            }
+            else if (option.equals("-shuffle")) {
+                shuffle = true;
+            }
+            else if (option.equals("-m")) {
+                budget = Long.parseLong(args[++a]) * 1024L * 1024L;
+            }
+            else if (option.equals("-u")) {
+                timeUnit = args[++a];
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (args.length - a < 3) {
+            System.err.println("usage: Rechunker [-r records] [-s stations] [-t times] [-z level] [-shuffle]"
+                    + " [-m budgetMB] [-u timeUnit] source.nc target.nc name:type ...");
+            System.exit(1);
+        }
+        File source = new File(args[a++]);
+        File target = new File(args[a++]);
+        // without -u the record's unit is replaced by the source's
+        RecordType recordType = new RecordType((timeUnit == null) ? "days since 1970-01-01" : timeUnit);
+        for (; a < args.length; a++) {
+            String[] nameType = args[a].split(":");
+            recordType.addType(new Variable(nameType[0], XType.valueOf("NC_" + nameType[1].toUpperCase()),
+                    new HashMap<String, Object>()));
+        }
+
+        Rechunker rechunker = new Rechunker(recordType);
+        rechunker.setMemoryBudget(budget);
+        rechunker.setKeepTimeUnit(timeUnit == null);
+        StorageOptions storage = new StorageOptions(records, stations, times, level, shuffle);
+        System.out.println(storage);
+        System.out.println(rechunker.rechunk(source, target, storage));
+    }
+}
@@ -2,8 +2,10 @@ package gov.usgs.cida.netcdf.dsg;
 
 import com.sun.jna.NativeLong;
 import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
 import static gov.usgs.cida.netcdf.jna.NC.*;
 import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -19,22 +21,96 @@ public class RecordType {
     private int record_var_id;
 
     private final String timeUnit;
+    private final XType indexType;
+    private final XType timeType;
+    private TimeEncoder timeEncoder;
     
     public RecordType(String timeUnit) {
+        this(timeUnit, XType.NC_INT, XType.NC_INT);
+    }
+    
+    /**
+     * Record with the narrowest station index and time fields that hold
+     * station indices below stationCount and time offsets from minTime to
+     * maxTime, see narrowestKeyType
+     */
+    public RecordType(String timeUnit, int stationCount, int minTime, int maxTime) {
+        this(timeUnit, narrowestKeyType(0, Math.max(0, stationCount - 1)), narrowestKeyType(minTime, maxTime));
+    }
+    
+    /**
+     * @param indexType NC_BYTE, NC_SHORT or NC_INT station index field
+     * @param timeType NC_BYTE, NC_SHORT or NC_INT time field
+     */
+    public RecordType(String timeUnit, XType indexType, XType timeType) {
+        checkKeyType(indexType);
+        checkKeyType(timeType);
         this.timeUnit = timeUnit;
+        this.indexType = indexType;
+        this.timeType = timeType;
         typeList = new LinkedList<Variable>();
         compound_size = 0;
 
         // These have to be the first two in the record type, everything else is statistics
-        addType(Variable.createStationIdVariable());
-        addType(Variable.createTimeVariable(timeUnit));
+        addType(Variable.createStationIdVariable(indexType));
+        addType(Variable.createTimeVariable(timeUnit, timeType));
         addType(Variable.createLatitude());
         addType(Variable.createLongitude());
     }
     
+    /**
+     * Key values never use the two lowest values of a type, the lowest but
+     * one is its default fill value.
+     * @return NC_BYTE, NC_SHORT or NC_INT, whichever is narrowest for keys
+     * from min to max
+     */
+    public static XType narrowestKeyType(int min, int max) {
+        if (min >= Byte.MIN_VALUE + 2 && max <= Byte.MAX_VALUE) {
+            return XType.NC_BYTE;
+        }
+        else if (min >= Short.MIN_VALUE + 2 && max <= Short.MAX_VALUE) {
+            return XType.NC_SHORT;
+        }
+        return XType.NC_INT;
+    }
+    
+    public XType getIndexType() {
+        return indexType;
+    }
+    
+    public XType getTimeType() {
+        return timeType;
+    }
+    
+    /**
+     * @return bytes of the station index and time fields, they start the record
+     */
+    public int getKeySize() {
+        return indexType.getSizeBytes() + timeType.getSizeBytes();
+    }
+    
+    /**
+     * @return true if the station index and time offset fit the key fields
+     */
+    public boolean isKeyInRange(int station_index, int time_offset) {
+        return fits(indexType, station_index) && fits(timeType, time_offset);
+    }
+    
     public String getTimeUnit() {
         return timeUnit;
     }
+    
+    /**
+     * Parsed lazily so unit strings that can't be encoded still work for
+     * callers that compute offsets themselves.
+     * @return encoder from timestamps to time_offset for this record's time unit
+     */
+    public TimeEncoder getTimeEncoder() {
+        if (timeEncoder == null) {
+            timeEncoder = new TimeEncoder(timeUnit);
+        }
+        return timeEncoder;
+    }
 
     public final boolean addType(Variable var) {
         if (var.vtype != Variable.VariableType.LAT_LON) {
@@ -46,6 +122,9 @@ public class RecordType {
                     Object value = var.attributes.get(key);
                     addToAttributeMap(var.name, key, value);
                 }
+                if (var.isQuantized()) {
+                    addToAttributeMap(var.name, Variable.QUANTIZATION_NSB, var.getMantissaBits());
+                }
             }
         }
         return typeList.add(var);
@@ -146,6 +225,16 @@ public class RecordType {
 
     public void writeObservationVariables(int ncId, int[] ncDimId,
                                              int ncTypeId_record_type, boolean doChunking) {
+        writeObservationVariables(ncId, ncDimId, ncTypeId_record_type,
+                doChunking ? StorageOptions.ragged(compound_size, 0, false) : null);
+    }
+
+    /**
+     * @param storage chunking and compression of the record variable, null
+     * for the library defaults
+     */
+    public void writeObservationVariables(int ncId, int[] ncDimId,
+                                             int ncTypeId_record_type, StorageOptions storage) {
         int ncStatus;
         IntByReference iRef = new IntByReference();
         int[] record_dimidsp = ncDimId;
@@ -221,9 +310,108 @@ public class RecordType {
         generateCompoundAttributes(ncId, record_var_id, structName + "_ragged_parent_index_type",
                                            "CF:ragged_parent_index", fields, values);
         
-        if (doChunking) {
-            ncStatus = nc_def_var_chunking(ncId, record_var_id, NC_CHUNKED, new NativeLong[] { new NativeLong(compound_size) });
-            status(ncStatus);
+        if (storage != null) {
+            storage.applyRagged(ncId, record_var_id);
+        }
+    }
+    
+    /**
+     * Look up the record variable of an existing file written with this
+     * RecordType, instead of defining it with writeObservationVariables
+     */
+    public void readObservationVariables(int ncId) {
+        IntByReference iRef = new IntByReference();
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_inq_varid(ncId, StationTimeSeriesNetCDFFile.OBSERVATION_STRUCT_NAME, iRef));
+        int varId = iRef.getValue();
+        status(nc_inq_vartype(ncId, varId, iRef));
+        status(nc_inq_compound_size(ncId, iRef.getValue(), lRef));
+        if (lRef.getValue().intValue() != compound_size) {
+            throw new IllegalArgumentException("Record compound is " + lRef.getValue().intValue()
+                    + " bytes, this RecordType describes " + compound_size);
+        }
+        XType[] keyTypes = readKeyTypes(ncId, varId);
+        if (keyTypes[0] != indexType || keyTypes[1] != timeType) {
+            throw new IllegalArgumentException("Record keys are " + keyTypes[0] + " and " + keyTypes[1]
+                    + ", this RecordType describes " + indexType + " and " + timeType);
+        }
+        record_var_id = varId;
+    }
+    
+    /**
+     * @return types of the index and time fields of a ragged record variable
+     */
+    static XType[] readKeyTypes(int ncId, int recordVarId) {
+        IntByReference iRef = new IntByReference();
+        status(nc_inq_vartype(ncId, recordVarId, iRef));
+        int typeId = iRef.getValue();
+        XType[] keyTypes = new XType[2];
+        String[] fields = { "index", "time" };
+        for (int k = 0; k < fields.length; k++) {
+            status(nc_inq_compound_fieldindex(ncId, typeId, fields[k], iRef));
+            status(nc_inq_compound_fieldtype(ncId, typeId, iRef.getValue(), iRef));
+            int code = iRef.getValue();
+            if (code == XType.NC_BYTE.getCode()) {
+                keyTypes[k] = XType.NC_BYTE;
+            }
+            else if (code == XType.NC_SHORT.getCode()) {
+                keyTypes[k] = XType.NC_SHORT;
+            }
+            else if (code == XType.NC_INT.getCode()) {
+                keyTypes[k] = XType.NC_INT;
+            }
+            else {
+                throw new UnsupportedOperationException("Should implement the other types");
+            }
+        }
+        return keyTypes;
+    }
+    
+    /**
+     * Write a key value at an absolute position, native order buffer
+     */
+    static void putKey(ByteBuffer buffer, int position, XType type, int value) {
+        switch (type) {
+            case NC_BYTE:
+                buffer.put(position, (byte) value);
+                break;
+            case NC_SHORT:
+                buffer.putShort(position, (short) value);
+                break;
+            default:
+                buffer.putInt(position, value);
+                break;
+        }
+    }
+    
+    /**
+     * Read a key value at an absolute position, native order buffer
+     */
+    static int getKey(ByteBuffer buffer, int position, XType type) {
+        switch (type) {
+            case NC_BYTE:
+                return buffer.get(position);
+            case NC_SHORT:
+                return buffer.getShort(position);
+            default:
+                return buffer.getInt(position);
+        }
+    }
+    
+    private static boolean fits(XType type, int value) {
+        switch (type) {
+            case NC_BYTE:
+                return value >= Byte.MIN_VALUE + 2 && value <= Byte.MAX_VALUE;
+            case NC_SHORT:
+                return value >= Short.MIN_VALUE + 2 && value <= Short.MAX_VALUE;
+            default:
+                return true;
+        }
+    }
+    
+    private static void checkKeyType(XType type) {
+        if (type != XType.NC_BYTE && type != XType.NC_SHORT && type != XType.NC_INT) {
+            throw new IllegalArgumentException("Record keys are NC_BYTE, NC_SHORT or NC_INT, not " + type);
         }
     }
     
@@ -255,7 +443,14 @@ public class RecordType {
         return dataVariables;
     }
     
+    /**
+     * @return false if the values don't match the statistic variables or the
+     * keys don't fit the key fields
+     */
     public boolean isObservationValid(Observation observation) {
+        if (!isKeyInRange(observation.station_index, observation.time_offset)) {
+            return false;
+        }
         int statisticCount = 0;
         for (Variable type : typeList) {
             if (type.vtype == Variable.VariableType.STATISTIC) {
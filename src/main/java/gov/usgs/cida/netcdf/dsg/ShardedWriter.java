@@ -0,0 +1,431 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the stations into shards and writes each shard to its own file,
+ * plus an NcML manifest that aggregates the shards back into one dataset.
+ *
+ * RAGGED shards are StationTimeSeriesNetCDFFile files that all carry the
+ * full station table, so station_index is written unchanged and the
+ * manifest joins the shards on the observation dimension. MULTIDIMENSIONAL
+ * shards are StationTimeSeriesMultiDimensional files holding only their own
+ * stations with station_index remapped to the shard, and the manifest joins
+ * them on the station dimension; with RANGE partitioning the aggregated
+ * station order is the original one.
+ *
+ * With parallel writing the shards are written off the caller's thread in
+ * batches, through a NativeWriteScheduler so every native call still runs
+ * on one thread; netCDF-C and HDF5 aren't thread safe. Shards take turns a
+ * batch at a time. To write shards at the same time run one process per
+ * shard: give each process the same stream and its own localShards,
+ * observations for the other shards are dropped.
+ */
+public class ShardedWriter implements ObservationSink {
+
+    public enum Layout {
+        RAGGED,
+        MULTIDIMENSIONAL
+    }
+
+    public enum Partitioning {
+        /** contiguous station_index ranges */
+        RANGE,
+        /** station_id hash */
+        HASH
+    }
+
+    /**
+     * Creates the writer of one shard
+     */
+    public interface ShardFactory {
+        /**
+         * @param stations stations of the file, every station for RAGGED,
+         * the shard's stations (indexed from 0) for MULTIDIMENSIONAL
+         */
+        ObservationSink create(int shard, File file, Station[] stations);
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    private static final String NCML_NS = "http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2";
+
+    private final File directory;
+    private final String baseName;
+    private final Layout layout;
+    private final Station[] stations;
+    private final ShardFactory factory;
+    private final BitSet localShards;
+    private final int shardCount;
+
+    // station_index -> shard, and to the index within the shard
+    private final int[] shardOf;
+    private final int[] localIndex;
+    private final Station[][] shardStations;
+
+    private final ObservationSink[] writers;
+    private final NativeWriteScheduler scheduler;
+    private final boolean ownsScheduler;
+    // queue of each shard in the scheduler
+    private final Object[] shardKeys;
+    private final List<Observation>[] batches;
+    private final List<List<Future<?>>> pending;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean isClosed = false;
+
+    public ShardedWriter(File directory, String baseName, Layout layout, Station[] stations,
+            int shardCount, Partitioning partitioning, ShardFactory factory, boolean parallel) {
+        this(directory, baseName, layout, stations, shardCount, partitioning, factory, parallel, null);
+    }
+
+    /**
+     * @param directory where shards are written as &lt;baseName&gt;-&lt;shard&gt;.nc
+     * @param parallel write through a NativeWriteScheduler of its own
+     * @param localShards shards written by this instance, null for all of them
+     */
+    public ShardedWriter(File directory, String baseName, Layout layout, Station[] stations,
+            int shardCount, Partitioning partitioning, ShardFactory factory, boolean parallel,
+            BitSet localShards) {
+        this(directory, baseName, layout, stations, shardCount, partitioning, factory,
+                parallel ? new NativeWriteScheduler() : null, parallel, localShards);
+    }
+
+    /**
+     * Write through a scheduler shared with the process' other writers, it's
+     * left running on close
+     * @param localShards shards written by this instance, null for all of them
+     */
+    public ShardedWriter(File directory, String baseName, Layout layout, Station[] stations,
+            int shardCount, Partitioning partitioning, ShardFactory factory,
+            NativeWriteScheduler scheduler, BitSet localShards) {
+        this(directory, baseName, layout, stations, shardCount, partitioning, factory,
+                scheduler, false, localShards);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ShardedWriter(File directory, String baseName, Layout layout, Station[] stations,
+            int shardCount, Partitioning partitioning, ShardFactory factory,
+            NativeWriteScheduler scheduler, boolean ownsScheduler, BitSet localShards) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1");
+        }
+        this.directory = directory;
+        this.baseName = baseName;
+        this.layout = layout;
+        this.stations = stations;
+        this.shardCount = shardCount;
+        this.factory = factory;
+        if (localShards == null) {
+            localShards = new BitSet(shardCount);
+            localShards.set(0, shardCount);
+        }
+        this.localShards = localShards;
+
+        shardOf = new int[stations.length];
+        localIndex = new int[stations.length];
+        int[] shardSize = new int[shardCount];
+        for (int s = 0; s < stations.length; s++) {
+            int shard;
+            if (partitioning == Partitioning.RANGE) {
+                shard = (int) ((long) s * shardCount / stations.length);
+            }
+            else {
+                int hash = stations[s].station_id.hashCode();
+                shard = ((hash % shardCount) + shardCount) % shardCount;
+            }
+            shardOf[s] = shard;
+            localIndex[s] = shardSize[shard]++;
+        }
+        shardStations = new Station[shardCount][];
+        for (int k = 0; k < shardCount; k++) {
+            shardStations[k] = new Station[shardSize[k]];
+        }
+        for (int s = 0; s < stations.length; s++) {
+            Station station = stations[s];
+            shardStations[shardOf[s]][localIndex[s]] =
+                    new Station(station.latitude, station.longitude, station.station_id, localIndex[s]);
+        }
+
+        writers = new ObservationSink[shardCount];
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+        shardKeys = new Object[shardCount];
+        batches = new List[shardCount];
+        pending = new ArrayList<List<Future<?>>>(shardCount);
+        for (int k = 0; k < shardCount; k++) {
+            pending.add(new ArrayList<Future<?>>());
+            if (scheduler != null && this.localShards.get(k)) {
+                shardKeys[k] = new Object();
+                batches[k] = new ArrayList<Observation>(batchSize);
+            }
+        }
+    }
+
+    /**
+     * Observations handed to the scheduler at a time when writing in parallel
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int getShard(int stationIndex) {
+        return shardOf[stationIndex];
+    }
+
+    /**
+     * @return index of the station within its shard's file
+     */
+    public int getLocalIndex(int stationIndex) {
+        return localIndex[stationIndex];
+    }
+
+    public Station[] getShardStations(int shard) {
+        return shardStations[shard].clone();
+    }
+
+    public File getShardFile(int shard) {
+        return new File(directory, String.format("%s-%03d.nc", baseName, shard));
+    }
+
+    /**
+     * @return false if the station isn't in a local shard
+     */
+    @Override
+    public boolean putObservation(Observation observation) {
+        int station = observation.station_index;
+        if (isClosed || station < 0 || station >= stations.length) {
+            return false;
+        }
+        int shard = shardOf[station];
+        if (!localShards.get(shard)) {
+            return false;
+        }
+        if (layout == Layout.MULTIDIMENSIONAL) {
+            observation = new Observation(observation.time_offset, localIndex[station], observation.values);
+        }
+        if (shardKeys[shard] == null) {
+            return writer(shard).putObservation(observation);
+        }
+        batches[shard].add(observation);
+        if (batches[shard].size() >= batchSize) {
+            flush(shard);
+        }
+        return true;
+    }
+
+    /**
+     * Write everything put so far and sync every open shard
+     */
+    @Override
+    public void sync() {
+        for (int k = localShards.nextSetBit(0); k >= 0; k = localShards.nextSetBit(k + 1)) {
+            final int shard = k;
+            run(shard, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (writers[shard] != null) {
+                        writers[shard].sync();
+                    }
+                    return null;
+                }
+            });
+        }
+        awaitPending();
+    }
+
+    /**
+     * Close every local shard, creating the files of shards that had no
+     * observations so the manifest stays complete
+     */
+    @Override
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            for (int k = localShards.nextSetBit(0); k >= 0; k = localShards.nextSetBit(k + 1)) {
+                final int shard = k;
+                Callable<Void> closeTask = new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        writer(shard).close();
+                        return null;
+                    }
+                };
+                if (shardKeys[shard] == null) {
+                    run(shard, closeTask);
+                }
+                else {
+                    flush(shard);
+                    // also drops the shard's queue, the scheduler may outlive us
+                    pending.get(shard).add(scheduler.close(shardKeys[shard], closeTask));
+                }
+            }
+            awaitPending();
+        } finally {
+            if (ownsScheduler) {
+                scheduler.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Wait for the writer's own native thread to finish after close
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return !ownsScheduler || scheduler.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Write an NcML manifest aggregating every shard, locations are relative
+     * to the manifest
+     */
+    public void writeManifest(File ncml) throws IOException {
+        String aggregationDim = (layout == Layout.RAGGED)
+                ? StationTimeSeriesNetCDFFile.OBSERVATION_DIM_NAME
+                : StationTimeSeriesNetCDFFile.STATION_DIM_NAME;
+        File base = ncml.getAbsoluteFile().getParentFile();
+        Writer out = new OutputStreamWriter(new FileOutputStream(ncml), Charset.forName("UTF-8"));
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<netcdf xmlns=\"" + NCML_NS + "\">\n");
+            if (layout == Layout.RAGGED) {
+                // record ranges are per shard and meaningless once joined
+                writeRemove(out, StationRecordIndex.FIRST_RECORD_NAME);
+                writeRemove(out, StationRecordIndex.LAST_RECORD_NAME);
+                writeRemove(out, StationRecordIndex.RECORD_COUNT_NAME);
+            }
+            out.write("  <aggregation dimName=\"" + aggregationDim + "\" type=\"joinExisting\">\n");
+            for (int k = 0; k < shardCount; k++) {
+                out.write("    <netcdf location=\"" + escape(relativePath(base, getShardFile(k))) + "\"/>\n");
+            }
+            out.write("  </aggregation>\n");
+            out.write("</netcdf>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private ObservationSink writer(int shard) {
+        if (writers[shard] == null) {
+            Station[] fileStations = (layout == Layout.RAGGED) ? stations : shardStations[shard];
+            writers[shard] = factory.create(shard, getShardFile(shard), fileStations);
+        }
+        return writers[shard];
+    }
+
+    private void flush(int shard) {
+        List<Observation> batch = batches[shard];
+        if (batch.isEmpty()) {
+            return;
+        }
+        batches[shard] = new ArrayList<Observation>(batchSize);
+        List<Future<?>> shardPending = pending.get(shard);
+        shardPending.add(scheduler.submit(shardKeys[shard], batchTask(shard, batch)));
+        // surface failures of earlier batches without waiting on the rest
+        while (shardPending.size() > 1 && shardPending.get(0).isDone()) {
+            await(shardPending.remove(0));
+        }
+    }
+
+    /**
+     * Run a task in the shard's queue after its buffered observations,
+     * or right away when not writing in parallel
+     */
+    private void run(int shard, Callable<Void> task) {
+        if (shardKeys[shard] == null) {
+            try {
+                task.call();
+            } catch (RuntimeException re) {
+                throw re;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+        flush(shard);
+        pending.get(shard).add(scheduler.submit(shardKeys[shard], task));
+    }
+
+    private Callable<Void> batchTask(final int shard, final List<Observation> batch) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                ObservationSink sink = writer(shard);
+                for (Observation observation : batch) {
+                    sink.putObservation(observation);
+                }
+                return null;
+            }
+        };
+    }
+
+    private void awaitPending() {
+        RuntimeException failure = null;
+        for (List<Future<?>> shardPending : pending) {
+            while (!shardPending.isEmpty()) {
+                try {
+                    await(shardPending.remove(0));
+                } catch (RuntimeException re) {
+                    if (failure == null) {
+                        failure = re;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for shard writes", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static void writeRemove(Writer out, String variable) throws IOException {
+        out.write("  <remove name=\"" + variable + "\" type=\"variable\"/>\n");
+    }
+
+    private static String relativePath(File base, File file) {
+        String path = file.getAbsolutePath();
+        if (base != null) {
+            String prefix = base.getAbsolutePath() + File.separator;
+            if (path.startsWith(prefix)) {
+                path = path.substring(prefix.length());
+            }
+        }
+        return path.replace(File.separatorChar, '/');
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+    }
+}
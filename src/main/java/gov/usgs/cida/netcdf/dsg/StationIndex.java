@@ -0,0 +1,236 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the stations' latitude/longitude extent, about one
+ * station per cell, with the station indices of each cell stored
+ * contiguously. A bounding box query only visits the cells it overlaps, so
+ * its cost follows the size of the result rather than the station count.
+ *
+ * The index can be saved next to the NetCDF file it describes as
+ * "&lt;file&gt;.stidx". The sidecar records the length and modification time
+ * of the NetCDF file and is ignored once the file no longer matches them.
+ */
+public class StationIndex {
+
+    public static final String SIDECAR_SUFFIX = ".stidx";
+
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int VERSION = 2;
+
+    private final float[] latitude;
+    private final float[] longitude;
+    private final float minLat;
+    private final float minLon;
+    private final float cellHeight;
+    private final float cellWidth;
+    private final int rows;
+    private final int columns;
+    // stations of cell c are cellStations[cellStart[c] .. cellStart[c + 1])
+    private final int[] cellStart;
+    private final int[] cellStations;
+
+    private StationIndex(float[] latitude, float[] longitude, float minLat, float minLon,
+            float cellHeight, float cellWidth, int rows, int columns,
+            int[] cellStart, int[] cellStations) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.minLat = minLat;
+        this.minLon = minLon;
+        this.cellHeight = cellHeight;
+        this.cellWidth = cellWidth;
+        this.rows = rows;
+        this.columns = columns;
+        this.cellStart = cellStart;
+        this.cellStations = cellStations;
+    }
+
+    /**
+     * @param stations stations in file order, array position is the station index
+     */
+    public static StationIndex build(Station... stations) {
+        int count = stations.length;
+        float[] latitude = new float[count];
+        float[] longitude = new float[count];
+        float minLat = Float.POSITIVE_INFINITY;
+        float maxLat = Float.NEGATIVE_INFINITY;
+        float minLon = Float.POSITIVE_INFINITY;
+        float maxLon = Float.NEGATIVE_INFINITY;
+        for (int s = 0; s < count; s++) {
+            latitude[s] = stations[s].latitude;
+            longitude[s] = stations[s].longitude;
+            minLat = Math.min(minLat, latitude[s]);
+            maxLat = Math.max(maxLat, latitude[s]);
+            minLon = Math.min(minLon, longitude[s]);
+            maxLon = Math.max(maxLon, longitude[s]);
+        }
+        if (count == 0) {
+            minLat = maxLat = minLon = maxLon = 0f;
+        }
+
+        int side = Math.max(1, (int) Math.ceil(Math.sqrt(count)));
+        float cellHeight = Math.max((maxLat - minLat) / side, Float.MIN_NORMAL);
+        float cellWidth = Math.max((maxLon - minLon) / side, Float.MIN_NORMAL);
+
+        int[] cellOf = new int[count];
+        int[] cellStart = new int[side * side + 1];
+        for (int s = 0; s < count; s++) {
+            int row = clamp((int) ((latitude[s] - minLat) / cellHeight), side);
+            int column = clamp((int) ((longitude[s] - minLon) / cellWidth), side);
+            cellOf[s] = row * side + column;
+            cellStart[cellOf[s] + 1]++;
+        }
+        for (int c = 0; c < side * side; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] fillPosition = Arrays.copyOf(cellStart, side * side);
+        int[] cellStations = new int[count];
+        for (int s = 0; s < count; s++) {
+            cellStations[fillPosition[cellOf[s]]++] = s;
+        }
+        return new StationIndex(latitude, longitude, minLat, minLon, cellHeight, cellWidth,
+                side, side, cellStart, cellStations);
+    }
+
+    public int getStationCount() {
+        return latitude.length;
+    }
+
+    /**
+     * Bounds are inclusive. Boxes crossing the antimeridian should be split
+     * into two queries.
+     * @return ascending indices of the stations inside the box
+     */
+    public int[] query(float minLatitude, float minLongitude, float maxLatitude, float maxLongitude) {
+        if (latitude.length == 0 || minLatitude > maxLatitude || minLongitude > maxLongitude) {
+            return new int[0];
+        }
+        int firstRow = clamp((int) Math.floor((minLatitude - minLat) / cellHeight), rows);
+        int lastRow = clamp((int) Math.floor((maxLatitude - minLat) / cellHeight), rows);
+        int firstColumn = clamp((int) Math.floor((minLongitude - minLon) / cellWidth), columns);
+        int lastColumn = clamp((int) Math.floor((maxLongitude - minLon) / cellWidth), columns);
+
+        int[] found = new int[16];
+        int size = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int cell = row * columns + column;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    int s = cellStations[i];
+                    if (latitude[s] >= minLatitude && latitude[s] <= maxLatitude
+                            && longitude[s] >= minLongitude && longitude[s] <= maxLongitude) {
+                        if (size == found.length) {
+                            found = Arrays.copyOf(found, size * 2);
+                        }
+                        found[size++] = s;
+                    }
+                }
+            }
+        }
+        int[] result = Arrays.copyOf(found, size);
+        Arrays.sort(result);
+        return result;
+    }
+
+    public static File sidecarFile(File ncFile) {
+        return new File(ncFile.getPath() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Save the index next to ncFile, after ncFile has been closed
+     */
+    public void writeSidecar(File ncFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(sidecarFile(ncFile))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(ncFile.length());
+            out.writeLong(ncFile.lastModified());
+            out.writeInt(latitude.length);
+            out.writeFloat(minLat);
+            out.writeFloat(minLon);
+            out.writeFloat(cellHeight);
+            out.writeFloat(cellWidth);
+            out.writeInt(rows);
+            out.writeInt(columns);
+            for (int s = 0; s < latitude.length; s++) {
+                out.writeFloat(latitude[s]);
+                out.writeFloat(longitude[s]);
+            }
+            for (int c = 0; c < cellStart.length; c++) {
+                out.writeInt(cellStart[c]);
+            }
+            for (int i = 0; i < cellStations.length; i++) {
+                out.writeInt(cellStations[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the saved index for ncFile, or null if there isn't one or
+     * ncFile has changed since it was saved
+     */
+    public static StationIndex readSidecar(File ncFile) throws IOException {
+        File sidecar = sidecarFile(ncFile);
+        if (!sidecar.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(sidecar)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a station index: " + sidecar);
+            }
+            // older sidecars can't be checked against the file
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            if (length != ncFile.length() || lastModified != ncFile.lastModified()) {
+                return null;
+            }
+            int count = in.readInt();
+            float minLat = in.readFloat();
+            float minLon = in.readFloat();
+            float cellHeight = in.readFloat();
+            float cellWidth = in.readFloat();
+            int rows = in.readInt();
+            int columns = in.readInt();
+            float[] latitude = new float[count];
+            float[] longitude = new float[count];
+            for (int s = 0; s < count; s++) {
+                latitude[s] = in.readFloat();
+                longitude[s] = in.readFloat();
+            }
+            int[] cellStart = new int[rows * columns + 1];
+            for (int c = 0; c < cellStart.length; c++) {
+                cellStart[c] = in.readInt();
+            }
+            int[] cellStations = new int[count];
+            for (int i = 0; i < count; i++) {
+                cellStations[i] = in.readInt();
+            }
+            return new StationIndex(latitude, longitude, minLat, minLon, cellHeight, cellWidth,
+                    rows, columns, cellStart, cellStations);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int clamp(int value, int size) {
+        return (value < 0) ? 0 : ((value >= size) ? size - 1 : value);
+    }
+}
@@ -0,0 +1,251 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Order of the stations in a file along a space filling curve over their
+ * latitude and longitude, so neighboring stations get neighboring
+ * station_index values and share chunks of the [station, time] variables
+ * (or of a ragged file sorted by station). Bounding box reads then touch a
+ * few runs of stations instead of chunks across the whole file.
+ *
+ * Callers keep using the station_index of the Station[] they passed, the
+ * writer maps it to the file index and saves the mapping as the
+ * "station_input_index" station variable.
+ */
+public class StationOrder {
+
+    public enum Curve {
+        HILBERT,
+        Z_ORDER
+    }
+
+    public static final String INPUT_INDEX_NAME = "station_input_index";
+    public static final String CURVE_ATTRIBUTE = "space_filling_curve";
+
+    // cells per axis of the grid the curve is drawn over
+    private static final int BITS = 15;
+    private static final int CELLS = 1 << BITS;
+
+    private final Curve curve;
+    private final int[] fileIndices;
+    private final int[] inputIndices;
+    private final Station[] fileStations;
+
+    /**
+     * @param stations input stations, null for an order read from a file
+     */
+    private StationOrder(Curve curve, int[] inputIndices, Station[] stations) {
+        this.curve = curve;
+        this.inputIndices = inputIndices;
+        this.fileIndices = new int[inputIndices.length];
+        this.fileStations = (stations == null) ? null : new Station[inputIndices.length];
+        for (int f = 0; f < inputIndices.length; f++) {
+            fileIndices[inputIndices[f]] = f;
+            if (stations != null) {
+                Station station = stations[inputIndices[f]];
+                fileStations[f] = new Station(station.latitude, station.longitude, station.station_id, f);
+            }
+        }
+    }
+
+    /**
+     * Order stations by their position along the curve, drawn over the
+     * square enclosing the stations' bounding box. Stations in the same
+     * grid cell keep their input order.
+     */
+    public static StationOrder create(Curve curve, Station... stations) {
+        float minLat = Float.POSITIVE_INFINITY;
+        float maxLat = Float.NEGATIVE_INFINITY;
+        float minLon = Float.POSITIVE_INFINITY;
+        float maxLon = Float.NEGATIVE_INFINITY;
+        for (Station station : stations) {
+            minLat = Math.min(minLat, station.latitude);
+            maxLat = Math.max(maxLat, station.latitude);
+            minLon = Math.min(minLon, station.longitude);
+            maxLon = Math.max(maxLon, station.longitude);
+        }
+        // one scale for both axes so distances keep their proportions
+        double span = Math.max(maxLat - minLat, maxLon - minLon);
+        // curve key in the high bits, input index in the low bits
+        long[] keys = new long[stations.length];
+        for (int s = 0; s < stations.length; s++) {
+            int x = cell(stations[s].longitude, minLon, span);
+            int y = cell(stations[s].latitude, minLat, span);
+            long key = (curve == Curve.HILBERT) ? hilbertKey(x, y) : zOrderKey(x, y);
+            keys[s] = (key << 32) | s;
+        }
+        Arrays.sort(keys);
+        int[] inputIndices = new int[stations.length];
+        for (int f = 0; f < stations.length; f++) {
+            inputIndices[f] = (int) keys[f];
+        }
+        return new StationOrder(curve, inputIndices, stations);
+    }
+
+    /**
+     * @return distance of cell (x, y) along a Hilbert curve over the
+     * 2^15 by 2^15 grid
+     */
+    static long hilbertKey(int x, int y) {
+        long d = 0;
+        for (int s = CELLS / 2; s > 0; s /= 2) {
+            int rx = ((x & s) > 0) ? 1 : 0;
+            int ry = ((y & s) > 0) ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant so the curve stays continuous
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = CELLS - 1 - x;
+                    y = CELLS - 1 - y;
+                }
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * @return bits of x and y interleaved, x in the even bits
+     */
+    static long zOrderKey(int x, int y) {
+        long d = 0;
+        for (int b = 0; b < BITS; b++) {
+            d |= (long) ((x >>> b) & 1) << (2 * b);
+            d |= (long) ((y >>> b) & 1) << (2 * b + 1);
+        }
+        return d;
+    }
+
+    private static int cell(float value, float min, double span) {
+        if (!(span > 0)) {
+            return 0;
+        }
+        return (int) Math.min(CELLS - 1, (value - min) / span * CELLS);
+    }
+
+    public Curve getCurve() {
+        return curve;
+    }
+
+    public int size() {
+        return fileIndices.length;
+    }
+
+    /**
+     * @return file station_index of the station the caller knows as
+     * inputIndex, inputIndex itself if it's out of range
+     */
+    public int toFileIndex(int inputIndex) {
+        if (inputIndex < 0 || inputIndex >= fileIndices.length) {
+            return inputIndex;
+        }
+        return fileIndices[inputIndex];
+    }
+
+    /**
+     * @return station_index the caller knows the file's station by
+     */
+    public int toInputIndex(int fileIndex) {
+        return inputIndices[fileIndex];
+    }
+
+    /**
+     * @return the stations in file order, each with its file index, null
+     * for an order read from a file
+     */
+    public Station[] getFileStations() {
+        return (fileStations == null) ? null : fileStations.clone();
+    }
+
+    /**
+     * @return the observation with its station_index mapped to the file
+     */
+    Observation toFile(Observation observation) {
+        int fileIndex = toFileIndex(observation.station_index);
+        if (fileIndex == observation.station_index) {
+            return observation;
+        }
+        return new Observation(observation.time_offset, fileIndex, observation.values);
+    }
+
+    /**
+     * Map the station_index of every row of the batch to the file, leaving
+     * the batch as it is
+     * @param fileIndices array to reuse, replaced if it's shorter than the batch
+     * @return the file station_index of each row
+     */
+    int[] toFile(ObservationBatch batch, int[] fileIndices) {
+        if (fileIndices == null || fileIndices.length < batch.size) {
+            fileIndices = new int[batch.capacity];
+        }
+        for (int i = 0; i < batch.size; i++) {
+            fileIndices[i] = toFileIndex(batch.station_index[i]);
+        }
+        return fileIndices;
+    }
+
+    /**
+     * Define the station_input_index variable, must be called in define mode
+     */
+    int defineVariable(int ncId, int ncDimId_station) {
+        IntByReference iRef = new IntByReference();
+        status(nc_def_var(ncId, INPUT_INDEX_NAME, NC_INT, new int[] { ncDimId_station }, iRef));
+        int ncVarId = iRef.getValue();
+        status(nc_put_att_text(ncId, ncVarId, "long_name",
+                "station_index the station was written with, before reordering"));
+        status(nc_put_att_text(ncId, ncVarId, CURVE_ATTRIBUTE, curve.name()));
+        return ncVarId;
+    }
+
+    /**
+     * @return the order saved in the file, or null if the file doesn't have one
+     */
+    static StationOrder readVariable(int ncId, int stationCount) {
+        IntByReference iRef = new IntByReference();
+        if (nc_inq_varid(ncId, INPUT_INDEX_NAME, iRef) != NC_NOERR) {
+            return null;
+        }
+        int ncVarId = iRef.getValue();
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_inq_attlen(ncId, ncVarId, CURVE_ATTRIBUTE, lRef));
+        byte[] name = new byte[lRef.getValue().intValue()];
+        status(nc_get_att_text(ncId, ncVarId, CURVE_ATTRIBUTE, name));
+        Curve curve = Curve.valueOf(new String(name, Charset.forName("US-ASCII")).trim());
+
+        int[] inputIndices = new int[stationCount];
+        if (stationCount > 0) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(stationCount * 4);
+            buffer.order(ByteOrder.nativeOrder());
+            status(nc_get_vara(ncId, ncVarId,
+                    new NativeLong[] { new NativeLong(0) },
+                    new NativeLong[] { new NativeLong(stationCount) },
+                    buffer));
+            buffer.asIntBuffer().get(inputIndices);
+        }
+        return new StationOrder(curve, inputIndices, null);
+    }
+
+    void writeVariable(int ncId, int ncVarId) {
+        if (inputIndices.length == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(inputIndices.length * 4);
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.asIntBuffer().put(inputIndices);
+        status(nc_put_vara(ncId, ncVarId,
+                new NativeLong[] { new NativeLong(0) },
+                new NativeLong[] { new NativeLong(inputIndices.length) },
+                buffer));
+    }
+}
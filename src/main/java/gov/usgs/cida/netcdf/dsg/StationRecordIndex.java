@@ -0,0 +1,363 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.IntByReference;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * First record, last record and record count of every station in an
+ * indexed ragged file, tracked by StationTimeSeriesNetCDFFile as it writes
+ * and saved as station variables on close. Optionally the position of
+ * every record is kept as well and saved to a "&lt;file&gt;.stpos" sidecar.
+ *
+ * Readers use it to read only the records of the stations they want instead
+ * of scanning every record.index value.
+ */
+public class StationRecordIndex {
+
+    public static final String FIRST_RECORD_NAME = "station_first_record";
+    public static final String LAST_RECORD_NAME = "station_last_record";
+    public static final String RECORD_COUNT_NAME = "station_record_count";
+    public static final String SIDECAR_SUFFIX = ".stpos";
+
+    private static final int MAGIC = 0x53504f53; // "SPOS"
+    private static final int VERSION = 1;
+
+    private int[] firstRecord;
+    private int[] lastRecord;
+    private int[] recordCount;
+    private int[][] positions;
+
+    private int ncVarId_first = -1;
+    private int ncVarId_last = -1;
+    private int ncVarId_count = -1;
+
+    public StationRecordIndex(int stationCount, boolean trackPositions) {
+        firstRecord = new int[stationCount];
+        lastRecord = new int[stationCount];
+        recordCount = new int[stationCount];
+        Arrays.fill(firstRecord, -1);
+        Arrays.fill(lastRecord, -1);
+        if (trackPositions) {
+            positions = new int[stationCount][];
+        }
+    }
+
+    public int getStationCount() {
+        return recordCount.length;
+    }
+
+    /**
+     * @param station station_index of the record
+     * @param record position of the record in the observation dimension
+     */
+    public void add(int station, int record) {
+        if (station < 0 || station >= recordCount.length) {
+            return;
+        }
+        if (firstRecord[station] < 0 || record < firstRecord[station]) {
+            firstRecord[station] = record;
+        }
+        if (record > lastRecord[station]) {
+            lastRecord[station] = record;
+        }
+        if (positions != null) {
+            int[] stationPositions = positions[station];
+            int count = recordCount[station];
+            if (stationPositions == null) {
+                stationPositions = positions[station] = new int[8];
+            }
+            else if (count == stationPositions.length) {
+                stationPositions = positions[station] = Arrays.copyOf(stationPositions, count * 2);
+            }
+            stationPositions[count] = record;
+        }
+        recordCount[station]++;
+    }
+
+    /**
+     * Forget every record, keeping the station variables found or defined
+     */
+    public void clear() {
+        Arrays.fill(firstRecord, -1);
+        Arrays.fill(lastRecord, -1);
+        Arrays.fill(recordCount, 0);
+        if (positions != null) {
+            positions = new int[recordCount.length][];
+        }
+    }
+
+    /**
+     * Keep only the first stationCount stations, for writers that sized the
+     * index to a station capacity and registered fewer
+     */
+    void truncate(int stationCount) {
+        if (stationCount >= recordCount.length) {
+            return;
+        }
+        firstRecord = Arrays.copyOf(firstRecord, stationCount);
+        lastRecord = Arrays.copyOf(lastRecord, stationCount);
+        recordCount = Arrays.copyOf(recordCount, stationCount);
+        if (positions != null) {
+            positions = Arrays.copyOf(positions, stationCount);
+        }
+    }
+
+    /**
+     * @return first record of the station or -1 if it has none
+     */
+    public int getFirstRecord(int station) {
+        return firstRecord[station];
+    }
+
+    /**
+     * @return last record of the station or -1 if it has none
+     */
+    public int getLastRecord(int station) {
+        return lastRecord[station];
+    }
+
+    public int getRecordCount(int station) {
+        return recordCount[station];
+    }
+
+    public boolean hasRecordPositions() {
+        return positions != null;
+    }
+
+    /**
+     * @return positions of the station's records in the order they were written
+     */
+    public int[] getRecordPositions(int station) {
+        if (positions == null) {
+            throw new IllegalStateException("Record positions were not tracked");
+        }
+        int[] stationPositions = positions[station];
+        return (stationPositions == null) ? new int[0] : Arrays.copyOf(stationPositions, recordCount[station]);
+    }
+
+    /**
+     * Contiguous record ranges holding every record of the selected stations,
+     * sorted and merged. Built from record positions when they are known,
+     * otherwise from each station's first and last record.
+     * @return start, count pairs
+     */
+    public int[] getRecordRuns(BitSet stations) {
+        int[] starts;
+        int[] ends;
+        int size = 0;
+        if (positions != null) {
+            int total = 0;
+            for (int s = stations.nextSetBit(0); s >= 0 && s < recordCount.length; s = stations.nextSetBit(s + 1)) {
+                total += recordCount[s];
+            }
+            int[] all = new int[total];
+            for (int s = stations.nextSetBit(0); s >= 0 && s < recordCount.length; s = stations.nextSetBit(s + 1)) {
+                if (recordCount[s] > 0) {
+                    System.arraycopy(positions[s], 0, all, size, recordCount[s]);
+                    size += recordCount[s];
+                }
+            }
+            Arrays.sort(all);
+            starts = all;
+            ends = all;
+        }
+        else {
+            int[] firsts = new int[stations.cardinality()];
+            for (int s = stations.nextSetBit(0); s >= 0 && s < recordCount.length; s = stations.nextSetBit(s + 1)) {
+                if (recordCount[s] > 0) {
+                    firsts[size++] = s;
+                }
+            }
+            // sort stations by first record, carrying the last record along
+            long[] ranges = new long[size];
+            for (int i = 0; i < size; i++) {
+                ranges[i] = ((long) firstRecord[firsts[i]] << 32) | lastRecord[firsts[i]];
+            }
+            Arrays.sort(ranges);
+            starts = new int[size];
+            ends = new int[size];
+            for (int i = 0; i < size; i++) {
+                starts[i] = (int) (ranges[i] >>> 32);
+                ends[i] = (int) ranges[i];
+            }
+        }
+
+        int[] runs = new int[2 * size];
+        int runCount = 0;
+        int runStart = -1;
+        int runEnd = -1;
+        for (int i = 0; i < size; i++) {
+            if (runStart >= 0 && starts[i] <= runEnd + 1) {
+                runEnd = Math.max(runEnd, ends[i]);
+            }
+            else {
+                if (runStart >= 0) {
+                    runs[runCount++] = runStart;
+                    runs[runCount++] = runEnd - runStart + 1;
+                }
+                runStart = starts[i];
+                runEnd = ends[i];
+            }
+        }
+        if (runStart >= 0) {
+            runs[runCount++] = runStart;
+            runs[runCount++] = runEnd - runStart + 1;
+        }
+        return Arrays.copyOf(runs, runCount);
+    }
+
+    /**
+     * Define the station variables, must be called in define mode
+     */
+    public void defineVariables(int ncId, int ncDimId_station) {
+        ncVarId_first = defineVariable(ncId, ncDimId_station, FIRST_RECORD_NAME,
+                "index of the station's first record, -1 if it has none");
+        ncVarId_last = defineVariable(ncId, ncDimId_station, LAST_RECORD_NAME,
+                "index of the station's last record, -1 if it has none");
+        ncVarId_count = defineVariable(ncId, ncDimId_station, RECORD_COUNT_NAME,
+                "number of records for the station");
+    }
+
+    /**
+     * Write the station variables defined by defineVariables or found by
+     * readVariables, does nothing if there are neither
+     */
+    public void writeVariables(int ncId) {
+        if (ncVarId_first < 0) {
+            return;
+        }
+        writeVariable(ncId, ncVarId_first, firstRecord);
+        writeVariable(ncId, ncVarId_last, lastRecord);
+        writeVariable(ncId, ncVarId_count, recordCount);
+    }
+
+    /**
+     * @return the index saved in the file, or null if the file doesn't have one
+     */
+    public static StationRecordIndex readVariables(int ncId, int stationCount) {
+        IntByReference iRef = new IntByReference();
+        if (nc_inq_varid(ncId, FIRST_RECORD_NAME, iRef) != NC_NOERR) {
+            return null;
+        }
+        StationRecordIndex index = new StationRecordIndex(stationCount, false);
+        index.ncVarId_first = iRef.getValue();
+        readVariable(ncId, index.ncVarId_first, index.firstRecord);
+        status(nc_inq_varid(ncId, LAST_RECORD_NAME, iRef));
+        index.ncVarId_last = iRef.getValue();
+        readVariable(ncId, index.ncVarId_last, index.lastRecord);
+        status(nc_inq_varid(ncId, RECORD_COUNT_NAME, iRef));
+        index.ncVarId_count = iRef.getValue();
+        readVariable(ncId, index.ncVarId_count, index.recordCount);
+        return index;
+    }
+
+    public static File sidecarFile(File ncFile) {
+        return new File(ncFile.getPath() + SIDECAR_SUFFIX);
+    }
+
+    public void writeSidecar(File ncFile) throws IOException {
+        if (positions == null) {
+            throw new IllegalStateException("Record positions were not tracked");
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(sidecarFile(ncFile))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(recordCount.length);
+            for (int s = 0; s < recordCount.length; s++) {
+                out.writeInt(recordCount[s]);
+                for (int i = 0; i < recordCount[s]; i++) {
+                    out.writeInt(positions[s][i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load record positions from the sidecar of ncFile, if it has one
+     * @return true if positions were loaded
+     */
+    public boolean readSidecar(File ncFile) throws IOException {
+        File sidecar = sidecarFile(ncFile);
+        if (!sidecar.exists()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(sidecar)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a record position file: " + sidecar);
+            }
+            int stationCount = in.readInt();
+            if (stationCount != recordCount.length) {
+                throw new IOException(sidecar + " has " + stationCount + " stations, expected " + recordCount.length);
+            }
+            int[][] loaded = new int[stationCount][];
+            for (int s = 0; s < stationCount; s++) {
+                int count = in.readInt();
+                if (count != recordCount[s]) {
+                    throw new IOException(sidecar + " is out of date with its NetCDF file");
+                }
+                loaded[s] = new int[Math.max(count, 8)];
+                for (int i = 0; i < count; i++) {
+                    loaded[s][i] = in.readInt();
+                }
+            }
+            positions = loaded;
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int defineVariable(int ncId, int ncDimId_station, String name, String longName) {
+        IntByReference iRef = new IntByReference();
+        status(nc_def_var(ncId, name, NC_INT, new int[] { ncDimId_station }, iRef));
+        int ncVarId = iRef.getValue();
+        status(nc_put_att_text(ncId, ncVarId, "long_name", longName));
+        return ncVarId;
+    }
+
+    private static void writeVariable(int ncId, int ncVarId, int[] values) {
+        if (values.length == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(values.length * 4);
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.asIntBuffer().put(values);
+        status(nc_put_vara(ncId, ncVarId,
+                new NativeLong[] { new NativeLong(0) },
+                new NativeLong[] { new NativeLong(values.length) },
+                buffer));
+    }
+
+    private static void readVariable(int ncId, int ncVarId, int[] values) {
+        if (values.length == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(values.length * 4);
+        buffer.order(ByteOrder.nativeOrder());
+        status(nc_get_vara(ncId, ncVarId,
+                new NativeLong[] { new NativeLong(0) },
+                new NativeLong[] { new NativeLong(values.length) },
+                buffer));
+        buffer.asIntBuffer().get(values);
+    }
+}
@@ -0,0 +1,163 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stations registered as they first appear in the input, for writers
+ * created without the full Station[] up front. Each new station_id gets the
+ * next station_index, and the station_id, lat and lon of stations registered
+ * since the last flush are written together, one nc_put_vara per variable.
+ *
+ * The station dimension of such a file is unlimited and grows as stations
+ * are flushed. The station_id_len dimension can't grow once defined, so ids
+ * are limited to the length given when the file is created.
+ */
+public class StationRegistry {
+
+    public static final int DEFAULT_ID_LENGTH = 32;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final int capacity;
+    private final int maxIdLength;
+    private final Map<String, Integer> indices = new HashMap<String, Integer>();
+    private final List<Station> pending = new ArrayList<Station>();
+    private int flushed = 0;
+
+    /**
+     * @param capacity most stations the file will hold, sizes the writer's
+     * per station bookkeeping
+     * @param maxIdLength longest station_id that can be registered
+     */
+    public StationRegistry(int capacity, int maxIdLength) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Station capacity must not be negative, not " + capacity);
+        }
+        if (maxIdLength < 1) {
+            throw new IllegalArgumentException("Station id length must be positive, not " + maxIdLength);
+        }
+        this.capacity = capacity;
+        this.maxIdLength = maxIdLength;
+    }
+
+    /**
+     * Register a station the first time its station_id is seen
+     * @return station_index of the station, the one given when it was first
+     * registered if it's already known
+     */
+    public synchronized int add(Station station) {
+        Integer index = indices.get(station.station_id);
+        if (index != null) {
+            return index.intValue();
+        }
+        if (station.station_id.length() > maxIdLength) {
+            throw new IllegalArgumentException("Station id " + station.station_id
+                    + " is longer than " + maxIdLength + " characters");
+        }
+        if (indices.size() == capacity) {
+            throw new IllegalStateException("All " + capacity + " stations are registered");
+        }
+        int stationIndex = indices.size();
+        indices.put(station.station_id, Integer.valueOf(stationIndex));
+        pending.add(station);
+        return stationIndex;
+    }
+
+    /**
+     * @return station_index of the station, -1 if it isn't registered
+     */
+    public synchronized int indexOf(String stationId) {
+        Integer index = indices.get(stationId);
+        return (index == null) ? -1 : index.intValue();
+    }
+
+    /**
+     * @return number of stations registered
+     */
+    public synchronized int size() {
+        return indices.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxIdLength() {
+        return maxIdLength;
+    }
+
+    /**
+     * Chunk a station variable defined on the unlimited station dimension,
+     * which the library would otherwise chunk one station at a time
+     * @param idLength station_id_len for station_id, 0 for [station] variables
+     */
+    void defineChunking(int ncId, int ncVarId, int idLength) {
+        NativeLong stations = new NativeLong(Math.max(1, Math.min(capacity, 4096)));
+        NativeLong[] chunksizes = (idLength > 0) ?
+                new NativeLong[] { stations, new NativeLong(idLength) } :
+                new NativeLong[] { stations };
+        status(nc_def_var_chunking(ncId, ncVarId, NC_CHUNKED, chunksizes));
+    }
+
+    /**
+     * Write the stations registered since the last flush, in data mode
+     */
+    synchronized void flush(int ncId, int ncVarId_station_id, int ncVarId_lat, int ncVarId_lon) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        putStations(ncId, ncVarId_station_id, ncVarId_lat, ncVarId_lon,
+                flushed, pending.toArray(new Station[pending.size()]), maxIdLength);
+        flushed += pending.size();
+        pending.clear();
+    }
+
+    /**
+     * Write station_id, lat and lon of consecutive stations with one
+     * nc_put_vara each, ids NUL padded to idLength so they fully replace
+     * whatever was there. In data mode.
+     * @param start station_index of the first station
+     */
+    static void putStations(int ncId, int ncVarId_station_id, int ncVarId_lat, int ncVarId_lon,
+            int start, Station[] stations, int idLength) {
+        int count = stations.length;
+        if (count == 0) {
+            return;
+        }
+        ByteBuffer ids = ByteBuffer.allocateDirect(count * idLength);
+        ByteBuffer lats = ByteBuffer.allocateDirect(count * 4);
+        lats.order(ByteOrder.nativeOrder());
+        ByteBuffer lons = ByteBuffer.allocateDirect(count * 4);
+        lons.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < count; i++) {
+            byte[] id = stations[i].station_id.getBytes(ASCII);
+            ids.position(i * idLength);
+            ids.put(id, 0, Math.min(id.length, idLength));
+            for (int c = id.length; c < idLength; c++) {
+                ids.put((byte) 0);
+            }
+            lats.putFloat(stations[i].latitude);
+            lons.putFloat(stations[i].longitude);
+        }
+        ids.rewind();
+        lats.rewind();
+        lons.rewind();
+        NativeLong startp = new NativeLong(start);
+        NativeLong countp = new NativeLong(count);
+        status(nc_put_vara(ncId, ncVarId_station_id,
+                new NativeLong[] { startp, new NativeLong(0) },
+                new NativeLong[] { countp, new NativeLong(idLength) },
+                ids));
+        status(nc_put_vara(ncId, ncVarId_lat, new NativeLong[] { startp }, new NativeLong[] { countp }, lats));
+        status(nc_put_vara(ncId, ncVarId_lon, new NativeLong[] { startp }, new NativeLong[] { countp }, lons));
+    }
+}
@@ -0,0 +1,174 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies the stations inside a bounding box, and their observations inside a
+ * time range, from a file written by this library into a new file written
+ * with either writer.
+ *
+ * Stations are found through the file's StationIndex sidecar when there is
+ * one that matches the file, otherwise the index is built from the station
+ * table.
+ */
+public class StationSubsetExtractor {
+
+    private final File source;
+    private final RecordType recordType;
+    private final Variable[] dataVariables;
+    private StationIndex index;
+    private Station[] stations;
+
+    /**
+     * @param source file written by StationTimeSeriesNetCDFFile or StationTimeSeriesMultiDimensional
+     * @param rt RecordType describing the statistic variables of the source
+     */
+    public StationSubsetExtractor(File source, RecordType rt) {
+        this.source = source;
+        this.recordType = rt;
+        List<Variable> vars = rt.getDataVars();
+        this.dataVariables = vars.toArray(new Variable[vars.size()]);
+    }
+
+    /**
+     * @return ascending indices of the source stations inside the box
+     */
+    public int[] findStations(float minLatitude, float minLongitude,
+            float maxLatitude, float maxLongitude) throws IOException {
+        if (index == null) {
+            index = StationIndex.readSidecar(source);
+        }
+        if (index == null) {
+            index = StationIndex.build(getStations());
+        }
+        return index.query(minLatitude, minLongitude, maxLatitude, maxLongitude);
+    }
+
+    /**
+     * Write the subset as an indexed ragged file, with its own StationIndex sidecar
+     * @return number of observations written
+     */
+    public int extractRagged(File target, Map<String, String> globalAttrs,
+            float minLatitude, float minLongitude, float maxLatitude, float maxLongitude,
+            int minTime, int maxTime) throws IOException {
+        int[] selected = findStations(minLatitude, minLongitude, maxLatitude, maxLongitude);
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(source, dataVariables);
+        try {
+            // multidimensional sources give time indices, ragged records hold times
+            int[] sourceAxis = reader.getTimeOffsets();
+            StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(
+                    target, recordType, globalAttrs, true, subsetStations(selected));
+            writer.setWriteStationIndex(true);
+            int written = 0;
+            try {
+                Iterator<Observation> observations = reader.observations(toBitSet(selected), minTime, maxTime);
+                while (observations.hasNext()) {
+                    Observation observation = observations.next();
+                    int station = Arrays.binarySearch(selected, observation.station_index);
+                    int time = (sourceAxis == null) ? observation.time_offset : sourceAxis[observation.time_offset];
+                    if (writer.putObservation(new Observation(time, station, observation.values))) {
+                        written++;
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            return written;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write the subset as a [station, time] file. The time axis is the
+     * source's axis for multidimensional sources, or the distinct times of the
+     * selected observations for ragged sources (one extra pass).
+     * @return number of observations written
+     */
+    public int extractMultiDimensional(File target, Map<String, String> globalAttrs,
+            float minLatitude, float minLongitude, float maxLatitude, float maxLongitude,
+            int minTime, int maxTime) throws IOException {
+        int[] selected = findStations(minLatitude, minLongitude, maxLatitude, maxLongitude);
+        BitSet selectedSet = toBitSet(selected);
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(source, dataVariables);
+        try {
+            int[] sourceAxis = reader.getTimeOffsets();
+            int[] timeOffsets;
+            if (reader.isRagged()) {
+                timeOffsets = RaggedToMultiDimensionalConverter.scanTimeOffsets(
+                        reader.batches(selectedSet, minTime, maxTime));
+            }
+            else {
+                timeOffsets = timeAxisInRange(reader.getTimeOffsets(), minTime, maxTime);
+            }
+            StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                    target, globalAttrs, subsetStations(selected), timeOffsets,
+                    recordType.getTimeUnit(), dataVariables);
+            int written = 0;
+            try {
+                Iterator<Observation> observations = reader.observations(selectedSet, minTime, maxTime);
+                while (observations.hasNext()) {
+                    Observation observation = observations.next();
+                    int station = Arrays.binarySearch(selected, observation.station_index);
+                    int time = writer.getTimeIndex((sourceAxis == null) ?
+                            observation.time_offset : sourceAxis[observation.time_offset]);
+                    if (time >= 0 && writer.putObservation(new Observation(time, station, observation.values))) {
+                        written++;
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            return written;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Station[] getStations() {
+        if (stations == null) {
+            StationTimeSeriesReader reader = new StationTimeSeriesReader(source, dataVariables);
+            try {
+                stations = reader.readStations();
+            } finally {
+                reader.close();
+            }
+        }
+        return stations;
+    }
+
+    private Station[] subsetStations(int[] selected) {
+        Station[] all = getStations();
+        Station[] subset = new Station[selected.length];
+        for (int i = 0; i < selected.length; i++) {
+            Station station = all[selected[i]];
+            subset[i] = new Station(station.latitude, station.longitude, station.station_id, i);
+        }
+        return subset;
+    }
+
+    private static BitSet toBitSet(int[] indices) {
+        BitSet bits = new BitSet();
+        for (int i : indices) {
+            bits.set(i);
+        }
+        return bits;
+    }
+
+    private static int[] timeAxisInRange(int[] timeOffsets, int minTime, int maxTime) {
+        int[] inRange = new int[timeOffsets.length];
+        int count = 0;
+        for (int time : timeOffsets) {
+            if (time >= minTime && time <= maxTime) {
+                inRange[count++] = time;
+            }
+        }
+        return Arrays.copyOf(inRange, count);
+    }
+}
@@ -0,0 +1,124 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.util.Arrays;
+
+/**
+ * time_offset to record position for every station, one open addressing
+ * table of primitive ints per station so millions of keys don't cost an
+ * object each. Used by StationTimeSeriesNetCDFFile to find the record of a
+ * duplicate (station, time).
+ *
+ * Integer.MIN_VALUE marks empty slots and can't be used as a time_offset.
+ */
+public class StationTimeKeys {
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int[][] keys;
+    private final int[][] values;
+    private final int[] sizes;
+
+    public StationTimeKeys(int stationCount) {
+        keys = new int[stationCount][];
+        values = new int[stationCount][];
+        sizes = new int[stationCount];
+    }
+
+    /**
+     * @return record position of the key, or -1 if it hasn't been put
+     */
+    public int get(int station, int timeOffset) {
+        int[] stationKeys = keys[station];
+        if (stationKeys == null) {
+            return -1;
+        }
+        int mask = stationKeys.length - 1;
+        for (int slot = hash(timeOffset) & mask; ; slot = (slot + 1) & mask) {
+            int key = stationKeys[slot];
+            if (key == timeOffset) {
+                return values[station][slot];
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if timeOffset can't be put
+     */
+    public static void checkKey(int timeOffset) {
+        if (timeOffset == EMPTY) {
+            throw new IllegalArgumentException("time_offset " + EMPTY + " is reserved");
+        }
+    }
+
+    /**
+     * @return previous record position of the key, or -1 if it's new
+     */
+    public int put(int station, int timeOffset, int record) {
+        checkKey(timeOffset);
+        if (keys[station] == null) {
+            keys[station] = newKeys(INITIAL_CAPACITY);
+            values[station] = new int[INITIAL_CAPACITY];
+        }
+        else if (2 * (sizes[station] + 1) > keys[station].length) {
+            grow(station);
+        }
+        int[] stationKeys = keys[station];
+        int mask = stationKeys.length - 1;
+        for (int slot = hash(timeOffset) & mask; ; slot = (slot + 1) & mask) {
+            int key = stationKeys[slot];
+            if (key == timeOffset) {
+                int previous = values[station][slot];
+                values[station][slot] = record;
+                return previous;
+            }
+            if (key == EMPTY) {
+                stationKeys[slot] = timeOffset;
+                values[station][slot] = record;
+                sizes[station]++;
+                return -1;
+            }
+        }
+    }
+
+    public int size(int station) {
+        return sizes[station];
+    }
+
+    private void grow(int station) {
+        int[] oldKeys = keys[station];
+        int[] oldValues = values[station];
+        int capacity = oldKeys.length * 2;
+        int[] newKeys = newKeys(capacity);
+        int[] newValues = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != EMPTY) {
+                int slot = hash(key) & mask;
+                while (newKeys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                newKeys[slot] = key;
+                newValues[slot] = oldValues[i];
+            }
+        }
+        keys[station] = newKeys;
+        values[station] = newValues;
+    }
+
+    private static int[] newKeys(int capacity) {
+        int[] newKeys = new int[capacity];
+        Arrays.fill(newKeys, EMPTY);
+        return newKeys;
+    }
+
+    private static int hash(int key) {
+        // regular time axes would otherwise fill neighbouring slots
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
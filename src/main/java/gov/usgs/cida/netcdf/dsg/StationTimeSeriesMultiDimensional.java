@@ -1,15 +1,18 @@
 package gov.usgs.cida.netcdf.dsg;
 
 import java.nio.ByteBuffer;
-import java.io.Closeable;
 import com.sun.jna.NativeLong;
 import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
 import java.io.File;
 import static gov.usgs.cida.netcdf.jna.NC.*;
 import static gov.usgs.cida.netcdf.jna.NCUtil.*;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -19,7 +22,7 @@ import java.util.Map;
  *
  * @author Tom Kunicki <tkunicki@usgs.gov>
  */
-public class StationTimeSeriesMultiDimensional implements Closeable {
+public class StationTimeSeriesMultiDimensional implements ObservationBatchSink {
     
     public static final String CF_VER = "CF-1.6";
 
@@ -51,8 +54,42 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
     
     private int[] ncVarId_records;
     
+    private final int stationCount;
+    private StationRegistry stationRegistry;
+    private StationOrder stationOrder;
+    private int ncVarId_station_id = -1;
+    private int ncVarId_lat = -1;
+    private int ncVarId_lon = -1;
+    private final String timeUnit;
+    private final int[] timeOffsets;
+    private TimeEncoder timeEncoder;
+    
+    // time_offset -> time index lookup, timeStep > 0 when the axis is evenly spaced
+    private int timeStep;
+    private int[] sortedTimeOffsets;
+    private int[] sortedTimeIndices;
+    
+    private ObservationStatistics statistics;
+    
+    // cells written so far per station, only kept with a duplicate policy
+    private DuplicatePolicy duplicatePolicy;
+    private BitSet[] written;
+    // set once this instance has written any observation
+    private boolean hasObservations = false;
+    // opened from an existing file, whose cells may already be written
+    private boolean isReopened = false;
+    
+    private FlushMetrics flushMetrics = new FlushMetrics(null);
+    private int observationBytes = -1;
+    
     private boolean isClosed = false;
     
+    private final NativeBackend backend = NativeBackends.get();
+    private ByteBuffer batchBuffer;
+    private int[] batchStations;
+    private ByteBuffer codeBuffer;
+    private static final long[] CODE_COUNTP = new long[] { 1, 1 };
+    
     
 
     /**
@@ -69,8 +106,62 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
             int[] timeOffsets,
             String timeUnit,
             Variable[] recordVariables)
+    {
+        this(file, globalAttrs, stations, timeOffsets, timeUnit, recordVariables, null);
+    }
+    
+    /**
+     * @param storage chunking and compression of the record variables, null
+     * for the library defaults
+     */
+    public StationTimeSeriesMultiDimensional(
+            File file,
+            Map<String,String> globalAttrs,
+            Station[] stations,
+            int[] timeOffsets,
+            String timeUnit,
+            Variable[] recordVariables,
+            StorageOptions storage)
+    {
+        this(file, globalAttrs, stations, null, timeOffsets, timeUnit, recordVariables, storage);
+    }
+    
+    /**
+     * Create a file without knowing its stations, they're added with
+     * addStation as they first appear and the station dimension is unlimited
+     * @param stationRegistry empty, or holding stations known up front;
+     * owned by this writer from now on
+     * @param storage chunking and compression of the record variables, null
+     * for the library defaults
+     */
+    public StationTimeSeriesMultiDimensional(
+            File file,
+            Map<String,String> globalAttrs,
+            StationRegistry stationRegistry,
+            int[] timeOffsets,
+            String timeUnit,
+            Variable[] recordVariables,
+            StorageOptions storage)
+    {
+        this(file, globalAttrs, new Station[0], stationRegistry, timeOffsets, timeUnit, recordVariables, storage);
+    }
+    
+    private StationTimeSeriesMultiDimensional(
+            File file,
+            Map<String,String> globalAttrs,
+            Station[] stations,
+            StationRegistry stationRegistry,
+            int[] timeOffsets,
+            String timeUnit,
+            Variable[] recordVariables,
+            StorageOptions storage)
     {
         this.recordVariables = recordVariables;
+        this.stationRegistry = stationRegistry;
+        this.stationCount = (stationRegistry == null) ? stations.length : stationRegistry.getCapacity();
+        this.timeUnit = timeUnit;
+        this.timeOffsets = timeOffsets.clone();
+        initTimeLookup();
         
         IntByReference iRef = new IntByReference();
 
@@ -80,11 +171,13 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
         //// DIMENSIONS:
         status(nc_def_dim(
                 ncId, STATION,
-                new NativeLong(stationOuter && useUnlimited ? NC_UNLIMITED : stations.length),
+                new NativeLong((stationOuter && useUnlimited) || stationRegistry != null ?
+                        NC_UNLIMITED : stations.length),
                 iRef));
         ncDimId_station = iRef.getValue();
 
-        int max_length = Station.findMaxStationLength(stations);
+        int max_length = (stationRegistry == null) ?
+                Station.findMaxStationLength(stations) : stationRegistry.getMaxIdLength();
         status(nc_def_dim(ncId, STATION_ID_LEN, new NativeLong(max_length), iRef));
         ncDimId_station_id_len = iRef.getValue();
 
@@ -100,20 +193,26 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
         int[] time_dimidsp = new int[] { ncDimId_time };
 
         status(nc_def_var(ncId, "station_id", NC_CHAR, station_id_dimidsp , iRef));
-        int ncVarId_station_id = iRef.getValue();
+        ncVarId_station_id = iRef.getValue();
         status(nc_put_att_text(ncId, ncVarId_station_id, "standard_name", "station_id"));
         status(nc_put_att_text(ncId, ncVarId_station_id, "cf_role", "timeseries_id"));
         
         status(nc_def_var(ncId, "lat", NC_FLOAT, station_dimidsp, iRef));
-        int ncVarId_lat = iRef.getValue();
+        ncVarId_lat = iRef.getValue();
         status(nc_put_att_text(ncId, ncVarId_lat, "standard_name", "latitude"));
         status(nc_put_att_text(ncId, ncVarId_lat, "units", "degrees_east"));
         
         status(nc_def_var(ncId, "lon", NC_FLOAT, station_dimidsp, iRef));
-        int ncVarId_lon = iRef.getValue();
+        ncVarId_lon = iRef.getValue();
         status(nc_put_att_text(ncId, ncVarId_lon, "standard_name", "longitude"));
         status(nc_put_att_text(ncId, ncVarId_lon, "units", "degrees_north"));
         
+        if (stationRegistry != null) {
+            stationRegistry.defineChunking(ncId, ncVarId_station_id, max_length);
+            stationRegistry.defineChunking(ncId, ncVarId_lat, 0);
+            stationRegistry.defineChunking(ncId, ncVarId_lon, 0);
+        }
+        
         status(nc_def_var(ncId, "time", NC_INT, time_dimidsp, iRef));
         int ncVarId_time = iRef.getValue();
         status(nc_put_att_text(ncId, ncVarId_time, "standard_name", "time"));
@@ -126,7 +225,7 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
             createRecordStructureType();
             createRecordStructureVariable();
         } else {
-            createRecordVariables();
+            createRecordVariables(storage);
         }
 
         status(nc_enddef(ncId));
@@ -141,6 +240,9 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
             status(nc_put_var1_float(ncId, ncVarId_lat, station.latitude, station_indexp));
             station_indexp.setValue(station_indexp.longValue() + 1);
         }
+        if (stationRegistry != null) {
+            stationRegistry.flush(ncId, ncVarId_station_id, ncVarId_lat, ncVarId_lon);
+        }
         
         NativeLong time_indexp = new NativeLong(0);
         for (int t = 0; t < timeOffsets.length; ++t) {
@@ -149,6 +251,156 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
         }
     }
     
+    /**
+     * Reopen a file written by this class to write more observations. The
+     * time axis and units are read back from the file.
+     * @param file existing NetCDF file
+     * @param recordVariables variables the file was written with
+     */
+    public StationTimeSeriesMultiDimensional(File file, Variable[] recordVariables) {
+        this.recordVariables = recordVariables;
+        this.isReopened = true;
+        
+        IntByReference iRef = new IntByReference();
+        NativeLongByReference lRef = new NativeLongByReference();
+
+        status(nc_open(file.getAbsolutePath(), NC_WRITE, iRef));
+        ncId = iRef.getValue();
+
+        status(nc_inq_dimid(ncId, STATION, iRef));
+        ncDimId_station = iRef.getValue();
+        status(nc_inq_dimlen(ncId, ncDimId_station, lRef));
+        this.stationCount = lRef.getValue().intValue();
+        this.stationOrder = StationOrder.readVariable(ncId, stationCount);
+        status(nc_inq_dimid(ncId, STATION_ID_LEN, iRef));
+        ncDimId_station_id_len = iRef.getValue();
+        status(nc_inq_varid(ncId, "station_id", iRef));
+        ncVarId_station_id = iRef.getValue();
+        status(nc_inq_varid(ncId, "lat", iRef));
+        ncVarId_lat = iRef.getValue();
+        status(nc_inq_varid(ncId, "lon", iRef));
+        ncVarId_lon = iRef.getValue();
+        status(nc_inq_dimid(ncId, TIME, iRef));
+        ncDimId_time = iRef.getValue();
+        status(nc_inq_dimlen(ncId, ncDimId_time, lRef));
+        int timeCount = lRef.getValue().intValue();
+        
+        status(nc_inq_varid(ncId, TIME, iRef));
+        int ncVarId_time = iRef.getValue();
+        status(nc_inq_attlen(ncId, ncVarId_time, "units", lRef));
+        byte[] units = new byte[lRef.getValue().intValue()];
+        status(nc_get_att_text(ncId, ncVarId_time, "units", units));
+        this.timeUnit = new String(units, Charset.forName("US-ASCII")).trim();
+        
+        this.timeOffsets = new int[timeCount];
+        if (timeCount > 0) {
+            ByteBuffer timeBuffer = ByteBuffer.allocateDirect(timeCount * 4);
+            timeBuffer.order(ByteOrder.nativeOrder());
+            status(nc_get_vara(ncId, ncVarId_time,
+                    new NativeLong[] { new NativeLong(0) },
+                    new NativeLong[] { new NativeLong(timeCount) },
+                    timeBuffer));
+            timeBuffer.asIntBuffer().get(timeOffsets);
+        }
+        initTimeLookup();
+        
+        int vCount = recordVariables.length;
+        ncVarId_records = new int[vCount];
+        for (int vIndex = 0; vIndex < vCount; ++vIndex) {
+            status(nc_inq_varid(ncId, recordVariables[vIndex].name, iRef));
+            ncVarId_records[vIndex] = iRef.getValue();
+            if (recordVariables[vIndex].getCategories() != null) {
+                recordVariables[vIndex].getCategories().readVariable(ncId, recordVariables[vIndex].name);
+            }
+        }
+    }
+    
+    /**
+     * @return encoder from timestamps to time_offset for this file's time unit
+     */
+    public TimeEncoder getTimeEncoder() {
+        if (timeEncoder == null) {
+            timeEncoder = new TimeEncoder(timeUnit);
+        }
+        return timeEncoder;
+    }
+    
+    /**
+     * @param epochMillis milliseconds since 1970-01-01 00:00:00Z
+     * @return index into timeOffsets, or -1 if the timestamp isn't on the time axis
+     */
+    public int getTimeIndex(long epochMillis) {
+        TimeEncoder encoder = getTimeEncoder();
+        if (!encoder.canEncode(epochMillis)) {
+            return -1;
+        }
+        int timeOffset = encoder.encode(epochMillis);
+        if (encoder.decode(timeOffset) != epochMillis) {
+            return -1;
+        }
+        return getTimeIndex(timeOffset);
+    }
+    
+    /**
+     * Direct lookup for evenly spaced axes, binary search otherwise.
+     * @param timeOffset value from the time axis
+     * @return index into timeOffsets, or -1 if the offset isn't on the time axis
+     */
+    public int getTimeIndex(int timeOffset) {
+        if (timeStep > 0) {
+            long delta = (long) timeOffset - timeOffsets[0];
+            if (delta < 0 || delta % timeStep != 0) {
+                return -1;
+            }
+            long index = delta / timeStep;
+            return (index < timeOffsets.length) ? (int) index : -1;
+        }
+        int[] searchOffsets = (sortedTimeOffsets == null) ? timeOffsets : sortedTimeOffsets;
+        int found = Arrays.binarySearch(searchOffsets, timeOffset);
+        if (found < 0) {
+            return -1;
+        }
+        return (sortedTimeIndices == null) ? found : sortedTimeIndices[found];
+    }
+    
+    private void initTimeLookup() {
+        int count = timeOffsets.length;
+        if (count == 0) {
+            return;
+        }
+        boolean ascending = true;
+        long step = (count > 1) ? (long) timeOffsets[1] - timeOffsets[0] : 1;
+        boolean regular = step > 0 && step <= Integer.MAX_VALUE;
+        for (int t = 1; t < count; ++t) {
+            long delta = (long) timeOffsets[t] - timeOffsets[t - 1];
+            ascending &= delta > 0;
+            regular &= delta == step;
+        }
+        if (regular) {
+            timeStep = (int) step;
+        }
+        else if (!ascending) {
+            Integer[] order = new Integer[count];
+            for (int t = 0; t < count; ++t) {
+                order[t] = t;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int x = timeOffsets[a];
+                    int y = timeOffsets[b];
+                    return (x < y) ? -1 : ((x == y) ? 0 : 1);
+                }
+            });
+            sortedTimeOffsets = new int[count];
+            sortedTimeIndices = new int[count];
+            for (int i = 0; i < count; ++i) {
+                sortedTimeIndices[i] = order[i];
+                sortedTimeOffsets[i] = timeOffsets[order[i]];
+            }
+        }
+    }
+    
     private void writeGlobalAttributes(Map<String, String> attrMap) {
         status(nc_put_att_text(ncId, NC_GLOBAL, "Conventions", CF_VER));
         status(nc_put_att_text(ncId, NC_GLOBAL, "CF:featureType", "timeSeries"));
@@ -275,7 +527,7 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
         }
     }
     
-    private void createRecordVariables() {
+    private void createRecordVariables(StorageOptions storage) {
         
         IntByReference iRef = new IntByReference();
         int[] record_dimidsp = stationOuter ? 
@@ -290,6 +542,9 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
             
             status(nc_def_var(ncId, recordVariable.name, recordVariable.xtype.getCode(), record_dimidsp, iRef));
             ncVarId_records[vIndex] = iRef.getValue();
+            if (storage != null) {
+                storage.applyMultiDimensional(ncId, ncVarId_records[vIndex], stationCount, timeOffsets.length);
+            }
 
             // Can I pull this out in a generalized way
             status(nc_put_att_text(ncId,  ncVarId_records[vIndex], "coordinates", "time lat lon"));
@@ -316,13 +571,289 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
                     throw new UnsupportedOperationException("Should implement the other types");
                 }
             }
+            if (recordVariable.isQuantized()) {
+                status(nc_put_att_int(ncId, ncVarId_records[vIndex], Variable.QUANTIZATION_NSB,
+                        recordVariable.getMantissaBits()));
+            }
         }
     }
     
+    /**
+     * Register a station the first time it appears, for files created with a
+     * StationRegistry. Its station_id, lat and lon are written on the next
+     * sync or close.
+     * @return station_index to put the station's observations with
+     */
+    public int addStation(Station station) {
+        if (stationRegistry == null) {
+            throw new IllegalStateException("File was created with a fixed station list");
+        }
+        return stationRegistry.add(station);
+    }
+    
+    /**
+     * @return stations registered so far, null unless the file was created
+     * with a StationRegistry
+     */
+    public StationRegistry getStationRegistry() {
+        return stationRegistry;
+    }
+    
+    /**
+     * Write the stations in the given order instead of the constructor's,
+     * recording the constructor's station_index of each as the
+     * station_input_index variable. Observations keep using the
+     * constructor's station_index, they're mapped to the file as they're
+     * put; putBlock writes file stations as they are.
+     * Must be called before the first observation is put.
+     * @param order made from the stations the file was created with
+     */
+    public void setStationOrder(StationOrder order) {
+        if (hasObservations) {
+            throw new IllegalStateException("Observations have already been written");
+        }
+        if (stationRegistry != null || stationOrder != null) {
+            throw new IllegalStateException("Stations can't be reordered");
+        }
+        if (order.size() != stationCount) {
+            throw new IllegalArgumentException("Order has " + order.size() + " stations, file has " + stationCount);
+        }
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_inq_dimlen(ncId, ncDimId_station_id_len, lRef));
+        status(nc_redef(ncId));
+        int ncVarId_input = order.defineVariable(ncId, ncDimId_station);
+        status(nc_enddef(ncId));
+        order.writeVariable(ncId, ncVarId_input);
+        StationRegistry.putStations(ncId, ncVarId_station_id, ncVarId_lat, ncVarId_lon,
+                0, order.getFileStations(), lRef.getValue().intValue());
+        stationOrder = order;
+    }
+    
+    /**
+     * @return order the stations were written in, null if it's the
+     * constructor's
+     */
+    public StationOrder getStationOrder() {
+        return stationOrder;
+    }
+    
     public boolean putObservation(Observation observation) {        
-        return useStructure ?
+        if (stationOrder != null) {
+            observation = stationOrder.toFile(observation);
+        }
+        boolean isDuplicate = false;
+        if (duplicatePolicy != null && !isClosed) {
+            isDuplicate = markWritten(observation.station_index, observation.time_offset);
+            if (isDuplicate && duplicatePolicy == DuplicatePolicy.FIRST_WINS) {
+                return false;
+            }
+            else if (isDuplicate && duplicatePolicy == DuplicatePolicy.REJECT) {
+                throw duplicatePolicy.duplicate(observation);
+            }
+        }
+        boolean put = useStructure ?
                 putObservationIntoStructureVariable(observation) :
                 putObservationIntoVariables(observation);
+        hasObservations |= put;
+        if (put && statistics != null && !isDuplicate) {
+            statistics.add(observation);
+        }
+        if (put && flushMetrics.recordWritten(getObservationBytes())) {
+            syncTimed(true);
+        }
+        return put;
+    }
+    
+    /**
+     * Put the batch a run at a time, a run being consecutive rows of one
+     * station at consecutive time indices, written with one nc_put_vara per
+     * record variable. Input sorted by station then time becomes a handful of
+     * hyperslab writes, the first run straight from the batch's columns
+     * with the typed nc_put_vara calls unless the variable is quantized.
+     * As with putObservation time_offset is the time index.
+     * With a duplicate policy set every row goes through putObservation.
+     * With a station order set the rows are written at the file's
+     * station_index, the batch itself isn't changed.
+     * @throws IllegalArgumentException if the batch variables don't match
+     * the record variables
+     */
+    public int putBatch(ObservationBatch batch) {
+        if (isClosed || batch.size == 0) {
+            return 0;
+        }
+        if (batch.variables.length != recordVariables.length) {
+            throw new IllegalArgumentException("Batch has " + batch.variables.length
+                    + " variables, expected " + recordVariables.length);
+        }
+        for (int vIndex = 0; vIndex < recordVariables.length; ++vIndex) {
+            if (batch.variables[vIndex].xtype != recordVariables[vIndex].xtype) {
+                throw new IllegalArgumentException("Batch variable " + recordVariables[vIndex].name
+                        + " is not " + recordVariables[vIndex].xtype);
+            }
+        }
+        if (useStructure || duplicatePolicy != null) {
+            int put = 0;
+            for (int i = 0; i < batch.size; i++) {
+                if (putObservation(batch.getObservation(i))) {
+                    put++;
+                }
+            }
+            return put;
+        }
+        int[] stations = batch.station_index;
+        if (stationOrder != null) {
+            batchStations = stationOrder.toFile(batch, batchStations);
+            stations = batchStations;
+        }
+        
+        if (batchBuffer == null || batchBuffer.capacity() < batch.size * 8) {
+            batchBuffer = ByteBuffer.allocateDirect(batch.capacity * 8);
+            batchBuffer.order(ByteOrder.nativeOrder());
+        }
+        int s = stationOuter ? 0 : 1;
+        int t = 1 - s;
+        long[] startp = new long[2];
+        long[] countp = new long[] { 1, 1 };
+        int start = 0;
+        while (start < batch.size) {
+            int end = start + 1;
+            while (end < batch.size && stations[end] == stations[start]
+                    && batch.time_offset[end] == batch.time_offset[end - 1] + 1) {
+                end++;
+            }
+            startp[s] = stations[start];
+            startp[t] = batch.time_offset[start];
+            countp[t] = end - start;
+            for (int vIndex = 0; vIndex < recordVariables.length; ++vIndex) {
+                boolean quantized = recordVariables[vIndex].isQuantized();
+                if (start == 0 && !quantized && putColumn(vIndex, startp, countp, batch.columns[vIndex])) {
+                    continue;
+                }
+                int valueSize = recordVariables[vIndex].xtype.getSizeBytes();
+                batchBuffer.clear();
+                for (int i = start; i < end; i++) {
+                    batch.writeValue(vIndex, i, batchBuffer, (i - start) * valueSize);
+                    if (quantized) {
+                        recordVariables[vIndex].quantize(batchBuffer, (i - start) * valueSize);
+                    }
+                }
+                batchBuffer.limit((end - start) * valueSize);
+                status(backend.nc_put_vara(ncId, ncVarId_records[vIndex], startp, countp, batchBuffer));
+            }
+            start = end;
+        }
+        hasObservations = true;
+        if (statistics != null) {
+            for (int i = 0; i < batch.size; i++) {
+                statistics.add(batch, i, stations[i]);
+            }
+        }
+        if (flushMetrics.recordsWritten(batch.size, (long) batch.size * getObservationBytes())) {
+            syncTimed(true);
+        }
+        return batch.size;
+    }
+    
+    /**
+     * Detect observations repeating a (station, time) already written and
+     * handle them with the given policy. Without a policy (the default) or
+     * with LAST_WINS the cell is overwritten, FIRST_WINS skips the native
+     * writes. On a reopened file the cells holding anything but fill
+     * values count as written. LAST_WINS can't be combined with statistics,
+     * they would keep the overwritten values.
+     * Must be called before the first observation is put.
+     * @throws IllegalStateException if observations have been written, or
+     * for LAST_WINS with statistics enabled
+     */
+    public void setDuplicatePolicy(DuplicatePolicy policy) {
+        if (hasObservations) {
+            throw new IllegalStateException("Observations have already been written");
+        }
+        if (policy == DuplicatePolicy.LAST_WINS && statistics != null) {
+            throw new IllegalStateException("Statistics can't be kept with LAST_WINS");
+        }
+        duplicatePolicy = policy;
+        written = (policy == null) ? null : new BitSet[stationCount];
+        if (written != null && isReopened) {
+            readWrittenCells();
+        }
+    }
+    
+    public DuplicatePolicy getDuplicatePolicy() {
+        return duplicatePolicy;
+    }
+    
+    /**
+     * Mark the cells of the file that hold a value other than _FillValue for
+     * any record variable, a station row at a time
+     */
+    private void readWrittenCells() {
+        int timeCount = timeOffsets.length;
+        if (timeCount == 0 || recordVariables.length == 0) {
+            return;
+        }
+        ObservationBatch row = new ObservationBatch(recordVariables, timeCount);
+        row.size = timeCount;
+        ByteBuffer[] buffers = new ByteBuffer[recordVariables.length];
+        for (int vIndex = 0; vIndex < recordVariables.length; vIndex++) {
+            buffers[vIndex] = ByteBuffer.allocateDirect(timeCount * recordVariables[vIndex].xtype.getSizeBytes());
+            buffers[vIndex].order(ByteOrder.nativeOrder());
+        }
+        NativeLong[] countp = new NativeLong[] { new NativeLong(1), new NativeLong(timeCount) };
+        for (int station = 0; station < stationCount; station++) {
+            NativeLong[] startp = new NativeLong[] { new NativeLong(station), new NativeLong(0) };
+            for (int vIndex = 0; vIndex < recordVariables.length; vIndex++) {
+                ByteBuffer buffer = buffers[vIndex];
+                buffer.clear();
+                status(nc_get_vara(ncId, ncVarId_records[vIndex], startp, countp, buffer));
+                for (int t = 0; t < timeCount; t++) {
+                    row.readValue(vIndex, t, buffer);
+                }
+            }
+            for (int t = 0; t < timeCount; t++) {
+                if (!row.isFill(t)) {
+                    markWritten(station, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the cell had already been written
+     */
+    private boolean markWritten(int station, int timeIndex) {
+        if (station < 0 || station >= stationCount || timeIndex < 0) {
+            return false;
+        }
+        BitSet stationWritten = written[station];
+        if (stationWritten == null) {
+            stationWritten = written[station] = new BitSet(timeOffsets.length);
+        }
+        boolean wasWritten = stationWritten.get(timeIndex);
+        stationWritten.set(timeIndex);
+        return wasWritten;
+    }
+    
+    /**
+     * Keep running statistics of the observations put from now on, saved on
+     * close as actual_range, mean, standard_deviation, valid_count and
+     * missing_count attributes of each record variable.
+     * @param perStation also keep them per station, saved as
+     * &lt;variable&gt;_station_min, _max, _mean and _count station variables
+     * @throws IllegalStateException with the LAST_WINS duplicate policy
+     */
+    public void enableStatistics(boolean perStation) {
+        if (duplicatePolicy == DuplicatePolicy.LAST_WINS) {
+            throw new IllegalStateException("Statistics can't be kept with LAST_WINS");
+        }
+        statistics = new ObservationStatistics(recordVariables, perStation ? stationCount : 0);
+    }
+    
+    /**
+     * @return statistics of the observations written so far, null unless enabled
+     */
+    public ObservationStatistics getStatistics() {
+        return statistics;
     }
     
     public boolean putObservationIntoStructureVariable(Observation observation) {
@@ -331,7 +862,8 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
             ByteBuffer recordBuffer = ByteBuffer.allocateDirect(record_type_size);
             recordBuffer.order(ByteOrder.nativeOrder());
             
-            for (Object value : observation.values) {
+            for (int vIndex = 0; vIndex < observation.values.length; ++vIndex) {
+                Object value = observation.values[vIndex];
                 if (value instanceof String) {
                     throw new UnsupportedOperationException("Need to implement char[] or string");
                 }
@@ -342,10 +874,10 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
                     recordBuffer.putShort((Short) value);
                 }
                 else if (value instanceof Float) {
-                    recordBuffer.putFloat((Float) value);
+                    recordBuffer.putFloat(recordVariables[vIndex].quantize((Float) value));
                 }
                 else if (value instanceof Double) {
-                    recordBuffer.putDouble((Double) value);
+                    recordBuffer.putDouble(recordVariables[vIndex].quantize((Double) value));
                 }
                 else {
                     throw new UnsupportedOperationException("Should implement the other types");
@@ -377,33 +909,31 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
         
         if (!isClosed) {
             
-            NativeLong[] record_indexp = stationOuter ? 
-                new NativeLong[] { 
-                    new NativeLong(observation.station_index),
-                    new NativeLong(observation.time_offset),
-                } :
-                new NativeLong[] { 
-                    new NativeLong(observation.time_offset),
-                    new NativeLong(observation.station_index),
-                };
+            long[] record_indexp = stationOuter ? 
+                new long[] { observation.station_index, observation.time_offset } :
+                new long[] { observation.time_offset, observation.station_index };
             
             int vCount = ncVarId_records.length;
             for (int vIndex = 0; vIndex < vCount; ++vIndex) {
                 Object value = observation.values[vIndex];
                 if (value instanceof String) {
-                    throw new UnsupportedOperationException("Need to implement char[] or string");
+                    CategoryDictionary categories = recordVariables[vIndex].getCategories();
+                    if (categories == null) {
+                        throw new UnsupportedOperationException("Need to implement char[] or string");
+                    }
+                    putCode(vIndex, record_indexp, categories.encode((String) value));
                 }
                 else if (value instanceof Integer) {
-                    status(nc_put_var1_int(ncId, ncVarId_records[vIndex], (Integer)value, record_indexp));
+                    status(backend.nc_put_var1_int(ncId, ncVarId_records[vIndex], record_indexp, (Integer)value));
                 }
                 else if (value instanceof Short) {
-                    status(nc_put_var1_short(ncId, ncVarId_records[vIndex], (Short)value, record_indexp));
+                    status(backend.nc_put_var1_short(ncId, ncVarId_records[vIndex], record_indexp, (Short)value));
                 }
                 else if (value instanceof Float) {
-                    status(nc_put_var1_float(ncId, ncVarId_records[vIndex], (Float)value, record_indexp));
+                    status(backend.nc_put_var1_float(ncId, ncVarId_records[vIndex], record_indexp, recordVariables[vIndex].quantize((Float)value)));
                 }
                 else if (value instanceof Double) {
-                    status(nc_put_var1_double(ncId, ncVarId_records[vIndex], (Double)value, record_indexp));
+                    status(backend.nc_put_var1_double(ncId, ncVarId_records[vIndex], record_indexp, recordVariables[vIndex].quantize((Double)value)));
                 }
                 else {
                     throw new UnsupportedOperationException("Should implement the other types");
@@ -414,14 +944,284 @@ public class StationTimeSeriesMultiDimensional implements Closeable {
         return false;
     }
 
+    private void putCode(int vIndex, long[] record_indexp, int code) {
+        if (codeBuffer == null) {
+            codeBuffer = ByteBuffer.allocateDirect(4);
+            codeBuffer.order(ByteOrder.nativeOrder());
+        }
+        codeBuffer.clear();
+        switch (recordVariables[vIndex].xtype) {
+            case NC_BYTE:
+                codeBuffer.put(0, (byte) code);
+                break;
+            case NC_SHORT:
+                codeBuffer.putShort(0, (short) code);
+                break;
+            default:
+                codeBuffer.putInt(0, code);
+                break;
+        }
+        status(backend.nc_put_vara(ncId, ncVarId_records[vIndex], record_indexp, CODE_COUNTP, codeBuffer));
+    }
+
+    /**
+     * Hyperslab write of a block of one record variable.
+     * @param vIndex index into the recordVariables given to the constructor
+     * @param stationStart first station index of the block
+     * @param stationCount number of stations in the block
+     * @param timeStart first time index of the block
+     * @param timeCount number of times in the block
+     * @param data stationCount rows of timeCount values in native byte order,
+     * quantized in place if the variable is
+     * @return false if the file has been closed
+     */
+    public boolean putBlock(int vIndex, int stationStart, int stationCount,
+            int timeStart, int timeCount, ByteBuffer data) {
+        if (useStructure) {
+            throw new UnsupportedOperationException("Block writes are only implemented for record variables");
+        }
+        if (!isClosed) {
+            Variable recordVariable = recordVariables[vIndex];
+            if (recordVariable.isQuantized()) {
+                int valueSize = recordVariable.xtype.getSizeBytes();
+                for (int position = 0; position + valueSize <= data.limit(); position += valueSize) {
+                    recordVariable.quantize(data, position);
+                }
+            }
+            data.rewind();
+            status(backend.nc_put_vara(ncId, ncVarId_records[vIndex],
+                    blockStart(stationStart, timeStart), blockCount(stationCount, timeCount), data));
+            hasObservations = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hyperslab write of a block of an NC_SHORT record variable, straight
+     * from the array with nc_put_vara_short
+     * @param data stationCount rows of timeCount values
+     * @return false if the file has been closed
+     */
+    public boolean putBlock(int vIndex, int stationStart, int stationCount,
+            int timeStart, int timeCount, short[] data) {
+        if (!checkBlock(vIndex, XType.NC_SHORT, stationCount, timeCount, data.length)) {
+            return false;
+        }
+        status(backend.nc_put_vara_short(ncId, ncVarId_records[vIndex],
+                blockStart(stationStart, timeStart), blockCount(stationCount, timeCount), data));
+        hasObservations = true;
+        return true;
+    }
+
+    /**
+     * Hyperslab write of a block of an NC_INT record variable, straight
+     * from the array with nc_put_vara_int
+     * @param data stationCount rows of timeCount values
+     * @return false if the file has been closed
+     */
+    public boolean putBlock(int vIndex, int stationStart, int stationCount,
+            int timeStart, int timeCount, int[] data) {
+        if (!checkBlock(vIndex, XType.NC_INT, stationCount, timeCount, data.length)) {
+            return false;
+        }
+        status(backend.nc_put_vara_int(ncId, ncVarId_records[vIndex],
+                blockStart(stationStart, timeStart), blockCount(stationCount, timeCount), data));
+        hasObservations = true;
+        return true;
+    }
+
+    /**
+     * Hyperslab write of a block of an NC_FLOAT record variable, straight
+     * from the array with nc_put_vara_float
+     * @param data stationCount rows of timeCount values, quantized in place
+     * if the variable is
+     * @return false if the file has been closed
+     */
+    public boolean putBlock(int vIndex, int stationStart, int stationCount,
+            int timeStart, int timeCount, float[] data) {
+        if (!checkBlock(vIndex, XType.NC_FLOAT, stationCount, timeCount, data.length)) {
+            return false;
+        }
+        Variable recordVariable = recordVariables[vIndex];
+        if (recordVariable.isQuantized()) {
+            for (int i = 0; i < stationCount * timeCount; i++) {
+                data[i] = recordVariable.quantize(data[i]);
+            }
+        }
+        status(backend.nc_put_vara_float(ncId, ncVarId_records[vIndex],
+                blockStart(stationStart, timeStart), blockCount(stationCount, timeCount), data));
+        hasObservations = true;
+        return true;
+    }
+
+    /**
+     * Hyperslab write of a block of an NC_DOUBLE record variable, straight
+     * from the array with nc_put_vara_double
+     * @param data stationCount rows of timeCount values, quantized in place
+     * if the variable is
+     * @return false if the file has been closed
+     */
+    public boolean putBlock(int vIndex, int stationStart, int stationCount,
+            int timeStart, int timeCount, double[] data) {
+        if (!checkBlock(vIndex, XType.NC_DOUBLE, stationCount, timeCount, data.length)) {
+            return false;
+        }
+        Variable recordVariable = recordVariables[vIndex];
+        if (recordVariable.isQuantized()) {
+            for (int i = 0; i < stationCount * timeCount; i++) {
+                data[i] = recordVariable.quantize(data[i]);
+            }
+        }
+        status(backend.nc_put_vara_double(ncId, ncVarId_records[vIndex],
+                blockStart(stationStart, timeStart), blockCount(stationCount, timeCount), data));
+        hasObservations = true;
+        return true;
+    }
+
+    /**
+     * Write the first values of a batch column with the typed nc_put_vara
+     * of its type, no copy needed
+     * @return false if there is no typed call for the column
+     */
+    private boolean putColumn(int vIndex, long[] startp, long[] countp, Object column) {
+        int ncVarId = ncVarId_records[vIndex];
+        if (column instanceof float[]) {
+            status(backend.nc_put_vara_float(ncId, ncVarId, startp, countp, (float[]) column));
+        }
+        else if (column instanceof double[]) {
+            status(backend.nc_put_vara_double(ncId, ncVarId, startp, countp, (double[]) column));
+        }
+        else if (column instanceof int[]) {
+            status(backend.nc_put_vara_int(ncId, ncVarId, startp, countp, (int[]) column));
+        }
+        else if (column instanceof short[]) {
+            status(backend.nc_put_vara_short(ncId, ncVarId, startp, countp, (short[]) column));
+        }
+        else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the file has been closed
+     * @throws IllegalArgumentException if the variable isn't of the array's
+     * type or the array is shorter than the block
+     */
+    private boolean checkBlock(int vIndex, XType xtype, int stationCount, int timeCount, int length) {
+        if (useStructure) {
+            throw new UnsupportedOperationException("Block writes are only implemented for record variables");
+        }
+        if (recordVariables[vIndex].xtype != xtype) {
+            throw new IllegalArgumentException(recordVariables[vIndex].name + " is not " + xtype);
+        }
+        if (length < stationCount * timeCount) {
+            throw new IllegalArgumentException("Block of " + stationCount + " x " + timeCount
+                    + " values, array has " + length);
+        }
+        return !isClosed;
+    }
+
+    private long[] blockStart(int stationStart, int timeStart) {
+        return stationOuter ?
+                new long[] { stationStart, timeStart } :
+                new long[] { timeStart, stationStart };
+    }
+
+    private long[] blockCount(int stationCount, int timeCount) {
+        return stationOuter ?
+                new long[] { stationCount, timeCount } :
+                new long[] { timeCount, stationCount };
+    }
+
     @Override
     public void close() {
+        flushMetrics.cancel();
+        if (stationRegistry != null) {
+            // the station dimension ends at the last registered station
+            stationRegistry.flush(ncId, ncVarId_station_id, ncVarId_lat, ncVarId_lon);
+            if (statistics != null) {
+                statistics.truncate(stationRegistry.size());
+            }
+        }
+        if (statistics != null && !useStructure) {
+            status(nc_redef(ncId));
+            for (int vIndex = 0; vIndex < ncVarId_records.length; ++vIndex) {
+                statistics.writeAttributes(ncId, ncVarId_records[vIndex], vIndex);
+            }
+            int[] ncVarIds = statistics.defineStationVariables(ncId, ncDimId_station);
+            status(nc_enddef(ncId));
+            statistics.writeStationVariables(ncId, ncVarIds);
+        }
+        if (!useStructure) {
+            writeCategories();
+        }
         status(nc_close(ncId));
         isClosed = true;
     }
 
     public void sync() {
+        syncTimed(false);
+    }
+    
+    private void writeCategories() {
+        int[] dictVarIds = new int[recordVariables.length];
+        boolean redef = false;
+        for (int vIndex = 0; vIndex < recordVariables.length; ++vIndex) {
+            CategoryDictionary categories = recordVariables[vIndex].getCategories();
+            if (categories != null) {
+                if (!redef) {
+                    status(nc_redef(ncId));
+                    redef = true;
+                }
+                dictVarIds[vIndex] = categories.defineVariable(ncId, recordVariables[vIndex].name, ncVarId_records[vIndex]);
+            }
+        }
+        if (redef) {
+            status(nc_enddef(ncId));
+            for (int vIndex = 0; vIndex < recordVariables.length; ++vIndex) {
+                if (recordVariables[vIndex].getCategories() != null) {
+                    recordVariables[vIndex].getCategories().writeVariable(ncId, dictVarIds[vIndex]);
+                }
+            }
+        }
+    }
+    
+    private void syncTimed(boolean automatic) {
+        long start = System.nanoTime();
+        if (stationRegistry != null) {
+            stationRegistry.flush(ncId, ncVarId_station_id, ncVarId_lat, ncVarId_lon);
+        }
         status(nc_sync(ncId));
+        flushMetrics.flushed(System.nanoTime() - start, automatic);
+    }
+    
+    /**
+     * Sync automatically as the policy says, replacing any earlier policy
+     * @param policy null to only sync when asked
+     */
+    public void setFlushPolicy(FlushPolicy policy) {
+        flushMetrics.cancel();
+        flushMetrics = new FlushMetrics(policy);
+    }
+    
+    /**
+     * @return syncs so far and the time spent in them
+     */
+    public FlushMetrics getFlushMetrics() {
+        return flushMetrics;
+    }
+    
+    private int getObservationBytes() {
+        if (observationBytes < 0) {
+            int bytes = 0;
+            for (Variable recordVariable : recordVariables) {
+                bytes += recordVariable.xtype.getSizeBytes();
+            }
+            observationBytes = bytes;
+        }
+        return observationBytes;
     }
 }
 
@@ -1,11 +1,11 @@
 package gov.usgs.cida.netcdf.dsg;
 
 import java.nio.ByteBuffer;
-import java.io.Closeable;
 import com.sun.jna.NativeLong;
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.NativeLongByReference;
 import java.io.File;
+import java.io.IOException;
 import static gov.usgs.cida.netcdf.jna.NC.*;
 import static gov.usgs.cida.netcdf.jna.NCUtil.*;
 import java.nio.ByteOrder;
@@ -15,16 +15,18 @@ import java.util.Map;
  *
  * @author Jordan Walker <jiwalker@usgs.gov>
  */
-public class StationTimeSeriesNetCDFFile implements Closeable {
+public class StationTimeSeriesNetCDFFile implements ObservationBatchSink {
     
     public static final String CF_VER = "CF-1.6";
     
     private static final int STRING_LENGTH = 32;
 
     private static final short _FillValue_SHORT = -9999;
+    
+    private static final int RESUME_BLOCK_BYTES = 1 << 20;
 
-    private final static String STATION_DIM_NAME = "station";
-    private final static String STATION_ID_LEN_NAME = "station_id_len";
+    protected final static String STATION_DIM_NAME = "station";
+    protected final static String STATION_ID_LEN_NAME = "station_id_len";
     protected final static String OBSERVATION_DIM_NAME = "observation";
     protected final static String OBSERVATION_STRUCT_NAME = "record"; // NetCDF-Java reqiures this to be record (last tested release was 4.2.26)
 
@@ -35,9 +37,30 @@ public class StationTimeSeriesNetCDFFile implements Closeable {
     public final int ncDimId_observation;
     public final int ncDimId_station_id_len;
     
+    private final File file;
     private RecordType record;
     private int record_index;
+    private StationRecordIndex stationRecords;
+    private StationRegistry stationRegistry;
+    private StationOrder stationOrder;
+    private int ncVarId_station_id = -1;
+    private int ncVarId_lat = -1;
+    private int ncVarId_lon = -1;
+    private ObservationStatistics statistics;
+    private DuplicatePolicy duplicatePolicy;
+    private StationTimeKeys duplicateKeys;
+    private boolean writeStationIndex = false;
+    private FlushMetrics flushMetrics = new FlushMetrics(null);
     private boolean isClosed = false;
+    
+    // reused across puts
+    private static final long[] RECORD_COUNTP = new long[] { 1 };
+    private final long[] record_startp = new long[1];
+    private ByteBuffer recordBuffer;
+    private ByteBuffer batchBuffer;
+    private int[] batchStations;
+    private final NativeBackend backend = NativeBackends.get();
+    private final Variable[] dataVars;
 
     /**
      * Put this in place to keep the interface the same for anything using this currently
@@ -52,9 +75,40 @@ public class StationTimeSeriesNetCDFFile implements Closeable {
     
     public StationTimeSeriesNetCDFFile(File file, RecordType rt, Map<String,String> globalAttrs,
             boolean doChunking, Station ... stations) {
+        this(file, rt, globalAttrs,
+                doChunking ? StorageOptions.ragged(rt.getCompoundSize(), 0, false) : null, stations);
+    }
+    
+    /**
+     * @param storage chunking and compression of the record variable, null
+     * for the library defaults
+     */
+    public StationTimeSeriesNetCDFFile(File file, RecordType rt, Map<String,String> globalAttrs,
+            StorageOptions storage, Station ... stations) {
+        this(file, rt, globalAttrs, storage, stations, null);
+    }
+    
+    /**
+     * Create a file without knowing its stations, they're added with
+     * addStation as they first appear and the station dimension is unlimited
+     * @param stationRegistry empty, or holding stations known up front;
+     * owned by this writer from now on
+     */
+    public StationTimeSeriesNetCDFFile(File file, RecordType rt, Map<String,String> globalAttrs,
+            StorageOptions storage, StationRegistry stationRegistry) {
+        this(file, rt, globalAttrs, storage, new Station[0], stationRegistry);
+    }
+    
+    private StationTimeSeriesNetCDFFile(File file, RecordType rt, Map<String,String> globalAttrs,
+            StorageOptions storage, Station[] stations, StationRegistry stationRegistry) {
+        this.file = file;
         this.record = rt;
+        this.dataVars = rt.getDataVars().toArray(new Variable[0]);
         this.record_index = 0;
         this.name = file.getName();
+        this.stationRegistry = stationRegistry;
+        this.stationRecords = new StationRecordIndex(
+                (stationRegistry == null) ? stations.length : stationRegistry.getCapacity(), false);
 
         this.createFlags = NC_NETCDF4;
 
@@ -67,10 +121,12 @@ public class StationTimeSeriesNetCDFFile implements Closeable {
         ncId = iRef.getValue();
 
         // DIMENSIONS:
-        ncStatus = nc_def_dim(ncId, STATION_DIM_NAME, new NativeLong(stations.length), iRef); status(ncStatus);
+        ncStatus = nc_def_dim(ncId, STATION_DIM_NAME,
+                new NativeLong((stationRegistry == null) ? stations.length : NC_UNLIMITED), iRef); status(ncStatus);
         ncDimId_station = iRef.getValue();
         
-        int max_length = Station.findMaxStationLength(stations);
+        int max_length = (stationRegistry == null) ?
+                Station.findMaxStationLength(stations) : stationRegistry.getMaxIdLength();
         ncStatus = nc_def_dim(ncId, STATION_ID_LEN_NAME, new NativeLong(max_length), iRef); status(ncStatus);
         ncDimId_station_id_len = iRef.getValue();
         
@@ -81,7 +137,16 @@ public class StationTimeSeriesNetCDFFile implements Closeable {
         // STATION
         int ncTypeId_record_type = this.record.writeRecordCompound(ncId);
         Map<String, Variable> stVars = this.record.writeStationVariables(ncId, ncDimId_station, ncDimId_station_id_len);
-        this.record.writeObservationVariables(ncId, new int[] { ncDimId_observation }, ncTypeId_record_type, doChunking);
+        this.ncVarId_station_id = stVars.get("station_id").ncVarId;
+        this.ncVarId_lat = stVars.get("lat").ncVarId;
+        this.ncVarId_lon = stVars.get("lon").ncVarId;
+        if (stationRegistry != null) {
+            stationRegistry.defineChunking(ncId, ncVarId_station_id, max_length);
+            stationRegistry.defineChunking(ncId, ncVarId_lat, 0);
+            stationRegistry.defineChunking(ncId, ncVarId_lon, 0);
+        }
+        this.record.writeObservationVariables(ncId, new int[] { ncDimId_observation }, ncTypeId_record_type, storage);
+        this.stationRecords.defineVariables(ncId, ncDimId_station);
         
         // Global Attributes
         writeGlobalAttributes(globalAttrs);
@@ -93,32 +158,118 @@ public class StationTimeSeriesNetCDFFile implements Closeable {
         NativeLong station_indexp = new NativeLong(0);
         NativeLong stationid_len_indexp = new NativeLong(0);
         for (Station station : stations) {
-            ncStatus = nc_put_var1_float(ncId, stVars.get("lon").ncVarId, station.longitude, station_indexp); status(ncStatus);
-            ncStatus = nc_put_var1_float(ncId, stVars.get("lat").ncVarId, station.latitude, station_indexp); status(ncStatus);
-            ncStatus = nc_put_vara_text(ncId, stVars.get("station_id").ncVarId, station.station_id, station_indexp, stationid_len_indexp); status(ncStatus);
+            ncStatus = nc_put_var1_float(ncId, ncVarId_lon, station.longitude, station_indexp); status(ncStatus);
+            ncStatus = nc_put_var1_float(ncId, ncVarId_lat, station.latitude, station_indexp); status(ncStatus);
+            ncStatus = nc_put_vara_text(ncId, ncVarId_station_id, station.station_id, station_indexp, stationid_len_indexp); status(ncStatus);
             station_indexp.setValue(station_indexp.longValue() + 1);
         }
+        if (stationRegistry != null) {
+            stationRegistry.flush(ncId, ncVarId_station_id, ncVarId_lat, ncVarId_lon);
+        }
+    }
+
+    /**
+     * Reopen a file written by this class to append more observations.
+     * The record index, station record ranges and record positions (if the
+     * sidecar exists) are restored from the file, statistics are not.
+     * @param file existing NetCDF file
+     * @param rt RecordType the file was written with
+     */
+    public StationTimeSeriesNetCDFFile(File file, RecordType rt) {
+        this.file = file;
+        this.record = rt;
+        this.dataVars = rt.getDataVars().toArray(new Variable[0]);
+        this.name = file.getName();
+        this.createFlags = NC_NETCDF4;
+
+        IntByReference iRef = new IntByReference();
+        status(nc_open(file.getAbsolutePath(), NC_WRITE, iRef));
+        ncId = iRef.getValue();
+
+        status(nc_inq_dimid(ncId, STATION_DIM_NAME, iRef));
+        ncDimId_station = iRef.getValue();
+        status(nc_inq_dimid(ncId, STATION_ID_LEN_NAME, iRef));
+        ncDimId_station_id_len = iRef.getValue();
+        status(nc_inq_dimid(ncId, OBSERVATION_DIM_NAME, iRef));
+        ncDimId_observation = iRef.getValue();
+        status(nc_inq_varid(ncId, "station_id", iRef));
+        ncVarId_station_id = iRef.getValue();
+        status(nc_inq_varid(ncId, "lat", iRef));
+        ncVarId_lat = iRef.getValue();
+        status(nc_inq_varid(ncId, "lon", iRef));
+        ncVarId_lon = iRef.getValue();
+
+        this.record.readObservationVariables(ncId);
+        this.record_index = inqDimLength(ncDimId_observation);
+
+        for (Variable dataVar : dataVars) {
+            if (dataVar.getCategories() != null) {
+                dataVar.getCategories().readVariable(ncId, dataVar.name);
+            }
+        }
+
+        int stationCount = inqDimLength(ncDimId_station);
+        this.stationOrder = StationOrder.readVariable(ncId, stationCount);
+        this.stationRecords = StationRecordIndex.readVariables(ncId, stationCount);
+        if (this.stationRecords == null) {
+            // written before record ranges were tracked, nothing to update on close
+            this.stationRecords = new StationRecordIndex(stationCount, false);
+        }
+        else {
+            try {
+                this.stationRecords.readSidecar(file);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to read record positions for " + name, ioe);
+            }
+        }
     }
 
     public boolean putObservation(Observation observation) {
         int ncStatus = 0;
-        NativeLongByReference record_startp = new NativeLongByReference(new NativeLong(record_index));
-        NativeLongByReference record_countp = new NativeLongByReference(new NativeLong(1));
         
+        if (stationOrder != null) {
+            observation = stationOrder.toFile(observation);
+        }
         boolean observationPutSuccessful = false;
         if (!isClosed && record.isObservationValid(observation)) {
-            ByteBuffer recordBuffer = ByteBuffer.allocateDirect(record.getCompoundSize());
-            recordBuffer.order(ByteOrder.nativeOrder());
+            int position = record_index;
+            boolean isDuplicate = false;
+            int station = observation.station_index;
+            if (duplicateKeys != null && station >= 0 && station < stationRecords.getStationCount()) {
+                // before anything is written, so a key that can't be kept isn't on disk either
+                StationTimeKeys.checkKey(observation.time_offset);
+                int existing = duplicateKeys.get(station, observation.time_offset);
+                if (existing >= 0) {
+                    if (duplicatePolicy == DuplicatePolicy.FIRST_WINS) {
+                        return false;
+                    }
+                    else if (duplicatePolicy == DuplicatePolicy.REJECT) {
+                        throw duplicatePolicy.duplicate(observation);
+                    }
+                    // LAST_WINS, rewrite the record in place
+                    position = existing;
+                    isDuplicate = true;
+                }
+            }
+            
+            if (recordBuffer == null) {
+                recordBuffer = ByteBuffer.allocateDirect(record.getCompoundSize());
+                recordBuffer.order(ByteOrder.nativeOrder());
+            }
+            recordBuffer.clear();
             
-            recordBuffer.putInt(observation.station_index);
-            recordBuffer.putInt(observation.time_offset);
-            for (Object value : observation.values) {
+            RecordType.putKey(recordBuffer, 0, record.getIndexType(), observation.station_index);
+            RecordType.putKey(recordBuffer, record.getIndexType().getSizeBytes(), record.getTimeType(), observation.time_offset);
+            recordBuffer.position(record.getKeySize());
+            for (int v = 0; v < observation.values.length; v++) {
+                Object value = observation.values[v];
                 if (value instanceof String) {
-                    throw new UnsupportedOperationException(
-                            "Need to implement char[] or string");
-//                    String val = (String) value;
-//                    ncStatus = nc_put_att_text(ncId, ncVarId, key, val);
-//                    status(ncStatus);
+                    CategoryDictionary categories = dataVars[v].getCategories();
+                    if (categories == null) {
+                        throw new UnsupportedOperationException(
+                                "Need to implement char[] or string");
+                    }
+                    putCode(recordBuffer, dataVars[v].xtype, categories.encode((String) value));
                 }
                 else if (value instanceof Integer) {
                     int val = ((Integer) value).intValue();
@@ -130,11 +281,11 @@ public class StationTimeSeriesNetCDFFile implements Closeable {
                 }
                 else if (value instanceof Float) {
                     float val = ((Float) value).floatValue();
-                    recordBuffer.putFloat(val);
+                    recordBuffer.putFloat(dataVars[v].quantize(val));
                 }
                 else if (value instanceof Double) {
                     double val = ((Double) value).doubleValue();
-                    recordBuffer.putDouble(val);
+                    recordBuffer.putDouble(dataVars[v].quantize(val));
                 }
                 else {
                     throw new UnsupportedOperationException(
@@ -143,7 +294,21 @@ public class StationTimeSeriesNetCDFFile implements Closeable {
             } // record complete
             
             recordBuffer.rewind();
-            ncStatus = nc_put_vara(ncId, record.getVarId(), record_startp, record_countp, recordBuffer); status(ncStatus);
+            record_startp[0] = position;
+            ncStatus = backend.nc_put_vara(ncId, record.getVarId(), record_startp, RECORD_COUNTP, recordBuffer); status(ncStatus);
+            if (flushMetrics.recordWritten(record.getCompoundSize())) {
+                syncTimed(true);
+            }
+            if (isDuplicate) {
+                return true;
+            }
+            if (duplicateKeys != null && station >= 0 && station < stationRecords.getStationCount()) {
+                duplicateKeys.put(station, observation.time_offset, record_index);
+            }
+            stationRecords.add(observation.station_index, record_index);
+            if (statistics != null) {
+                statistics.add(observation);
+            }
             record_index++;
             
             //station_indexp.setValue(station_indexp.longValue() + 1);
@@ -152,13 +317,393 @@ public class StationTimeSeriesNetCDFFile implements Closeable {
         return observationPutSuccessful;
     }
 
+    /**
+     * Append the whole batch as consecutive records with a single
+     * nc_put_vara. With a duplicate policy set every row goes through
+     * putObservation instead. With a station order set the rows are written
+     * at the file's station_index, the batch itself isn't changed.
+     * @throws IllegalArgumentException if the batch variables don't match
+     * the record type's data variables
+     */
+    public int putBatch(ObservationBatch batch) {
+        if (isClosed || batch.size == 0) {
+            return 0;
+        }
+        if (batch.variables.length != dataVars.length) {
+            throw new IllegalArgumentException("Batch has " + batch.variables.length
+                    + " variables, " + name + " has " + dataVars.length);
+        }
+        int v;
+        for (v = 0; v < dataVars.length; v++) {
+            if (batch.variables[v].xtype != dataVars[v].xtype) {
+                throw new IllegalArgumentException("Batch variable " + dataVars[v].name + " is not " + dataVars[v].xtype);
+            }
+        }
+        for (int i = 0; i < batch.size; i++) {
+            if (!record.isKeyInRange(batch.station_index[i], batch.time_offset[i])) {
+                throw new IllegalArgumentException("Station " + batch.station_index[i] + " at time "
+                        + batch.time_offset[i] + " doesn't fit the " + record.getIndexType() + " and "
+                        + record.getTimeType() + " record keys");
+            }
+        }
+        if (duplicateKeys != null) {
+            int put = 0;
+            for (int i = 0; i < batch.size; i++) {
+                if (putObservation(batch.getObservation(i))) {
+                    put++;
+                }
+            }
+            return put;
+        }
+        int[] stations = batch.station_index;
+        if (stationOrder != null) {
+            batchStations = stationOrder.toFile(batch, batchStations);
+            stations = batchStations;
+        }
+        
+        int size = record.getCompoundSize();
+        int bytes = batch.size * size;
+        if (batchBuffer == null || batchBuffer.capacity() < bytes) {
+            batchBuffer = ByteBuffer.allocateDirect(bytes);
+            batchBuffer.order(ByteOrder.nativeOrder());
+        }
+        batchBuffer.clear();
+        XType indexType = record.getIndexType();
+        XType timeType = record.getTimeType();
+        int timePosition = indexType.getSizeBytes();
+        int keySize = record.getKeySize();
+        for (int i = 0; i < batch.size; i++) {
+            int position = i * size;
+            RecordType.putKey(batchBuffer, position, indexType, stations[i]);
+            RecordType.putKey(batchBuffer, position + timePosition, timeType, batch.time_offset[i]);
+            position += keySize;
+            for (v = 0; v < batch.variables.length; v++) {
+                batch.writeValue(v, i, batchBuffer, position);
+                if (dataVars[v].isQuantized()) {
+                    dataVars[v].quantize(batchBuffer, position);
+                }
+                position += batch.variables[v].xtype.getSizeBytes();
+            }
+        }
+        batchBuffer.limit(bytes);
+        status(backend.nc_put_vara(ncId, record.getVarId(),
+                new long[] { record_index }, new long[] { batch.size }, batchBuffer));
+        for (int i = 0; i < batch.size; i++) {
+            stationRecords.add(stations[i], record_index + i);
+            if (statistics != null) {
+                statistics.add(batch, i, stations[i]);
+            }
+        }
+        record_index += batch.size;
+        if (flushMetrics.recordsWritten(batch.size, bytes)) {
+            syncTimed(true);
+        }
+        return batch.size;
+    }
+
+    /**
+     * Keep the position of every record, not just each station's first and
+     * last, and save them to a sidecar file on close.
+     * Must be called before the first observation is put.
+     */
+    public void setTrackRecordPositions(boolean trackRecordPositions) {
+        if (record_index > 0) {
+            throw new IllegalStateException("Observations have already been written to " + name);
+        }
+        stationRecords = new StationRecordIndex(stationRecords.getStationCount(), trackRecordPositions);
+    }
+    
+    /**
+     * Save a StationIndex of the file's stations to a sidecar file on close,
+     * for StationSubsetExtractor
+     */
+    public void setWriteStationIndex(boolean writeStationIndex) {
+        this.writeStationIndex = writeStationIndex;
+    }
+
+    /**
+     * Detect observations repeating a (station, time) already written and
+     * handle them with the given policy, LAST_WINS rewrites the earlier
+     * record in place. The keys of records already in the file, e.g. of a
+     * reopened file, are read back first; where they repeat, the last
+     * record is the one matched.
+     * LAST_WINS can't be combined with statistics, they would keep the
+     * replaced values.
+     * @param policy null to append duplicates as separate records (default)
+     * @throws IllegalStateException for LAST_WINS with statistics enabled
+     */
+    public void setDuplicatePolicy(DuplicatePolicy policy) {
+        if (policy == DuplicatePolicy.LAST_WINS && statistics != null) {
+            throw new IllegalStateException("Statistics of " + name + " can't be kept with LAST_WINS");
+        }
+        duplicatePolicy = policy;
+        duplicateKeys = (policy == null) ? null : new StationTimeKeys(stationRecords.getStationCount());
+        if (duplicateKeys != null && record_index > 0) {
+            readRecordKeys(record_index, false);
+        }
+    }
+    
+    public DuplicatePolicy getDuplicatePolicy() {
+        return duplicatePolicy;
+    }
+    
+    /**
+     * Write the stations in the given order instead of the constructor's,
+     * recording the constructor's station_index of each as the
+     * station_input_index variable. Observations keep using the
+     * constructor's station_index, they're mapped to the file as they're put.
+     * Must be called before the first observation is put.
+     * @param order made from the stations the file was created with
+     */
+    public void setStationOrder(StationOrder order) {
+        if (record_index > 0) {
+            throw new IllegalStateException("Observations have already been written to " + name);
+        }
+        if (stationRegistry != null || stationOrder != null) {
+            throw new IllegalStateException("Stations of " + name + " can't be reordered");
+        }
+        if (order.size() != stationRecords.getStationCount()) {
+            throw new IllegalArgumentException("Order has " + order.size() + " stations, "
+                    + name + " has " + stationRecords.getStationCount());
+        }
+        status(nc_redef(ncId));
+        int ncVarId_input = order.defineVariable(ncId, ncDimId_station);
+        status(nc_enddef(ncId));
+        order.writeVariable(ncId, ncVarId_input);
+        StationRegistry.putStations(ncId, ncVarId_station_id, ncVarId_lat, ncVarId_lon,
+                0, order.getFileStations(), inqDimLength(ncDimId_station_id_len));
+        stationOrder = order;
+    }
+    
+    /**
+     * @return order the stations were written in, null if it's the
+     * constructor's
+     */
+    public StationOrder getStationOrder() {
+        return stationOrder;
+    }
+    
+    /**
+     * Register a station the first time it appears, for files created with a
+     * StationRegistry. Its station_id, lat and lon are written on the next
+     * sync or close.
+     * @return station_index to put the station's observations with
+     */
+    public int addStation(Station station) {
+        if (stationRegistry == null) {
+            throw new IllegalStateException(name + " was created with a fixed station list");
+        }
+        return stationRegistry.add(station);
+    }
+    
+    /**
+     * @return stations registered so far, null unless the file was created
+     * with a StationRegistry
+     */
+    public StationRegistry getStationRegistry() {
+        return stationRegistry;
+    }
+    
+    /**
+     * @return record ranges of each station written so far
+     */
+    public StationRecordIndex getStationRecordIndex() {
+        return stationRecords;
+    }
+
+    /**
+     * Keep running statistics of the observations put from now on, saved on
+     * close as mean, standard_deviation, valid_count and missing_count
+     * compound attributes of the record variable, and a
+     * &lt;variable&gt;_actual_range attribute per variable.
+     * @param perStation also keep them per station, saved as
+     * &lt;variable&gt;_station_min, _max, _mean and _count station variables
+     * @throws IllegalStateException with the LAST_WINS duplicate policy
+     */
+    public void enableStatistics(boolean perStation) {
+        if (duplicatePolicy == DuplicatePolicy.LAST_WINS) {
+            throw new IllegalStateException("Statistics of " + name + " can't be kept with LAST_WINS");
+        }
+        statistics = new ObservationStatistics(dataVars,
+                perStation ? stationRecords.getStationCount() : 0);
+    }
+    
+    /**
+     * @return statistics of the observations written so far, null unless enabled
+     */
+    public ObservationStatistics getStatistics() {
+        return statistics;
+    }
+
     public void close() {
+        flushMetrics.cancel();
+        if (stationRegistry != null) {
+            // the station dimension ends at the last registered station
+            stationRegistry.flush(ncId, ncVarId_station_id, ncVarId_lat, ncVarId_lon);
+            stationRecords.truncate(stationRegistry.size());
+            if (statistics != null) {
+                statistics.truncate(stationRegistry.size());
+            }
+        }
+        if (statistics != null) {
+            status(nc_redef(ncId));
+            statistics.writeCompoundAttributes(ncId, record.getVarId(), OBSERVATION_STRUCT_NAME);
+            int[] ncVarIds = statistics.defineStationVariables(ncId, ncDimId_station);
+            status(nc_enddef(ncId));
+            statistics.writeStationVariables(ncId, ncVarIds);
+        }
+        writeCategories();
+        stationRecords.writeVariables(ncId);
         status(nc_close(ncId));
         isClosed = true;
+        if (stationRecords.hasRecordPositions()) {
+            try {
+                stationRecords.writeSidecar(file);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to write record positions for " + name, ioe);
+            }
+        }
+        if (writeStationIndex) {
+            // read back so registered and reordered stations are indexed as they are in the file
+            StationTimeSeriesReader reader = new StationTimeSeriesReader(file, record);
+            try {
+                StationIndex.build(reader.readStations()).writeSidecar(file);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to write station index for " + name, ioe);
+            } finally {
+                reader.close();
+            }
+        }
     }
 
     public void sync() {
+        syncTimed(false);
+    }
+    
+    private void writeCategories() {
+        int[] dictVarIds = new int[dataVars.length];
+        boolean redef = false;
+        for (int v = 0; v < dataVars.length; v++) {
+            if (dataVars[v].getCategories() != null) {
+                if (!redef) {
+                    status(nc_redef(ncId));
+                    redef = true;
+                }
+                dictVarIds[v] = dataVars[v].getCategories().defineVariable(ncId, dataVars[v].name, -1);
+            }
+        }
+        if (redef) {
+            status(nc_enddef(ncId));
+            for (int v = 0; v < dataVars.length; v++) {
+                if (dataVars[v].getCategories() != null) {
+                    dataVars[v].getCategories().writeVariable(ncId, dictVarIds[v]);
+                }
+            }
+        }
+    }
+    
+    private static void putCode(ByteBuffer buffer, XType xtype, int code) {
+        switch (xtype) {
+            case NC_BYTE:
+                buffer.put((byte) code);
+                break;
+            case NC_SHORT:
+                buffer.putShort((short) code);
+                break;
+            default:
+                buffer.putInt(code);
+                break;
+        }
+    }
+    
+    private void syncTimed(boolean automatic) {
+        long start = System.nanoTime();
+        if (stationRegistry != null) {
+            stationRegistry.flush(ncId, ncVarId_station_id, ncVarId_lat, ncVarId_lon);
+        }
         status(nc_sync(ncId));
+        flushMetrics.flushed(System.nanoTime() - start, automatic);
+    }
+    
+    /**
+     * Sync automatically as the policy says, replacing any earlier policy
+     * @param policy null to only sync when asked
+     */
+    public void setFlushPolicy(FlushPolicy policy) {
+        flushMetrics.cancel();
+        flushMetrics = new FlushMetrics(policy);
+    }
+    
+    /**
+     * @return syncs so far and the time spent in them
+     */
+    public FlushMetrics getFlushMetrics() {
+        return flushMetrics;
+    }
+    
+    /**
+     * Roll back to the first recordCount records after a crash, records past
+     * them are overwritten by the next puts. Station record ranges, and the
+     * duplicate keys with a duplicate policy, are rebuilt from the key
+     * fields of the kept records.
+     */
+    void resumeAt(int recordCount) {
+        if (recordCount > record_index) {
+            throw new IllegalStateException(name + " has " + record_index
+                    + " records, can't resume at " + recordCount);
+        }
+        record_index = recordCount;
+        stationRecords.clear();
+        if (duplicateKeys != null) {
+            duplicateKeys = new StationTimeKeys(stationRecords.getStationCount());
+        }
+        readRecordKeys(recordCount, true);
+    }
+
+    /**
+     * Read the station and time keys of the first recordCount records into
+     * the duplicate keys, if kept, and the station record ranges if asked to
+     */
+    private void readRecordKeys(int recordCount, boolean ranges) {
+        int size = record.getCompoundSize();
+        int timePosition = record.getIndexType().getSizeBytes();
+        int stationCount = stationRecords.getStationCount();
+        int block = Math.max(1, RESUME_BLOCK_BYTES / size);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.min(block, recordCount) * size);
+        buffer.order(ByteOrder.nativeOrder());
+        for (int start = 0; start < recordCount; start += block) {
+            int count = Math.min(block, recordCount - start);
+            buffer.clear();
+            status(nc_get_vara(ncId, record.getVarId(),
+                    new NativeLong[] { new NativeLong(start) },
+                    new NativeLong[] { new NativeLong(count) },
+                    buffer));
+            for (int i = 0; i < count; i++) {
+                int station = RecordType.getKey(buffer, i * size, record.getIndexType());
+                if (ranges) {
+                    stationRecords.add(station, start + i);
+                }
+                if (duplicateKeys != null && station >= 0 && station < stationCount) {
+                    duplicateKeys.put(station,
+                            RecordType.getKey(buffer, i * size + timePosition, record.getTimeType()),
+                            start + i);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return number of records written to the file, including those written
+     * before it was reopened
+     */
+    public int getRecordCount() {
+        return record_index;
+    }
+    
+    private int inqDimLength(int dimId) {
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_inq_dimlen(ncId, dimId, lRef));
+        return lRef.getValue().intValue();
     }
     
     private void writeGlobalAttributes(Map<String, String> attrMap) {
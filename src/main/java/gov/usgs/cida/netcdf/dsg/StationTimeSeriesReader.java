@@ -0,0 +1,548 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads files written by StationTimeSeriesNetCDFFile (indexed ragged
+ * record compound) or StationTimeSeriesMultiDimensional ([station, time]
+ * variables) back as a stream of observations.
+ *
+ * Data is pulled from the file in blocks of at most blockSize records, so
+ * memory use depends on the block size and not on the size of the file.
+ * Blocks of a multidimensional file are whole chunks of its variables, so
+ * no chunk is decompressed twice; a block is never smaller than one chunk,
+ * so blockSize is exceeded when the chunks are bigger.
+ */
+public class StationTimeSeriesReader implements Closeable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 8192;
+
+    public final File file;
+    public final String name;
+    public final int ncId;
+    public final int stationCount;
+
+    private final boolean ragged;
+    private final Variable[] dataVariables;
+
+    // ragged layout
+    private int recordVarId;
+    private int recordSize;
+    private int recordCount;
+    private XType indexType;
+    private XType timeType;
+    private StationRecordIndex stationRecords;
+    private boolean stationRecordsLoaded = false;
+
+    // multidimensional layout
+    private int[] dataVarIds;
+    private int[] timeOffsets;
+    // chunk shape of the data variables, 1 x 1 for contiguous storage
+    private int chunkStations = 1;
+    private int chunkTimes = 1;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private boolean isClosed = false;
+
+    public StationTimeSeriesReader(File file, RecordType rt) {
+        this(file, rt.getDataVars());
+    }
+
+    public StationTimeSeriesReader(File file, List<Variable> dataVariables) {
+        this(file, dataVariables.toArray(new Variable[dataVariables.size()]));
+    }
+
+    /**
+     * @param file NetCDF file written by this library
+     * @param dataVariables statistic variables in the order they were written
+     */
+    public StationTimeSeriesReader(File file, Variable... dataVariables) {
+        this.file = file;
+        this.name = file.getName();
+        this.dataVariables = dataVariables;
+
+        IntByReference iRef = new IntByReference();
+        status(nc_open(file.getAbsolutePath(), NC_NOWRITE, iRef));
+        ncId = iRef.getValue();
+
+        stationCount = inqDimLength(StationTimeSeriesNetCDFFile.STATION_DIM_NAME);
+
+        ragged = (nc_inq_varid(ncId, StationTimeSeriesNetCDFFile.OBSERVATION_STRUCT_NAME, iRef) == NC_NOERR);
+        if (ragged) {
+            recordVarId = iRef.getValue();
+            recordCount = inqDimLength(StationTimeSeriesNetCDFFile.OBSERVATION_DIM_NAME);
+
+            NativeLongByReference lRef = new NativeLongByReference();
+            status(nc_inq_vartype(ncId, recordVarId, iRef));
+            status(nc_inq_compound_size(ncId, iRef.getValue(), lRef));
+            recordSize = lRef.getValue().intValue();
+            XType[] keyTypes = RecordType.readKeyTypes(ncId, recordVarId);
+            indexType = keyTypes[0];
+            timeType = keyTypes[1];
+            int expectedSize = indexType.getSizeBytes() + timeType.getSizeBytes();
+            for (Variable var : dataVariables) {
+                expectedSize += var.xtype.getSizeBytes();
+            }
+            if (expectedSize != recordSize) {
+                throw new IllegalArgumentException("Record compound in " + name + " is "
+                        + recordSize + " bytes, variables given describe " + expectedSize);
+            }
+        }
+        else {
+            int timeCount = inqDimLength(StationTimeSeriesMultiDimensional.TIME);
+            status(nc_inq_varid(ncId, StationTimeSeriesMultiDimensional.TIME, iRef));
+            ByteBuffer timeBuffer = allocate(timeCount * 4);
+            status(nc_get_vara(ncId, iRef.getValue(),
+                    new NativeLong[] { new NativeLong(0) },
+                    new NativeLong[] { new NativeLong(timeCount) },
+                    timeBuffer));
+            timeOffsets = new int[timeCount];
+            timeBuffer.asIntBuffer().get(timeOffsets);
+
+            dataVarIds = new int[dataVariables.length];
+            for (int v = 0; v < dataVariables.length; v++) {
+                status(nc_inq_varid(ncId, dataVariables[v].name, iRef));
+                dataVarIds[v] = iRef.getValue();
+            }
+            if (dataVariables.length > 0) {
+                // the writers give every record variable the same chunks
+                NativeLong[] chunkSizes = new NativeLong[] { new NativeLong(), new NativeLong() };
+                status(nc_inq_var_chunking(ncId, dataVarIds[0], iRef, chunkSizes));
+                if (iRef.getValue() == NC_CHUNKED) {
+                    chunkStations = Math.max(1, chunkSizes[0].intValue());
+                    chunkTimes = Math.max(1, chunkSizes[1].intValue());
+                }
+            }
+        }
+
+        // categorical values come back decoded with the file's dictionaries
+        for (Variable var : dataVariables) {
+            if (var.getCategories() != null) {
+                var.getCategories().readVariable(ncId, var.name);
+            }
+        }
+    }
+
+    public boolean isRagged() {
+        return ragged;
+    }
+
+    public Variable[] getDataVariables() {
+        return dataVariables;
+    }
+
+    /**
+     * @return number of records for the ragged layout, station * time cells
+     * for the multidimensional layout
+     */
+    public long getRecordCount() {
+        return ragged ? recordCount : (long) stationCount * timeOffsets.length;
+    }
+
+    /**
+     * @return the time axis of a multidimensional file, null for ragged files
+     */
+    public int[] getTimeOffsets() {
+        return (timeOffsets == null) ? null : timeOffsets.clone();
+    }
+
+    /**
+     * @return station record ranges saved by StationTimeSeriesNetCDFFile, with
+     * record positions if the sidecar exists, or null if the file has none
+     */
+    public StationRecordIndex getStationRecordIndex() {
+        if (!stationRecordsLoaded && ragged) {
+            stationRecords = StationRecordIndex.readVariables(ncId, stationCount);
+            if (stationRecords != null) {
+                try {
+                    stationRecords.readSidecar(file);
+                } catch (IOException ioe) {
+                    // ranges alone are still usable
+                }
+            }
+            stationRecordsLoaded = true;
+        }
+        return stationRecords;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @param blockSize records read from the file per native call, also the
+     * capacity of the batches returned from batches()
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return station table with index set to each station's position in the file
+     */
+    public Station[] readStations() {
+        IntByReference iRef = new IntByReference();
+        int idLength = inqDimLength(StationTimeSeriesNetCDFFile.STATION_ID_LEN_NAME);
+        NativeLong[] start = new NativeLong[] { new NativeLong(0) };
+        NativeLong[] count = new NativeLong[] { new NativeLong(stationCount) };
+
+        ByteBuffer latBuffer = allocate(stationCount * 4);
+        status(nc_inq_varid(ncId, "lat", iRef));
+        status(nc_get_vara(ncId, iRef.getValue(), start, count, latBuffer));
+        ByteBuffer lonBuffer = allocate(stationCount * 4);
+        status(nc_inq_varid(ncId, "lon", iRef));
+        status(nc_get_vara(ncId, iRef.getValue(), start, count, lonBuffer));
+        ByteBuffer idBuffer = allocate(stationCount * idLength);
+        status(nc_inq_varid(ncId, "station_id", iRef));
+        status(nc_get_vara(ncId, iRef.getValue(),
+                new NativeLong[] { new NativeLong(0), new NativeLong(0) },
+                new NativeLong[] { new NativeLong(stationCount), new NativeLong(idLength) },
+                idBuffer));
+
+        Station[] stations = new Station[stationCount];
+        byte[] idBytes = new byte[idLength];
+        for (int s = 0; s < stationCount; s++) {
+            idBuffer.get(idBytes);
+            int length = 0;
+            while (length < idLength && idBytes[length] != 0) {
+                length++;
+            }
+            String id = new String(idBytes, 0, length);
+            stations[s] = new Station(latBuffer.getFloat(), lonBuffer.getFloat(), id, s);
+        }
+        return stations;
+    }
+
+    public Iterator<Observation> observations() {
+        return observations(null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * time_offset of the observations is the record's time for ragged files
+     * and the time index for multidimensional files, as the writers take it
+     * @param stations station indices to include, null for all stations
+     * @param minTime smallest time value to include, in the file's time units
+     * @param maxTime largest time value to include, in the file's time units
+     * @return lazy iterator, observations are read from the file as it advances
+     */
+    public Iterator<Observation> observations(BitSet stations, int minTime, int maxTime) {
+        final Iterator<ObservationBatch> batches = batches(stations, minTime, maxTime);
+        return new Iterator<Observation>() {
+            private ObservationBatch batch;
+            private int row;
+
+            @Override
+            public boolean hasNext() {
+                while (batch == null || row >= batch.size) {
+                    if (!batches.hasNext()) {
+                        return false;
+                    }
+                    batch = batches.next();
+                    row = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public Observation next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.getObservation(row++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public Iterator<ObservationBatch> batches() {
+        return batches(null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The same ObservationBatch instance is refilled on every call to next().
+     * Cells of a multidimensional file that only hold fill values are skipped.
+     * Ragged files with a StationRecordIndex only read the records of the
+     * selected stations. time_offset is the record's time for ragged files
+     * and the index into getTimeOffsets() for multidimensional files.
+     * @param stations station indices to include, null for all stations
+     * @param minTime smallest time value to include, in the file's time units
+     * @param maxTime largest time value to include, in the file's time units
+     * @return lazy iterator of non-empty batches
+     */
+    public Iterator<ObservationBatch> batches(BitSet stations, int minTime, int maxTime) {
+        if (isClosed) {
+            throw new IllegalStateException(name + " is closed");
+        }
+        return ragged ?
+                new RaggedCursor(stations, minTime, maxTime) :
+                new MultiDimensionalCursor(stations, minTime, maxTime);
+    }
+
+    @Override
+    public void close() {
+        status(nc_close(ncId));
+        isClosed = true;
+    }
+
+    private int inqDimLength(String dimName) {
+        IntByReference iRef = new IntByReference();
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_inq_dimid(ncId, dimName, iRef));
+        status(nc_inq_dimlen(ncId, iRef.getValue(), lRef));
+        return lRef.getValue().intValue();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    private abstract class Cursor implements Iterator<ObservationBatch> {
+        protected final BitSet stations;
+        protected final int minTime;
+        protected final int maxTime;
+        protected final ObservationBatch batch;
+        private boolean pending = false;
+
+        /**
+         * @param capacity most rows a block can add to the batch
+         */
+        Cursor(BitSet stations, int minTime, int maxTime, int capacity) {
+            this.stations = stations;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.batch = new ObservationBatch(dataVariables, capacity);
+        }
+
+        /**
+         * Read the next block into batch
+         * @return false once the file is exhausted
+         */
+        protected abstract boolean readBlock();
+
+        protected boolean accept(int station, int time) {
+            return (stations == null || stations.get(station))
+                    && time >= minTime && time <= maxTime;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!pending) {
+                batch.clear();
+                while (batch.size == 0 && readBlock()) {
+                    // keep reading until something passes the filter
+                }
+                pending = batch.size > 0;
+            }
+            return pending;
+        }
+
+        @Override
+        public ObservationBatch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            pending = false;
+            return batch;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class RaggedCursor extends Cursor {
+        private final ByteBuffer buffer;
+        // start, count pairs of the records to read
+        private final int[] runs;
+        private int run = 0;
+        private int position;
+
+        RaggedCursor(BitSet stations, int minTime, int maxTime) {
+            super(stations, minTime, maxTime, blockSize);
+            buffer = allocate(blockSize * recordSize);
+            StationRecordIndex index = (stations == null) ? null : getStationRecordIndex();
+            runs = (index == null) ?
+                    new int[] { 0, recordCount } :
+                    index.getRecordRuns(stations);
+            position = (runs.length > 0) ? runs[0] : 0;
+        }
+
+        @Override
+        protected boolean readBlock() {
+            while (run < runs.length && position >= runs[run] + runs[run + 1]) {
+                run += 2;
+                if (run < runs.length) {
+                    position = runs[run];
+                }
+            }
+            if (run >= runs.length) {
+                return false;
+            }
+            int count = Math.min(blockSize, runs[run] + runs[run + 1] - position);
+            buffer.clear();
+            status(nc_get_vara(ncId, recordVarId,
+                    new NativeLong[] { new NativeLong(position) },
+                    new NativeLong[] { new NativeLong(count) },
+                    buffer));
+            for (int r = 0; r < count; r++) {
+                int start = r * recordSize;
+                int station = RecordType.getKey(buffer, start, indexType);
+                int time = RecordType.getKey(buffer, start + indexType.getSizeBytes(), timeType);
+                buffer.position(start + indexType.getSizeBytes() + timeType.getSizeBytes());
+                if (accept(station, time)) {
+                    int row = batch.size++;
+                    batch.station_index[row] = station;
+                    batch.time_offset[row] = time;
+                    for (int v = 0; v < dataVariables.length; v++) {
+                        batch.readValue(v, row, buffer);
+                    }
+                }
+            }
+            position += count;
+            return true;
+        }
+    }
+
+    private class MultiDimensionalCursor extends Cursor {
+        private final ByteBuffer[] buffers;
+        private final int firstTime;
+        private final int lastTime;
+        // stations and times of a block, multiples of the chunk shape
+        private final int blockStations;
+        private final int blockTimes;
+        private int station;
+        private int time;
+
+        MultiDimensionalCursor(BitSet stations, int minTime, int maxTime) {
+            this(stations, minTime, maxTime, timeWindow(minTime, maxTime));
+        }
+
+        private MultiDimensionalCursor(BitSet stations, int minTime, int maxTime, int[] window) {
+            this(stations, minTime, maxTime, window, blockShape(window));
+        }
+
+        private MultiDimensionalCursor(BitSet stations, int minTime, int maxTime, int[] window, int[] shape) {
+            super(stations, minTime, maxTime, shape[0] * shape[1]);
+            firstTime = window[0];
+            lastTime = window[1];
+            blockStations = shape[0];
+            blockTimes = shape[1];
+            buffers = new ByteBuffer[dataVariables.length];
+            for (int v = 0; v < dataVariables.length; v++) {
+                buffers[v] = allocate(blockStations * blockTimes * dataVariables[v].xtype.getSizeBytes());
+            }
+            station = nextStation(0);
+            time = firstTime;
+        }
+
+        private int nextStation(int from) {
+            if (stations == null) {
+                return from;
+            }
+            int next = stations.nextSetBit(from);
+            return (next < 0) ? stationCount : next;
+        }
+
+        @Override
+        protected boolean readBlock() {
+            if (station >= stationCount || lastTime < firstTime) {
+                return false;
+            }
+            // end on chunk boundaries, the first block of a row or window may be short
+            int stationEnd = Math.min(stationCount, station - station % chunkStations + blockStations);
+            int timeEnd = Math.min(lastTime + 1, time - time % chunkTimes + blockTimes);
+            int stationRun = stationEnd - station;
+            int timeCount = timeEnd - time;
+
+            NativeLong[] start = new NativeLong[] { new NativeLong(station), new NativeLong(time) };
+            NativeLong[] count = new NativeLong[] { new NativeLong(stationRun), new NativeLong(timeCount) };
+            for (int v = 0; v < dataVariables.length; v++) {
+                buffers[v].clear();
+                status(nc_get_vara(ncId, dataVarIds[v], start, count, buffers[v]));
+            }
+
+            int cell = 0;
+            for (int s = station; s < stationEnd; s++) {
+                for (int t = time; t < timeEnd; t++, cell++) {
+                    if (accept(s, timeOffsets[t])) {
+                        int row = batch.size;
+                        batch.station_index[row] = s;
+                        batch.time_offset[row] = t;
+                        for (int v = 0; v < dataVariables.length; v++) {
+                            buffers[v].position(cell * dataVariables[v].xtype.getSizeBytes());
+                            batch.readValue(v, row, buffers[v]);
+                        }
+                        if (!batch.isFill(row)) {
+                            batch.size++;
+                        }
+                    }
+                }
+            }
+
+            time = timeEnd;
+            if (time > lastTime) {
+                station = nextStation(stationEnd);
+                time = firstTime;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return first and last time index whose time is in range, last is
+     * before first if none is
+     */
+    private int[] timeWindow(int minTime, int maxTime) {
+        int first = timeOffsets.length;
+        int last = -1;
+        for (int t = 0; t < timeOffsets.length; t++) {
+            if (timeOffsets[t] >= minTime && timeOffsets[t] <= maxTime) {
+                first = Math.min(first, t);
+                last = t;
+            }
+        }
+        return new int[] { first, last };
+    }
+
+    /**
+     * Largest block of whole chunks within blockSize cells, at least one
+     * chunk: whole rows of the time window and as many chunks of stations
+     * as fit, or one chunk of stations and as many chunks of times as fit.
+     * @return stations and times of a block
+     */
+    private int[] blockShape(int[] window) {
+        int first = window[0] - window[0] % chunkTimes;
+        int last = window[1] + chunkTimes - 1 - window[1] % chunkTimes;
+        long rowTimes = Math.max(1, last - first + 1);
+        if ((long) chunkStations * rowTimes <= blockSize) {
+            long stationChunks = blockSize / (chunkStations * rowTimes);
+            return new int[] { (int) Math.min(stationCount + chunkStations, stationChunks * chunkStations),
+                    (int) rowTimes };
+        }
+        long timeChunks = Math.max(1, blockSize / chunkStations / chunkTimes);
+        return new int[] { chunkStations, (int) Math.min(rowTimes, timeChunks * chunkTimes) };
+    }
+}
@@ -0,0 +1,116 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+
+/**
+ * HDF5 storage of the observation data: the chunk shape, and the deflate
+ * level and shuffle filter applied to each chunk.
+ *
+ * The ragged layout chunks its record variable along the observation
+ * dimension, chunkRecords records per chunk. The multidimensional layout
+ * chunks each [station, time] variable as chunkStations x chunkTimes, clamped
+ * to the dimension lengths. Zero leaves the chunk size to the netCDF library,
+ * or spans the whole dimension when only the other multidimensional size is
+ * set. A deflate level of zero writes uncompressed chunks.
+ */
+public class StorageOptions {
+
+    public static final StorageOptions DEFAULT = new StorageOptions(0, 0, 0, 0, false);
+
+    public final int chunkRecords;
+    public final int chunkStations;
+    public final int chunkTimes;
+    public final int deflateLevel;
+    public final boolean shuffle;
+
+    public StorageOptions(int chunkRecords, int chunkStations, int chunkTimes,
+            int deflateLevel, boolean shuffle) {
+        if (chunkRecords < 0 || chunkStations < 0 || chunkTimes < 0) {
+            throw new IllegalArgumentException("Chunk sizes can't be negative");
+        }
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("Deflate level must be 0 to 9, not " + deflateLevel);
+        }
+        this.chunkRecords = chunkRecords;
+        this.chunkStations = chunkStations;
+        this.chunkTimes = chunkTimes;
+        this.deflateLevel = deflateLevel;
+        this.shuffle = shuffle;
+    }
+
+    /**
+     * @param records observations per chunk of the ragged record variable
+     */
+    public static StorageOptions ragged(int records, int deflateLevel, boolean shuffle) {
+        return new StorageOptions(records, 0, 0, deflateLevel, shuffle);
+    }
+
+    /**
+     * @param stations stations per chunk of the [station, time] variables
+     * @param times time steps per chunk of the [station, time] variables
+     */
+    public static StorageOptions multiDimensional(int stations, int times, int deflateLevel, boolean shuffle) {
+        return new StorageOptions(0, stations, times, deflateLevel, shuffle);
+    }
+
+    public boolean isCompressed() {
+        return deflateLevel > 0;
+    }
+
+    /**
+     * Set chunking and filters of a ragged record variable, in define mode
+     */
+    void applyRagged(int ncId, int varId) {
+        if (chunkRecords > 0) {
+            status(nc_def_var_chunking(ncId, varId, NC_CHUNKED,
+                    new NativeLong[] { new NativeLong(chunkRecords) }));
+        }
+        applyFilters(ncId, varId);
+    }
+
+    /**
+     * Set chunking and filters of a [station, time] variable, in define mode
+     */
+    void applyMultiDimensional(int ncId, int varId, int stationCount, int timeCount) {
+        if (chunkStations > 0 || chunkTimes > 0) {
+            status(nc_def_var_chunking(ncId, varId, NC_CHUNKED, new NativeLong[] {
+                new NativeLong(getChunkStations(stationCount)),
+                new NativeLong(getChunkTimes(timeCount))
+            }));
+        }
+        applyFilters(ncId, varId);
+    }
+
+    /**
+     * @return stations per chunk for a station dimension of this length
+     */
+    int getChunkStations(int stationCount) {
+        return clamp(chunkStations, stationCount);
+    }
+
+    /**
+     * @return time steps per chunk for a time dimension of this length
+     */
+    int getChunkTimes(int timeCount) {
+        return clamp(chunkTimes, timeCount);
+    }
+
+    private void applyFilters(int ncId, int varId) {
+        if (shuffle || deflateLevel > 0) {
+            status(nc_def_var_deflate(ncId, varId, shuffle ? 1 : 0, deflateLevel > 0 ? 1 : 0, deflateLevel));
+        }
+    }
+
+    private static int clamp(int chunk, int length) {
+        int limit = Math.max(1, length);
+        return (chunk <= 0) ? limit : Math.min(chunk, limit);
+    }
+
+    @Override
+    public String toString() {
+        return "chunk records=" + chunkRecords + " stations=" + chunkStations + " times=" + chunkTimes
+                + ", deflate=" + deflateLevel + (shuffle ? ", shuffle" : "");
+    }
+}
@@ -0,0 +1,80 @@
+package gov.usgs.cida.netcdf.dsg;
+
+/**
+ * Puts every observation into several sinks, e.g. a NetCDF writer and an
+ * ArrowFileSink, so one ingest pass writes every format. Batches go to each
+ * sink as a batch where it takes them.
+ */
+public class TeeSink implements ObservationBatchSink {
+
+    private final ObservationSink[] sinks;
+
+    public TeeSink(ObservationSink... sinks) {
+        if (sinks.length == 0) {
+            throw new IllegalArgumentException("Need at least one sink");
+        }
+        this.sinks = sinks;
+    }
+
+    /**
+     * @return true if every sink accepted the observation
+     */
+    @Override
+    public boolean putObservation(Observation observation) {
+        boolean accepted = true;
+        for (ObservationSink sink : sinks) {
+            accepted &= sink.putObservation(observation);
+        }
+        return accepted;
+    }
+
+    /**
+     * @return fewest rows accepted by any sink
+     */
+    @Override
+    public int putBatch(ObservationBatch batch) {
+        int accepted = batch.size;
+        for (ObservationSink sink : sinks) {
+            int put = 0;
+            if (sink instanceof ObservationBatchSink) {
+                put = ((ObservationBatchSink) sink).putBatch(batch);
+            }
+            else {
+                for (int i = 0; i < batch.size; i++) {
+                    if (sink.putObservation(batch.getObservation(i))) {
+                        put++;
+                    }
+                }
+            }
+            accepted = Math.min(accepted, put);
+        }
+        return accepted;
+    }
+
+    @Override
+    public void sync() {
+        for (ObservationSink sink : sinks) {
+            sink.sync();
+        }
+    }
+
+    /**
+     * Closes every sink even if one fails, the first failure is thrown
+     */
+    @Override
+    public void close() {
+        RuntimeException failure = null;
+        for (ObservationSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (RuntimeException re) {
+                if (failure == null) {
+                    failure = re;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
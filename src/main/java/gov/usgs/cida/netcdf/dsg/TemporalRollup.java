@@ -0,0 +1,396 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Aggregates a stream of fine resolution observations (e.g. daily) into any
+ * number of coarser resolutions in one pass, writing each resolution to its
+ * own sink with its own time axis.
+ *
+ * Every target keeps, per station, the running sum, min, max and count of
+ * the bucket the station is currently in. When a station's next observation
+ * falls in a different bucket the finished bucket is written to the target,
+ * so each station's observations must arrive in time order. Stations may be
+ * interleaved in any way (time-major or station-major). Remaining buckets
+ * are written on close, which also closes the targets.
+ */
+public class TemporalRollup implements ObservationSink {
+
+    public enum Aggregate {
+        SUM,
+        MIN,
+        MAX,
+        COUNT,
+        MEAN
+    }
+
+    /**
+     * Maps an input time_offset to the time_offset of its bucket in a
+     * target. For StationTimeSeriesMultiDimensional targets that is the index
+     * on the target's time axis, see onAxis.
+     */
+    public interface Bucketing {
+        int bucketOf(int timeOffset);
+    }
+
+    private static final int NO_BUCKET = Integer.MIN_VALUE;
+
+    private final Variable[] inputVariables;
+    private final int stationCount;
+    private final List<Target> targets = new ArrayList<Target>();
+    private boolean isClosed = false;
+
+    /**
+     * @param inputVariables statistic variables of the incoming observations
+     * @param stationCount number of stations, station_index must be below this
+     */
+    public TemporalRollup(Variable[] inputVariables, int stationCount) {
+        this.inputVariables = inputVariables;
+        this.stationCount = stationCount;
+    }
+
+    /**
+     * Variables for a target, "&lt;input&gt;_&lt;aggregate&gt;" for every input
+     * variable and aggregate in the order the target writes them. MIN and MAX
+     * keep the input type, COUNT is NC_INT, SUM and MEAN are NC_DOUBLE.
+     */
+    public static Variable[] outputVariables(Variable[] inputVariables, Aggregate... aggregates) {
+        Variable[] outputs = new Variable[inputVariables.length * aggregates.length];
+        int o = 0;
+        for (Variable input : inputVariables) {
+            for (Aggregate aggregate : aggregates) {
+                Map<String, Object> attrs = new LinkedHashMap<String, Object>();
+                XType xtype;
+                switch (aggregate) {
+                    case MIN:
+                    case MAX:
+                        xtype = input.xtype;
+                        break;
+                    case COUNT:
+                        xtype = XType.NC_INT;
+                        break;
+                    default:
+                        xtype = XType.NC_DOUBLE;
+                        break;
+                }
+                Object units = input.attributes.get("units");
+                if (units != null && aggregate != Aggregate.COUNT) {
+                    attrs.put("units", units);
+                }
+                attrs.put("cell_methods", "time: " + cellMethod(aggregate));
+                outputs[o++] = new Variable(input.name + "_" + aggregate.name().toLowerCase(), xtype, attrs);
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * @param sink writer for this resolution
+     * @param bucketing input time_offset to output time_offset
+     * @param outputVariables variables of the sink, see outputVariables
+     * @param aggregates aggregates written for every input variable
+     */
+    public void addTarget(ObservationSink sink, Bucketing bucketing,
+            Variable[] outputVariables, Aggregate... aggregates) {
+        if (outputVariables.length != inputVariables.length * aggregates.length) {
+            throw new IllegalArgumentException("Expected " + inputVariables.length * aggregates.length
+                    + " output variables, got " + outputVariables.length);
+        }
+        targets.add(new Target(sink, bucketing, outputVariables, aggregates));
+    }
+
+    @Override
+    public boolean putObservation(Observation observation) {
+        int station = observation.station_index;
+        if (isClosed || station < 0 || station >= stationCount) {
+            return false;
+        }
+        for (Target target : targets) {
+            target.add(observation);
+        }
+        return true;
+    }
+
+    /**
+     * Syncs the targets, buckets still accumulating are not written
+     */
+    @Override
+    public void sync() {
+        for (Target target : targets) {
+            target.sink.sync();
+        }
+    }
+
+    /**
+     * Write every remaining bucket and close the targets
+     */
+    @Override
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        for (Target target : targets) {
+            for (int s = 0; s < stationCount; s++) {
+                target.emit(s);
+            }
+            target.sink.close();
+        }
+        isClosed = true;
+    }
+
+    /**
+     * Fixed length buckets, bucket i starts at input offset i * length
+     * @return bucket number of each offset
+     */
+    public static Bucketing fixed(final int length) {
+        return new Bucketing() {
+            @Override
+            public int bucketOf(int timeOffset) {
+                int bucket = timeOffset / length;
+                return (timeOffset % length < 0) ? bucket - 1 : bucket;
+            }
+        };
+    }
+
+    /**
+     * Calendar month buckets (UTC)
+     * @return offset of the start of each month in the output encoder's unit
+     */
+    public static Bucketing monthly(TimeEncoder input, TimeEncoder output) {
+        return new CalendarBucketing(input, output, Calendar.MONTH);
+    }
+
+    /**
+     * Calendar year buckets (UTC)
+     * @return offset of the start of each year in the output encoder's unit
+     */
+    public static Bucketing annual(TimeEncoder input, TimeEncoder output) {
+        return new CalendarBucketing(input, output, Calendar.YEAR);
+    }
+
+    /**
+     * Translate bucket offsets to indices on a multidimensional target's time
+     * axis, buckets missing from the axis map to -1 and are not written
+     */
+    public static Bucketing onAxis(final Bucketing bucketing, final StationTimeSeriesMultiDimensional target) {
+        return new Bucketing() {
+            @Override
+            public int bucketOf(int timeOffset) {
+                return target.getTimeIndex(bucketing.bucketOf(timeOffset));
+            }
+        };
+    }
+
+    /**
+     * @return distinct bucket offsets of every input offset in [first, last],
+     * the time axis for a multidimensional target
+     */
+    public static int[] axis(Bucketing bucketing, int firstTimeOffset, int lastTimeOffset) {
+        int[] buckets = new int[16];
+        int size = 0;
+        for (int t = firstTimeOffset; t <= lastTimeOffset && t >= firstTimeOffset; t++) {
+            int bucket = bucketing.bucketOf(t);
+            if (size == 0 || buckets[size - 1] != bucket) {
+                if (size == buckets.length) {
+                    buckets = Arrays.copyOf(buckets, size * 2);
+                }
+                buckets[size++] = bucket;
+            }
+        }
+        return Arrays.copyOf(buckets, size);
+    }
+
+    private static String cellMethod(Aggregate aggregate) {
+        switch (aggregate) {
+            case SUM:
+                return "sum";
+            case MIN:
+                return "minimum";
+            case MAX:
+                return "maximum";
+            case COUNT:
+                return "point";
+            default:
+                return "mean";
+        }
+    }
+
+    private class Target {
+        final ObservationSink sink;
+        final Bucketing bucketing;
+        final Variable[] outputVariables;
+        final Aggregate[] aggregates;
+
+        // per station, [station * inputVariables.length + v] for accumulators
+        final int[] bucket;
+        final double[] sum;
+        final double[] min;
+        final double[] max;
+        final int[] count;
+
+        Target(ObservationSink sink, Bucketing bucketing, Variable[] outputVariables, Aggregate[] aggregates) {
+            this.sink = sink;
+            this.bucketing = bucketing;
+            this.outputVariables = outputVariables;
+            this.aggregates = aggregates;
+            int size = stationCount * inputVariables.length;
+            bucket = new int[stationCount];
+            Arrays.fill(bucket, NO_BUCKET);
+            sum = new double[size];
+            min = new double[size];
+            max = new double[size];
+            count = new int[size];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        }
+
+        void add(Observation observation) {
+            int station = observation.station_index;
+            int b = bucketing.bucketOf(observation.time_offset);
+            if (b != bucket[station]) {
+                emit(station);
+                bucket[station] = b;
+            }
+            int base = station * inputVariables.length;
+            int vCount = Math.min(inputVariables.length, observation.values.length);
+            for (int v = 0; v < vCount; v++) {
+                Object value = observation.values[v];
+                if (value == null || value.equals(inputVariables[v].getFillValue())) {
+                    continue;
+                }
+                double x = ((Number) value).doubleValue();
+                if (Double.isNaN(x)) {
+                    continue;
+                }
+                int i = base + v;
+                sum[i] += x;
+                if (x < min[i]) {
+                    min[i] = x;
+                }
+                if (x > max[i]) {
+                    max[i] = x;
+                }
+                count[i]++;
+            }
+        }
+
+        void emit(int station) {
+            if (bucket[station] == NO_BUCKET) {
+                return;
+            }
+            int base = station * inputVariables.length;
+            Object[] values = new Object[outputVariables.length];
+            int o = 0;
+            for (int v = 0; v < inputVariables.length; v++) {
+                int i = base + v;
+                for (Aggregate aggregate : aggregates) {
+                    Variable output = outputVariables[o];
+                    if (count[i] == 0 && aggregate != Aggregate.COUNT) {
+                        values[o++] = output.getFillValue();
+                        continue;
+                    }
+                    double x;
+                    switch (aggregate) {
+                        case SUM:
+                            x = sum[i];
+                            break;
+                        case MIN:
+                            x = min[i];
+                            break;
+                        case MAX:
+                            x = max[i];
+                            break;
+                        case COUNT:
+                            x = count[i];
+                            break;
+                        default:
+                            x = sum[i] / count[i];
+                            break;
+                    }
+                    values[o++] = box(output, x);
+                }
+                sum[i] = 0.0;
+                min[i] = Double.POSITIVE_INFINITY;
+                max[i] = Double.NEGATIVE_INFINITY;
+                count[i] = 0;
+            }
+            // buckets that aren't on a multidimensional target's time axis (see onAxis) are dropped
+            if (bucket[station] >= 0 || !(sink instanceof StationTimeSeriesMultiDimensional)) {
+                sink.putObservation(new Observation(bucket[station], station, values));
+            }
+            bucket[station] = NO_BUCKET;
+        }
+    }
+
+    private static Object box(Variable variable, double x) {
+        switch (variable.xtype) {
+            case NC_BYTE:
+                return Byte.valueOf((byte) x);
+            case NC_SHORT:
+                return Short.valueOf((short) x);
+            case NC_INT:
+                return Integer.valueOf((int) x);
+            case NC_LONG:
+                return Long.valueOf((long) x);
+            case NC_FLOAT:
+                return Float.valueOf((float) x);
+            case NC_DOUBLE:
+                return Double.valueOf(x);
+            default:
+                throw new UnsupportedOperationException("Should implement the other types");
+        }
+    }
+
+    private static class CalendarBucketing implements Bucketing {
+        private final TimeEncoder input;
+        private final TimeEncoder output;
+        private final int field;
+        private final Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        // input offsets in [rangeStart, rangeEnd) are in lastBucket
+        private int rangeStart;
+        private int rangeEnd;
+        private int lastBucket = NO_BUCKET;
+
+        CalendarBucketing(TimeEncoder input, TimeEncoder output, int field) {
+            this.input = input;
+            this.output = output;
+            this.field = field;
+        }
+
+        @Override
+        public int bucketOf(int timeOffset) {
+            if (lastBucket != NO_BUCKET && timeOffset >= rangeStart && timeOffset < rangeEnd) {
+                return lastBucket;
+            }
+            calendar.setTimeInMillis(input.decode(timeOffset));
+            if (field == Calendar.YEAR) {
+                calendar.set(Calendar.MONTH, Calendar.JANUARY);
+            }
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            long start = calendar.getTimeInMillis();
+            calendar.add(field, 1);
+            long end = calendar.getTimeInMillis();
+            rangeStart = firstOffsetAtOrAfter(start);
+            rangeEnd = firstOffsetAtOrAfter(end);
+            lastBucket = output.encode(start);
+            return lastBucket;
+        }
+
+        private int firstOffsetAtOrAfter(long millis) {
+            int offset = input.encode(millis);
+            return (input.decode(offset) < millis) ? offset + 1 : offset;
+        }
+    }
+}
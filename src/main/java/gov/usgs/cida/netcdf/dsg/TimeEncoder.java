@@ -0,0 +1,187 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts epoch timestamps to the integer offsets stored in the time
+ * variable, for a UDUNITS style unit string such as
+ * "days since 2011-01-01 00:00:00Z".
+ *
+ * The unit string is parsed once, encoding is then a subtraction and a
+ * division with no allocation.
+ */
+public class TimeEncoder {
+
+    private static final Pattern UNIT_PATTERN = Pattern.compile(
+            "\\s*(\\w+)\\s+since\\s+(.+?)\\s*", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern DATE_PATTERN = Pattern.compile(
+            "(-?\\d{1,4})-(\\d{1,2})-(\\d{1,2})"
+            + "(?:[ T](\\d{1,2}):(\\d{1,2})(?::(\\d{1,2})(?:\\.(\\d+))?)?)?"
+            + "\\s*(Z|UTC|GMT|[+-]\\d{1,2}(?::?\\d{2})?)?");
+
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final long MILLIS_PER_MINUTE = 60L * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60L * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24L * MILLIS_PER_HOUR;
+    private static final long MILLIS_PER_WEEK = 7L * MILLIS_PER_DAY;
+
+    private final String timeUnit;
+    private final long baseMillis;
+    private final long unitMillis;
+
+    public TimeEncoder(String timeUnit) {
+        Matcher unitMatcher = UNIT_PATTERN.matcher(timeUnit);
+        if (!unitMatcher.matches()) {
+            throw new IllegalArgumentException(
+                    "Time unit must be of the form \"<units> since <date>\": " + timeUnit);
+        }
+        this.timeUnit = timeUnit;
+        this.unitMillis = parseUnitMillis(unitMatcher.group(1));
+        this.baseMillis = parseBaseMillis(unitMatcher.group(2));
+    }
+
+    public String getTimeUnit() {
+        return timeUnit;
+    }
+
+    /**
+     * @return epoch milliseconds of offset 0
+     */
+    public long getBaseMillis() {
+        return baseMillis;
+    }
+
+    /**
+     * @return length of one unit of offset in milliseconds
+     */
+    public long getUnitMillis() {
+        return unitMillis;
+    }
+
+    /**
+     * Timestamps that fall between two offsets are floored to the earlier one.
+     * @param epochMillis milliseconds since 1970-01-01 00:00:00Z
+     * @return time_offset for an Observation
+     */
+    public int encode(long epochMillis) {
+        long offset = floorOffset(epochMillis);
+        if (offset > Integer.MAX_VALUE || offset < Integer.MIN_VALUE) {
+            throw new IllegalArgumentException(
+                    "Timestamp " + epochMillis + " is out of range for " + timeUnit);
+        }
+        return (int) offset;
+    }
+
+    /**
+     * @return true if the timestamp's offset fits in an int, so encode
+     * won't throw
+     */
+    public boolean canEncode(long epochMillis) {
+        long offset = floorOffset(epochMillis);
+        return offset <= Integer.MAX_VALUE && offset >= Integer.MIN_VALUE;
+    }
+
+    public int encode(Date date) {
+        return encode(date.getTime());
+    }
+
+    /**
+     * @param offset time_offset in this encoder's units
+     * @return milliseconds since 1970-01-01 00:00:00Z
+     */
+    public long decode(int offset) {
+        return baseMillis + offset * unitMillis;
+    }
+
+    /**
+     * @return offset of the timestamp, Long.MIN_VALUE or Long.MAX_VALUE if
+     * it's too far from the base to subtract
+     */
+    private long floorOffset(long epochMillis) {
+        long delta = epochMillis - baseMillis;
+        if (((epochMillis ^ baseMillis) & (epochMillis ^ delta)) < 0) {
+            return (epochMillis < baseMillis) ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        long offset = delta / unitMillis;
+        if (delta % unitMillis < 0) {
+            offset--;
+        }
+        return offset;
+    }
+
+    private static long parseUnitMillis(String units) {
+        String unit = units.toLowerCase();
+        if (unit.equals("days") || unit.equals("day") || unit.equals("d")) {
+            return MILLIS_PER_DAY;
+        }
+        else if (unit.equals("hours") || unit.equals("hour") || unit.equals("hrs")
+                || unit.equals("hr") || unit.equals("h")) {
+            return MILLIS_PER_HOUR;
+        }
+        else if (unit.equals("minutes") || unit.equals("minute") || unit.equals("mins")
+                || unit.equals("min")) {
+            return MILLIS_PER_MINUTE;
+        }
+        else if (unit.equals("seconds") || unit.equals("second") || unit.equals("secs")
+                || unit.equals("sec") || unit.equals("s")) {
+            return MILLIS_PER_SECOND;
+        }
+        else if (unit.equals("milliseconds") || unit.equals("millisecond")
+                || unit.equals("msec") || unit.equals("ms")) {
+            return 1L;
+        }
+        else if (unit.equals("weeks") || unit.equals("week")) {
+            return MILLIS_PER_WEEK;
+        }
+        // months and years are not fixed length so they can't be encoded this way
+        throw new IllegalArgumentException("Unsupported time units: " + units);
+    }
+
+    private static long parseBaseMillis(String date) {
+        Matcher dateMatcher = DATE_PATTERN.matcher(date);
+        if (!dateMatcher.matches()) {
+            throw new IllegalArgumentException("Unable to parse reference date: " + date);
+        }
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(Integer.parseInt(dateMatcher.group(1)),
+                Integer.parseInt(dateMatcher.group(2)) - 1,
+                Integer.parseInt(dateMatcher.group(3)),
+                parseField(dateMatcher.group(4)),
+                parseField(dateMatcher.group(5)),
+                parseField(dateMatcher.group(6)));
+        long millis = calendar.getTimeInMillis();
+
+        String fraction = dateMatcher.group(7);
+        if (fraction != null) {
+            millis += Math.round(Double.parseDouble("0." + fraction) * MILLIS_PER_SECOND);
+        }
+
+        String zone = dateMatcher.group(8);
+        if (zone != null && (zone.charAt(0) == '+' || zone.charAt(0) == '-')) {
+            String digits = zone.substring(1).replace(":", "");
+            int hours;
+            int minutes = 0;
+            if (digits.length() > 2) {
+                hours = Integer.parseInt(digits.substring(0, digits.length() - 2));
+                minutes = Integer.parseInt(digits.substring(digits.length() - 2));
+            }
+            else {
+                hours = Integer.parseInt(digits);
+            }
+            long zoneMillis = hours * MILLIS_PER_HOUR + minutes * MILLIS_PER_MINUTE;
+            millis -= (zone.charAt(0) == '+') ? zoneMillis : -zoneMillis;
+        }
+        return millis;
+    }
+
+    private static int parseField(String field) {
+        return (field == null) ? 0 : Integer.parseInt(field);
+    }
+}
@@ -1,6 +1,7 @@
 package gov.usgs.cida.netcdf.dsg;
 
 import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,6 +17,18 @@ public class Variable {
     public final Map<String, Object> attributes;
     
     public int ncVarId;
+    
+    /**
+     * CF attribute recording the mantissa bits kept by setMantissaBits
+     */
+    public static final String QUANTIZATION_NSB = "quantization_nsb";
+    
+    private static final double LOG2_10 = Math.log(10) / Math.log(2);
+    
+    private CategoryDictionary categories;
+    private int mantissaBits = 0;
+    private int fillFloatBits;
+    private long fillDoubleBits;
             
     public enum VariableType {
         TIME,
@@ -41,7 +54,134 @@ public class Variable {
         ncVarId = -1;  // This should be updated when this Variable object is used to call nc_def_var
     }
     
+    /**
+     * String valued statistic stored as codes of codeType (NC_BYTE, NC_SHORT
+     * or NC_INT), looked up in a CategoryDictionary built while writing.
+     * Observation values are Strings, the fill value is the code type's.
+     */
+    public static Variable createCategorical(String name, XType codeType, Map<String, Object> attrs) {
+        return createCategorical(name, codeType, CategoryDictionary.DEFAULT_MAX_LENGTH, attrs);
+    }
+    
+    /**
+     * @param maxLength longest category accepted
+     */
+    public static Variable createCategorical(String name, XType codeType, int maxLength, Map<String, Object> attrs) {
+        Variable variable = new Variable(name, codeType, attrs);
+        variable.categories = new CategoryDictionary(codeType, maxLength);
+        return variable;
+    }
+    
+    /**
+     * @return dictionary of a categorical variable, otherwise null
+     */
+    public CategoryDictionary getCategories() {
+        return categories;
+    }
+    
+    /**
+     * Keep only the leading mantissa bits of NC_FLOAT or NC_DOUBLE values
+     * (BitRound: round to nearest, ties to even, trailing bits zeroed) so
+     * deflate compresses them better. Fill values, NaN and infinities are
+     * written unchanged. Set before the variable is added to a RecordType or
+     * writer, the writers record it as the quantization_nsb attribute.
+     * @param bits explicit mantissa bits kept, 1 to 23 (float) or 52 (double)
+     */
+    public void setMantissaBits(int bits) {
+        int full;
+        if (categories == null && xtype == XType.NC_FLOAT) {
+            full = 23;
+        }
+        else if (categories == null && xtype == XType.NC_DOUBLE) {
+            full = 52;
+        }
+        else {
+            throw new IllegalStateException("Only NC_FLOAT and NC_DOUBLE values can be trimmed, " + name + " is " + xtype);
+        }
+        if (bits < 1 || bits > full) {
+            throw new IllegalArgumentException("Mantissa bits of " + xtype + " must be 1 to " + full + ", not " + bits);
+        }
+        Number fill = (Number) getFillValue();
+        fillFloatBits = Float.floatToRawIntBits(fill.floatValue());
+        fillDoubleBits = Double.doubleToRawLongBits(fill.doubleValue());
+        mantissaBits = bits;
+    }
+    
+    /**
+     * Keep enough mantissa bits for this many significant decimal digits
+     * (ceil(digits * log2(10)), at most the full mantissa), see setMantissaBits
+     */
+    public void setSignificantDigits(int digits) {
+        if (digits < 1) {
+            throw new IllegalArgumentException("Need at least one significant digit, not " + digits);
+        }
+        int full = (xtype == XType.NC_DOUBLE) ? 52 : 23;
+        setMantissaBits(Math.min(full, (int) Math.ceil(digits * LOG2_10)));
+    }
+    
+    /**
+     * @return mantissa bits kept, 0 for full precision
+     */
+    public int getMantissaBits() {
+        return mantissaBits;
+    }
+    
+    public boolean isQuantized() {
+        return mantissaBits > 0;
+    }
+    
+    /**
+     * @return value with the trailing mantissa bits rounded off
+     */
+    public float quantize(float value) {
+        int shift = 23 - mantissaBits;
+        int bits = Float.floatToRawIntBits(value);
+        if (mantissaBits == 0 || shift == 0 || (bits & 0x7f800000) == 0x7f800000 || bits == fillFloatBits) {
+            return value;
+        }
+        int mask = -1 << shift;
+        int rounded = (bits + (1 << (shift - 1)) - 1 + ((bits >>> shift) & 1)) & mask;
+        if ((rounded & 0x7f800000) == 0x7f800000) {
+            // rounding up the largest values would overflow to infinity
+            rounded = bits & mask;
+        }
+        return Float.intBitsToFloat(rounded);
+    }
+    
+    /**
+     * @return value with the trailing mantissa bits rounded off
+     */
+    public double quantize(double value) {
+        int shift = 52 - mantissaBits;
+        long bits = Double.doubleToRawLongBits(value);
+        if (mantissaBits == 0 || shift == 0 || (bits & 0x7ff0000000000000L) == 0x7ff0000000000000L
+                || bits == fillDoubleBits) {
+            return value;
+        }
+        long mask = -1L << shift;
+        long rounded = (bits + (1L << (shift - 1)) - 1 + ((bits >>> shift) & 1)) & mask;
+        if ((rounded & 0x7ff0000000000000L) == 0x7ff0000000000000L) {
+            rounded = bits & mask;
+        }
+        return Double.longBitsToDouble(rounded);
+    }
+    
+    /**
+     * Quantize the native order value at position in place
+     */
+    void quantize(ByteBuffer buffer, int position) {
+        if (xtype == XType.NC_FLOAT) {
+            buffer.putFloat(position, quantize(buffer.getFloat(position)));
+        }
+        else {
+            buffer.putDouble(position, quantize(buffer.getDouble(position)));
+        }
+    }
+    
     public Class getValueClass() {
+        if (categories != null) {
+            return String.class;
+        }
         switch (this.xtype) {
             case NC_BYTE:
                 return Byte.class;
@@ -63,20 +203,59 @@ public class Variable {
         }
     }
     
+    /**
+     * @return the _FillValue attribute if set, otherwise the netCDF default fill
+     * for this type, boxed to getValueClass() (the code type for categorical
+     * variables)
+     */
+    public Object getFillValue() {
+        Object fill = attributes.get("_FillValue");
+        if (fill != null) {
+            return fill;
+        }
+        switch (this.xtype) {
+            case NC_BYTE:
+                return Byte.valueOf((byte) -127);
+            case NC_DOUBLE:
+                return Double.valueOf(9.9692099683868690e+36);
+            case NC_FLOAT:
+                return Float.valueOf(9.9692099683868690e+36f);
+            case NC_INT:
+                return Integer.valueOf(-2147483647);
+            case NC_LONG:
+                return Long.valueOf(-2147483647L);
+            case NC_SHORT:
+                return Short.valueOf((short) -32767);
+            default:
+                return null;
+        }
+    }
+    
     // Quick constructor for time
     public static Variable createTimeVariable(String timeUnits) {
+        return createTimeVariable(timeUnits, XType.NC_INT);
+    }
+    
+    public static Variable createTimeVariable(String timeUnits, XType xtype) {
         Map<String, Object> map = new HashMap<String, Object>();
         map.put("units", timeUnits);
         map.put("standard_name", "time");
-        return new Variable("time", XType.NC_INT, map);
+        return new Variable("time", xtype, map);
     }
     
     // Quick constructor for station_id
     public static Variable createStationIdVariable() {
+        return createStationIdVariable(XType.NC_INT);
+    }
+    
+    /**
+     * @param xtype type of the station index field of the ragged record
+     */
+    public static Variable createStationIdVariable(XType xtype) {
         Map<String, Object> map = new HashMap<String, Object>();
         map.put("standard_name", "station_id");
         map.put("cf_role", "timeseries_id");
-        return new Variable("station_id", XType.NC_INT, map);
+        return new Variable("station_id", xtype, map);
     }
     
     public static Variable createLatitude() {
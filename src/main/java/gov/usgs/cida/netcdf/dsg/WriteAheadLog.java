@@ -0,0 +1,311 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of observation batches, written and forced to disk before
+ * the batch reaches a writer so a crashed ingest can be replayed, see
+ * JournaledWriter.
+ *
+ * Every observation gets a sequence number. The log starts at a base
+ * sequence (all observations before it are committed to the NetCDF file)
+ * and holds batches of [payload length, observation count, observations,
+ * CRC32]. A torn batch at the end from a crash fails its CRC and is cut off
+ * when the log is opened again.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final int MAGIC = 0x4f57414c; // "OWAL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int BATCH_OVERHEAD = 4 + 4 + 8;
+
+    private static final byte NULL = 'n';
+    private static final byte BYTE = 'b';
+    private static final byte SHORT = 's';
+    private static final byte INT = 'i';
+    private static final byte LONG = 'l';
+    private static final byte FLOAT = 'f';
+    private static final byte DOUBLE = 'd';
+    // categorical values, length then UTF-8 bytes
+    private static final byte STRING = 't';
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private long baseSequence;
+    private long nextSequence;
+    private long bytesWritten = 0;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    /**
+     * Open the log, creating it if needed. An existing log is scanned and
+     * any torn batch at its end is cut off.
+     */
+    public WriteAheadLog(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        if (channel.size() < HEADER_SIZE) {
+            writeHeader(0);
+        }
+        else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a write ahead log: " + file);
+            }
+            baseSequence = header.getLong(8);
+            nextSequence = baseSequence;
+            long end = scan(null, Long.MAX_VALUE);
+            if (end < channel.size()) {
+                channel.truncate(end);
+                channel.force(true);
+            }
+        }
+        channel.position(channel.size());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return sequence number of the first observation in the log
+     */
+    public long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+     * @return sequence number the next observation appended will get
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Append a batch and force it to disk
+     * @return sequence number after the batch
+     */
+    public long append(List<Observation> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return nextSequence;
+        }
+        bytes.reset();
+        out.writeInt(0); // payload length, filled in below
+        out.writeInt(batch.size());
+        for (Observation observation : batch) {
+            writeObservation(observation);
+        }
+        out.flush();
+        byte[] data = bytes.toByteArray();
+        int payloadLength = data.length - 8;
+        ByteBuffer buffer = ByteBuffer.allocate(data.length + 8);
+        buffer.put(data);
+        buffer.putInt(0, payloadLength);
+        CRC32 crc = new CRC32();
+        crc.update(data, 4, data.length - 4);
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        bytesWritten += data.length + 8;
+        nextSequence += batch.size();
+        return nextSequence;
+    }
+
+    /**
+     * Put every logged observation from fromSequence on into the sink
+     * @return number of observations replayed
+     */
+    public long replay(long fromSequence, ObservationSink sink) throws IOException {
+        long before = nextSequence;
+        nextSequence = baseSequence;
+        try {
+            scan(sink, fromSequence);
+            return Math.max(0, nextSequence - Math.max(fromSequence, baseSequence));
+        } finally {
+            nextSequence = before;
+        }
+    }
+
+    /**
+     * Drop every batch, the observations before sequence are committed
+     */
+    public void reset(long sequence) throws IOException {
+        channel.truncate(HEADER_SIZE);
+        writeHeader(sequence);
+        channel.position(HEADER_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+    }
+
+    /**
+     * Walk the batches from the header, counting sequence numbers and
+     * putting observations at or after fromSequence into the sink
+     * @return end of the last complete batch
+     */
+    private long scan(ObservationSink sink, long fromSequence) throws IOException {
+        long position = HEADER_SIZE;
+        long size = channel.size();
+        ByteBuffer lengths = ByteBuffer.allocate(8);
+        while (position + BATCH_OVERHEAD <= size) {
+            lengths.clear();
+            readFully(lengths, position);
+            int payloadLength = lengths.getInt(0);
+            int count = lengths.getInt(4);
+            if (payloadLength < 0 || count < 0 || position + BATCH_OVERHEAD + payloadLength > size) {
+                break;
+            }
+            ByteBuffer batch = ByteBuffer.allocate(payloadLength + 8);
+            readFully(batch, position + 8);
+            CRC32 crc = new CRC32();
+            crc.update(lengths.array(), 4, 4);
+            crc.update(batch.array(), 0, payloadLength);
+            if (crc.getValue() != batch.getLong(payloadLength)) {
+                break;
+            }
+            if (sink != null && nextSequence + count > fromSequence) {
+                batch.limit(payloadLength);
+                for (int i = 0; i < count; i++) {
+                    Observation observation = readObservation(batch);
+                    if (nextSequence + i >= fromSequence) {
+                        sink.putObservation(observation);
+                    }
+                }
+            }
+            nextSequence += count;
+            position += BATCH_OVERHEAD + payloadLength;
+        }
+        return position;
+    }
+
+    private void writeHeader(long sequence) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(sequence);
+        header.flip();
+        channel.write(header, 0);
+        channel.force(true);
+        baseSequence = sequence;
+        nextSequence = sequence;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        buffer.flip();
+    }
+
+    private void writeObservation(Observation observation) throws IOException {
+        out.writeInt(observation.time_offset);
+        out.writeInt(observation.station_index);
+        out.writeShort(observation.values.length);
+        for (Object value : observation.values) {
+            if (value == null) {
+                out.writeByte(NULL);
+            }
+            else if (value instanceof Byte) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) value);
+            }
+            else if (value instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) value);
+            }
+            else if (value instanceof Integer) {
+                out.writeByte(INT);
+                out.writeInt((Integer) value);
+            }
+            else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            }
+            else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            }
+            else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            }
+            else if (value instanceof String) {
+                byte[] utf8 = ((String) value).getBytes(UTF8);
+                out.writeByte(STRING);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+            else {
+                throw new UnsupportedOperationException("Should implement the other types");
+            }
+        }
+    }
+
+    private static Observation readObservation(ByteBuffer buffer) throws IOException {
+        int timeOffset = buffer.getInt();
+        int stationIndex = buffer.getInt();
+        Object[] values = new Object[buffer.getShort()];
+        for (int v = 0; v < values.length; v++) {
+            byte type = buffer.get();
+            switch (type) {
+                case NULL:
+                    values[v] = null;
+                    break;
+                case BYTE:
+                    values[v] = buffer.get();
+                    break;
+                case SHORT:
+                    values[v] = buffer.getShort();
+                    break;
+                case INT:
+                    values[v] = buffer.getInt();
+                    break;
+                case LONG:
+                    values[v] = buffer.getLong();
+                    break;
+                case FLOAT:
+                    values[v] = buffer.getFloat();
+                    break;
+                case DOUBLE:
+                    values[v] = buffer.getDouble();
+                    break;
+                case STRING:
+                    byte[] utf8 = new byte[buffer.getInt()];
+                    buffer.get(utf8);
+                    values[v] = new String(utf8, UTF8);
+                    break;
+                default:
+                    throw new IOException("Unknown value type " + type + " in write ahead log");
+            }
+        }
+        return new Observation(timeOffset, stationIndex, values);
+    }
+}
@@ -0,0 +1,234 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps at most maxOpen writers open across any number of files. When
+ * another file needs a handle the least recently used writer is synced and
+ * closed, and it's reopened in append mode the next time an observation for
+ * its file arrives, so descriptor and HDF5 cache use stay bounded.
+ *
+ * Writers are created the first time a file is seen and reopened after that,
+ * see Factory. The duplicate and flush policies of a closed
+ * StationTimeSeriesNetCDFFile or StationTimeSeriesMultiDimensional are set
+ * again on the writer that reopens its file, so a duplicate policy reads the
+ * file's keys back on every reopen. Statistics kept by a writer would only
+ * cover the observations put through that instance, the pool refuses
+ * writers that keep them.
+ *
+ * Not thread safe, wrap it in a NativeWriteScheduler queue to share it.
+ */
+public class WriterPool<W extends ObservationSink> {
+
+    /**
+     * Opens writers for the pool, e.g. with the file's own station list for
+     * create and the StationTimeSeriesNetCDFFile(File, RecordType) or
+     * StationTimeSeriesMultiDimensional(File, Variable[]) constructors for
+     * reopen.
+     */
+    public interface Factory<W extends ObservationSink> {
+        W create(File file);
+        W reopen(File file);
+    }
+
+    private final int maxOpen;
+    private final Factory<W> factory;
+    private final LinkedHashMap<File, W> open;
+    private final Set<File> known = new HashSet<File>();
+    private final Map<File, Settings> settings = new HashMap<File, Settings>();
+    private int openCount = 0;
+    private int reopenCount = 0;
+    private int evictionCount = 0;
+
+    public WriterPool(int maxOpen, Factory<W> factory) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("maxOpen must be at least 1");
+        }
+        this.maxOpen = maxOpen;
+        this.factory = factory;
+        // access order so iteration starts at the least recently used writer
+        this.open = new LinkedHashMap<File, W>(16, 0.75f, true);
+    }
+
+    /**
+     * @return open writer for the file, created or reopened as needed
+     */
+    public W get(File file) {
+        W writer = open.get(file);
+        if (writer == null) {
+            while (open.size() >= maxOpen) {
+                evictEldest();
+            }
+            if (known.contains(file)) {
+                writer = factory.reopen(file);
+                reopenCount++;
+                Settings previous = settings.remove(file);
+                if (previous != null) {
+                    previous.applyTo(writer);
+                }
+            }
+            else {
+                writer = factory.create(file);
+                known.add(file);
+            }
+            openCount++;
+            if (Settings.hasStatistics(writer)) {
+                writer.close();
+                throw new IllegalStateException("Statistics of " + file
+                        + " would only cover part of its observations, leave them off for pooled files");
+            }
+            open.put(file, writer);
+        }
+        return writer;
+    }
+
+    public boolean putObservation(File file, Observation observation) {
+        return get(file).putObservation(observation);
+    }
+
+    public boolean isOpen(File file) {
+        return open.containsKey(file);
+    }
+
+    /**
+     * Sync the file if it's open, closed files are already on disk
+     */
+    public void sync(File file) {
+        W writer = open.get(file);
+        if (writer != null) {
+            writer.sync();
+        }
+    }
+
+    /**
+     * Close the file, the next observation for it reopens it
+     */
+    public void close(File file) {
+        W writer = open.remove(file);
+        if (writer != null) {
+            settings.put(file, Settings.of(writer));
+            writer.close();
+        }
+    }
+
+    /**
+     * Sync every open file
+     */
+    public void sync() {
+        for (W writer : open.values()) {
+            writer.sync();
+        }
+    }
+
+    /**
+     * Close every open file
+     */
+    public void close() {
+        RuntimeException failure = null;
+        Iterator<Map.Entry<File, W>> entries = open.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<File, W> entry = entries.next();
+            W writer = entry.getValue();
+            entries.remove();
+            settings.put(entry.getKey(), Settings.of(writer));
+            try {
+                writer.close();
+            } catch (RuntimeException re) {
+                if (failure == null) {
+                    failure = re;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public int getMaxOpen() {
+        return maxOpen;
+    }
+
+    public int getOpenFileCount() {
+        return open.size();
+    }
+
+    /**
+     * @return number of times a writer was created or reopened
+     */
+    public int getOpenCount() {
+        return openCount;
+    }
+
+    public int getReopenCount() {
+        return reopenCount;
+    }
+
+    public int getEvictionCount() {
+        return evictionCount;
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<File, W>> entries = open.entrySet().iterator();
+        Map.Entry<File, W> eldest = entries.next();
+        entries.remove();
+        W writer = eldest.getValue();
+        settings.put(eldest.getKey(), Settings.of(writer));
+        writer.sync();
+        writer.close();
+        evictionCount++;
+    }
+
+    /**
+     * Per file settings the writers can't read back from the file
+     */
+    private static class Settings {
+        final DuplicatePolicy duplicatePolicy;
+        final FlushPolicy flushPolicy;
+
+        Settings(DuplicatePolicy duplicatePolicy, FlushPolicy flushPolicy) {
+            this.duplicatePolicy = duplicatePolicy;
+            this.flushPolicy = flushPolicy;
+        }
+
+        static Settings of(ObservationSink writer) {
+            if (writer instanceof StationTimeSeriesNetCDFFile) {
+                StationTimeSeriesNetCDFFile ragged = (StationTimeSeriesNetCDFFile) writer;
+                return new Settings(ragged.getDuplicatePolicy(), ragged.getFlushMetrics().getPolicy());
+            }
+            if (writer instanceof StationTimeSeriesMultiDimensional) {
+                StationTimeSeriesMultiDimensional grid = (StationTimeSeriesMultiDimensional) writer;
+                return new Settings(grid.getDuplicatePolicy(), grid.getFlushMetrics().getPolicy());
+            }
+            return null;
+        }
+
+        static boolean hasStatistics(ObservationSink writer) {
+            if (writer instanceof StationTimeSeriesNetCDFFile) {
+                return ((StationTimeSeriesNetCDFFile) writer).getStatistics() != null;
+            }
+            if (writer instanceof StationTimeSeriesMultiDimensional) {
+                return ((StationTimeSeriesMultiDimensional) writer).getStatistics() != null;
+            }
+            return false;
+        }
+
+        void applyTo(ObservationSink writer) {
+            if (writer instanceof StationTimeSeriesNetCDFFile) {
+                StationTimeSeriesNetCDFFile ragged = (StationTimeSeriesNetCDFFile) writer;
+                ragged.setDuplicatePolicy(duplicatePolicy);
+                ragged.setFlushPolicy(flushPolicy);
+            }
+            else if (writer instanceof StationTimeSeriesMultiDimensional) {
+                StationTimeSeriesMultiDimensional grid = (StationTimeSeriesMultiDimensional) writer;
+                grid.setDuplicatePolicy(duplicatePolicy);
+                grid.setFlushPolicy(flushPolicy);
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package gov.usgs.cida.netcdf.dsg.ffm;
+
+import gov.usgs.cida.netcdf.dsg.NCDirect;
+import gov.usgs.cida.netcdf.dsg.NativeBackend;
+import gov.usgs.cida.netcdf.dsg.NativeBackends;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.nio.Buffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_DOUBLE;
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * NativeBackend on the Foreign Function &amp; Memory API (JDK 22+). Built
+ * only by the jdk22 profile and loaded reflectively by NativeBackends, run
+ * with --enable-native-access=ALL-UNNAMED to avoid the access warning.
+ *
+ * Start, count and index vectors and single values are copied into a per
+ * thread scratch segment, direct buffers are passed without copying. Typed
+ * hyperslab writes are critical downcalls, so they read the Java arrays in
+ * place.
+ */
+public class FFMBackend implements NativeBackend {
+
+    private static final int MAX_RANK = 32;
+
+    private final MethodHandle putVara;
+    private final MethodHandle putVar1Short;
+    private final MethodHandle putVar1Int;
+    private final MethodHandle putVar1Float;
+    private final MethodHandle putVar1Double;
+    private final MethodHandle putVaraShort;
+    private final MethodHandle putVaraInt;
+    private final MethodHandle putVaraFloat;
+    private final MethodHandle putVaraDouble;
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    public FFMBackend() {
+        if (ADDRESS.byteSize() != 8) {
+            throw new UnsupportedOperationException("size_t is assumed to be 64 bits");
+        }
+        String library = System.getProperty(NCDirect.LIBRARY_PROPERTY, NCDirect.DEFAULT_LIBRARY);
+        SymbolLookup lookup = SymbolLookup.libraryLookup(findLibrary(library), Arena.global());
+        Linker linker = Linker.nativeLinker();
+        putVara = downcall(linker, lookup, "nc_put_vara", ADDRESS);
+        putVar1Short = downcall(linker, lookup, "nc_put_var1_short", null);
+        putVar1Int = downcall(linker, lookup, "nc_put_var1_int", null);
+        putVar1Float = downcall(linker, lookup, "nc_put_var1_float", null);
+        putVar1Double = downcall(linker, lookup, "nc_put_var1_double", null);
+        putVaraShort = heapDowncall(linker, lookup, "nc_put_vara_short");
+        putVaraInt = heapDowncall(linker, lookup, "nc_put_vara_int");
+        putVaraFloat = heapDowncall(linker, lookup, "nc_put_vara_float");
+        putVaraDouble = heapDowncall(linker, lookup, "nc_put_vara_double");
+    }
+
+    /**
+     * Same search as JNA: jna.library.path, then java.library.path, then the
+     * system loader's own search by name
+     */
+    private static Path findLibrary(String library) {
+        String fileName = System.mapLibraryName(library);
+        for (String property : new String[] { "jna.library.path", "java.library.path" }) {
+            String paths = System.getProperty(property);
+            if (paths == null) {
+                continue;
+            }
+            for (String dir : paths.split(File.pathSeparator)) {
+                Path candidate = Paths.get(dir, fileName);
+                if (!dir.isEmpty() && Files.isRegularFile(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return Paths.get(fileName);
+    }
+
+    /**
+     * @param countLayout ADDRESS for the vara (ncid, varid, start, count, op)
+     * signature, null for var1 (ncid, varid, index, op)
+     */
+    private static MethodHandle downcall(Linker linker, SymbolLookup lookup, String name, ValueLayout countLayout) {
+        MemorySegment symbol = lookup.find(name)
+                .orElseThrow(() -> new UnsupportedOperationException(name + " not found"));
+        FunctionDescriptor descriptor = (countLayout == null)
+                ? FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, ADDRESS)
+                : FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, countLayout, ADDRESS);
+        return linker.downcallHandle(symbol, descriptor);
+    }
+
+    /**
+     * (ncid, varid, start, count, op) where op may be a heap segment, the
+     * call is short and never calls back into Java
+     */
+    private static MethodHandle heapDowncall(Linker linker, SymbolLookup lookup, String name) {
+        MemorySegment symbol = lookup.find(name)
+                .orElseThrow(() -> new UnsupportedOperationException(name + " not found"));
+        return linker.downcallHandle(symbol,
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, ADDRESS, ADDRESS),
+                Linker.Option.critical(true));
+    }
+
+    @Override
+    public String getName() {
+        return NativeBackends.FFM;
+    }
+
+    @Override
+    public int nc_put_vara(int ncid, int varid, long[] startp, long[] countp, Buffer op) {
+        Scratch s = scratch.get();
+        MemorySegment data = MemorySegment.ofBuffer(op);
+        try {
+            if (data.isNative()) {
+                return (int) putVara.invokeExact(ncid, varid, s.start(startp), s.count(countp), data);
+            }
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment copy = arena.allocate(data.byteSize(), 8);
+                copy.copyFrom(data);
+                return (int) putVara.invokeExact(ncid, varid, s.start(startp), s.count(countp), copy);
+            }
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int nc_put_vara_short(int ncid, int varid, long[] startp, long[] countp, short[] op) {
+        Scratch s = scratch.get();
+        try {
+            return (int) putVaraShort.invokeExact(ncid, varid, s.start(startp), s.count(countp),
+                    MemorySegment.ofArray(op));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int nc_put_vara_int(int ncid, int varid, long[] startp, long[] countp, int[] op) {
+        Scratch s = scratch.get();
+        try {
+            return (int) putVaraInt.invokeExact(ncid, varid, s.start(startp), s.count(countp),
+                    MemorySegment.ofArray(op));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int nc_put_vara_float(int ncid, int varid, long[] startp, long[] countp, float[] op) {
+        Scratch s = scratch.get();
+        try {
+            return (int) putVaraFloat.invokeExact(ncid, varid, s.start(startp), s.count(countp),
+                    MemorySegment.ofArray(op));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int nc_put_vara_double(int ncid, int varid, long[] startp, long[] countp, double[] op) {
+        Scratch s = scratch.get();
+        try {
+            return (int) putVaraDouble.invokeExact(ncid, varid, s.start(startp), s.count(countp),
+                    MemorySegment.ofArray(op));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int nc_put_var1_short(int ncid, int varid, long[] indexp, short op) {
+        Scratch s = scratch.get();
+        s.value.set(JAVA_SHORT, 0, op);
+        try {
+            return (int) putVar1Short.invokeExact(ncid, varid, s.start(indexp), s.value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int nc_put_var1_int(int ncid, int varid, long[] indexp, int op) {
+        Scratch s = scratch.get();
+        s.value.set(JAVA_INT, 0, op);
+        try {
+            return (int) putVar1Int.invokeExact(ncid, varid, s.start(indexp), s.value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int nc_put_var1_float(int ncid, int varid, long[] indexp, float op) {
+        Scratch s = scratch.get();
+        s.value.set(JAVA_FLOAT, 0, op);
+        try {
+            return (int) putVar1Float.invokeExact(ncid, varid, s.start(indexp), s.value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public int nc_put_var1_double(int ncid, int varid, long[] indexp, double op) {
+        Scratch s = scratch.get();
+        s.value.set(JAVA_DOUBLE, 0, op);
+        try {
+            return (int) putVar1Double.invokeExact(ncid, varid, s.start(indexp), s.value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException re) {
+            return re;
+        }
+        if (t instanceof Error e) {
+            throw e;
+        }
+        return new RuntimeException(t);
+    }
+
+    /**
+     * Native memory for the size_t vectors and single values of one thread
+     */
+    private static final class Scratch {
+        final MemorySegment startp;
+        final MemorySegment countp;
+        final MemorySegment value;
+
+        Scratch() {
+            Arena arena = Arena.ofAuto();
+            startp = arena.allocate(JAVA_LONG.byteSize() * MAX_RANK, JAVA_LONG.byteAlignment());
+            countp = arena.allocate(JAVA_LONG.byteSize() * MAX_RANK, JAVA_LONG.byteAlignment());
+            value = arena.allocate(JAVA_DOUBLE);
+        }
+
+        MemorySegment start(long[] values) {
+            return copy(values, startp);
+        }
+
+        MemorySegment count(long[] values) {
+            return copy(values, countp);
+        }
+
+        private static MemorySegment copy(long[] values, MemorySegment target) {
+            if (values.length > MAX_RANK) {
+                throw new IllegalArgumentException("At most " + MAX_RANK + " dimensions are supported");
+            }
+            MemorySegment.copy(values, 0, target, JAVA_LONG, 0, values.length);
+            return target;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileReader;
+import org.apache.arrow.vector.types.pojo.Schema;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArrowFileSinkTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private File testfile;
+    private Variable[] variables;
+    private Station[] stations;
+
+    @Before
+    public void setUp() throws IOException {
+        testfile = File.createTempFile("arrow-file-sink", ".arrow");
+        variables = new Variable[] {
+            new Variable("mean", XType.NC_FLOAT, new HashMap<String, Object>())
+        };
+        stations = new Station[] {
+            new Station(40f, -90f, "first"),
+            new Station(41f, -91f, "second")
+        };
+    }
+
+    @After
+    public void tearDown() {
+        testfile.delete();
+    }
+
+    @Test
+    public void testFileLayout() throws IOException {
+        ArrowFileSink sink = new ArrowFileSink(testfile, "days since 2011-01-01", variables, 4, stations);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(sink.putObservation(new Observation(10 + i, i % 2, (i == 1) ? null : (Float) (float) i)));
+        }
+        assertFalse(sink.putObservation(new Observation(0, 0, 1.0)));
+        assertEquals(6, sink.getRowCount());
+        sink.close();
+
+        ByteBuffer file = read();
+        int length = file.limit();
+        assertEquals("ARROW1", ascii(file, 0, 6));
+        assertEquals("ARROW1", ascii(file, length - 6, 6));
+        int footerLength = file.getInt(length - 10);
+        assertEquals(0, (length - 10 - footerLength) % 8);
+        assertTrue(ascii(file, length - 10 - footerLength, footerLength).contains("\"station_id\":\"second\""));
+
+        // schema message, then the first record batch of 4 rows
+        assertEquals(0xffffffff, file.getInt(8));
+        int batchStart = 16 + file.getInt(12);
+        assertEquals(0xffffffff, file.getInt(batchStart));
+        int body = batchStart + 8 + file.getInt(batchStart + 4);
+        assertEquals(0, body % 8);
+        for (int i = 0; i < 4; i++) {
+            // station_index values come first, time values after 16 bytes
+            assertEquals(i % 2, file.getInt(body + 4 * i));
+            assertEquals(10 + i, file.getInt(body + 16 + 4 * i));
+        }
+        // mean validity bitmap has row 1 (the null) cleared
+        assertEquals(0x0d, file.get(body + 32));
+        assertEquals(3f, file.getFloat(body + 40 + 12), 0f);
+
+        // end of stream marker just before the footer
+        assertEquals(0xffffffff, file.getInt(length - 10 - footerLength - 8));
+        assertEquals(0, file.getInt(length - 10 - footerLength - 4));
+    }
+
+    @Test
+    public void testReadBackWithArrow() throws IOException {
+        ArrowFileSink sink = new ArrowFileSink(testfile, "days since 2011-01-01", variables, 4, stations);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(sink.putObservation(new Observation(10 + i, i % 2, (i == 1) ? null : (Float) (float) i)));
+        }
+        sink.close();
+
+        RootAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+        ArrowFileReader reader = new ArrowFileReader(new FileInputStream(testfile).getChannel(), allocator);
+        try {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            Schema schema = root.getSchema();
+            Map<String, String> metadata = schema.getCustomMetadata();
+            assertEquals("timeSeries", metadata.get("featureType"));
+            assertEquals("days since 2011-01-01", metadata.get("time_units"));
+            assertTrue(metadata.get("stations").contains("\"station_id\":\"second\""));
+            assertEquals("days since 2011-01-01", schema.findField("time").getMetadata().get("units"));
+            assertEquals("NC_FLOAT", schema.findField("mean").getMetadata().get("netcdf_type"));
+            assertFalse(schema.findField("station_index").isNullable());
+            assertTrue(schema.findField("mean").isNullable());
+            assertEquals(2, reader.getRecordBlocks().size());
+
+            int row = 0;
+            while (reader.loadNextBatch()) {
+                IntVector station = (IntVector) root.getVector("station_index");
+                IntVector time = (IntVector) root.getVector("time");
+                Float4Vector mean = (Float4Vector) root.getVector("mean");
+                for (int i = 0; i < root.getRowCount(); i++, row++) {
+                    assertEquals(row % 2, station.get(i));
+                    assertEquals(10 + row, time.get(i));
+                    // the null observation value
+                    assertEquals(row == 1, mean.isNull(i));
+                    if (row != 1) {
+                        assertEquals(row, mean.get(i), 0f);
+                    }
+                }
+            }
+            assertEquals(6, row);
+        } finally {
+            reader.close();
+            allocator.close();
+        }
+    }
+
+    @Test
+    public void testTeeWritesEverySink() throws IOException {
+        ArrowFileSink arrow = new ArrowFileSink(testfile, "days since 2011-01-01", variables, 16, stations);
+        ListSink list = new ListSink();
+        TeeSink tee = new TeeSink(arrow, list);
+        ObservationBatch batch = new ObservationBatch(variables, 8);
+        for (int i = 0; i < 5; i++) {
+            batch.station_index[i] = 1;
+            batch.time_offset[i] = i;
+            ((float[]) batch.columns[0])[i] = i * 2f;
+        }
+        batch.size = 5;
+        assertEquals(5, tee.putBatch(batch));
+        assertTrue(tee.putObservation(new Observation(5, 0, 1f)));
+        tee.close();
+
+        assertEquals(6, arrow.getRowCount());
+        assertEquals(6, list.observations.size());
+        assertEquals(8f, list.observations.get(4).values[0]);
+        assertTrue(list.closed);
+    }
+
+    private ByteBuffer read() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(testfile, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String ascii(ByteBuffer buffer, int start, int length) {
+        return new String(buffer.array(), start, length, ASCII);
+    }
+
+    private static class ListSink implements ObservationSink {
+
+        final List<Observation> observations = new ArrayList<Observation>();
+        boolean closed = false;
+
+        @Override
+        public boolean putObservation(Observation observation) {
+            return observations.add(observation);
+        }
+
+        @Override
+        public void sync() {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkImporterTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private File input;
+    private Station[] stations;
+    private Variable[] variables;
+
+    @Before
+    public void setUp() throws IOException {
+        input = File.createTempFile("bulk-importer", ".dat");
+        stations = new Station[] {
+            new Station(40.0f, -90.0f, "A"),
+            new Station(41.0f, -91.0f, "STATION_B"),
+            new Station(42.0f, -92.0f, "C")
+        };
+        variables = new Variable[] {
+            new Variable("temp", XType.NC_FLOAT, new HashMap<String, Object>()),
+            new Variable("count", XType.NC_SHORT, new HashMap<String, Object>())
+        };
+    }
+
+    @After
+    public void tearDown() {
+        input.delete();
+    }
+
+    @Test
+    public void testDelimitedKeepsFileOrderAcrossSplits() throws IOException {
+        StringBuilder csv = new StringBuilder("station,time,temp,count\r\n");
+        int rows = 5000;
+        for (int i = 0; i < rows; i++) {
+            csv.append(stations[i % 3].station_id).append(',').append(i).append(',')
+                    .append(i / 4.0).append(',').append(i % 1000).append("\r\n");
+        }
+        write(csv.toString().getBytes(ASCII));
+
+        BulkImporter importer = BulkImporter.delimited(stations, variables, ',');
+        importer.setHeaderLines(1);
+        importer.setSplitBytes(1000);
+        importer.setBatchSize(64);
+        importer.setThreads(4);
+        ListSink sink = new ListSink();
+        BulkImporter.Result result = importer.importFile(input, sink);
+
+        assertEquals(rows, result.getRecords());
+        assertEquals(0, result.getSkipped());
+        assertEquals(input.length() - "station,time,temp,count\r\n".length(), result.getBytes());
+        assertEquals(rows, sink.observations.size());
+        for (int i = 0; i < rows; i++) {
+            Observation observation = sink.observations.get(i);
+            assertEquals(i, observation.time_offset);
+            assertEquals(i % 3, observation.station_index);
+            assertEquals(i / 4.0f, (Float) observation.values[0], 0.0f);
+            assertEquals((short) (i % 1000), observation.values[1]);
+        }
+    }
+
+    @Test
+    public void testUnknownStationsSkippedAndEmptyFieldsFilled() throws IOException {
+        write(("A,1,1.5,2\n"
+                + "nope,2,1.5,2\n"
+                + " C ,3,,7\n"
+                + "\n"
+                + "STATION_B,4,-2.25,").getBytes(ASCII));
+
+        BatchSink sink = new BatchSink();
+        BulkImporter.Result result = BulkImporter.delimited(stations, variables, ',').importFile(input, sink);
+
+        assertEquals(3, result.getRecords());
+        assertEquals(1, result.getSkipped());
+        assertEquals(1, sink.batches);
+        assertEquals(2, sink.observations.get(1).station_index);
+        assertEquals(variables[0].getFillValue(), sink.observations.get(1).values[0]);
+        assertEquals(-2.25f, sink.observations.get(2).values[0]);
+        assertEquals(variables[1].getFillValue(), sink.observations.get(2).values[1]);
+    }
+
+    @Test
+    public void testIsoTimes() throws IOException {
+        write("A,2011-01-02T12:00:00Z,1,1\nA,2011-01-03,1,1\n".getBytes(ASCII));
+
+        BulkImporter importer = BulkImporter.delimited(stations, variables, ',');
+        importer.setTimeEncoder(new TimeEncoder("hours since 2011-01-01"));
+        ListSink sink = new ListSink();
+        importer.importFile(input, sink);
+
+        assertEquals(36, sink.observations.get(0).time_offset);
+        assertEquals(48, sink.observations.get(1).time_offset);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingFieldRejected() throws IOException {
+        write("A,1,1.5\n".getBytes(ASCII));
+        BulkImporter.delimited(stations, variables, ',').importFile(input, new ListSink());
+    }
+
+    @Test
+    public void testFixedWidth() throws IOException {
+        int idLength = 10;
+        int recordLength = idLength + 4 + 4 + 2;
+        int rows = 1000;
+        ByteBuffer buffer = ByteBuffer.allocate(rows * recordLength).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < rows; i++) {
+            byte[] id = stations[i % 3].station_id.getBytes(ASCII);
+            buffer.put(id);
+            for (int pad = id.length; pad < idLength; pad++) {
+                buffer.put((byte) ((i % 2 == 0) ? ' ' : 0));
+            }
+            buffer.putInt(i * 2);
+            buffer.putFloat(i + 0.5f);
+            buffer.putShort((short) -i);
+        }
+        write(buffer.array());
+
+        BulkImporter importer = BulkImporter.fixedWidth(stations, variables, idLength, ByteOrder.LITTLE_ENDIAN);
+        importer.setSplitBytes(recordLength * 37 + 5);
+        importer.setBatchSize(100);
+        ListSink sink = new ListSink();
+        BulkImporter.Result result = importer.importFile(input, sink);
+
+        assertEquals(rows, result.getRecords());
+        for (int i = 0; i < rows; i++) {
+            Observation observation = sink.observations.get(i);
+            assertEquals(i % 3, observation.station_index);
+            assertEquals(i * 2, observation.time_offset);
+            assertEquals(i + 0.5f, observation.values[0]);
+            assertEquals((short) -i, observation.values[1]);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testFixedWidthPartialRecord() throws IOException {
+        write(new byte[25]);
+        BulkImporter.fixedWidth(stations, variables, 4, ByteOrder.BIG_ENDIAN).importFile(input, new ListSink());
+    }
+
+    @Test
+    public void testParseNumbers() {
+        assertEquals(-123L, BulkImporter.parseLong(bytes("-123"), 0, 4, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(Long.MIN_VALUE, BulkImporter.parseLong(bytes("-9223372036854775808"), 0, 20,
+                Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(0.1, parseDouble("0.1"), 0.0);
+        assertEquals(-1234.5678, parseDouble("-1234.5678"), 0.0);
+        assertEquals(1.5e-7, parseDouble("1.5e-7"), 0.0);
+        assertEquals(3.0E30, parseDouble("3E30"), 0.0);
+        assertEquals(0.12345678901234567, parseDouble("0.12345678901234567"), 0.0);
+        assertTrue(Double.isNaN(parseDouble("NaN")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortOverflowRejected() {
+        BulkImporter.parseLong(bytes("40000"), 0, 5, Short.MIN_VALUE, Short.MAX_VALUE);
+    }
+
+    @Test
+    public void testParseIsoMillis() {
+        assertEquals(0L, parseIso("1970-01-01"));
+        assertEquals(1293840000000L, parseIso("2011-01-01T00:00:00Z"));
+        assertEquals(951782400000L + 3723004L, parseIso("2000-02-29 01:02:03.004"));
+        assertEquals(-86400000L + 60000L, parseIso("1969-12-31T00:01"));
+    }
+
+    private static double parseDouble(String text) {
+        return BulkImporter.parseDouble(bytes(text), 0, text.length());
+    }
+
+    private static long parseIso(String text) {
+        return BulkImporter.parseIsoMillis(bytes(text), 0, text.length());
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(ASCII));
+    }
+
+    private void write(byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(input);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class ListSink implements ObservationSink {
+
+        final List<Observation> observations = new ArrayList<Observation>();
+
+        @Override
+        public boolean putObservation(Observation observation) {
+            return observations.add(observation);
+        }
+
+        @Override
+        public void sync() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class BatchSink extends ListSink implements ObservationBatchSink {
+
+        int batches = 0;
+
+        @Override
+        public int putBatch(ObservationBatch batch) {
+            batches++;
+            for (int i = 0; i < batch.size; i++) {
+                putObservation(batch.getObservation(i));
+            }
+            return batch.size;
+        }
+    }
+}
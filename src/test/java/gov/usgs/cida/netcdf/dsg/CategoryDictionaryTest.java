@@ -0,0 +1,56 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.util.HashMap;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class CategoryDictionaryTest {
+
+    @Test
+    public void testCodesInOrderOfFirstUse() {
+        CategoryDictionary dictionary = new CategoryDictionary(XType.NC_BYTE, 16);
+        assertEquals(0, dictionary.encode("good"));
+        assertEquals(1, dictionary.encode("suspect"));
+        assertEquals(0, dictionary.encode("good"));
+        assertEquals(2, dictionary.encode("bad value"));
+        assertEquals(3, dictionary.size());
+        assertEquals("suspect", dictionary.decode(1));
+        assertNull(dictionary.decode(-127));
+        assertNull(dictionary.decode(3));
+        assertEquals("good suspect bad_value", dictionary.getFlagMeanings());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testByteCodesRunOut() {
+        CategoryDictionary dictionary = new CategoryDictionary(XType.NC_BYTE, 16);
+        for (int i = 0; i <= Byte.MAX_VALUE; i++) {
+            assertEquals(i, dictionary.encode("c" + i));
+        }
+        dictionary.encode("one too many");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLong() {
+        new CategoryDictionary(XType.NC_SHORT, 4).encode("toolong");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFloatCodesRejected() {
+        new CategoryDictionary(XType.NC_FLOAT, 4);
+    }
+
+    @Test
+    public void testBatchDecodesCategoricalValues() {
+        Variable flag = Variable.createCategorical("qc_flag", XType.NC_BYTE, new HashMap<String, Object>());
+        assertEquals(String.class, flag.getValueClass());
+        ObservationBatch batch = new ObservationBatch(new Variable[] { flag }, 2);
+        batch.setValue(0, 0, flag.getCategories().encode("estimated"));
+        batch.setValue(0, 1, (Number) flag.getFillValue());
+        batch.size = 2;
+        assertEquals("estimated", batch.getObservation(0).values[0]);
+        assertNull(batch.getValue(0, 1));
+        assertFalse(batch.isFill(0));
+        assertTrue(batch.isFill(1));
+    }
+}
@@ -0,0 +1,57 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileTemplateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File template;
+    private File testfile;
+
+    @Before
+    public void setUp() throws Exception {
+        template = folder.newFile("test-template.nc");
+        testfile = folder.newFile("test.nc");
+    }
+
+    @Test
+    public void testRaggedFilesFromTemplate() throws Exception {
+        Station[] stations = stations();
+        RecordType rt = meanRecordType();
+        ObservationBatch batch = meanBatch(6);
+        Map<String, String> globalAttrs = new LinkedHashMap<String, String>();
+        globalAttrs.put("request", "42");
+
+        FileTemplate ragged = FileTemplate.ragged(template, rt, null, null, stations);
+        for (int copy = 0; copy < 2; copy++) {
+            StationTimeSeriesNetCDFFile writer = ragged.createRagged(testfile, globalAttrs);
+            assertEquals(0, writer.getRecordCount());
+            assertEquals(6, writer.putBatch(batch));
+            writer.close();
+            StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, rt);
+            assertEquals("third", reader.readStations()[2].station_id);
+            assertBatchRead(reader, batch);
+        }
+    }
+
+    @Test
+    public void testMultiDimensionalFileFromTemplate() throws Exception {
+        ObservationBatch batch = meanBatch(6);
+        FileTemplate grid = FileTemplate.multiDimensional(template, null, stations(),
+                new int[] { 0, 1 }, TIME_UNIT, batch.variables, null);
+        StationTimeSeriesMultiDimensional writer = grid.createMultiDimensional(testfile, null);
+        assertEquals(6, writer.putBatch(batch));
+        writer.close();
+        assertBatchRead(new StationTimeSeriesReader(testfile, batch.variables), batch);
+    }
+}
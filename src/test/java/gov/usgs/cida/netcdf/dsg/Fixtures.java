@@ -0,0 +1,85 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import static org.junit.Assert.*;
+
+/**
+ * Stations, batches and read back checks shared by the tests that write files
+ */
+final class Fixtures {
+
+    static final String TIME_UNIT = "days since 2011-01-01 00:00:00Z";
+
+    private Fixtures() {
+    }
+
+    static Station[] stations() {
+        return new Station[] {
+            new Station(40.0f, -89.3f, "station_test"),
+            new Station(-34f, 44.6f, "another_station"),
+            new Station(41f, -109f, "third")
+        };
+    }
+
+    static Variable mean() {
+        return new Variable("mean", XType.NC_FLOAT, new LinkedHashMap<String, Object>());
+    }
+
+    static RecordType meanRecordType() {
+        RecordType rt = new RecordType(TIME_UNIT);
+        rt.addType(mean());
+        return rt;
+    }
+
+    /**
+     * @return batch of a single float variable, row i at station i % 3, time
+     * i / 3 with value i
+     */
+    static ObservationBatch meanBatch(int size) {
+        ObservationBatch batch = new ObservationBatch(new Variable[] { mean() }, size);
+        for (int i = 0; i < size; i++) {
+            batch.station_index[i] = i % 3;
+            batch.time_offset[i] = i / 3;
+            ((float[]) batch.columns[0])[i] = i;
+        }
+        batch.size = size;
+        return batch;
+    }
+
+    static ObservationBatch firstRows(ObservationBatch batch, int count) {
+        ObservationBatch first = new ObservationBatch(batch.variables, count);
+        first.append(batch, 0, count);
+        return first;
+    }
+
+    static void assertStationsRead(Station[] expected, Station[] read) {
+        assertEquals(expected.length, read.length);
+        for (int s = 0; s < expected.length; s++) {
+            assertEquals(expected[s].station_id, read[s].station_id);
+            assertEquals(expected[s].latitude, read[s].latitude, 0f);
+            assertEquals(expected[s].longitude, read[s].longitude, 0f);
+        }
+    }
+
+    /**
+     * Read every observation and match it to a row of the batch, closes the reader
+     */
+    static void assertBatchRead(StationTimeSeriesReader reader, ObservationBatch batch) {
+        Iterator<Observation> iterator = reader.observations();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            for (int i = 0; i < batch.size; i++) {
+                if (batch.station_index[i] == observation.station_index
+                        && batch.time_offset[i] == observation.time_offset) {
+                    assertEquals(((float[]) batch.columns[0])[i], (Float) observation.values[0], 0f);
+                    count++;
+                }
+            }
+        }
+        reader.close();
+        assertEquals(batch.size, count);
+    }
+}
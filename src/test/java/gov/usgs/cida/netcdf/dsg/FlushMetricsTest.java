@@ -0,0 +1,46 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class FlushMetricsTest {
+
+    @Test
+    public void testRecordAndByteTriggers() {
+        FlushMetrics metrics = new FlushMetrics(new FlushPolicy(3, 100, 0));
+        assertFalse(metrics.recordWritten(10));
+        assertFalse(metrics.recordWritten(10));
+        assertTrue(metrics.recordWritten(10));
+        metrics.flushed(2000000L, true);
+        assertEquals(0, metrics.getRecordsSinceFlush());
+        assertFalse(metrics.recordWritten(60));
+        assertTrue(metrics.recordWritten(60));
+        metrics.flushed(4000000L, false);
+
+        assertEquals(2, metrics.getFlushCount());
+        assertEquals(1, metrics.getAutomaticFlushCount());
+        assertEquals(3.0, metrics.getMeanFlushMillis(), 1e-9);
+        assertEquals(4000000L, metrics.getMaxFlushNanos());
+    }
+
+    @Test
+    public void testTimerOnlyRaisesFlag() throws Exception {
+        FlushMetrics metrics = new FlushMetrics(FlushPolicy.everyMillis(10));
+        Thread.sleep(100);
+        assertEquals(0, metrics.getFlushCount());
+        assertTrue(metrics.recordWritten(4));
+        metrics.cancel();
+        Thread.sleep(50);
+        metrics.flushed(1000L, true);
+        assertFalse(metrics.recordWritten(4));
+    }
+
+    @Test
+    public void testNoPolicyNeverTriggers() {
+        FlushMetrics metrics = new FlushMetrics(null);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(metrics.recordWritten(1000));
+        }
+        assertEquals(1000, metrics.getRecordsSinceFlush());
+    }
+}
@@ -0,0 +1,84 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.IntByReference;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Call overhead of every available NativeBackend (interface mapped JNA,
+ * direct mapped JNA and, on JDK 22+ built with the jdk22 profile, FFM):
+ * single value and one element vara puts. Not a unit test, run it by hand:
+ *
+ * java [--enable-native-access=ALL-UNNAMED] -cp ... gov.usgs.cida.netcdf.dsg.NativeCallBenchmark [calls]
+ */
+public class NativeCallBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int calls = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        File file = File.createTempFile("native-call-benchmark", ".nc");
+        IntByReference iRef = new IntByReference();
+        status(nc_create(file.getAbsolutePath(), NC_NETCDF4, iRef));
+        int ncId = iRef.getValue();
+        status(nc_def_dim(ncId, "n", new NativeLong(calls), iRef));
+        int dimId = iRef.getValue();
+        status(nc_def_var(ncId, "value", NC_INT, new int[] { dimId }, iRef));
+        int varId = iRef.getValue();
+        status(nc_enddef(ncId));
+
+        try {
+            for (String name : new String[] { NativeBackends.JNA, NativeBackends.DIRECT, NativeBackends.FFM }) {
+                NativeBackend backend = NativeBackends.byName(name);
+                if (backend == null) {
+                    System.out.println(name + " backend is not available");
+                    continue;
+                }
+                for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                    boolean report = (round == WARMUP_ROUNDS);
+                    int n = report ? calls : calls / 10;
+                    long var1 = timeVar1(backend, ncId, varId, n);
+                    long vara = timeVara(backend, ncId, varId, n);
+                    if (report) {
+                        print(name + " nc_put_var1_int", var1, n);
+                        print(name + " nc_put_vara", vara, n);
+                    }
+                }
+            }
+        } finally {
+            status(nc_close(ncId));
+            file.delete();
+        }
+    }
+
+    private static long timeVar1(NativeBackend backend, int ncId, int varId, int n) {
+        long[] indexp = new long[1];
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            indexp[0] = i;
+            status(backend.nc_put_var1_int(ncId, varId, indexp, i));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeVara(NativeBackend backend, int ncId, int varId, int n) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+        long[] startp = new long[1];
+        long[] countp = new long[] { 1 };
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            buffer.putInt(0, i);
+            startp[0] = i;
+            status(backend.nc_put_vara(ncId, varId, startp, countp, buffer));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void print(String name, long nanos, int calls) {
+        System.out.println(String.format("%-28s %8.1f ns/call", name, (double) nanos / calls));
+    }
+}
@@ -0,0 +1,147 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class NativeWriteSchedulerTest {
+
+    private static class RecordingSink implements ObservationSink {
+        final List<Integer> times = new ArrayList<Integer>();
+        final NativeWriteScheduler scheduler;
+        boolean offThread = false;
+        boolean closed = false;
+
+        RecordingSink(NativeWriteScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public boolean putObservation(Observation observation) {
+            offThread |= !scheduler.isNativeThread();
+            return times.add(observation.time_offset);
+        }
+
+        @Override
+        public void sync() {
+            offThread |= !scheduler.isNativeThread();
+        }
+
+        @Override
+        public void close() {
+            offThread |= !scheduler.isNativeThread();
+            closed = true;
+        }
+    }
+
+    private static class RecordingBatchSink extends RecordingSink implements ObservationBatchSink {
+        int batches = 0;
+
+        RecordingBatchSink(NativeWriteScheduler scheduler) {
+            super(scheduler);
+        }
+
+        @Override
+        public int putBatch(ObservationBatch batch) {
+            offThread |= !scheduler.isNativeThread();
+            batches++;
+            for (int i = 0; i < batch.size; i++) {
+                times.add(batch.time_offset[i]);
+            }
+            return batch.size;
+        }
+    }
+
+    @Test
+    public void testPerFileOrderingAcrossThreads() throws Exception {
+        final NativeWriteScheduler scheduler = new NativeWriteScheduler();
+        final RecordingSink[] sinks = new RecordingSink[4];
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i] = new RecordingSink(scheduler);
+        }
+        final CountDownLatch done = new CountDownLatch(sinks.length);
+        for (int i = 0; i < sinks.length; i++) {
+            final RecordingSink sink = sinks[i];
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ObservationSink batching = scheduler.batching(sink, 7);
+                    for (int t = 0; t < 1000; t++) {
+                        batching.putObservation(new Observation(t, 0, 1f));
+                    }
+                    batching.close();
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (RecordingSink sink : sinks) {
+            assertFalse(sink.offThread);
+            assertTrue(sink.closed);
+            assertEquals(1000, sink.times.size());
+            for (int t = 0; t < 1000; t++) {
+                assertEquals(t, sink.times.get(t).intValue());
+            }
+        }
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSubmitBatchWritesWholeBatch() throws Exception {
+        NativeWriteScheduler scheduler = new NativeWriteScheduler();
+        RecordingBatchSink sink = new RecordingBatchSink(scheduler);
+        ObservationBatch batch = Fixtures.meanBatch(10);
+        assertEquals(10, scheduler.submit(sink, batch).get().intValue());
+        scheduler.close(sink).get();
+        assertFalse(sink.offThread);
+        assertTrue(sink.closed);
+        assertEquals(1, sink.batches);
+        assertEquals(10, sink.times.size());
+        assertEquals(0, scheduler.getQueueCount());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReleaseDropsQueueOfKey() throws Exception {
+        NativeWriteScheduler scheduler = new NativeWriteScheduler();
+        final List<Integer> order = new ArrayList<Integer>();
+        Object key = new Object();
+        for (int i = 0; i < 3; i++) {
+            final int task = i;
+            scheduler.submit(key, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    order.add(task);
+                    return null;
+                }
+            });
+        }
+        assertEquals(1, scheduler.getQueueCount());
+        scheduler.release(key).get();
+        assertEquals(3, order.size());
+        assertEquals(0, scheduler.getQueueCount());
+
+        Object failing = new Object();
+        try {
+            scheduler.close(failing, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    throw new IllegalStateException("close failed");
+                }
+            }).get();
+            fail("close task failure should be returned");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, scheduler.getQueueCount());
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,97 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ObservationStatisticsTest {
+
+    @Test
+    public void testRunningStatistics() {
+        Map<String, Object> attrMap = new LinkedHashMap<String, Object>();
+        attrMap.put("missing_value", -999f);
+        Variable[] variables = new Variable[] {
+            new Variable("mean", XType.NC_FLOAT, attrMap),
+            new Variable("count", XType.NC_INT, new LinkedHashMap<String, Object>())
+        };
+        ObservationStatistics statistics = new ObservationStatistics(variables, 2);
+        statistics.add(new Observation(0, 0, 1f, 10));
+        statistics.add(new Observation(1, 0, 2f, 20));
+        statistics.add(new Observation(0, 1, 3f, 30));
+        statistics.add(new Observation(1, 1, -999f, 40));
+        statistics.add(new Observation(2, 1, Float.NaN, null));
+
+        assertEquals(1.0, statistics.getMin(0), 0.0);
+        assertEquals(3.0, statistics.getMax(0), 0.0);
+        assertEquals(3, statistics.getValidCount(0));
+        assertEquals(2, statistics.getMissingCount(0));
+        assertEquals(2.0, statistics.getMean(0), 1e-12);
+        assertEquals(1.0, statistics.getVariance(0), 1e-12);
+
+        assertEquals(4, statistics.getValidCount(1));
+        assertEquals(1, statistics.getMissingCount(1));
+        assertEquals(25.0, statistics.getMean(1), 1e-12);
+
+        assertEquals(1.5, statistics.getMean(0, 0), 1e-12);
+        assertEquals(1, statistics.getValidCount(0, 1));
+        assertEquals(35.0, statistics.getMean(1, 1), 1e-12);
+    }
+
+    @Test
+    public void testBatchRowsMatchObservations() {
+        Map<String, Object> attrMap = new LinkedHashMap<String, Object>();
+        attrMap.put("missing_value", -999f);
+        Variable[] variables = new Variable[] {
+            new Variable("mean", XType.NC_FLOAT, attrMap),
+            new Variable("count", XType.NC_INT, new LinkedHashMap<String, Object>())
+        };
+        ObservationBatch batch = new ObservationBatch(variables, 4);
+        float[] means = new float[] { 1f, 3f, -999f, Float.NaN };
+        int[] counts = new int[] { 10, 30, 40, (Integer) variables[1].getFillValue() };
+        ObservationStatistics fromRows = new ObservationStatistics(variables, 2);
+        ObservationStatistics fromObservations = new ObservationStatistics(variables, 2);
+        for (int i = 0; i < 4; i++) {
+            batch.station_index[i] = i % 2;
+            ((float[]) batch.columns[0])[i] = means[i];
+            ((int[]) batch.columns[1])[i] = counts[i];
+            batch.size++;
+            fromRows.add(batch, i);
+            fromObservations.add(batch.getObservation(i));
+        }
+        for (int v = 0; v < variables.length; v++) {
+            assertEquals(fromObservations.getValidCount(v), fromRows.getValidCount(v));
+            assertEquals(fromObservations.getMissingCount(v), fromRows.getMissingCount(v));
+            assertEquals(fromObservations.getMean(v), fromRows.getMean(v), 0.0);
+            assertEquals(fromObservations.getMean(v, 1), fromRows.getMean(v, 1), 0.0);
+        }
+        assertEquals(2, fromRows.getMissingCount(0));
+        assertEquals(1, fromRows.getMissingCount(1));
+    }
+
+    @Test
+    public void testQuantizedValuesAsWritten() {
+        Variable mean = new Variable("mean", XType.NC_FLOAT, new LinkedHashMap<String, Object>());
+        mean.setMantissaBits(4);
+        Variable[] variables = new Variable[] { mean };
+        float[] values = new float[] { 1.07f, 3.3f };
+        ObservationBatch batch = new ObservationBatch(variables, 2);
+        ObservationStatistics fromRows = new ObservationStatistics(variables, 0);
+        ObservationStatistics fromObservations = new ObservationStatistics(variables, 0);
+        for (int i = 0; i < 2; i++) {
+            ((float[]) batch.columns[0])[i] = values[i];
+            batch.size++;
+            fromRows.add(batch, i);
+            fromObservations.add(new Observation(i, 0, values[i]));
+        }
+        double min = mean.quantize(1.07f);
+        double max = mean.quantize(3.3f);
+        assertTrue(min != 1.07f && max != 3.3f);
+        assertEquals(min, fromRows.getMin(0), 0.0);
+        assertEquals(max, fromRows.getMax(0), 0.0);
+        assertEquals((min + max) / 2, fromRows.getMean(0), 1e-12);
+        assertEquals(min, fromObservations.getMin(0), 0.0);
+        assertEquals(max, fromObservations.getMax(0), 0.0);
+    }
+}
@@ -0,0 +1,94 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RaggedToMultiDimensionalConverterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File ragged;
+    private File grid;
+
+    @Before
+    public void setUp() throws Exception {
+        ragged = folder.newFile("test-ragged.nc");
+        grid = folder.newFile("test-grid.nc");
+    }
+
+    @Test
+    public void testScanUnevenTimeAxis() {
+        ObservationBatch batch = timesBatch(40, 10, 20, 10, -5);
+        int[] axis = RaggedToMultiDimensionalConverter.scanTimeOffsets(
+                Arrays.asList(batch).iterator());
+        assertArrayEquals(new int[] { -5, 10, 20, 40 }, axis);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testScanRejectsTimesTooFarApart() {
+        ObservationBatch batch = timesBatch(-2000000000, 2000000000);
+        RaggedToMultiDimensionalConverter.scanTimeOffsets(Arrays.asList(batch).iterator());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecordTypeWithoutDataRejected() {
+        new RaggedToMultiDimensionalConverter(new RecordType(TIME_UNIT));
+    }
+
+    @Test
+    public void testGapsDuplicatesAndUnevenAxis() {
+        RecordType rt = meanRecordType();
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(ragged, rt, true, stations());
+        int[] times = new int[] { 5, 7, 30 };
+        for (int time : times) {
+            for (int s = 0; s < 3; s++) {
+                // station 1 has no record at 7
+                if (s != 1 || time != 7) {
+                    assertTrue(writer.putObservation(new Observation(time, s, (float) (time + s))));
+                }
+            }
+        }
+        // written again without a duplicate policy, the later record is kept
+        assertTrue(writer.putObservation(new Observation(30, 0, -1f)));
+        writer.close();
+
+        RaggedToMultiDimensionalConverter converter = new RaggedToMultiDimensionalConverter(rt);
+        // two cells per tile, the records still take one pass after the scan
+        converter.setMemoryBudget(8);
+        assertEquals(2, converter.convert(ragged, grid, null));
+        assertEquals(2, folder.getRoot().list().length);
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(grid, new Variable[] { mean() });
+        assertArrayEquals(times, reader.getTimeOffsets());
+        Map<String, Float> read = new HashMap<String, Float>();
+        Iterator<Observation> iterator = reader.observations();
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            read.put(observation.station_index + "@" + times[observation.time_offset],
+                    (Float) observation.values[0]);
+        }
+        reader.close();
+        // the gap stays fill and isn't read back
+        assertEquals(8, read.size());
+        assertNull(read.get("1@7"));
+        assertEquals(7f, read.get("0@7"), 0f);
+        assertEquals(32f, read.get("2@30"), 0f);
+        assertEquals(-1f, read.get("0@30"), 0f);
+    }
+
+    private static ObservationBatch timesBatch(int... times) {
+        ObservationBatch batch = meanBatch(times.length);
+        System.arraycopy(times, 0, batch.time_offset, 0, times.length);
+        return batch;
+    }
+}
@@ -0,0 +1,121 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.NativeLongByReference;
+import static gov.usgs.cida.netcdf.jna.NC.*;
+import static gov.usgs.cida.netcdf.jna.NCUtil.*;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ucar.nc2.dataset.NetcdfDataset;
+
+public class RechunkerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+    private File rechunked;
+
+    @Before
+    public void setUp() throws Exception {
+        source = folder.newFile("test.nc");
+        rechunked = folder.newFile("test-rechunked.nc");
+    }
+
+    @Test
+    public void testRechunkKeepsObservations() {
+        Station[] stations = stations();
+        RecordType rt = meanRecordType();
+        Map<String, String> globalAttrs = new LinkedHashMap<String, String>();
+        globalAttrs.put("title", "rechunk test");
+        ObservationBatch batch = meanBatch(30);
+
+        Rechunker rechunker = new Rechunker(rt);
+        // a budget below one target chunk still makes progress
+        rechunker.setMemoryBudget(16);
+        StationTimeSeriesNetCDFFile ragged = new StationTimeSeriesNetCDFFile(source, rt, globalAttrs, true, stations);
+        ragged.putBatch(batch);
+        ragged.close();
+        Rechunker.Report report = rechunker.rechunk(source, rechunked, StorageOptions.ragged(8, 4, true));
+        assertTrue(report.ragged);
+        assertEquals(30, report.values);
+        assertBatchRead(new StationTimeSeriesReader(rechunked, rt), batch);
+
+        StationTimeSeriesMultiDimensional grid = new StationTimeSeriesMultiDimensional(
+                source, globalAttrs, stations, new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
+                TIME_UNIT, batch.variables);
+        grid.putBatch(batch);
+        grid.close();
+        report = rechunker.rechunk(source, rechunked, StorageOptions.multiDimensional(2, 4, 4, true));
+        assertFalse(report.ragged);
+        assertEquals(30, report.values);
+        assertBatchRead(new StationTimeSeriesReader(rechunked, batch.variables), batch);
+    }
+
+    @Test
+    public void testRechunkKeepsTimeUnitsAndStationOrder() throws Exception {
+        Station[] stations = stations();
+        StationOrder order = StationOrder.create(StationOrder.Curve.HILBERT, stations);
+        ObservationBatch batch = meanBatch(12);
+        String hours = "hours since 2000-01-01 00:00:00Z";
+
+        StationTimeSeriesMultiDimensional grid = new StationTimeSeriesMultiDimensional(
+                source, null, stations, new int[] { 0, 1, 2, 3 }, hours, batch.variables);
+        grid.setStationOrder(order);
+        grid.putBatch(batch);
+        grid.close();
+        // the rechunker's own RecordType is in days
+        Rechunker rechunker = new Rechunker(meanRecordType());
+        rechunker.rechunk(source, rechunked, StorageOptions.multiDimensional(2, 2, 4, true));
+
+        NetcdfDataset dataset = NetcdfDataset.openDataset(rechunked.getAbsolutePath());
+        try {
+            assertEquals(hours, dataset.findVariable("time").findAttribute("units").getStringValue());
+        } finally {
+            dataset.close();
+        }
+        StationTimeSeriesMultiDimensional reopened = new StationTimeSeriesMultiDimensional(
+                rechunked, batch.variables);
+        StationOrder copied = reopened.getStationOrder();
+        reopened.close();
+        assertNotNull(copied);
+        assertEquals(StationOrder.Curve.HILBERT, copied.getCurve());
+        for (int f = 0; f < stations.length; f++) {
+            assertEquals(order.toInputIndex(f), copied.toInputIndex(f));
+        }
+    }
+
+    @Test
+    public void testRechunkKeepsRecordStatistics() {
+        RecordType rt = meanRecordType();
+        StationTimeSeriesNetCDFFile ragged = new StationTimeSeriesNetCDFFile(source, rt, true, stations());
+        ragged.enableStatistics(false);
+        ragged.putBatch(meanBatch(12));
+        ragged.close();
+        new Rechunker(rt).rechunk(source, rechunked, StorageOptions.ragged(4, 0, false));
+
+        IntByReference iRef = new IntByReference();
+        NativeLongByReference lRef = new NativeLongByReference();
+        status(nc_open(rechunked.getAbsolutePath(), NC_NOWRITE, iRef));
+        int ncId = iRef.getValue();
+        try {
+            status(nc_inq_varid(ncId, StationTimeSeriesNetCDFFile.OBSERVATION_STRUCT_NAME, iRef));
+            int recordId = iRef.getValue();
+            status(nc_inq_attlen(ncId, recordId, "mean_actual_range", lRef));
+            assertEquals(2, lRef.getValue().intValue());
+            for (String statistic : new String[] { "mean", "standard_deviation", "valid_count", "missing_count" }) {
+                status(nc_inq_atttype(ncId, recordId, statistic, iRef));
+                assertTrue(statistic, iRef.getValue() > NC_STRING);
+            }
+        } finally {
+            status(nc_close(ncId));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RecordTypeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNarrowestKeyType() {
+        assertEquals(XType.NC_BYTE, RecordType.narrowestKeyType(0, 127));
+        assertEquals(XType.NC_SHORT, RecordType.narrowestKeyType(0, 128));
+        // the lowest value but one is the fill value
+        assertEquals(XType.NC_SHORT, RecordType.narrowestKeyType(-127, 0));
+        assertEquals(XType.NC_SHORT, RecordType.narrowestKeyType(0, 3652));
+        assertEquals(XType.NC_INT, RecordType.narrowestKeyType(-40000, 0));
+    }
+
+    @Test
+    public void testKeysSizedToStationsAndTimeRange() {
+        // 300 stations, 10 years of days
+        RecordType rt = new RecordType("days since 2000-01-01", 300, 0, 3652);
+        rt.addType(new Variable("mean", XType.NC_FLOAT, new HashMap<String, Object>()));
+        assertEquals(XType.NC_SHORT, rt.getIndexType());
+        assertEquals(XType.NC_SHORT, rt.getTimeType());
+        assertEquals(4, rt.getKeySize());
+        assertEquals(8, rt.getCompoundSize());
+        assertEquals(8, new RecordType("days since 2000-01-01").getKeySize());
+
+        assertTrue(rt.isObservationValid(new Observation(3652, 299, 1f)));
+        assertFalse(rt.isObservationValid(new Observation(40000, 299, 1f)));
+        assertFalse(rt.isKeyInRange(-32767, 0));
+    }
+
+    @Test
+    public void testKeysPackedInNativeOrder() {
+        ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        RecordType.putKey(buffer, 0, XType.NC_BYTE, -5);
+        RecordType.putKey(buffer, 1, XType.NC_SHORT, 3000);
+        RecordType.putKey(buffer, 3, XType.NC_INT, -70000);
+        assertEquals(-5, RecordType.getKey(buffer, 0, XType.NC_BYTE));
+        assertEquals(3000, RecordType.getKey(buffer, 1, XType.NC_SHORT));
+        assertEquals(-70000, RecordType.getKey(buffer, 3, XType.NC_INT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFloatKeysRejected() {
+        new RecordType("days since 2000-01-01", XType.NC_FLOAT, XType.NC_INT);
+    }
+
+    @Test
+    public void testNarrowKeysRoundTrip() throws Exception {
+        File testfile = folder.newFile("test.nc");
+        Station[] stations = stations();
+        RecordType rt = new RecordType(TIME_UNIT, stations.length, 0, 1000);
+        rt.addType(mean());
+        assertEquals(3, rt.getKeySize());
+
+        ObservationBatch batch = meanBatch(6);
+        for (int i = 0; i < 6; i++) {
+            batch.time_offset[i] = 200 * i;
+        }
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(testfile, rt, true, stations);
+        assertEquals(4, writer.putBatch(firstRows(batch, 4)));
+        assertTrue(writer.putObservation(new Observation(800, 1, 4f)));
+        assertTrue(writer.putObservation(new Observation(1000, 2, 5f)));
+        assertFalse(writer.putObservation(new Observation(1000, 200, 6f)));
+        writer.close();
+
+        // reopening checks the key types, the reader finds them in the file
+        writer = new StationTimeSeriesNetCDFFile(testfile, rt);
+        assertEquals(6, writer.getRecordCount());
+        writer.close();
+        assertBatchRead(new StationTimeSeriesReader(testfile, batch.variables), batch);
+    }
+}
@@ -0,0 +1,205 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.dsg.ShardedWriter.Layout;
+import gov.usgs.cida.netcdf.dsg.ShardedWriter.Partitioning;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ucar.ma2.Array;
+import ucar.nc2.dataset.NetcdfDataset;
+
+public class ShardedWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class ShardSink implements ObservationSink {
+        final Station[] stations;
+        final List<Observation> observations = new ArrayList<Observation>();
+        boolean closed = false;
+
+        ShardSink(Station[] stations) {
+            this.stations = stations;
+        }
+
+        @Override
+        public boolean putObservation(Observation observation) {
+            return observations.add(observation);
+        }
+
+        @Override
+        public void sync() {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class ShardSinks implements ShardedWriter.ShardFactory {
+        final ShardSink[] sinks;
+
+        ShardSinks(int shardCount) {
+            sinks = new ShardSink[shardCount];
+        }
+
+        @Override
+        public synchronized ObservationSink create(int shard, File file, Station[] stations) {
+            sinks[shard] = new ShardSink(stations);
+            return sinks[shard];
+        }
+    }
+
+    private static Station[] stations(int count) {
+        Station[] stations = new Station[count];
+        for (int s = 0; s < count; s++) {
+            stations[s] = new Station(40f + s, -90f, "station_" + s, s);
+        }
+        return stations;
+    }
+
+    @Test
+    public void testMultiDimensionalRangeShardsInParallel() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        ShardSinks factory = new ShardSinks(3);
+        ShardedWriter writer = new ShardedWriter(dir, "sharded-test", Layout.MULTIDIMENSIONAL,
+                stations(10), 3, Partitioning.RANGE, factory, true);
+        writer.setBatchSize(4);
+        for (int t = 0; t < 5; t++) {
+            for (int s = 0; s < 10; s++) {
+                assertTrue(writer.putObservation(new Observation(t, s, (float) s)));
+            }
+        }
+        writer.close();
+
+        int total = 0;
+        int firstGlobal = 0;
+        for (ShardSink sink : factory.sinks) {
+            assertTrue(sink.closed);
+            total += sink.observations.size();
+            assertEquals("station_" + firstGlobal, sink.stations[0].station_id);
+            for (Observation observation : sink.observations) {
+                assertEquals(firstGlobal + observation.station_index,
+                        ((Float) observation.values[0]).intValue());
+            }
+            firstGlobal += sink.stations.length;
+        }
+        assertEquals(50, total);
+
+        File ncml = new File(dir, "sharded-test.ncml");
+        writer.writeManifest(ncml);
+        String manifest = read(ncml);
+        assertTrue(manifest.contains("dimName=\"station\" type=\"joinExisting\""));
+        assertTrue(manifest.contains("location=\"sharded-test-002.nc\""));
+        ncml.delete();
+    }
+
+    @Test
+    public void testRaggedLocalShardsKeepGlobalIndex() throws Exception {
+        ShardSinks factory = new ShardSinks(4);
+        BitSet local = new BitSet();
+        local.set(1);
+        ShardedWriter writer = new ShardedWriter(new File("."), "ragged", Layout.RAGGED,
+                stations(20), 4, Partitioning.HASH, factory, false, local);
+        int accepted = 0;
+        for (int s = 0; s < 20; s++) {
+            if (writer.putObservation(new Observation(0, s, 1f))) {
+                accepted++;
+                assertEquals(1, writer.getShard(s));
+            }
+        }
+        writer.close();
+        assertNull(factory.sinks[0]);
+        assertEquals(20, factory.sinks[1].stations.length);
+        assertEquals(accepted, factory.sinks[1].observations.size());
+        for (Observation observation : factory.sinks[1].observations) {
+            assertEquals(1, writer.getShard(observation.station_index));
+        }
+    }
+
+    @Test
+    public void testSharedSchedulerKeepsNoShardQueues() throws Exception {
+        NativeWriteScheduler scheduler = new NativeWriteScheduler();
+        ShardSinks factory = new ShardSinks(3);
+        ShardedWriter writer = new ShardedWriter(folder.getRoot(), "shared", Layout.MULTIDIMENSIONAL,
+                stations(9), 3, Partitioning.RANGE, factory, scheduler, null);
+        writer.setBatchSize(2);
+        for (int s = 0; s < 9; s++) {
+            assertTrue(writer.putObservation(new Observation(0, s, (float) s)));
+        }
+        writer.sync();
+        assertEquals(3, scheduler.getQueueCount());
+        writer.close();
+        assertEquals(0, scheduler.getQueueCount());
+        for (ShardSink sink : factory.sinks) {
+            assertTrue(sink.closed);
+            assertEquals(3, sink.observations.size());
+        }
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testManifestReadsAcrossShards() throws Exception {
+        File dir = folder.newFolder();
+        final Variable[] variables = new Variable[] { Fixtures.mean() };
+        final int[] timeOffsets = new int[] { 0, 1, 2, 3, 4 };
+        ShardedWriter writer = new ShardedWriter(dir, "sharded-test", Layout.MULTIDIMENSIONAL,
+                stations(10), 3, Partitioning.RANGE, new ShardedWriter.ShardFactory() {
+                    @Override
+                    public ObservationSink create(int shard, File file, Station[] stations) {
+                        return new StationTimeSeriesMultiDimensional(file, null, stations,
+                                timeOffsets, Fixtures.TIME_UNIT, variables);
+                    }
+                }, true);
+        writer.setBatchSize(4);
+        for (int t = 0; t < timeOffsets.length; t++) {
+            for (int s = 0; s < 10; s++) {
+                assertTrue(writer.putObservation(new Observation(t, s, (float) (10 * s + t))));
+            }
+        }
+        writer.close();
+        assertTrue(writer.awaitTermination(10, TimeUnit.SECONDS));
+        File ncml = new File(dir, "sharded-test.ncml");
+        writer.writeManifest(ncml);
+
+        // stations 3 and 4 are the last of shard 0 and the first of shard 1
+        assertEquals(0, writer.getShard(3));
+        assertEquals(1, writer.getShard(4));
+        NetcdfDataset dataset = NetcdfDataset.openDataset(ncml.getAbsolutePath());
+        try {
+            assertEquals(10, dataset.findDimension(StationTimeSeriesNetCDFFile.STATION_DIM_NAME).getLength());
+            Array values = dataset.findVariable("mean").read(new int[] { 2, 0 }, new int[] { 4, 5 });
+            for (int s = 0; s < 4; s++) {
+                for (int t = 0; t < 5; t++) {
+                    assertEquals(10f * (s + 2) + t, values.getFloat(s * 5 + t), 0f);
+                }
+            }
+        } finally {
+            dataset.close();
+        }
+    }
+
+    private static String read(File file) throws Exception {
+        StringBuilder text = new StringBuilder();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                text.append(line).append('\n');
+            }
+        } finally {
+            in.close();
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StationIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File testfile;
+    private Station[] stations;
+
+    @Before
+    public void setUp() throws Exception {
+        testfile = folder.newFile("test.nc");
+        Random random = new Random(42);
+        stations = new Station[500];
+        for (int s = 0; s < stations.length; s++) {
+            stations[s] = new Station(random.nextFloat() * 180f - 90f,
+                    random.nextFloat() * 360f - 180f, "station_" + s);
+        }
+    }
+
+    private int[] scan(float minLat, float minLon, float maxLat, float maxLon) {
+        int[] found = new int[stations.length];
+        int count = 0;
+        for (int s = 0; s < stations.length; s++) {
+            if (stations[s].latitude >= minLat && stations[s].latitude <= maxLat
+                    && stations[s].longitude >= minLon && stations[s].longitude <= maxLon) {
+                found[count++] = s;
+            }
+        }
+        return java.util.Arrays.copyOf(found, count);
+    }
+
+    @Test
+    public void testQueryMatchesScan() {
+        StationIndex index = StationIndex.build(stations);
+        assertArrayEquals(scan(30f, -110f, 50f, -80f), index.query(30f, -110f, 50f, -80f));
+        assertArrayEquals(scan(-90f, -180f, 90f, 180f), index.query(-90f, -180f, 90f, 180f));
+        assertArrayEquals(scan(-100f, -200f, 100f, 200f), index.query(-100f, -200f, 100f, 200f));
+        assertEquals(0, index.query(10f, 10f, 10f, 10f).length);
+    }
+
+    @Test
+    public void testSidecarRoundTrip() throws Exception {
+        StationIndex.build(stations).writeSidecar(testfile);
+        StationIndex index = StationIndex.readSidecar(testfile);
+        assertNotNull(index);
+        assertEquals(stations.length, index.getStationCount());
+        assertArrayEquals(scan(-10f, 0f, 20f, 90f), index.query(-10f, 0f, 20f, 90f));
+    }
+
+    @Test
+    public void testSidecarIgnoredOnceFileChanges() throws Exception {
+        StationIndex.build(stations).writeSidecar(testfile);
+        FileOutputStream out = new FileOutputStream(testfile, true);
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+        assertNull(StationIndex.readSidecar(testfile));
+    }
+}
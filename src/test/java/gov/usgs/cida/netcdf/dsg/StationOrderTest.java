@@ -0,0 +1,141 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.util.Iterator;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StationOrderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHilbertStepsBetweenNeighbors() {
+        // the curve fills the aligned 16x16 block at the origin before leaving it
+        int[] xs = new int[256];
+        int[] ys = new int[256];
+        for (int x = 0; x < 16; x++) {
+            for (int y = 0; y < 16; y++) {
+                long key = StationOrder.hilbertKey(x, y);
+                assertTrue(key >= 0 && key < 256);
+                xs[(int) key] = x;
+                ys[(int) key] = y;
+            }
+        }
+        for (int d = 1; d < 256; d++) {
+            assertEquals(1, Math.abs(xs[d] - xs[d - 1]) + Math.abs(ys[d] - ys[d - 1]));
+        }
+    }
+
+    @Test
+    public void testZOrderInterleavesBits() {
+        assertEquals(0, StationOrder.zOrderKey(0, 0));
+        assertEquals(1, StationOrder.zOrderKey(1, 0));
+        assertEquals(2, StationOrder.zOrderKey(0, 1));
+        assertEquals(3, StationOrder.zOrderKey(1, 1));
+        assertEquals(4, StationOrder.zOrderKey(2, 0));
+    }
+
+    @Test
+    public void testNeighborsGetNeighboringIndices() {
+        // two clusters far apart, passed in alternating order
+        Station[] stations = new Station[] {
+            new Station(40.0f, -105.0f, "west_a"),
+            new Station(40.0f, -75.0f, "east_a"),
+            new Station(40.1f, -105.1f, "west_b"),
+            new Station(40.1f, -75.1f, "east_b"),
+            new Station(40.0f, -105.0f, "west_c")
+        };
+        for (StationOrder.Curve curve : StationOrder.Curve.values()) {
+            StationOrder order = StationOrder.create(curve, stations);
+            assertEquals(stations.length, order.size());
+            Station[] ordered = order.getFileStations();
+            for (int f = 0; f < ordered.length; f++) {
+                assertEquals(f, ordered[f].index);
+                assertEquals(f, order.toFileIndex(order.toInputIndex(f)));
+                assertSame(stations[order.toInputIndex(f)].station_id, ordered[f].station_id);
+            }
+            int west = Math.abs(order.toFileIndex(0) - order.toFileIndex(2));
+            int east = Math.abs(order.toFileIndex(1) - order.toFileIndex(3));
+            assertTrue(curve + " split a cluster", west <= 2 && east == 1);
+            // same cell, input order kept
+            assertTrue(order.toFileIndex(0) < order.toFileIndex(4));
+            assertEquals(-1, order.toFileIndex(-1));
+        }
+    }
+
+    @Test
+    public void testStationsWrittenInCurveOrder() throws Exception {
+        File testfile = folder.newFile("test.nc");
+        Station[] stations = stations();
+        RecordType rt = meanRecordType();
+        StationOrder order = StationOrder.create(StationOrder.Curve.HILBERT, stations);
+
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(testfile, rt, true, stations);
+        writer.setStationOrder(order);
+        for (int s = 0; s < stations.length; s++) {
+            assertTrue(writer.putObservation(new Observation(0, s, (float) s)));
+        }
+        writer.close();
+
+        // reopening restores the mapping
+        writer = new StationTimeSeriesNetCDFFile(testfile, rt);
+        assertNotNull(writer.getStationOrder());
+        assertTrue(writer.putObservation(new Observation(1, 2, 2f)));
+        writer.close();
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, rt);
+        assertStationsRead(order.getFileStations(), reader.readStations());
+        Iterator<Observation> iterator = reader.observations();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            // values were the caller's station_index
+            assertEquals(order.toInputIndex(observation.station_index), (Float) observation.values[0], 0f);
+            count++;
+        }
+        assertEquals(4, count);
+        assertEquals(2, reader.getStationRecordIndex().getRecordCount(order.toFileIndex(2)));
+        reader.close();
+    }
+
+    @Test
+    public void testBatchPutIntoTwoOrderedSinks() throws Exception {
+        File ragged = folder.newFile("test-ragged.nc");
+        File grid = folder.newFile("test-grid.nc");
+        Station[] stations = stations();
+        RecordType rt = meanRecordType();
+        ObservationBatch batch = meanBatch(6);
+        int[] inputIndices = batch.station_index.clone();
+        StationOrder order = StationOrder.create(StationOrder.Curve.HILBERT, stations);
+
+        StationTimeSeriesNetCDFFile raggedWriter = new StationTimeSeriesNetCDFFile(ragged, rt, true, stations);
+        raggedWriter.setStationOrder(order);
+        StationTimeSeriesMultiDimensional gridWriter = new StationTimeSeriesMultiDimensional(
+                grid, null, stations, new int[] { 0, 1 }, TIME_UNIT, batch.variables);
+        gridWriter.setStationOrder(order);
+        TeeSink tee = new TeeSink(raggedWriter, gridWriter);
+        assertEquals(6, tee.putBatch(batch));
+        tee.close();
+        // the second sink saw the caller's indices, not the first one's file indices
+        assertArrayEquals(inputIndices, batch.station_index);
+
+        for (File file : new File[] { ragged, grid }) {
+            StationTimeSeriesReader reader = new StationTimeSeriesReader(file, batch.variables);
+            Iterator<Observation> iterator = reader.observations();
+            int count = 0;
+            while (iterator.hasNext()) {
+                Observation observation = iterator.next();
+                int row = 3 * observation.time_offset + order.toInputIndex(observation.station_index);
+                assertEquals((float) row, (Float) observation.values[0], 0f);
+                count++;
+            }
+            assertEquals(6, count);
+            reader.close();
+        }
+    }
+}
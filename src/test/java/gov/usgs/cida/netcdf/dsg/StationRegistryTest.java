@@ -0,0 +1,82 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StationRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStationsIndexedInArrivalOrder() {
+        StationRegistry registry = new StationRegistry(3, 8);
+        assertEquals(0, registry.add(new Station(40f, -89f, "b")));
+        assertEquals(1, registry.add(new Station(41f, -90f, "a")));
+        // seen again, keeps its first index
+        assertEquals(0, registry.add(new Station(0f, 0f, "b")));
+        assertEquals(2, registry.size());
+        assertEquals(1, registry.indexOf("a"));
+        assertEquals(-1, registry.indexOf("c"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIdLongerThanDimension() {
+        new StationRegistry(3, 4).add(new Station(0f, 0f, "too_long"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCapacityExceeded() {
+        StationRegistry registry = new StationRegistry(1, 4);
+        registry.add(new Station(0f, 0f, "a"));
+        registry.add(new Station(0f, 0f, "b"));
+    }
+
+    @Test
+    public void testStationsDiscoveredWhileWriting() throws Exception {
+        File testfile = folder.newFile("test.nc");
+        Station[] stations = stations();
+        RecordType rt = meanRecordType();
+
+        StationTimeSeriesNetCDFFile ragged = new StationTimeSeriesNetCDFFile(testfile, rt, null,
+                StorageOptions.DEFAULT, new StationRegistry(100, 16));
+        // the third station only appears after a sync has written the first two
+        for (int time = 0; time < 4; time++) {
+            for (int s = 0; s < (time < 2 ? 2 : 3); s++) {
+                int index = ragged.addStation(stations[s]);
+                assertEquals(s, index);
+                assertTrue(ragged.putObservation(new Observation(time, index, (float) s)));
+            }
+            ragged.sync();
+        }
+        ragged.close();
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, rt);
+        assertStationsRead(stations, reader.readStations());
+        assertEquals(2, reader.getStationRecordIndex().getRecordCount(2));
+        reader.close();
+
+        int[] timeOffsets = new int[] { 0, 1, 2, 3 };
+        Variable[] variables = new Variable[] { mean() };
+        StationTimeSeriesMultiDimensional multi = new StationTimeSeriesMultiDimensional(testfile, null,
+                new StationRegistry(100, 16), timeOffsets, TIME_UNIT, variables, null);
+        for (int time = 0; time < timeOffsets.length; time++) {
+            for (int s = stations.length - 1; s >= 0; s--) {
+                int index = multi.addStation(stations[s]);
+                assertTrue(multi.putObservation(new Observation(time, index, (float) index)));
+            }
+        }
+        multi.close();
+
+        reader = new StationTimeSeriesReader(testfile, variables);
+        Station[] read = reader.readStations();
+        assertEquals(stations.length, read.length);
+        assertEquals("third", read[0].station_id);
+        assertEquals("station_test", read[2].station_id);
+        reader.close();
+    }
+}
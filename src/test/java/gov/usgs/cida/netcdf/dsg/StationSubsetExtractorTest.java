@@ -0,0 +1,77 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.util.Iterator;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StationSubsetExtractorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+    private File subset;
+    private RecordType rt;
+
+    @Before
+    public void setUp() throws Exception {
+        source = folder.newFile("test.nc");
+        subset = folder.newFile("test-subset.nc");
+        rt = meanRecordType();
+    }
+
+    private void writeSource(Station[] stations, boolean writeStationIndex) {
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(source, rt, true, stations);
+        writer.setWriteStationIndex(writeStationIndex);
+        for (int time = 0; time < 4; time++) {
+            for (int s = 0; s < stations.length; s++) {
+                assertTrue(writer.putObservation(new Observation(time, s, (float) (3 * time + s))));
+            }
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testExtractWithFreshSidecar() throws Exception {
+        writeSource(stations(), true);
+        StationIndex index = StationIndex.readSidecar(source);
+        assertNotNull(index);
+        assertEquals(3, index.getStationCount());
+
+        StationSubsetExtractor extractor = new StationSubsetExtractor(source, rt);
+        // station_test and third, times 1 and 2
+        assertArrayEquals(new int[] { 0, 2 }, extractor.findStations(39f, -110f, 42f, -89f));
+        assertEquals(4, extractor.extractRagged(subset, null, 39f, -110f, 42f, -89f, 1, 2));
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(subset, rt);
+        Station[] read = reader.readStations();
+        assertEquals("station_test", read[0].station_id);
+        assertEquals("third", read[1].station_id);
+        Iterator<Observation> iterator = reader.observations();
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            int sourceStation = (observation.station_index == 0) ? 0 : 2;
+            assertEquals(3f * observation.time_offset + sourceStation, (Float) observation.values[0], 0f);
+        }
+        reader.close();
+        // the subset carries its own index
+        assertEquals(2, StationIndex.readSidecar(subset).getStationCount());
+    }
+
+    @Test
+    public void testStaleSidecarIsRebuilt() throws Exception {
+        writeSource(stations(), true);
+        // rewritten with other stations, without a new index
+        Station[] stations = stations();
+        writeSource(new Station[] { stations[1], stations[0] }, false);
+        assertNull(StationIndex.readSidecar(source));
+
+        StationSubsetExtractor extractor = new StationSubsetExtractor(source, rt);
+        assertArrayEquals(new int[] { 1 }, extractor.findStations(39f, -110f, 42f, -89f));
+    }
+}
@@ -0,0 +1,35 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class StationTimeKeysTest {
+
+    @Test
+    public void testPutAndGrow() {
+        StationTimeKeys keys = new StationTimeKeys(3);
+        assertEquals(-1, keys.get(0, 5));
+        int record = 0;
+        for (int t = 0; t < 1000; t++) {
+            assertEquals(-1, keys.put(0, t * 24, record++));
+            assertEquals(-1, keys.put(2, -t, record++));
+        }
+        assertEquals(1000, keys.size(0));
+        assertEquals(0, keys.size(1));
+        for (int t = 0; t < 1000; t++) {
+            assertEquals(2 * t, keys.get(0, t * 24));
+            assertEquals(2 * t + 1, keys.get(2, -t));
+        }
+        assertEquals(-1, keys.get(0, 25));
+        assertEquals(-1, keys.get(1, 0));
+
+        assertEquals(48, keys.put(0, 24 * 24, 5000));
+        assertEquals(5000, keys.get(0, 24 * 24));
+        assertEquals(1000, keys.size(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedKey() {
+        new StationTimeKeys(1).put(0, Integer.MIN_VALUE, 0);
+    }
+}
@@ -9,11 +9,14 @@ import java.io.IOException;
 import java.util.Formatter;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
 import org.junit.After;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
+import ucar.nc2.Attribute;
 import ucar.nc2.constants.FeatureType;
+import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.ft.FeatureDataset;
 import ucar.nc2.ft.FeatureDatasetFactoryManager;
 
@@ -83,6 +86,134 @@ public class StationTimeSeriesMultiDimensionalTest {
         assertTrue(file.exists());
         validateNetCDFFileAsDSG(file);
     }
-    
 
+    @Test
+    public void testTimeIndexOfTimestamp() {
+        StationTimeSeriesMultiDimensional instance = new StationTimeSeriesMultiDimensional(
+                testfile,
+                null,
+                new Station[] { new Station(40.0f, -89.3f, "station_test1") },
+                new int[] { 0, 1, 2 },
+                "hours since 2011-01-01 00:00:00Z",
+                new Variable[] { new Variable("mean", XType.NC_FLOAT, new LinkedHashMap<String, Object>()) });
+        long base = 1293840000000L;
+        assertEquals(2, instance.getTimeIndex(base + 2 * 3600000L));
+        // between two times, and past the int range of the axis
+        assertEquals(-1, instance.getTimeIndex(base + 1800000L));
+        assertEquals(-1, instance.getTimeIndex(Long.MAX_VALUE));
+        assertEquals(-1, instance.getTimeIndex(Long.MIN_VALUE));
+        instance.close();
+    }
+
+    @Test
+    public void testActualRange() throws IOException {
+        Map<String, Object> attrMap = new LinkedHashMap<String, Object>();
+        StationTimeSeriesMultiDimensional instance = new StationTimeSeriesMultiDimensional(
+                testfile,
+                null,
+                new Station[] { new Station(40.0f, -89.3f, "station_test1") },
+                new int[] { 0, 1, 2 },
+                "days since 2011-01-01 00:00:00Z",
+                new Variable[] {
+                    new Variable("mean", XType.NC_FLOAT, attrMap),
+                    new Variable("count", XType.NC_SHORT, attrMap) });
+        instance.enableStatistics(false);
+        instance.putObservation(new Observation(0, 0, 2.5f, (short) 7));
+        instance.putObservation(new Observation(1, 0, -1f, (short) 3));
+        instance.putObservation(new Observation(2, 0, 4f, (short) 5));
+        instance.close();
+
+        NetcdfDataset dataset = NetcdfDataset.openDataset(testfile.getAbsolutePath());
+        try {
+            Attribute range = dataset.findVariable("mean").findAttribute("actual_range");
+            assertEquals(2, range.getLength());
+            assertEquals(-1f, range.getNumericValue(0).floatValue(), 0f);
+            assertEquals(4f, range.getNumericValue(1).floatValue(), 0f);
+            range = dataset.findVariable("count").findAttribute("actual_range");
+            assertEquals(Short.valueOf((short) 3), range.getNumericValue(0));
+            assertEquals(Short.valueOf((short) 7), range.getNumericValue(1));
+            assertNull(dataset.findVariable("mean").findAttribute("actual_min"));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMultiDimensionalPolicyFixedOnceWritten() {
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                testfile, null, stations(), new int[] { 0, 1 }, TIME_UNIT, new Variable[] { mean() });
+        try {
+            writer.putObservation(new Observation(0, 0, 1f));
+            writer.setDuplicatePolicy(DuplicatePolicy.FIRST_WINS);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicatePolicyOnReopenedFile() {
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                testfile, null, stations(), new int[] { 0, 1 }, TIME_UNIT, new Variable[] { mean() });
+        writer.putObservation(new Observation(1, 2, 1f));
+        writer.close();
+
+        writer = new StationTimeSeriesMultiDimensional(testfile, new Variable[] { mean() });
+        try {
+            writer.setDuplicatePolicy(DuplicatePolicy.REJECT);
+            assertTrue(writer.putObservation(new Observation(0, 2, 1f)));
+            writer.putObservation(new Observation(1, 2, 2f));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLastWinsRejectsStatistics() {
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                testfile, null, stations(), new int[] { 0, 1 }, TIME_UNIT, new Variable[] { mean() });
+        try {
+            writer.setDuplicatePolicy(DuplicatePolicy.LAST_WINS);
+            writer.enableStatistics(false);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testTypedBlockRoundTrip() {
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                testfile, null, stations(), new int[] { 0, 1, 2 }, TIME_UNIT, new Variable[] { mean() });
+        ObservationBatch batch = meanBatch(9);
+        float[] block = new float[9];
+        for (int i = 0; i < batch.size; i++) {
+            block[batch.station_index[i] * 3 + batch.time_offset[i]] = ((float[]) batch.columns[0])[i];
+        }
+        try {
+            writer.putBlock(0, 0, 3, 0, 3, new double[9]);
+            fail("double block accepted for a float variable");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertTrue(writer.putBlock(0, 0, 3, 0, 3, block));
+        writer.close();
+        assertFalse(writer.putBlock(0, 0, 3, 0, 3, block));
+        assertBatchRead(new StationTimeSeriesReader(testfile, new Variable[] { mean() }), batch);
+    }
+
+    @Test
+    public void testPutBatchRoundTrip() {
+        ObservationBatch batch = new ObservationBatch(new Variable[] { mean() }, 8);
+        for (int i = 0; i < 8; i++) {
+            // station 0 at times 0..3 is one run, station 1 alternates
+            batch.station_index[i] = (i < 4) ? 0 : 1;
+            batch.time_offset[i] = (i < 4) ? i : 2 * (i - 4);
+            ((float[]) batch.columns[0])[i] = i;
+        }
+        batch.size = 8;
+
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                testfile, null, stations(), new int[] { 0, 1, 2, 3, 4, 5, 6 }, TIME_UNIT, new Variable[] { mean() });
+        assertEquals(8, writer.putBatch(batch));
+        writer.close();
+        assertBatchRead(new StationTimeSeriesReader(testfile, new Variable[] { mean() }), batch);
+    }
 }
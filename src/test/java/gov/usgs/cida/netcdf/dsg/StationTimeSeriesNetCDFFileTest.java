@@ -4,13 +4,17 @@ import gov.usgs.cida.netcdf.jna.NCUtil.XType;
 import java.io.File;
 import java.io.IOException;
 import java.util.Formatter;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
 import org.junit.After;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
+import ucar.nc2.Attribute;
 import ucar.nc2.constants.FeatureType;
+import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.ft.FeatureDataset;
 import ucar.nc2.ft.FeatureDatasetFactoryManager;
 
@@ -146,6 +150,146 @@ public class StationTimeSeriesNetCDFFileTest {
         assertTrue(file.exists());
         validateNetCDFFileAsDSG(file);
     }
-    
 
+    @Test
+    public void testRaggedLastWinsRewritesInPlace() {
+        RecordType rt = meanRecordType();
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(
+                testfile, rt, true, stations());
+        writer.setDuplicatePolicy(DuplicatePolicy.LAST_WINS);
+        for (int time = 0; time < 5; time++) {
+            writer.putObservation(new Observation(time, 0, 1f));
+        }
+        // corrected value resent
+        assertTrue(writer.putObservation(new Observation(2, 0, 9f)));
+        assertEquals(5, writer.getRecordCount());
+        writer.close();
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, rt);
+        assertEquals(5, reader.getRecordCount());
+        Iterator<Observation> iterator = reader.observations();
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            float expected = (observation.time_offset == 2) ? 9f : 1f;
+            assertEquals(expected, (Float) observation.values[0], 0f);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testReservedKeyRejectedBeforeWrite() {
+        RecordType rt = meanRecordType();
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(testfile, rt, true, stations());
+        writer.setDuplicatePolicy(DuplicatePolicy.LAST_WINS);
+        assertTrue(writer.putObservation(new Observation(0, 0, 1f)));
+        try {
+            writer.putObservation(new Observation(Integer.MIN_VALUE, 0, 2f));
+            fail("reserved time offset accepted");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, writer.getRecordCount());
+        writer.close();
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, rt);
+        assertEquals(1, reader.getRecordCount());
+        reader.close();
+    }
+
+    @Test
+    public void testDuplicatePolicyOnReopenedFile() {
+        RecordType rt = meanRecordType();
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(testfile, rt, true, stations());
+        for (int time = 0; time < 3; time++) {
+            writer.putObservation(new Observation(time, 0, 1f));
+        }
+        writer.close();
+
+        writer = new StationTimeSeriesNetCDFFile(testfile, rt);
+        writer.setDuplicatePolicy(DuplicatePolicy.LAST_WINS);
+        assertTrue(writer.putObservation(new Observation(1, 0, 9f)));
+        assertTrue(writer.putObservation(new Observation(3, 0, 1f)));
+        assertEquals(4, writer.getRecordCount());
+        writer.close();
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, rt);
+        assertEquals(4, reader.getRecordCount());
+        Iterator<Observation> iterator = reader.observations();
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            float expected = (observation.time_offset == 1) ? 9f : 1f;
+            assertEquals(expected, (Float) observation.values[0], 0f);
+        }
+        reader.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLastWinsRejectsStatistics() {
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(
+                testfile, meanRecordType(), true, stations());
+        try {
+            writer.enableStatistics(false);
+            writer.setDuplicatePolicy(DuplicatePolicy.LAST_WINS);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testPutBatchRoundTrip() {
+        ObservationBatch batch = new ObservationBatch(new Variable[] { mean() }, 8);
+        for (int i = 0; i < 8; i++) {
+            // station 0 at times 0..3 is one run, station 1 alternates
+            batch.station_index[i] = (i < 4) ? 0 : 1;
+            batch.time_offset[i] = (i < 4) ? i : 2 * (i - 4);
+            ((float[]) batch.columns[0])[i] = i;
+        }
+        batch.size = 8;
+
+        RecordType rt = meanRecordType();
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(testfile, rt, true, stations());
+        assertEquals(8, writer.putBatch(batch));
+        assertEquals(8, writer.getRecordCount());
+        assertEquals(4, writer.getStationRecordIndex().getRecordCount(1));
+        writer.close();
+        assertBatchRead(new StationTimeSeriesReader(testfile, rt), batch);
+    }
+
+    @Test
+    public void testCategoricalRoundTrip() throws IOException {
+        RecordType rt = meanRecordType();
+        rt.addType(Variable.createCategorical("method", XType.NC_BYTE, new LinkedHashMap<String, Object>()));
+
+        String[] methods = new String[] { "gauge", "estimated", "gauge", "radar" };
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(testfile, rt, true, stations());
+        for (int time = 0; time < methods.length; time++) {
+            assertTrue(writer.putObservation(new Observation(time, 0, 1f, methods[time])));
+        }
+        writer.close();
+
+        NetcdfDataset dataset = NetcdfDataset.openDataset(testfile.getAbsolutePath());
+        try {
+            Attribute flagValues = dataset.findVariable("method" + CategoryDictionary.VARIABLE_SUFFIX)
+                    .findAttribute("flag_values");
+            assertEquals(3, flagValues.getLength());
+            for (int code = 0; code < 3; code++) {
+                assertEquals(Byte.valueOf((byte) code), flagValues.getNumericValue(code));
+            }
+        } finally {
+            dataset.close();
+        }
+
+        // fresh variables, the dictionary comes from the file
+        RecordType readType = meanRecordType();
+        Variable method = Variable.createCategorical("method", XType.NC_BYTE, new LinkedHashMap<String, Object>());
+        readType.addType(method);
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, readType);
+        assertArrayEquals(new String[] { "gauge", "estimated", "radar" }, method.getCategories().getValues());
+        Iterator<Observation> iterator = reader.observations();
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            assertEquals(methods[observation.time_offset], observation.values[1]);
+        }
+        reader.close();
+    }
 }
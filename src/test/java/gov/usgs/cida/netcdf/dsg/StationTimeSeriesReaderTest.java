@@ -0,0 +1,209 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.io.File;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StationTimeSeriesReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File testfile;
+
+    @Before
+    public void setUp() throws Exception {
+        testfile = folder.newFile("test.nc");
+    }
+
+    @Test
+    public void testRaggedRoundTrip() {
+        Station[] stations = stations();
+        RecordType rt = new RecordType("days since 2011-01-01 00:00:00Z");
+        Map<String, Object> attrMap = new LinkedHashMap<String, Object>();
+        attrMap.put("units", "days");
+        rt.addType(new Variable("mean", XType.NC_FLOAT, attrMap));
+        rt.addType(new Variable("count", XType.NC_INT, attrMap));
+
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(
+                testfile, rt, true, stations);
+        for (int time = 0; time < 10; time++) {
+            for (int index = 0; index < stations.length; index++) {
+                writer.putObservation(new Observation(time, index, (float) (time + index), time * index));
+            }
+        }
+        writer.close();
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, rt);
+        reader.setBlockSize(7);
+        assertTrue(reader.isRagged());
+        assertEquals(30, reader.getRecordCount());
+
+        Station[] read = reader.readStations();
+        assertEquals(stations.length, read.length);
+        assertEquals("another_station", read[1].station_id);
+        assertEquals(-34f, read[1].latitude, 0f);
+
+        StationRecordIndex index = reader.getStationRecordIndex();
+        assertNotNull(index);
+        assertEquals(10, index.getRecordCount(1));
+        assertEquals(1, index.getFirstRecord(1));
+        assertEquals(28, index.getLastRecord(1));
+
+        BitSet selected = new BitSet();
+        selected.set(1);
+        Iterator<Observation> iterator = reader.observations(selected, 3, 5);
+        int count = 0;
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            assertEquals(1, observation.station_index);
+            assertEquals(observation.time_offset + 1f, (Float) observation.values[0], 0f);
+            assertEquals(observation.time_offset, ((Integer) observation.values[1]).intValue());
+            count++;
+        }
+        assertEquals(3, count);
+        reader.close();
+    }
+
+    @Test
+    public void testMultiDimensionalRoundTrip() {
+        Station[] stations = stations();
+        Map<String, Object> attrMap = new LinkedHashMap<String, Object>();
+        attrMap.put("units", "days");
+        Variable[] variables = new Variable[] {
+            new Variable("min", XType.NC_FLOAT, attrMap),
+            new Variable("max", XType.NC_FLOAT, attrMap)
+        };
+        int[] timeOffsets = new int[] { 0, 1, 2, 3 };
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                testfile, null, stations, timeOffsets, "days since 2011-01-01 00:00:00Z", variables);
+        // station 2 is left empty and should not come back
+        for (int time = 0; time < timeOffsets.length; time++) {
+            writer.putObservation(new Observation(time, 0, 1f, 2f));
+            writer.putObservation(new Observation(time, 1, 3f, 4f));
+        }
+        writer.close();
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, variables);
+        reader.setBlockSize(3);
+        assertFalse(reader.isRagged());
+        assertArrayEquals(timeOffsets, reader.getTimeOffsets());
+
+        Iterator<Observation> iterator = reader.observations();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            assertTrue(observation.station_index < 2);
+            float expected = (observation.station_index == 0) ? 1f : 3f;
+            assertEquals(expected, (Float) observation.values[0], 0f);
+            count++;
+        }
+        assertEquals(8, count);
+        reader.close();
+    }
+
+    @Test
+    public void testMultiDimensionalBatchesWriteBack() throws Exception {
+        Station[] stations = stations();
+        Variable[] variables = new Variable[] {
+            new Variable("mean", XType.NC_FLOAT, new LinkedHashMap<String, Object>())
+        };
+        // uneven and not starting at 0, so time values and indices differ
+        int[] timeOffsets = new int[] { 10, 20, 40 };
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                testfile, null, stations, timeOffsets, "days since 2011-01-01 00:00:00Z", variables);
+        for (int time = 0; time < timeOffsets.length; time++) {
+            for (int index = 0; index < stations.length; index++) {
+                writer.putObservation(new Observation(time, index, (float) (10 * time + index)));
+            }
+        }
+        writer.close();
+
+        File copy = folder.newFile("test-copy.nc");
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, variables);
+        writer = new StationTimeSeriesMultiDimensional(
+                copy, null, stations, reader.getTimeOffsets(), "days since 2011-01-01 00:00:00Z", variables);
+        // only the last two times, selected by value
+        Iterator<ObservationBatch> batches = reader.batches(null, 20, 40);
+        while (batches.hasNext()) {
+            ObservationBatch batch = batches.next();
+            for (int row = 0; row < batch.size; row++) {
+                assertTrue(batch.time_offset[row] >= 1 && batch.time_offset[row] <= 2);
+            }
+            writer.putBatch(batch);
+        }
+        writer.close();
+        reader.close();
+
+        reader = new StationTimeSeriesReader(copy, variables);
+        assertArrayEquals(timeOffsets, reader.getTimeOffsets());
+        Iterator<Observation> iterator = reader.observations();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Observation observation = iterator.next();
+            assertTrue(observation.time_offset >= 1);
+            assertEquals(10f * observation.time_offset + observation.station_index,
+                    (Float) observation.values[0], 0f);
+            count++;
+        }
+        assertEquals(6, count);
+        reader.close();
+    }
+
+    @Test
+    public void testChunkAlignedBlocksReadEachCellOnce() {
+        Station[] stations = new Station[5];
+        for (int s = 0; s < stations.length; s++) {
+            stations[s] = new Station(40f + s, -89f - s, "station" + s);
+        }
+        Variable[] variables = new Variable[] { mean() };
+        int[] timeOffsets = new int[] { 0, 1, 2, 3, 4, 5, 6 };
+        StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                testfile, null, stations, timeOffsets, TIME_UNIT, variables,
+                StorageOptions.multiDimensional(2, 3, 1, false));
+        for (int s = 0; s < stations.length; s++) {
+            for (int t = 0; t < timeOffsets.length; t++) {
+                writer.putObservation(new Observation(t, s, (float) (10 * t + s)));
+            }
+        }
+        writer.close();
+
+        BitSet selected = new BitSet();
+        selected.set(1);
+        selected.set(3);
+        selected.set(4);
+        // blocks of 2 x 3 chunks, both sizes smaller and larger than a chunk
+        for (int blockSize : new int[] { 4, 14, 100 }) {
+            StationTimeSeriesReader reader = new StationTimeSeriesReader(testfile, variables);
+            reader.setBlockSize(blockSize);
+            int[][] reads = new int[stations.length][timeOffsets.length];
+            Iterator<ObservationBatch> batches = reader.batches(selected, 1, 5);
+            while (batches.hasNext()) {
+                ObservationBatch batch = batches.next();
+                for (int row = 0; row < batch.size; row++) {
+                    int s = batch.station_index[row];
+                    int t = batch.time_offset[row];
+                    assertEquals(10f * t + s, ((float[]) batch.columns[0])[row], 0f);
+                    reads[s][t]++;
+                }
+            }
+            reader.close();
+            for (int s = 0; s < stations.length; s++) {
+                for (int t = 0; t < timeOffsets.length; t++) {
+                    boolean expected = selected.get(s) && t >= 1 && t <= 5;
+                    assertEquals((expected ? 1 : 0), reads[s][t]);
+                }
+            }
+        }
+    }
+
+}
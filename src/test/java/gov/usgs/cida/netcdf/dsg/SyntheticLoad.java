@@ -0,0 +1,274 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Deterministic synthetic observations for load tests: stationCount stations
+ * by timeCount time steps, with a fraction of the cells (sparsity) missing,
+ * arriving time-major (every station at time 0, then time 1...) or
+ * station-major (every time of station 0, then station 1...).
+ *
+ * Every value is a hash of (seed, station, time, variable), so a load can be
+ * regenerated for checking without keeping it. The time offset of time step
+ * t is t, which is also its index on the multidimensional time axis.
+ */
+public class SyntheticLoad {
+
+    public enum Order {
+        TIME_MAJOR,
+        STATION_MAJOR
+    }
+
+    private static final String[] CATEGORIES = { "good", "suspect", "estimated", "interpolated" };
+
+    private final int stationCount;
+    private final int timeCount;
+    private final Variable[] variables;
+    private final double sparsity;
+    private final Order order;
+    private final long seed;
+
+    /**
+     * @param sparsity fraction of station x time cells without an observation, 0 to 1
+     */
+    public SyntheticLoad(int stationCount, int timeCount, Variable[] variables,
+            double sparsity, Order order, long seed) {
+        if (sparsity < 0 || sparsity > 1) {
+            throw new IllegalArgumentException("Sparsity must be 0 to 1, not " + sparsity);
+        }
+        this.stationCount = stationCount;
+        this.timeCount = timeCount;
+        this.variables = variables;
+        this.sparsity = sparsity;
+        this.order = order;
+        this.seed = seed;
+    }
+
+    /**
+     * @return count statistic variables named v0, v1..., cycling through the
+     * types; NC_CHAR makes an NC_BYTE coded categorical variable
+     */
+    public static Variable[] variables(int count, XType... types) {
+        Variable[] variables = new Variable[count];
+        for (int v = 0; v < count; v++) {
+            Map<String, Object> attrs = new LinkedHashMap<String, Object>();
+            attrs.put("long_name", "synthetic statistic " + v);
+            XType type = types[v % types.length];
+            if (type == XType.NC_CHAR) {
+                variables[v] = Variable.createCategorical("v" + v, XType.NC_BYTE, attrs);
+            }
+            else {
+                attrs.put("units", "1");
+                variables[v] = new Variable("v" + v, type, attrs);
+            }
+        }
+        return variables;
+    }
+
+    public int getStationCount() {
+        return stationCount;
+    }
+
+    public int getTimeCount() {
+        return timeCount;
+    }
+
+    public Variable[] getVariables() {
+        return variables;
+    }
+
+    public int[] getTimeOffsets() {
+        int[] timeOffsets = new int[timeCount];
+        for (int t = 0; t < timeCount; t++) {
+            timeOffsets[t] = t;
+        }
+        return timeOffsets;
+    }
+
+    /**
+     * @return stations on a regular lat/lon grid over the conterminous US
+     */
+    public Station[] getStations() {
+        Station[] stations = new Station[stationCount];
+        int columns = (int) Math.ceil(Math.sqrt(stationCount));
+        for (int s = 0; s < stationCount; s++) {
+            float latitude = 25f + 25f * (s / columns) / columns;
+            float longitude = -125f + 58f * (s % columns) / columns;
+            stations[s] = new Station(latitude, longitude, String.format("SYN%07d", s));
+        }
+        return stations;
+    }
+
+    public boolean isPresent(int station, int time) {
+        if (sparsity == 0) {
+            return true;
+        }
+        return (hash(station, time, -1) >>> 11) * 0x1.0p-53 >= sparsity;
+    }
+
+    /**
+     * @return the value of variable v, boxed to its getValueClass()
+     */
+    public Object getValue(int v, int station, int time) {
+        long h = hash(station, time, v);
+        if (variables[v].getCategories() != null) {
+            return CATEGORIES[(int) ((h >>> 33) % CATEGORIES.length)];
+        }
+        // a per station level plus a little noise, roughly what real statistics compress like
+        double value = (station % 97) + ((h >>> 40) & 0xff) / 256.0;
+        switch (variables[v].xtype) {
+            case NC_BYTE:
+                return Byte.valueOf((byte) value);
+            case NC_SHORT:
+                return Short.valueOf((short) (value * 100));
+            case NC_INT:
+                return Integer.valueOf((int) (value * 1000));
+            case NC_FLOAT:
+                return Float.valueOf((float) value);
+            case NC_DOUBLE:
+                return Double.valueOf(value);
+            default:
+                throw new UnsupportedOperationException("Should implement the other types");
+        }
+    }
+
+    /**
+     * @return number of observations the load generates
+     */
+    public long getObservationCount() {
+        long count = 0;
+        for (int s = 0; s < stationCount; s++) {
+            for (int t = 0; t < timeCount; t++) {
+                if (isPresent(s, t)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public Iterator<Observation> observations() {
+        return new Iterator<Observation>() {
+
+            private final Cursor cursor = new Cursor();
+
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public Observation next() {
+                if (!cursor.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Object[] values = new Object[variables.length];
+                for (int v = 0; v < variables.length; v++) {
+                    values[v] = getValue(v, cursor.station, cursor.time);
+                }
+                Observation observation = new Observation(cursor.time, cursor.station, values);
+                cursor.advance();
+                return observation;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return batches of at most batchSize rows, the same batch refilled each time
+     */
+    public Iterator<ObservationBatch> batches(final int batchSize) {
+        return new Iterator<ObservationBatch>() {
+
+            private final Cursor cursor = new Cursor();
+            private final ObservationBatch batch = new ObservationBatch(variables, batchSize);
+
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public ObservationBatch next() {
+                if (!cursor.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                batch.clear();
+                while (!batch.isFull() && cursor.hasNext()) {
+                    int row = batch.size++;
+                    batch.station_index[row] = cursor.station;
+                    batch.time_offset[row] = cursor.time;
+                    for (int v = 0; v < variables.length; v++) {
+                        Object value = getValue(v, cursor.station, cursor.time);
+                        if (value instanceof String) {
+                            batch.setValue(v, row, variables[v].getCategories().encode((String) value));
+                        }
+                        else {
+                            batch.setValue(v, row, (Number) value);
+                        }
+                    }
+                    cursor.advance();
+                }
+                return batch;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Position of the next present cell in arrival order
+     */
+    private class Cursor {
+
+        int station = 0;
+        int time = 0;
+        private boolean done = (stationCount == 0 || timeCount == 0);
+
+        Cursor() {
+            if (!done && !isPresent(station, time)) {
+                advance();
+            }
+        }
+
+        boolean hasNext() {
+            return !done;
+        }
+
+        void advance() {
+            do {
+                if (order == Order.TIME_MAJOR) {
+                    if (++station == stationCount) {
+                        station = 0;
+                        done = (++time == timeCount);
+                    }
+                }
+                else {
+                    if (++time == timeCount) {
+                        time = 0;
+                        done = (++station == stationCount);
+                    }
+                }
+            } while (!done && !isPresent(station, time));
+        }
+    }
+
+    private long hash(int station, int time, int v) {
+        // splitmix64 finalizer over the packed coordinates
+        long z = seed + 0x9E3779B97F4A7C15L * (((long) station << 32) ^ ((long) time << 8) ^ (v + 1));
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
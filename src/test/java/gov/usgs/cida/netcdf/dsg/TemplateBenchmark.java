@@ -0,0 +1,94 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Creation latency of an empty file with the writer constructors against a
+ * copy of a FileTemplate, for both layouts. Each file is created and closed.
+ * Not a unit test, run it by hand:
+ *
+ * java -cp ... gov.usgs.cida.netcdf.dsg.TemplateBenchmark [files] [stations] [variables]
+ */
+public class TemplateBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final String TIME_UNIT = "days since 2000-01-01 00:00:00Z";
+
+    public static void main(String[] args) throws Exception {
+        int files = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int stationCount = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        int variableCount = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+
+        Station[] stations = new Station[stationCount];
+        for (int s = 0; s < stationCount; s++) {
+            stations[s] = new Station(30f + s % 20, -120f + s % 50, "station_" + s);
+        }
+        RecordType rt = new RecordType(TIME_UNIT);
+        Variable[] variables = new Variable[variableCount];
+        for (int v = 0; v < variableCount; v++) {
+            Map<String, Object> attrs = new LinkedHashMap<String, Object>();
+            attrs.put("units", "mm");
+            attrs.put("long_name", "statistic " + v);
+            attrs.put("_FillValue", -999f);
+            variables[v] = new Variable("stat" + v, XType.NC_FLOAT, attrs);
+            rt.addType(variables[v]);
+        }
+        int[] timeOffsets = new int[365];
+        for (int t = 0; t < timeOffsets.length; t++) {
+            timeOffsets[t] = t;
+        }
+
+        File dir = File.createTempFile("template-benchmark", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            FileTemplate ragged = FileTemplate.ragged(new File(dir, "ragged-template.nc"), rt, null, null, stations);
+            FileTemplate grid = FileTemplate.multiDimensional(new File(dir, "grid-template.nc"), null,
+                    stations, timeOffsets, TIME_UNIT, variables, null);
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                boolean report = (round == WARMUP_ROUNDS);
+                int n = report ? files : Math.max(1, files / 10);
+                long start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    new StationTimeSeriesNetCDFFile(new File(dir, "r" + i + ".nc"), rt, null,
+                            (StorageOptions) null, stations).close();
+                }
+                long raggedDefine = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    ragged.createRagged(new File(dir, "r" + i + ".nc"), null).close();
+                }
+                long raggedCopy = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    new StationTimeSeriesMultiDimensional(new File(dir, "m" + i + ".nc"), null, stations,
+                            timeOffsets, TIME_UNIT, variables).close();
+                }
+                long gridDefine = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    grid.createMultiDimensional(new File(dir, "m" + i + ".nc"), null).close();
+                }
+                long gridCopy = System.nanoTime() - start;
+                if (report) {
+                    print("ragged constructor", raggedDefine, n);
+                    print("ragged template", raggedCopy, n);
+                    print("multidimensional constructor", gridDefine, n);
+                    print("multidimensional template", gridCopy, n);
+                }
+            }
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static void print(String label, long nanos, int n) {
+        System.out.println(String.format("%-30s %8.3f ms/file", label, nanos / 1e6 / n));
+    }
+}
@@ -0,0 +1,83 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.dsg.TemporalRollup.Aggregate;
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TemporalRollupTest {
+
+    private static class ListSink implements ObservationSink {
+        final List<Observation> observations = new ArrayList<Observation>();
+        boolean closed = false;
+
+        @Override
+        public boolean putObservation(Observation observation) {
+            return observations.add(observation);
+        }
+
+        @Override
+        public void sync() {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testMonthlyAndAnnual() {
+        Variable[] inputs = new Variable[] {
+            new Variable("mean", XType.NC_FLOAT, new LinkedHashMap<String, Object>())
+        };
+        TimeEncoder daily = new TimeEncoder("days since 2011-01-01");
+
+        TemporalRollup rollup = new TemporalRollup(inputs, 2);
+        ListSink monthly = new ListSink();
+        Variable[] monthlyVars = TemporalRollup.outputVariables(inputs, Aggregate.MEAN, Aggregate.MAX, Aggregate.COUNT);
+        assertEquals("mean_mean", monthlyVars[0].name);
+        assertEquals(XType.NC_FLOAT, monthlyVars[1].xtype);
+        rollup.addTarget(monthly, TemporalRollup.monthly(daily, daily), monthlyVars,
+                Aggregate.MEAN, Aggregate.MAX, Aggregate.COUNT);
+        ListSink annual = new ListSink();
+        rollup.addTarget(annual, TemporalRollup.annual(daily, new TimeEncoder("hours since 2011-01-01")),
+                TemporalRollup.outputVariables(inputs, Aggregate.SUM), Aggregate.SUM);
+
+        // 2011-01-01 .. 2011-02-28, time-major
+        for (int day = 0; day < 59; day++) {
+            rollup.putObservation(new Observation(day, 0, (float) day));
+            rollup.putObservation(new Observation(day, 1, 1f));
+        }
+        rollup.close();
+        assertTrue(monthly.closed && annual.closed);
+
+        assertEquals(4, monthly.observations.size());
+        Observation january = monthly.observations.get(0);
+        assertEquals(0, january.time_offset);
+        assertEquals(0, january.station_index);
+        assertEquals(15.0, (Double) january.values[0], 1e-9);
+        assertEquals(30f, (Float) january.values[1], 0f);
+        assertEquals(31, ((Integer) january.values[2]).intValue());
+
+        Observation february = monthly.observations.get(2);
+        assertEquals(31, february.time_offset);
+        assertEquals(28, ((Integer) february.values[2]).intValue());
+
+        assertEquals(2, annual.observations.size());
+        assertEquals(0, annual.observations.get(0).time_offset);
+        assertEquals(59.0, (Double) annual.observations.get(1).values[0], 1e-9);
+    }
+
+    @Test
+    public void testFixedBuckets() {
+        TemporalRollup.Bucketing weekly = TemporalRollup.fixed(7);
+        assertEquals(0, weekly.bucketOf(6));
+        assertEquals(1, weekly.bucketOf(7));
+        assertEquals(-1, weekly.bucketOf(-1));
+        assertArrayEquals(new int[] { 0, 1, 2 }, TemporalRollup.axis(weekly, 0, 20));
+    }
+}
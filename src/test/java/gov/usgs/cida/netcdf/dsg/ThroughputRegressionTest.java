@@ -0,0 +1,272 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Formatter;
+import java.util.Iterator;
+import java.util.Properties;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.ft.FeatureDataset;
+import ucar.nc2.ft.FeatureDatasetFactoryManager;
+
+/**
+ * End to end throughput of both writers on a SyntheticLoad at production
+ * scale. Each scenario records observations per second, peak RSS and file
+ * size, checks the file opens as a CF STATION feature through NetCDF-Java,
+ * and compares against throughput-baselines.properties.
+ *
+ * Only runs with -Dthroughput.suite=true (mvn test -Pthroughput). Scale and
+ * tolerance come from throughput.stations, throughput.times and
+ * throughput.tolerance. Results are written to throughput.results
+ * (target/throughput-results.properties), copy them over the baselines to
+ * accept a new level. A scenario fails when the baselines have no numbers
+ * for it at the current scale, after its results are recorded.
+ */
+public class ThroughputRegressionTest {
+
+    private static final String TIME_UNIT = "days since 2000-01-01 00:00:00Z";
+    private static final double SPARSITY = 0.1;
+    private static final int BATCH_SIZE = 8192;
+
+    private static final int STATIONS = Integer.getInteger("throughput.stations", 20000);
+    private static final int TIMES = Integer.getInteger("throughput.times", 365);
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("throughput.tolerance", "0.25"));
+    private static final String SCALE = STATIONS + "x" + TIMES;
+    private static final String RESULTS_PATH = System.getProperty("throughput.results",
+            "target/throughput-results.properties");
+
+    private static Properties baselines;
+    private static Properties results;
+    private static File dir;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        assumeTrue(Boolean.getBoolean("throughput.suite"));
+        baselines = new Properties();
+        InputStream in = ThroughputRegressionTest.class.getResourceAsStream("/throughput-baselines.properties");
+        if (in != null) {
+            try {
+                baselines.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        results = new Properties();
+        results.setProperty("scale", SCALE);
+        dir = File.createTempFile("throughput", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        if (results == null) {
+            return;
+        }
+        dir.delete();
+        File resultFile = new File(RESULTS_PATH);
+        resultFile.getAbsoluteFile().getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(resultFile);
+        try {
+            results.store(out, "ThroughputRegressionTest");
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testRaggedTimeMajor() throws IOException {
+        runRagged("ragged.time_major", SyntheticLoad.Order.TIME_MAJOR, true);
+    }
+
+    @Test
+    public void testRaggedStationMajor() throws IOException {
+        runRagged("ragged.station_major", SyntheticLoad.Order.STATION_MAJOR, true);
+    }
+
+    @Test
+    public void testRaggedPutObservation() throws IOException {
+        runRagged("ragged.put_observation", SyntheticLoad.Order.TIME_MAJOR, false);
+    }
+
+    @Test
+    public void testMultiDimensionalTimeMajor() throws IOException {
+        runMultiDimensional("multidimensional.time_major", SyntheticLoad.Order.TIME_MAJOR, true);
+    }
+
+    @Test
+    public void testMultiDimensionalStationMajor() throws IOException {
+        runMultiDimensional("multidimensional.station_major", SyntheticLoad.Order.STATION_MAJOR, true);
+    }
+
+    @Test
+    public void testMultiDimensionalPutObservation() throws IOException {
+        runMultiDimensional("multidimensional.put_observation", SyntheticLoad.Order.TIME_MAJOR, false);
+    }
+
+    private void runRagged(String scenario, SyntheticLoad.Order order, boolean batched) throws IOException {
+        SyntheticLoad load = createLoad(order);
+        RecordType rt = new RecordType(TIME_UNIT);
+        for (Variable var : load.getVariables()) {
+            rt.addType(var);
+        }
+        long expected = load.getObservationCount();
+        File file = new File(dir, scenario + ".nc");
+        try {
+            resetPeakRss();
+            long start = System.nanoTime();
+            StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(file, rt, null,
+                    StorageOptions.ragged(BATCH_SIZE, 0, false), load.getStations());
+            try {
+                write(writer, load, batched);
+                assertEquals(expected, writer.getRecordCount());
+            } finally {
+                writer.close();
+            }
+            record(scenario, expected, System.nanoTime() - start, file);
+        } finally {
+            file.delete();
+            StationRecordIndex.sidecarFile(file).delete();
+        }
+    }
+
+    private void runMultiDimensional(String scenario, SyntheticLoad.Order order, boolean batched) throws IOException {
+        SyntheticLoad load = createLoad(order);
+        long expected = load.getObservationCount();
+        File file = new File(dir, scenario + ".nc");
+        try {
+            resetPeakRss();
+            long start = System.nanoTime();
+            StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(file, null,
+                    load.getStations(), load.getTimeOffsets(), TIME_UNIT, load.getVariables());
+            try {
+                write(writer, load, batched);
+            } finally {
+                writer.close();
+            }
+            record(scenario, expected, System.nanoTime() - start, file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static SyntheticLoad createLoad(SyntheticLoad.Order order) {
+        Variable[] variables = SyntheticLoad.variables(6,
+                XType.NC_FLOAT, XType.NC_FLOAT, XType.NC_INT, XType.NC_SHORT, XType.NC_DOUBLE, XType.NC_CHAR);
+        return new SyntheticLoad(STATIONS, TIMES, variables, SPARSITY, order, 46L);
+    }
+
+    private static void write(ObservationBatchSink sink, SyntheticLoad load, boolean batched) {
+        if (batched) {
+            Iterator<ObservationBatch> batches = load.batches(BATCH_SIZE);
+            while (batches.hasNext()) {
+                ObservationBatch batch = batches.next();
+                assertEquals(batch.size, sink.putBatch(batch));
+            }
+        }
+        else {
+            Iterator<Observation> observations = load.observations();
+            while (observations.hasNext()) {
+                assertTrue(sink.putObservation(observations.next()));
+            }
+        }
+    }
+
+    private void record(String scenario, long observations, long nanos, File file) throws IOException {
+        double perSecond = observations / (nanos / 1e9);
+        long peakRssKb = readPeakRssKb();
+        long fileBytes = file.length();
+        System.out.println(String.format("%-34s %10.0f obs/s %8d kB peak RSS %12d bytes",
+                scenario, perSecond, peakRssKb, fileBytes));
+        results.setProperty(scenario + ".observationsPerSecond", String.format("%.0f", perSecond));
+        results.setProperty(scenario + ".peakRssKb", Long.toString(peakRssKb));
+        results.setProperty(scenario + ".fileBytes", Long.toString(fileBytes));
+
+        validateAsStation(file);
+
+        // results are already recorded, a missing baseline fails after them
+        assertEquals("No baselines at scale " + SCALE + ", accept " + RESULTS_PATH + " to record them",
+                SCALE, baselines.getProperty("scale"));
+        String baseline = baseline(scenario, "observationsPerSecond");
+        assertTrue(scenario + " wrote " + (long) perSecond + " obs/s, baseline " + baseline,
+                perSecond >= Double.parseDouble(baseline) * (1 - TOLERANCE));
+        baseline = baseline(scenario, "peakRssKb");
+        if (peakRssKb >= 0) {
+            assertTrue(scenario + " peaked at " + peakRssKb + " kB, baseline " + baseline,
+                    peakRssKb <= Long.parseLong(baseline) * (1 + TOLERANCE));
+        }
+        baseline = baseline(scenario, "fileBytes");
+        assertTrue(scenario + " is " + fileBytes + " bytes, baseline " + baseline,
+                fileBytes <= Long.parseLong(baseline) * (1 + TOLERANCE));
+    }
+
+    private static String baseline(String scenario, String key) {
+        String baseline = baselines.getProperty(scenario + "." + key);
+        assertNotNull("No " + scenario + "." + key + " baseline, accept " + RESULTS_PATH + " to record it",
+                baseline);
+        return baseline;
+    }
+
+    private static void validateAsStation(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        FeatureDataset fds = null;
+        try {
+            fds = FeatureDatasetFactoryManager.open(FeatureType.ANY, path, null, new Formatter(System.err));
+            assertNotNull("Unable to open " + path, fds);
+            assertEquals("NetCDF file not recognized as CF 1.6 DSG", FeatureType.STATION, fds.getFeatureType());
+        } finally {
+            if (fds != null) {
+                try { fds.close(); } catch (IOException ignore) { }
+            }
+        }
+    }
+
+    /**
+     * Linux 4.0+ resets VmHWM when 5 is written to clear_refs, elsewhere
+     * the peak is for the whole run so far
+     */
+    private static void resetPeakRss() {
+        try {
+            FileWriter writer = new FileWriter("/proc/self/clear_refs");
+            try {
+                writer.write("5");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException notLinux) {
+        }
+    }
+
+    /**
+     * @return VmHWM from /proc/self/status in kB, -1 if it can't be read
+     */
+    private static long readPeakRssKb() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException notLinux) {
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,46 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TimeEncoderTest {
+
+    // 2011-01-01T00:00:00Z
+    private static final long JAN_1_2011 = 1293840000000L;
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+
+    @Test
+    public void testDaysSince() {
+        TimeEncoder encoder = new TimeEncoder("days since 2011-01-01 00:00:00Z");
+        assertEquals(JAN_1_2011, encoder.getBaseMillis());
+        assertEquals(DAY, encoder.getUnitMillis());
+        assertEquals(0, encoder.encode(JAN_1_2011));
+        assertEquals(31, encoder.encode(JAN_1_2011 + 31 * DAY));
+        assertEquals(31, encoder.encode(JAN_1_2011 + 31 * DAY + DAY / 2));
+        assertEquals(-1, encoder.encode(JAN_1_2011 - DAY / 2));
+        assertEquals(JAN_1_2011 + 10 * DAY, encoder.decode(10));
+    }
+
+    @Test
+    public void testReferenceDateForms() {
+        assertEquals(JAN_1_2011, new TimeEncoder("days since 2011-01-01").getBaseMillis());
+        assertEquals(JAN_1_2011, new TimeEncoder("hours since 2011-01-01T00:00:00").getBaseMillis());
+        assertEquals(JAN_1_2011 + 1500L, new TimeEncoder("seconds since 2011-01-01 00:00:01.5").getBaseMillis());
+        assertEquals(JAN_1_2011 - 6 * 60 * 60 * 1000L,
+                new TimeEncoder("minutes since 2011-01-01 00:00:00 +06:00").getBaseMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCalendarUnitsRejected() {
+        new TimeEncoder("months since 2011-01-01");
+    }
+
+    @Test
+    public void testOutOfRangeTimestamps() {
+        TimeEncoder encoder = new TimeEncoder("milliseconds since 2011-01-01");
+        assertTrue(encoder.canEncode(JAN_1_2011 + Integer.MAX_VALUE));
+        assertFalse(encoder.canEncode(JAN_1_2011 + Integer.MAX_VALUE + 1L));
+        assertFalse(encoder.canEncode(Long.MAX_VALUE));
+        assertFalse(encoder.canEncode(Long.MIN_VALUE));
+    }
+}
@@ -0,0 +1,55 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import gov.usgs.cida.netcdf.jna.NCUtil.XType;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class VariableTest {
+
+    @Test
+    public void testMantissaBitsRoundToNearest() {
+        Variable mean = new Variable("mean", XType.NC_FLOAT, new HashMap<String, Object>());
+        mean.setMantissaBits(2);
+        // 1.25 is 1.01b, 1.375 is 1.011b which rounds up to 1.10b, 1.125 is a tie that goes to even 1.00b
+        assertEquals(1.25f, mean.quantize(1.25f), 0f);
+        assertEquals(1.5f, mean.quantize(1.375f), 0f);
+        assertEquals(1.0f, mean.quantize(1.125f), 0f);
+        assertEquals(-1.5f, mean.quantize(-1.375f), 0f);
+        assertEquals(0, Float.floatToRawIntBits(mean.quantize(3.14159f)) & ((1 << 21) - 1));
+        assertTrue(Float.isNaN(mean.quantize(Float.NaN)));
+        assertEquals(Float.MAX_VALUE, mean.quantize(Float.MAX_VALUE), Float.MAX_VALUE * 0.25f);
+        assertFalse(Float.isInfinite(mean.quantize(Float.MAX_VALUE)));
+    }
+
+    @Test
+    public void testSignificantDigitsKeepRelativeError() {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put("_FillValue", -999.99);
+        Variable total = new Variable("total", XType.NC_DOUBLE, attrs);
+        total.setSignificantDigits(3);
+        assertEquals(10, total.getMantissaBits());
+        for (double value = 0.001234567; value < 1e6; value *= 7.3) {
+            assertEquals(value, total.quantize(value), Math.abs(value) * 0.5e-3);
+        }
+        // the fill value is never rounded
+        assertEquals(-999.99, total.quantize(-999.99), 0.0);
+        assertTrue(total.quantize(-999.98) != -999.98);
+    }
+
+    @Test
+    public void testFullPrecisionUnchanged() {
+        Variable mean = new Variable("mean", XType.NC_FLOAT, new HashMap<String, Object>());
+        assertFalse(mean.isQuantized());
+        assertEquals(0.1f, mean.quantize(0.1f), 0f);
+        mean.setSignificantDigits(9);
+        assertEquals(23, mean.getMantissaBits());
+        assertEquals(0.1f, mean.quantize(0.1f), 0f);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIntegersCantBeTrimmed() {
+        new Variable("count", XType.NC_INT, new HashMap<String, Object>()).setMantissaBits(8);
+    }
+}
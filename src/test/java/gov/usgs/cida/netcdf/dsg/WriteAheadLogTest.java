@@ -0,0 +1,177 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File logFile;
+    private File checkpointFile;
+
+    private static class ListSink implements ObservationSink {
+        final List<Observation> observations = new ArrayList<Observation>();
+        int syncs = 0;
+
+        @Override
+        public boolean putObservation(Observation observation) {
+            return observations.add(observation);
+        }
+
+        @Override
+        public void sync() {
+            syncs++;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        logFile = File.createTempFile("wal-test", ".wal");
+        logFile.delete();
+        checkpointFile = new File(logFile.getPath() + ".ckpt");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        logFile.delete();
+        checkpointFile.delete();
+    }
+
+    @Test
+    public void testAppendReplayAndTornTail() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(logFile);
+        log.append(Arrays.asList(new Observation(0, 1, 1f, 2.0), new Observation(1, 1, (short) 3, null)));
+        log.append(Arrays.asList(new Observation(2, 0, 7, 8L)));
+        assertEquals(3, log.getNextSequence());
+        log.close();
+
+        // half written batch from a crash
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        long end = raf.length();
+        raf.seek(end);
+        raf.writeInt(100);
+        raf.writeInt(5);
+        raf.writeLong(42);
+        raf.close();
+
+        log = new WriteAheadLog(logFile);
+        assertEquals(3, log.getNextSequence());
+        assertEquals(end, logFile.length());
+        ListSink sink = new ListSink();
+        assertEquals(2, log.replay(1, sink));
+        assertEquals(1, sink.observations.get(0).time_offset);
+        assertEquals(Short.valueOf((short) 3), sink.observations.get(0).values[0]);
+        assertNull(sink.observations.get(0).values[1]);
+        assertEquals(Long.valueOf(8L), sink.observations.get(1).values[1]);
+
+        log.reset(3);
+        assertEquals(3, log.getBaseSequence());
+        log.append(Arrays.asList(new Observation(3, 0, 1f)));
+        sink = new ListSink();
+        assertEquals(1, log.replay(0, sink));
+        assertEquals(3, sink.observations.get(0).time_offset);
+        log.close();
+    }
+
+    @Test
+    public void testCategoricalValuesReplayed() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(logFile);
+        log.append(Arrays.asList(new Observation(0, 0, 1f, "gauge"), new Observation(1, 0, 2f, "r\u00e9sum\u00e9")));
+        ListSink sink = new ListSink();
+        assertEquals(2, log.replay(0, sink));
+        assertEquals("gauge", sink.observations.get(0).values[1]);
+        assertEquals("r\u00e9sum\u00e9", sink.observations.get(1).values[1]);
+        assertEquals(2f, sink.observations.get(1).values[0]);
+        log.close();
+    }
+
+    @Test
+    public void testResumeReplaysOnlyTheTail() throws Exception {
+        ListSink first = new ListSink();
+        JournaledWriter journaled = new JournaledWriter(first, new WriteAheadLog(logFile), checkpointFile, 4, 2);
+        for (int t = 0; t < 14; t++) {
+            journaled.putObservation(new Observation(t, 0, (float) t));
+        }
+        // crash: checkpoint after two batches, a third batch logged, 2 still buffered
+        assertEquals(12, first.observations.size());
+        assertEquals(8, Checkpoint.read(checkpointFile).committedSequence);
+
+        ListSink second = new ListSink();
+        journaled = JournaledWriter.resume(second, new WriteAheadLog(logFile), checkpointFile, 4, 2);
+        assertEquals(4, journaled.getReplayedCount());
+        assertEquals(8, second.observations.get(0).time_offset);
+        for (int t = 12; t < 16; t++) {
+            journaled.putObservation(new Observation(t, 0, (float) t));
+        }
+        assertEquals(8, second.observations.size());
+        assertEquals(15, second.observations.get(7).time_offset);
+        journaled.close();
+        assertFalse(logFile.exists());
+        assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void testRaggedFileResumesAtCheckpoint() throws Exception {
+        File ncFile = folder.newFile("journaled.nc");
+        ObservationBatch batch = meanBatch(18);
+        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(
+                ncFile, meanRecordType(), true, stations());
+        JournaledWriter journaled = new JournaledWriter(writer, new WriteAheadLog(logFile), checkpointFile, 4, 2);
+        for (int i = 0; i < 14; i++) {
+            journaled.putObservation(batch.getObservation(i));
+        }
+        // crash after a third batch reached the file: 12 records and their
+        // station ranges on disk, the checkpoint at 8
+        assertEquals(8, Checkpoint.read(checkpointFile).recordCount);
+        writer.close();
+
+        writer = new StationTimeSeriesNetCDFFile(ncFile, meanRecordType());
+        assertEquals(12, writer.getRecordCount());
+        journaled = JournaledWriter.resume(writer, new WriteAheadLog(logFile), checkpointFile, 4, 2);
+        assertEquals(4, journaled.getReplayedCount());
+        assertEquals(12, writer.getRecordCount());
+        assertEquals(4, writer.getStationRecordIndex().getRecordCount(0));
+        // the two buffered observations were lost and are sent again
+        for (int i = 12; i < batch.size; i++) {
+            journaled.putObservation(batch.getObservation(i));
+        }
+        journaled.close();
+
+        StationTimeSeriesReader reader = new StationTimeSeriesReader(ncFile, meanRecordType());
+        assertEquals(18, reader.getRecordCount());
+        StationRecordIndex index = reader.getStationRecordIndex();
+        for (int s = 0; s < 3; s++) {
+            assertEquals(6, index.getRecordCount(s));
+            assertEquals(s, index.getFirstRecord(s));
+            assertEquals(15 + s, index.getLastRecord(s));
+            BitSet station = new BitSet();
+            station.set(s);
+            Iterator<Observation> observations = reader.observations(station, 0, 5);
+            int count = 0;
+            while (observations.hasNext()) {
+                assertEquals(s, observations.next().station_index);
+                count++;
+            }
+            assertEquals(6, count);
+        }
+        assertBatchRead(reader, batch);
+    }
+}
@@ -0,0 +1,185 @@
+package gov.usgs.cida.netcdf.dsg;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import static gov.usgs.cida.netcdf.dsg.Fixtures.*;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriterPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class FakeWriter implements ObservationSink {
+        final File file;
+        final boolean reopened;
+        int count = 0;
+        boolean synced = false;
+        boolean closed = false;
+
+        FakeWriter(File file, boolean reopened) {
+            this.file = file;
+            this.reopened = reopened;
+        }
+
+        @Override
+        public boolean putObservation(Observation observation) {
+            assertFalse(closed);
+            count++;
+            return true;
+        }
+
+        @Override
+        public void sync() {
+            synced = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class FakeFactory implements WriterPool.Factory<FakeWriter> {
+        final List<FakeWriter> writers = new ArrayList<FakeWriter>();
+
+        @Override
+        public FakeWriter create(File file) {
+            FakeWriter writer = new FakeWriter(file, false);
+            writers.add(writer);
+            return writer;
+        }
+
+        @Override
+        public FakeWriter reopen(File file) {
+            FakeWriter writer = new FakeWriter(file, true);
+            writers.add(writer);
+            return writer;
+        }
+    }
+
+    /**
+     * Writes the ragged file given and a multidimensional file for anything
+     * else, both deduplicating and syncing every 4 records when created
+     */
+    private static class FileFactory implements WriterPool.Factory<ObservationSink> {
+        final File ragged;
+
+        FileFactory(File ragged) {
+            this.ragged = ragged;
+        }
+
+        @Override
+        public ObservationSink create(File file) {
+            if (file.equals(ragged)) {
+                StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(
+                        file, meanRecordType(), true, stations());
+                writer.setDuplicatePolicy(DuplicatePolicy.FIRST_WINS);
+                writer.setFlushPolicy(FlushPolicy.everyRecords(4));
+                return writer;
+            }
+            StationTimeSeriesMultiDimensional writer = new StationTimeSeriesMultiDimensional(
+                    file, null, stations(), new int[] { 0, 1, 2, 3, 4, 5 }, TIME_UNIT, new Variable[] { mean() });
+            writer.setDuplicatePolicy(DuplicatePolicy.FIRST_WINS);
+            writer.setFlushPolicy(FlushPolicy.everyRecords(4));
+            return writer;
+        }
+
+        @Override
+        public ObservationSink reopen(File file) {
+            if (file.equals(ragged)) {
+                return new StationTimeSeriesNetCDFFile(file, meanRecordType());
+            }
+            return new StationTimeSeriesMultiDimensional(file, new Variable[] { mean() });
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        FakeFactory factory = new FakeFactory();
+        WriterPool<FakeWriter> pool = new WriterPool<FakeWriter>(2, factory);
+        File a = new File("a.nc");
+        File b = new File("b.nc");
+        File c = new File("c.nc");
+
+        pool.putObservation(a, new Observation(0, 0, 1f));
+        pool.putObservation(b, new Observation(0, 0, 1f));
+        pool.putObservation(a, new Observation(1, 0, 1f));
+        // b is least recently used
+        pool.putObservation(c, new Observation(0, 0, 1f));
+        assertEquals(2, pool.getOpenFileCount());
+        assertTrue(pool.isOpen(a));
+        assertFalse(pool.isOpen(b));
+        FakeWriter firstB = factory.writers.get(1);
+        assertTrue(firstB.synced && firstB.closed);
+
+        pool.putObservation(b, new Observation(1, 0, 1f));
+        FakeWriter secondB = pool.get(b);
+        assertTrue(secondB.reopened);
+        assertEquals(1, secondB.count);
+        assertFalse(pool.isOpen(a));
+        assertEquals(1, pool.getReopenCount());
+        assertEquals(2, pool.getEvictionCount());
+        assertEquals(4, pool.getOpenCount());
+
+        pool.close();
+        assertEquals(0, pool.getOpenFileCount());
+        for (FakeWriter writer : factory.writers) {
+            assertTrue(writer.closed);
+        }
+    }
+
+    @Test
+    public void testReopenedWritersKeepSettings() throws Exception {
+        File ragged = folder.newFile("ragged.nc");
+        File grid = folder.newFile("grid.nc");
+        WriterPool<ObservationSink> pool = new WriterPool<ObservationSink>(1, new FileFactory(ragged));
+        ObservationBatch batch = meanBatch(18);
+        for (int i = 0; i < batch.size; i++) {
+            // one writer open, so every put evicts the other file
+            assertTrue(pool.putObservation(ragged, batch.getObservation(i)));
+            assertTrue(pool.putObservation(grid, batch.getObservation(i)));
+        }
+        assertEquals(34, pool.getReopenCount());
+
+        // duplicates of observations put before the last reopen
+        assertFalse(pool.putObservation(ragged, batch.getObservation(3)));
+        StationTimeSeriesNetCDFFile raggedWriter = (StationTimeSeriesNetCDFFile) pool.get(ragged);
+        assertEquals(DuplicatePolicy.FIRST_WINS, raggedWriter.getDuplicatePolicy());
+        assertEquals(4, raggedWriter.getFlushMetrics().getPolicy().everyRecords);
+        assertEquals(18, raggedWriter.getRecordCount());
+        assertFalse(pool.putObservation(grid, batch.getObservation(3)));
+        StationTimeSeriesMultiDimensional gridWriter = (StationTimeSeriesMultiDimensional) pool.get(grid);
+        assertEquals(DuplicatePolicy.FIRST_WINS, gridWriter.getDuplicatePolicy());
+        assertEquals(4, gridWriter.getFlushMetrics().getPolicy().everyRecords);
+        pool.close();
+
+        assertBatchRead(new StationTimeSeriesReader(ragged, meanRecordType()), batch);
+        assertBatchRead(new StationTimeSeriesReader(grid, new Variable[] { mean() }), batch);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWritersWithStatisticsRefused() throws Exception {
+        File stats = folder.newFile("stats.nc");
+        WriterPool<StationTimeSeriesNetCDFFile> pool = new WriterPool<StationTimeSeriesNetCDFFile>(1,
+                new WriterPool.Factory<StationTimeSeriesNetCDFFile>() {
+                    @Override
+                    public StationTimeSeriesNetCDFFile create(File file) {
+                        StationTimeSeriesNetCDFFile writer = new StationTimeSeriesNetCDFFile(
+                                file, meanRecordType(), true, stations());
+                        writer.enableStatistics(false);
+                        return writer;
+                    }
+
+                    @Override
+                    public StationTimeSeriesNetCDFFile reopen(File file) {
+                        return new StationTimeSeriesNetCDFFile(file, meanRecordType());
+                    }
+                });
+        pool.get(stats);
+    }
+}